@@ -87,6 +87,11 @@ public class MainActivity extends AppCompatActivity {
         glSurfaceView.undo();
     }
 
+    @OnClick(R.id.button_redo)
+    public void onClickFabRedo() {
+        glSurfaceView.redo();
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         super.onWindowFocusChanged(hasFocus);
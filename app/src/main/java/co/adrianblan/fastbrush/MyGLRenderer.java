@@ -28,17 +28,36 @@ import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.util.Log;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
 
+import co.adrianblan.fastbrush.compute.BrushSnapshot;
+import co.adrianblan.fastbrush.compute.ImprintBatch;
 import co.adrianblan.fastbrush.compute.PhysicsCompute;
+import co.adrianblan.fastbrush.compute.QualityGovernor;
+import co.adrianblan.fastbrush.globject.Bristle;
+import co.adrianblan.fastbrush.globject.BristleCurveRenderer;
+import co.adrianblan.fastbrush.globject.BrushManager;
+import co.adrianblan.fastbrush.touch.Stroke;
 import co.adrianblan.fastbrush.touch.TouchData;
 import co.adrianblan.fastbrush.touch.TouchDataManager;
 import co.adrianblan.fastbrush.file.ImageSaver;
 import co.adrianblan.fastbrush.buffer.BackBufferManager;
+import co.adrianblan.fastbrush.buffer.BrushViewCache;
+import co.adrianblan.fastbrush.buffer.CanvasCheckpoints;
+import co.adrianblan.fastbrush.buffer.CompressedTileStore;
+import co.adrianblan.fastbrush.buffer.DirtyRegion;
+import co.adrianblan.fastbrush.buffer.StrokeHistory;
+import co.adrianblan.fastbrush.buffer.TileAtlas;
+import co.adrianblan.fastbrush.buffer.TileOffloadStore;
+import co.adrianblan.fastbrush.buffer.TileUndoHistory;
+import co.adrianblan.fastbrush.buffer.VertexBufferManager;
 import co.adrianblan.fastbrush.globject.BackBufferSquare;
 import co.adrianblan.fastbrush.globject.Brush;
 import co.adrianblan.fastbrush.globject.Line;
@@ -59,16 +78,64 @@ import co.adrianblan.fastbrush.vector.Vector2;
  */
 public class MyGLRenderer implements GLSurfaceView.Renderer {
 
+    private static final String TAG = "MyGLRenderer";
+
     private static final float CAMERA_DISTANCE = 50;
     private static final float CAMERA_DISTANCE_FAR_SCALE = 5f;
 
     private static final float IMPRINT_DEPTH = 0.0002f;
 
+    // The height above the paper which IMPRINT_DEPTH corresponds to, the near plane is at the paper
+    private static final float IMPRINT_HEIGHT =
+            IMPRINT_DEPTH * CAMERA_DISTANCE * (CAMERA_DISTANCE_FAR_SCALE - 1);
+
+    // Clips the imprints to the paper when they are computed, instead of with the depth test.
+    // Set to false to draw the whole brush against the depth buffer, as a reference.
+    private static final boolean CONTACT_CLIPPING = true;
+
+    // Uploads the imprints as normalized shorts instead of floats, a third less vertex bandwidth.
+    // Set to false to upload floats, as a reference.
+    private static final boolean COMPACT_VERTICES = true;
+
+    // Evaluates the bristle curves in the vertex shader, instead of computing and uploading them
+    private static final boolean GPU_BRISTLE_CURVES = false;
+
+    // How many frames with imprints pass between each log of the uploaded bytes per frame
+    private static final int UPLOAD_LOG_INTERVAL = 300;
+
     private static final float BRUSH_VIEW_PADDING_HORIZONTAL = 0.25f;
     private static final float BRUSH_VIEW_PADDING_VERTICAL = 0.15f;
     private static final float BRUSH_VIEW_SCALE = 0.3f;
 
-    private static final int NUM_BACK_BUFFERS = 5;
+    // The line width of the brush head (in dp), which is the widest line of the brush views
+    private static final float BRUSH_HEAD_THICKNESS = 20f;
+
+    // How far the brush views reach from the brush in every direction, before they are scaled
+    private static final float BRUSH_VIEW_REACH = 2f * Bristle.BASE_LENGTH;
+
+    // The brush views are drawn into a cache when an element of the brush pose moves this much
+    private static final float BRUSH_VIEW_POSE_THRESHOLD = 0.01f;
+    private static final long BRUSH_VIEW_UPDATE_INTERVAL = 1000000000L / 30;
+
+    // The brush views are opaque, as they were when they were drawn straight on the screen
+    private static final float[] BRUSH_VIEW_COLOR =
+            {Utils.BROWN_COLOR[0], Utils.BROWN_COLOR[1], Utils.BROWN_COLOR[2], 1f};
+
+    // Only the rectangles of the screen which changed are composited, at most this many apart
+    private static final int MAX_DIRTY_RECTS = 4;
+
+    // The undo history saves the tiles which every stroke draws over, in at most this many bytes
+    private static final long UNDO_MEMORY_BUDGET = 24L * 1024 * 1024;
+    private static final int UNDO_TILE_SIZE = 128;
+
+    // The tiles which the undo history evicts are compressed, in memory and then in files
+    private static final long OFFLOAD_MEMORY_BUDGET = 8L * 1024 * 1024;
+    private static final long OFFLOAD_DISK_BUDGET = 64L * 1024 * 1024;
+    private static final String OFFLOAD_DIRECTORY = "undo";
+
+    // Strokes whose tiles were forgotten are replayed from a copy of the canvas, taken every few strokes
+    private static final int CHECKPOINT_INTERVAL = 8;
+    private static final int MAX_CHECKPOINTS = 2;
 
     // Matrices for the camera
     private final float[] mvpMatrix = new float[16];
@@ -82,29 +149,70 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     private final float[] brushViewMatrix = new float[16];
     private final float[] brushMVMatrix = new float[16];
     private final float[] brushMVPMatrix = new float[16];
+    private final float[] brushPaperMVPMatrix = new float[16];
+    private final float[] brushViewModelMatrix = new float[16];
+    private final float[] brushLineMVPMatrix = new float[16];
 
-    // Matrices for transforming the brush
-    private final float[] translateToOrigin = new float[16];
-    private final float[] translateFromOrigin = new float[16];
-    private final float[] translateToBrushTip = new float[16];
-    private final float[] translateToImprintCenter = new float[16];
-    private final float[] verticalRotationMatrix = new float[16];
+    // The brush state which the brush views show, which is computed again once the brush moved
+    private final BrushSnapshot previewSnapshot = new BrushSnapshot();
+    private int previewLength;
+    private boolean previewStale = true;
+
+    // The bounds of the whole brush in model space, as the minimum and maximum x, y and z
+    private final float[] previewBounds = {-BRUSH_VIEW_REACH, -BRUSH_VIEW_REACH, -BRUSH_VIEW_REACH,
+            BRUSH_VIEW_REACH, BRUSH_VIEW_REACH, BRUSH_VIEW_REACH};
+
+    // The brush state of the latest imprint which the vertex shader evaluated
+    private final BrushSnapshot curveSnapshot = new BrushSnapshot();
 
     private TouchDataManager touchDataManager;
     private SettingsManager settingsManager;
     private SettingsData settingsData;
     private PhysicsCompute physicsCompute;
-    private TimeProfilerHelper timeProfilerHelper;
+    private QualityGovernor qualityGovernor;
+    private TimeProfilerHelper uploadProfilerHelper;
+    private int uploadFrames;
+    private TimeProfilerHelper compositeProfilerHelper;
+    private int compositeFrames;
 
     // Buffers
     private BackBufferSquare backBufferSquare;
     private BackBufferManager backBufferManager;
+    private TileAtlas tileAtlas;
+    private TileUndoHistory undoHistory;
+    private TileOffloadStore tileOffloadStore;
+    private CanvasCheckpoints canvasCheckpoints;
+    private StrokeHistory strokeHistory;
     private int[] savedPixelBuffer;
+
+    // The rectangles of the screen which are composited in the next frame
+    private DirtyRegion dirtyRegion;
+    private boolean bufferPreserved;
+
+    // The pixels which the brush views can cover, as left, bottom, right and top
+    private final int[] brushViewBounds = new int[4];
+    private boolean brushViewsDrawn;
+
+    // The pixels which the brush head covered on the paper, as left, bottom, right and top
+    private final int[] brushHeadBounds = new int[4];
+    private boolean brushHeadDrawn;
+    private BrushViewCache brushViewCache;
+
+    // The stroke which is being drawn, and the settings which new strokes are recorded with
+    private Stroke stroke;
+    private boolean strokeHasDrawn;
+    private SettingsData strokeSettings;
+    private boolean strokesReplayed;
+
+    // How far the lines which are drawn on the canvas reach past their vertices (in pixels)
+    private int canvasPadding;
     private int[] savedTextureArray;
 
     // Drawing objects
     private float[] color;
+    private BrushManager brushManager;
     private Brush brush;
+    private BristleCurveRenderer bristleCurveRenderer;
     private Line line;
 
     private Context context;
@@ -120,6 +228,7 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // Initialize settings
         settingsManager = SettingsManager.getInstance(context);
         settingsData = settingsManager.getSettingsData();
+        strokeSettings = settingsData.clone();
     }
 
     @Override
@@ -127,6 +236,9 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // Clear the background
         GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
 
+        // The bristles are line strips, which the largest index separates
+        GLES30.glEnable(GLES30.GL_PRIMITIVE_RESTART_FIXED_INDEX);
+
         SharedPreferences sp = settingsManager.getSharedPreferences();
         color = settingsData.getColorWrapper().toFloatArray();
 
@@ -138,12 +250,19 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
 
         savedTextureArray = new int[1];
 
-        brush = new Brush(settingsData);
         line = new Line();
         touchDataManager = new TouchDataManager(numTouches, averageTouchSize, minTouchSize, maxTouchSize);
 
-        physicsCompute = new PhysicsCompute(context, brush);
-        timeProfilerHelper = new TimeProfilerHelper();
+        uploadProfilerHelper = new TimeProfilerHelper();
+        compositeProfilerHelper = new TimeProfilerHelper();
+        qualityGovernor = new QualityGovernor(QualityGovernor.DEFAULT_TARGET_FRAME_TIME,
+                Brush.SEGMENTS_PER_BRISTLE);
+
+        // Only the selected archetype is built now, the others while the user is not drawing
+        brushManager = new BrushManager(context, COMPACT_VERTICES, GPU_BRISTLE_CURVES,
+                CONTACT_CLIPPING, IMPRINT_HEIGHT);
+        brushManager.select(settingsData);
+        useSelectedBrush();
 
 
         // Set the brush offset matrix for the brush side view
@@ -158,14 +277,37 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // such as screen rotation
         GLES30.glViewport(0, 0, width, height);
 
-        EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW), EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
+        // Only the changed parts of the screen are drawn again if the previous frame is kept
+        bufferPreserved = EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW), EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
 
         this.width = width;
         this.height = height;
         screenRatio = (float) width / height;
 
         backBufferSquare = new BackBufferSquare(screenRatio);
-        backBufferManager = new BackBufferManager(NUM_BACK_BUFFERS, this.width, this.height);
+        backBufferManager = new BackBufferManager(1, this.width, this.height);
+
+        // The history can only restore the canvas it was recorded on
+        if(tileAtlas != null) {
+            tileAtlas.destroy();
+            canvasCheckpoints.destroy();
+            tileOffloadStore.destroy();
+        }
+
+        tileAtlas = new TileAtlas(backBufferManager.getFrameBuffer(), UNDO_TILE_SIZE);
+        undoHistory = new TileUndoHistory(tileAtlas, width, height, UNDO_TILE_SIZE, UNDO_MEMORY_BUDGET);
+        tileOffloadStore = new TileOffloadStore(tileAtlas, backBufferManager.getTextureBuffer(),
+                new CompressedTileStore(new File(context.getCacheDir(), OFFLOAD_DIRECTORY),
+                        OFFLOAD_MEMORY_BUDGET, OFFLOAD_DISK_BUDGET));
+        undoHistory.setTileOffloader(tileOffloadStore);
+        canvasCheckpoints = new CanvasCheckpoints(backBufferManager.getFrameBuffer(), width, height, MAX_CHECKPOINTS);
+        strokeHistory = new StrokeHistory(new HistoryCanvas(), CHECKPOINT_INTERVAL, MAX_CHECKPOINTS);
+        stroke = null;
+
+        dirtyRegion = new DirtyRegion(width, height, MAX_DIRTY_RECTS);
+        dirtyRegion.invalidate();
+        brushViewsDrawn = false;
+        brushHeadDrawn = false;
 
         // This projection matrix is applied to object coordinates in the onDrawFrame() method
         //Matrix.frustumM(projectionMatrix, 0, -screenRatio, screenRatio, -1, 1, CAMERA_DISTANCE, CAMERA_DISTANCE * CAMERA_DISTANCE_FAR_SCALE);
@@ -180,6 +322,15 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         Matrix.orthoM(brushProjectionMatrix, 0, -screenRatio, screenRatio, -1, 1, CAMERA_DISTANCE,
                 CAMERA_DISTANCE * CAMERA_DISTANCE_FAR_SCALE);
 
+        computeBrushViewBounds();
+
+        if(brushViewCache != null) {
+            brushViewCache.destroy();
+        }
+
+        brushViewCache = new BrushViewCache(width, height, brushViewBounds[0], brushViewBounds[1],
+                brushViewBounds[2], brushViewBounds[3], BRUSH_VIEW_POSE_THRESHOLD, BRUSH_VIEW_UPDATE_INTERVAL);
+
         // Bind standard buffer
         GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
         GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
@@ -201,6 +352,247 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
 
         GLES30.glViewport(0, 0, width, height);
 
+        bindCanvas(settingsData.getBristleThickness());
+
+        /** Imprint brush on paper **/
+        ArrayList<TouchData> touchDataList = touchDataManager.get();
+
+        if(stroke != null) {
+            stroke.add(touchDataList);
+        }
+
+        long imprintStartTime = System.nanoTime();
+
+        drawTouchData(touchDataList, 0, touchDataList.size(), color);
+
+        // Adapt the quality to the time the imprints took, only when there were any
+        if(!touchDataList.isEmpty()) {
+            float imprintTime = (System.nanoTime() - imprintStartTime) / 1000000f;
+
+            if(qualityGovernor.update(imprintTime)) {
+                physicsCompute.setQuality(qualityGovernor.getBristleFraction(),
+                        qualityGovernor.getSegmentsPerBristle());
+
+                if(bristleCurveRenderer != null) {
+                    bristleCurveRenderer.setSegmentsPerBristle(qualityGovernor.getSegmentsPerBristle());
+                }
+
+                // The stroke is replayed with the quality it was drawn with
+                if(stroke != null) {
+                    stroke.setQuality(qualityGovernor.getBristleFraction(),
+                            qualityGovernor.getSegmentsPerBristle());
+                }
+            }
+        } else if(!physicsCompute.hasPendingImprintBatches()) {
+            // The automatic backend type is calibrated while idle, and switched to once it is done
+            physicsCompute.updateCalibration();
+
+            // Build the bristles of one of the other archetypes while idle, so that switching to it is instant
+            brushManager.warmNext();
+        }
+
+        compositeCanvas();
+
+        brushViewsDrawn = settingsData.isShowBrushView() && !touchDataManager.hasTouchEnded();
+
+        brushHeadDrawn = brushViewsDrawn && touchDataManager.hasTouchData();
+
+        /** Draw Brush Head **/
+        if(brushHeadDrawn) {
+            usePreviewVertexData();
+            GLES30.glLineWidth(Utils.convertPixelsToDp(BRUSH_HEAD_THICKNESS));
+            brush.draw(brushPaperMVPMatrix, Utils.BROWN_COLOR);
+
+            // The head moves every frame, so where it was is composited again in the next one
+            projectBrushBounds(brushPaperMVPMatrix, previewBounds, brushHeadBounds);
+        }
+
+        /** Draw Brush View **/
+        if(brushViewsDrawn) {
+            // The views are only drawn again when the brush moved, and at a capped rate
+            if(brushViewCache.needsUpdate(brushModelMatrix, System.nanoTime())) {
+                drawBrushViews();
+            }
+
+            brushViewCache.draw();
+        }
+
+        // Only frames with imprints are measured, the others only upload the brush views
+        if(!touchDataList.isEmpty()) {
+            measureUploadedBytes();
+        } else {
+            brush.getVertexBufferManager().resetUploadedBytes();
+        }
+
+        // We are done rendering TouchData, now we clear them
+        touchDataManager.clear();
+
+        tileOffloadStore.poll();
+    }
+
+    /** Draws the line of the paper and the side view of the brush into the cache */
+    private void drawBrushViews() {
+        usePreviewVertexData();
+        brushViewCache.beginUpdate();
+
+        // Brush side view matrices, where the model matrix of the latest imprint is left as it is
+        Matrix.setLookAtM(brushViewMatrix, 0,
+                (brush.getPosition().getX() * BRUSH_VIEW_SCALE) - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, CAMERA_DISTANCE + 1.0f, 0f,
+                (brush.getPosition().getX() * BRUSH_VIEW_SCALE) - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, 0f, 0f,
+                0f, 0.0f, 1.0f);
+
+        Matrix.multiplyMM(brushViewModelMatrix, 0, brushModelOffsetMatrix, 0, brushModelMatrix, 0);
+        Matrix.multiplyMM(brushMVMatrix, 0, brushViewMatrix, 0, brushViewModelMatrix, 0);
+        Matrix.multiplyMM(brushMVPMatrix, 0, brushProjectionMatrix, 0, brushMVMatrix, 0);
+
+        // Draw brush view line
+        GLES30.glLineWidth(Utils.convertPixelsToDp(15f));
+        line.draw(brushLineMVPMatrix, BRUSH_VIEW_COLOR);
+
+        // Draw brush side view brush
+        GLES30.glLineWidth(Brush.BRUSH_VIEW_BRISTLE_THICKNESS);
+        brush.draw(brushMVPMatrix, BRUSH_VIEW_COLOR);
+
+        brushViewCache.endUpdate();
+    }
+
+    /**
+     * Draws the rectangles of the canvas which changed to the default buffer, along with the ones
+     * which the brush views covered in the previous frame.
+     */
+    private void compositeCanvas() {
+
+        // Without a preserved buffer the previous frame is gone, so everything is drawn again
+        if(!bufferPreserved) {
+            dirtyRegion.invalidate();
+        }
+
+        if(brushViewsDrawn) {
+            dirtyRegion.add(brushViewBounds[0], brushViewBounds[1], brushViewBounds[2], brushViewBounds[3]);
+        }
+
+        if(brushHeadDrawn) {
+            dirtyRegion.add(brushHeadBounds[0], brushHeadBounds[1], brushHeadBounds[2], brushHeadBounds[3]);
+        }
+
+        // Bind default buffer
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, 0);
+
+        // Disable blending and depth test
+        GLES30.glDisable(GLES30.GL_BLEND);
+        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+
+        if(dirtyRegion.isFull()) {
+            // Clear color and depth
+            GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
+
+            // Draw render texture to default buffer
+            backBufferSquare.draw(mvpMatrix, backBufferManager.getTextureBuffer());
+        } else if(dirtyRegion.getNumRects() > 0) {
+
+            // The canvas covers the screen pixel for pixel, so the rectangles are the same on both
+            GLES30.glEnable(GLES30.GL_SCISSOR_TEST);
+
+            for(int i = 0; i < dirtyRegion.getNumRects(); i++) {
+                GLES30.glScissor(dirtyRegion.getX(i), dirtyRegion.getY(i),
+                        dirtyRegion.getWidth(i), dirtyRegion.getHeight(i));
+                backBufferSquare.draw(mvpMatrix, backBufferManager.getTextureBuffer());
+            }
+
+            GLES30.glDisable(GLES30.GL_SCISSOR_TEST);
+        }
+
+        if(dirtyRegion.getNumRects() > 0) {
+            measureCompositedArea();
+        }
+
+        dirtyRegion.clear();
+    }
+
+    /** Averages the share of the screen which is composited per frame, and logs it now and then */
+    private void measureCompositedArea() {
+        compositeProfilerHelper.add(100f * dirtyRegion.getArea() / ((long) width * height));
+
+        if(++compositeFrames % UPLOAD_LOG_INTERVAL == 0) {
+            Log.d(TAG, String.format("Composited %.1f%% of the screen per frame (preserved: %b)",
+                    compositeProfilerHelper.getAverage(), bufferPreserved));
+        }
+    }
+
+    /**
+     * Computes the matrix of the line of the brush views, and the pixels which the views can cover,
+     * from a box around the brush in the view of the line, which the side view keeps the brush on.
+     */
+    private void computeBrushViewBounds() {
+        float[] viewMatrix = new float[16];
+        float[] modelViewMatrix = new float[16];
+        float[] box = {-BRUSH_VIEW_REACH, -BRUSH_VIEW_REACH, -BRUSH_VIEW_REACH,
+                BRUSH_VIEW_REACH, BRUSH_VIEW_REACH, BRUSH_VIEW_REACH};
+
+        Matrix.setLookAtM(viewMatrix, 0,
+                0 - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, CAMERA_DISTANCE + 1.0f, 0f,
+                0 - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, 0f, 0f,
+                0f, 0.0f, 1.0f);
+        Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, brushModelOffsetMatrix, 0);
+        Matrix.multiplyMM(brushLineMVPMatrix, 0, brushProjectionMatrix, 0, modelViewMatrix, 0);
+
+        projectBrushBounds(brushLineMVPMatrix, box, brushViewBounds);
+    }
+
+    /**
+     * Computes the pixels which a model space box of the brush covers with a matrix, as left,
+     * bottom, right and top, padded by the widest line the brush is drawn with.
+     */
+    private void projectBrushBounds(float[] mvpMatrix, float[] box, int[] bounds) {
+        float[] corner = new float[4];
+        float[] projected = new float[4];
+
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+
+        for(int i = 0; i < 8; i++) {
+            corner[0] = (i & 1) == 0 ? box[0] : box[3];
+            corner[1] = (i & 2) == 0 ? box[1] : box[4];
+            corner[2] = (i & 4) == 0 ? box[2] : box[5];
+            corner[3] = 1f;
+
+            Matrix.multiplyMV(projected, 0, mvpMatrix, 0, corner, 0);
+
+            float x = (projected[0] / projected[3] + 1f) * 0.5f * width;
+            float y = (projected[1] / projected[3] + 1f) * 0.5f * height;
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        int padding = (int) Math.ceil(Utils.convertPixelsToDp(BRUSH_HEAD_THICKNESS)) + 1;
+
+        bounds[0] = (int) Math.floor(minX) - padding;
+        bounds[1] = (int) Math.floor(minY) - padding;
+        bounds[2] = (int) Math.ceil(maxX) + padding;
+        bounds[3] = (int) Math.ceil(maxY) + padding;
+    }
+
+    /** Averages the bytes uploaded to the GPU per frame, and logs them now and then */
+    private void measureUploadedBytes() {
+        VertexBufferManager vertexBufferManager = brush.getVertexBufferManager();
+        uploadProfilerHelper.add(vertexBufferManager.getUploadedBytes() / 1024f);
+        vertexBufferManager.resetUploadedBytes();
+
+        if(++uploadFrames % UPLOAD_LOG_INTERVAL == 0) {
+            Log.d(TAG, String.format("Uploaded %.1f kB of vertices and indices per frame (compact: %b)",
+                    uploadProfilerHelper.getAverage(), COMPACT_VERTICES));
+        }
+    }
+
+    /** Binds the canvas, with the blending and depth test which the imprints are drawn with */
+    private void bindCanvas(float bristleThickness) {
+
         // Bind back buffer
         GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, backBufferManager.getFrameBuffer());
         GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, backBufferManager.getDepthBuffer());
@@ -214,123 +606,215 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         //GLES30.glBlendEquationSeparate(GLES30.GL_FUNC_ADD, GLES30.GL_MAX);
 
 
-        // Enable depth testing to slightly above paper
-        GLES30.glEnable(GLES30.GL_DEPTH_TEST);
-        GLES30.glClearDepthf(IMPRINT_DEPTH);
-        GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
-        GLES30.glDepthFunc(GLES30.GL_LEQUAL);
-        GLES30.glDepthMask(true);
+        if(CONTACT_CLIPPING) {
+            // The imprints only contain what touches the paper, so there is nothing to depth test
+            GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+        } else {
+            // Enable depth testing to slightly above paper
+            GLES30.glEnable(GLES30.GL_DEPTH_TEST);
+            GLES30.glClearDepthf(IMPRINT_DEPTH);
+            GLES30.glClear(GLES30.GL_DEPTH_BUFFER_BIT);
+            GLES30.glDepthFunc(GLES30.GL_LEQUAL);
+            GLES30.glDepthMask(true);
+        }
+
+        GLES30.glLineWidth(bristleThickness * 10f);
 
-        GLES30.glLineWidth(settingsData.getBristleThickness() * 10f);
+        // The lines are wider than the vertices they are drawn between
+        canvasPadding = (int) Math.ceil(bristleThickness * 10f) + 1;
+    }
 
-        /** Imprint brush on paper **/
-        for(TouchData td : touchDataManager.get()) {
+    /** Imprints the current brush on the bound canvas for a range of touch data, in a color */
+    private void drawTouchData(ArrayList<TouchData> touchDataList, int from, int to, float[] color) {
+        int nextTouchData = from;
 
-            long startTime = System.nanoTime();
-            brush.updateBrush(td);
-            brush.putVertexData(physicsCompute.computeVertexData());
+        // Every imprint is drawn straight from its brush state, there is nothing to compute
+        if(GPU_BRISTLE_CURVES) {
+            for(; nextTouchData < to; nextTouchData++) {
+                brush.updateBrush(touchDataList.get(nextTouchData));
+                curveSnapshot.set(brush);
 
-            long endTime = System.nanoTime();
-            float newTime = (endTime - startTime) / 1000000f;
-            timeProfilerHelper.add(newTime);
+                // The bristles reach at most the imprint length past the tip, and the radius of the archetype around it
+                float reach = brush.getBristleStore().getRadius() * 2f + curveSnapshot.planarDistanceFromHandle
+                        + curveSnapshot.planarImprintLength;
+                prepareCanvasWrite(curveSnapshot.positionX - reach, curveSnapshot.positionY - reach,
+                        curveSnapshot.positionX + reach, curveSnapshot.positionY + reach);
 
-            Matrix.setIdentityM(brushModelMatrix, 0);
-            Matrix.setIdentityM(translateToOrigin, 0);
-            Matrix.setIdentityM(translateFromOrigin, 0);
-            Matrix.setIdentityM(translateToBrushTip, 0);
-            Matrix.setIdentityM(translateToImprintCenter, 0);
-            Matrix.setIdentityM(verticalRotationMatrix, 0);
+                bristleCurveRenderer.draw(curveSnapshot, mvpMatrix, color, IMPRINT_HEIGHT);
+            }
 
-            /**
-             * Start model matrix transformations, first to translate brush it's tip,
-             * then to rotate it vertically, and lastly move it to the center of the imprint.
-             */
-            Matrix.translateM(translateToOrigin, 0, -brush.getPosition().vector[0],
-                    -brush.getPosition().vector[1], 0);
+            if(to > from) {
+                setBrushModelMatrix(curveSnapshot.modelMatrix);
+            }
+        }
 
-            float horizontalAngle = brush.getHorizontalAngle();
-            float cosHorizontalAngle = (float) Math.cos(Math.toRadians(horizontalAngle));
-            float sinHorizontalAngle = (float) Math.sin(Math.toRadians(horizontalAngle));
+        // The imprints are split into smaller batches, so that even a frame with few imprints overlaps
+        int batchSize = physicsCompute.getBatchSize(to - nextTouchData);
 
-            Matrix.translateM(translateToBrushTip, 0,
-                    -cosHorizontalAngle * brush.getBristleParameters().planarDistanceFromHandle,
-                    -sinHorizontalAngle * brush.getBristleParameters().planarDistanceFromHandle, 0.03f);
+        while(nextTouchData < to || physicsCompute.hasPendingImprintBatches()) {
 
-            Matrix.setRotateM(verticalRotationMatrix, 0, brush.getVerticalAngle() * 0.30f,
-                    (float) Math.cos(Math.toRadians(horizontalAngle - 90)),
-                    (float) Math.sin(Math.toRadians(horizontalAngle - 90)), 0);
+            // Collect the brush states of the next batch, which is computed while the previous one is drawn
+            if(nextTouchData < to) {
+                ImprintBatch imprintBatch = physicsCompute.getImprintBatch();
+                imprintBatch.clear();
 
-            Matrix.translateM(translateToImprintCenter, 0,
-                    cosHorizontalAngle * brush.getBristleParameters().planarImprintLength,
-                    sinHorizontalAngle * brush.getBristleParameters().planarImprintLength, 0f);
+                int batchEnd = Math.min(to, nextTouchData + batchSize);
 
-            Matrix.translateM(translateFromOrigin, 0, brush.getPosition().getX(), brush.getPosition().getY(), 0);
-            Matrix.multiplyMM(brushModelMatrix, 0, translateToOrigin, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushModelMatrix, 0, translateToBrushTip, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushModelMatrix, 0, verticalRotationMatrix, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushModelMatrix, 0, translateToImprintCenter, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushModelMatrix, 0, translateFromOrigin, 0, brushModelMatrix, 0);
+                for(; nextTouchData < batchEnd; nextTouchData++) {
+                    brush.updateBrush(touchDataList.get(nextTouchData));
+                    imprintBatch.add(brush);
+                }
 
-            // Add model matrix to camera matrices
-            Matrix.multiplyMM(brushMVMatrix, 0, viewMatrix, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushMVPMatrix, 0, projectionMatrix, 0, brushMVMatrix, 0);
+                physicsCompute.submitImprintBatch();
+            }
 
-            brush.draw(brushMVPMatrix, color);
+            // Draw the oldest batch once the pipeline is full, or when there is nothing left to submit
+            if(physicsCompute.isPipelineFull() || nextTouchData == to) {
+                drawImprintBatch(physicsCompute.takeImprintBatch(), color);
+            }
         }
+    }
 
-        // Bind default buffer
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
-        GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, 0);
+    /** Draws all imprints of a computed batch on the paper */
+    private void drawImprintBatch(ImprintBatch imprintBatch, float[] color) {
+        float[] bounds = imprintBatch.getBounds();
+        prepareCanvasWrite(bounds[0], bounds[1], bounds[2], bounds[3]);
+
+        // The imprints are already placed on the paper, so the whole batch is one draw with the camera
+        if(imprintBatch.getCompactVertexData() != null) {
+            brush.setVertexData(imprintBatch.getCompactVertexData(), imprintBatch.getIndexBuffer(),
+                    imprintBatch.getIndexCount());
+        } else {
+            brush.setVertexData(imprintBatch.getVertexBuffer(), 0, imprintBatch.getVertexDataLength(),
+                    imprintBatch.getIndexBuffer(), imprintBatch.getIndexCount());
+        }
+        brush.draw(mvpMatrix, color);
 
-        // Disable blending and depth test
-        GLES30.glDisable(GLES30.GL_BLEND);
-        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+        // The brush views use the model matrix of the latest imprint
+        setBrushModelMatrix(imprintBatch.getSnapshot(imprintBatch.size() - 1).modelMatrix);
+    }
 
-        // Clear color and depth
-        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
+    /** Sets the model matrix of the latest imprint, and places the brush head on the paper with it */
+    private void setBrushModelMatrix(float[] modelMatrix) {
+        System.arraycopy(modelMatrix, 0, brushModelMatrix, 0, 16);
+        Matrix.multiplyMM(brushPaperMVPMatrix, 0, mvpMatrix, 0, brushModelMatrix, 0);
+        previewStale = true;
+    }
 
-        // Draw render texture to default buffer
-        backBufferSquare.draw(mvpMatrix, backBufferManager.getTextureBuffer());
+    /** Computes the model space bounds of the whole brush, from the vertices of the preview */
+    private void updatePreviewBounds() {
+        FloatBuffer vertices = brush.getPreviewVertexBuffer();
 
-        /** Draw Brush Head **/
-        if(settingsData.isShowBrushView()
-                && touchDataManager.hasTouchData() && !touchDataManager.hasTouchEnded()) {
-            GLES30.glLineWidth(Utils.convertPixelsToDp(20f));
-            brush.draw(brushMVPMatrix, Utils.BROWN_COLOR);
+        if(previewLength == 0) {
+            return;
         }
 
-        /** Draw Brush View **/
-        if(settingsData.isShowBrushView() && !touchDataManager.hasTouchEnded()) {
+        for(int axis = 0; axis < 3; axis++) {
+            previewBounds[axis] = Float.MAX_VALUE;
+            previewBounds[axis + 3] = -Float.MAX_VALUE;
+        }
+
+        for(int i = 0; i < previewLength; i++) {
+            int axis = i % 3;
+            float value = vertices.get(i);
+
+            previewBounds[axis] = Math.min(previewBounds[axis], value);
+            previewBounds[axis + 3] = Math.max(previewBounds[axis + 3], value);
+        }
+    }
+
+    /**
+     * Sets the vertex data of the brush to the whole brush, for the brush head and views. The
+     * preview is only set again once it is stale, which it is whenever a batch was drawn or the
+     * brush changed, so that it is uploaded once however often it is drawn.
+     */
+    private void usePreviewVertexData() {
+
+        // The imprints are placed on the paper, and with contact clipping only contain the tips of the
+        // bristles, so the whole brush is computed in model space for the views
+        if(previewStale) {
+            previewSnapshot.set(brush);
+            previewLength = physicsCompute.computePreview(previewSnapshot,
+                    brush.getPreviewVertexBuffer(), brush.getPreviewIndexBuffer());
+            updatePreviewBounds();
+            previewStale = false;
+
+            brush.setVertexData(brush.getPreviewVertexBuffer(), 0, previewLength,
+                    brush.getPreviewIndexBuffer(), physicsCompute.getPreviewIndexCount());
+        }
+    }
+
+    /**
+     * Lets the undo history save the tiles of a world space rectangle of the canvas, before it is
+     * drawn over, marks it to be composited, and binds the canvas again.
+     */
+    private void prepareCanvasWrite(float minX, float minY, float maxX, float maxY) {
+
+        if(minX > maxX || minY > maxY) {
+            return;
+        }
 
-            // Draw brush view line
-            Matrix.setLookAtM(brushViewMatrix, 0,
-                    0 - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, CAMERA_DISTANCE + 1.0f, 0f,
-                    0 - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, 0f, 0f,
-                    0f, 0.0f, 1.0f);
+        // The camera only scales and mirrors the paper, so the corners map to the corners of the rectangle
+        float firstX = (mvpMatrix[0] * minX + mvpMatrix[12] + 1f) * 0.5f * width;
+        float secondX = (mvpMatrix[0] * maxX + mvpMatrix[12] + 1f) * 0.5f * width;
+        float firstY = (mvpMatrix[5] * minY + mvpMatrix[13] + 1f) * 0.5f * height;
+        float secondY = (mvpMatrix[5] * maxY + mvpMatrix[13] + 1f) * 0.5f * height;
 
-            Matrix.multiplyMM(brushMVMatrix, 0, brushViewMatrix, 0, brushModelOffsetMatrix, 0);
-            Matrix.multiplyMM(brushMVPMatrix, 0, brushProjectionMatrix, 0, brushMVMatrix, 0);
+        int left = (int) Math.floor(Math.min(firstX, secondX)) - canvasPadding;
+        int bottom = (int) Math.floor(Math.min(firstY, secondY)) - canvasPadding;
+        int right = (int) Math.ceil(Math.max(firstX, secondX)) + canvasPadding;
+        int top = (int) Math.ceil(Math.max(firstY, secondY)) + canvasPadding;
 
-            GLES30.glLineWidth(Utils.convertPixelsToDp(15f));
-            line.draw(brushMVPMatrix, Utils.BROWN_COLOR);
+        undoHistory.prepareWrite(left, bottom, right, top);
+        dirtyRegion.add(left, bottom, right, top);
+        strokeHasDrawn = true;
 
-            // Draw brush side view brush
-            Matrix.setLookAtM(brushViewMatrix, 0,
-                    (brush.getPosition().getX() * BRUSH_VIEW_SCALE) - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, CAMERA_DISTANCE + 1.0f, 0f,
-                    (brush.getPosition().getX() * BRUSH_VIEW_SCALE) - screenRatio + BRUSH_VIEW_PADDING_HORIZONTAL, 0f, 0f,
-                    0f, 0.0f, 1.0f);
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, backBufferManager.getFrameBuffer());
+    }
 
-            Matrix.multiplyMM(brushModelMatrix, 0, brushModelOffsetMatrix, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushMVMatrix, 0, brushViewMatrix, 0, brushModelMatrix, 0);
-            Matrix.multiplyMM(brushMVPMatrix, 0, brushProjectionMatrix, 0, brushMVMatrix, 0);
+    /** Draws with the brush of the selected archetype, at the current quality */
+    private void useSelectedBrush() {
+        brush = brushManager.getBrush();
+        physicsCompute = brushManager.getPhysicsCompute();
+        bristleCurveRenderer = brushManager.getBristleCurveRenderer();
 
-            GLES30.glLineWidth(Brush.BRUSH_VIEW_BRISTLE_THICKNESS);
-            brush.draw(brushMVPMatrix, Utils.BROWN_COLOR);
+        physicsCompute.setQuality(qualityGovernor.getBristleFraction(),
+                qualityGovernor.getSegmentsPerBristle());
 
+        if(bristleCurveRenderer != null) {
+            bristleCurveRenderer.setSegmentsPerBristle(qualityGovernor.getSegmentsPerBristle());
         }
+    }
 
-        // We are done rendering TouchData, now we clear them
-        touchDataManager.clear();
+    /** The canvas which the stroke history restores, and draws the strokes on again */
+    private class HistoryCanvas implements StrokeHistory.Canvas {
+
+        @Override
+        public boolean undoStroke(int stroke) {
+            return undoHistory.undo(stroke);
+        }
+
+        @Override
+        public void drawStroke(Stroke stroke, int index) {
+            replayStroke(stroke, index);
+        }
+
+        @Override
+        public void saveCheckpoint(int slot) {
+            canvasCheckpoints.save(slot);
+        }
+
+        @Override
+        public void restoreCheckpoint(int slot) {
+            undoHistory.clear();
+            canvasCheckpoints.restore(slot);
+        }
+
+        @Override
+        public void clear() {
+            undoHistory.clear();
+            backBufferManager.resetBuffers();
+        }
     }
 
     /** Loads a drawable into the currently bound texture */
@@ -358,25 +842,61 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * Renders the current back buffer to the next back buffer,
-     * and then iterates to the next back buffer.
+     * Starts recording a new stroke, where the tiles of the canvas are saved as the stroke first
+     * draws over them.
      */
     public void touchHasStarted() {
+        endStroke();
 
-        // Bind next back buffer
-        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, backBufferManager.getNextFrameBuffer());
-        GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, backBufferManager.getNextDepthBuffer());
+        stroke = new Stroke(strokeSettings);
+        stroke.setQuality(qualityGovernor.getBristleFraction(), qualityGovernor.getSegmentsPerBristle());
+        strokeHasDrawn = false;
 
-        // Disable blending and depth test
-        GLES30.glDisable(GLES30.GL_BLEND);
-        GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+        // Every stroke starts from the same brush state, so that it is replayed the same way
+        physicsCompute.resetDynamics();
+        undoHistory.beginStroke(strokeHistory.getNumApplied());
+    }
 
-        // Clear color and depth
-        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
+    /** Ends the stroke which is recorded, and adds it to the history if it drew anything */
+    private void endStroke() {
+        undoHistory.endStroke();
+
+        if(stroke != null && strokeHasDrawn) {
+            strokeHistory.add(stroke);
+        }
+
+        stroke = null;
+    }
 
-        // Draw current render texture to next back buffer
-        backBufferSquare.draw(mvpMatrix, backBufferManager.getTextureBuffer());
-        backBufferManager.setNextBuffer();
+    /** Draws a recorded stroke on the canvas again, with the settings and quality it was drawn with */
+    private void replayStroke(Stroke recordedStroke, int index) {
+        SettingsData recordedSettings = recordedStroke.getSettingsData();
+
+        brushManager.select(recordedSettings);
+        useSelectedBrush();
+
+        brush.resetPosition();
+        physicsCompute.resetDynamics();
+        undoHistory.beginStroke(index);
+        bindCanvas(recordedSettings.getBristleThickness());
+
+        float[] recordedColor = recordedSettings.getColorWrapper().toFloatArray();
+
+        for(int i = 0; i < recordedStroke.getNumQualities(); i++) {
+            physicsCompute.setQuality(recordedStroke.getBristleFraction(i),
+                    recordedStroke.getSegmentsPerBristle(i));
+
+            if(bristleCurveRenderer != null) {
+                bristleCurveRenderer.setSegmentsPerBristle(recordedStroke.getSegmentsPerBristle(i));
+            }
+
+            drawTouchData(recordedStroke.getTouchDataList(), recordedStroke.getQualityStart(i),
+                    recordedStroke.getQualityEnd(i), recordedColor);
+        }
+
+        undoHistory.endStroke();
+        brush.resetPosition();
+        strokesReplayed = true;
     }
 
     /** Indicates that the touch data has ended, clears the array and adds the last TouchData */
@@ -401,26 +921,42 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     }
 
     /**
-     * If there are previous buffers, rewind to the previous buffer and draw it to the main buffer.
+     * If there is a stroke to undo, restore the canvas to before it and composite the whole canvas
+     * in the next frame.
      */
     public void undo() {
+        endStroke();
+        long startTime = System.nanoTime();
 
-        if(backBufferManager.hasPreviousBuffers()) {
-            backBufferManager.rewindBuffer();
+        if(strokeHistory.undo()) {
+            finishReplay(startTime);
+            dirtyRegion.invalidate();
+        }
+    }
 
-            // Bind default buffer
-            GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
-            GLES30.glBindRenderbuffer(GLES30.GL_RENDERBUFFER, 0);
+    /**
+     * If there is an undone stroke, draw it again and composite the whole canvas in the next frame.
+     */
+    public void redo() {
+        endStroke();
+        long startTime = System.nanoTime();
 
-            // Disable blending and depth test
-            GLES30.glDisable(GLES30.GL_BLEND);
-            GLES30.glDisable(GLES30.GL_DEPTH_TEST);
+        if(strokeHistory.redo()) {
+            finishReplay(startTime);
+            dirtyRegion.invalidate();
+        }
+    }
 
-            // Clear color and depth
-            GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);
+    /** Selects the brush of the current settings again, if strokes were replayed with their own */
+    private void finishReplay(long startTime) {
 
-            // Draw current render texture to main buffer
-            backBufferSquare.draw(mvpMatrix, backBufferManager.getTextureBuffer());
+        if(strokesReplayed) {
+            strokesReplayed = false;
+            brushManager.select(settingsData);
+            useSelectedBrush();
+
+            Log.d(TAG, String.format("Replayed strokes in %.1f ms",
+                    (System.nanoTime() - startTime) / 1000000f));
         }
     }
 
@@ -429,7 +965,11 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
      */
     public void clearScreen() {
         touchHasEnded();
+        endStroke();
+        strokeHistory.clear();
+        undoHistory.clear();
         backBufferManager.resetBuffers();
+        dirtyRegion.invalidate();
     }
 
     /** Translates a viewport vector to world vector */
@@ -505,10 +1045,19 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     private void reconfigureSettingsChanges() {
         settingsManager.setChangesRead();
         settingsData = settingsManager.getSettingsData();
-        brush = new Brush(settingsData);
-        physicsCompute.destroy();
-        physicsCompute = new PhysicsCompute(context, brush);
+
+        // Switching archetypes keeps the brush and only uploads other bristles, only the settings which shape the brush rebuild it
+        if(brushManager.select(settingsData)) {
+            useSelectedBrush();
+            previewLength = 0;
+            previewStale = true;
+            brushViewCache.invalidate();
+        }
+
         color = settingsData.getColorWrapper().toFloatArray();
+
+        // The strokes which were recorded keep the settings they were drawn with
+        strokeSettings = settingsData.clone();
     }
 
     public void onPause() {
@@ -148,6 +148,16 @@ public class MyGLSurfaceView extends GLSurfaceView {
         requestRender();
     }
 
+    public void redo() {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                mRenderer.redo();
+            }
+        });
+        requestRender();
+    }
+
     public void clearScreen() {
         queueEvent(new Runnable() {
             @Override
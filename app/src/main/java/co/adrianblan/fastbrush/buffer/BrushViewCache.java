@@ -0,0 +1,189 @@
+package co.adrianblan.fastbrush.buffer;
+
+import android.opengl.GLES30;
+
+import co.adrianblan.fastbrush.globject.TexturedSquare;
+
+/**
+ * Class which keeps the brush views in a small texture, which covers the rectangle of the screen
+ * they are drawn in, and is drawn over the canvas every frame.
+ *
+ * The views are only drawn into the texture again when the pose of the brush moved past a
+ * threshold, and at most once per interval, so that their cost does not grow with the number of
+ * frames or imprints in a stroke. The texture and its framebuffer are allocated when the views are
+ * first drawn.
+ */
+public class BrushViewCache {
+
+    private final int screenWidth;
+    private final int screenHeight;
+    private final int left;
+    private final int bottom;
+    private final int width;
+    private final int height;
+
+    private final float poseThreshold;
+    private final long minInterval;
+
+    // The pose which the texture was drawn with, and when
+    private final float[] cachedPose = new float[16];
+    private long cachedTime;
+    private boolean valid;
+    private int numUpdates;
+
+    // Places the texture on its rectangle of the screen
+    private final float[] mvpMatrix = new float[16];
+
+    private final int[] frameBuffer = new int[1];
+    private final int[] texture = new int[1];
+    private TexturedSquare texturedSquare;
+
+    /**
+     * @param screenWidth the width of the screen (in pixels)
+     * @param screenHeight the height of the screen (in pixels)
+     * @param left the left edge of the rectangle which the views are drawn in (in pixels, inclusive)
+     * @param bottom the bottom edge of the rectangle
+     * @param right the right edge of the rectangle
+     * @param top the top edge of the rectangle
+     * @param poseThreshold how much an element of the model matrix of the brush has to change
+     *                      before the views are drawn again
+     * @param minInterval the time which passes at least between updates (in nanoseconds)
+     */
+    public BrushViewCache(int screenWidth, int screenHeight, int left, int bottom, int right, int top,
+                          float poseThreshold, long minInterval) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.left = Math.max(left, 0);
+        this.bottom = Math.max(bottom, 0);
+        this.width = Math.max(Math.min(right, screenWidth - 1) - this.left + 1, 1);
+        this.height = Math.max(Math.min(top, screenHeight - 1) - this.bottom + 1, 1);
+        this.poseThreshold = poseThreshold;
+        this.minInterval = minInterval;
+
+        // The textured square is mirrored horizontally, like the camera of the canvas
+        float centerX = (2f * this.left + width) / screenWidth - 1f;
+        float centerY = (2f * this.bottom + height) / screenHeight - 1f;
+
+        mvpMatrix[0] = -(float) width / screenWidth;
+        mvpMatrix[5] = (float) height / screenHeight;
+        mvpMatrix[10] = 1f;
+        mvpMatrix[12] = centerX;
+        mvpMatrix[13] = centerY;
+        mvpMatrix[15] = 1f;
+    }
+
+    /**
+     * Returns whether the views should be drawn again for a pose of the brush at a time (in
+     * nanoseconds), in which case the pose is remembered as the one they are drawn with.
+     */
+    public boolean needsUpdate(float[] modelMatrix, long time) {
+
+        if (valid && (time - cachedTime < minInterval || getPoseChange(modelMatrix) <= poseThreshold)) {
+            return false;
+        }
+
+        System.arraycopy(modelMatrix, 0, cachedPose, 0, 16);
+        cachedTime = time;
+        valid = true;
+        numUpdates++;
+        return true;
+    }
+
+    /** Makes the views be drawn again in the next frame, regardless of the pose */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /** Returns the largest change of an element of the model matrix since the views were drawn */
+    private float getPoseChange(float[] modelMatrix) {
+        float change = 0f;
+
+        for (int i = 0; i < 16; i++) {
+            change = Math.max(change, Math.abs(modelMatrix[i] - cachedPose[i]));
+        }
+
+        return change;
+    }
+
+    /**
+     * Binds the texture with the viewport of the screen moved onto it and clears it, so that the
+     * views are drawn into it as they would be drawn on the screen. They should be drawn in opaque
+     * colors, as the texture is blended over the canvas by its alpha.
+     */
+    public void beginUpdate() {
+
+        if (frameBuffer[0] == 0) {
+            allocate();
+        }
+
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, frameBuffer[0]);
+        GLES30.glViewport(-left, -bottom, screenWidth, screenHeight);
+
+        GLES30.glClearColor(0f, 0f, 0f, 0f);
+        GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT);
+        GLES30.glDisable(GLES30.GL_BLEND);
+    }
+
+    /** Binds the default framebuffer and the viewport of the screen again */
+    public void endUpdate() {
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+        GLES30.glViewport(0, 0, screenWidth, screenHeight);
+    }
+
+    /** Draws the views from the texture over the bound framebuffer */
+    public void draw() {
+
+        if (frameBuffer[0] == 0) {
+            return;
+        }
+
+        GLES30.glEnable(GLES30.GL_BLEND);
+        GLES30.glBlendFunc(GLES30.GL_ONE, GLES30.GL_ONE_MINUS_SRC_ALPHA);
+
+        texturedSquare.draw(mvpMatrix, texture[0]);
+
+        GLES30.glDisable(GLES30.GL_BLEND);
+    }
+
+    private void allocate() {
+        GLES30.glGenFramebuffers(1, frameBuffer, 0);
+        GLES30.glGenTextures(1, texture, 0);
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, texture[0]);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA, width, height, 0,
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, frameBuffer[0]);
+        GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                GLES30.GL_TEXTURE_2D, texture[0], 0);
+
+        int status = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+        if (status != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Framebuffer error: " + status);
+        }
+
+        texturedSquare = new TexturedSquare();
+    }
+
+    /** Returns the number of times the views were drawn into the texture */
+    public int getNumUpdates() {
+        return numUpdates;
+    }
+
+    /** Deletes the texture and its framebuffer */
+    public void destroy() {
+        if (frameBuffer[0] != 0) {
+            GLES30.glDeleteFramebuffers(1, frameBuffer, 0);
+            GLES30.glDeleteTextures(1, texture, 0);
+            frameBuffer[0] = 0;
+            texture[0] = 0;
+        }
+
+        valid = false;
+    }
+}
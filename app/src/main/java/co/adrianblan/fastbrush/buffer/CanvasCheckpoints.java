@@ -0,0 +1,92 @@
+package co.adrianblan.fastbrush.buffer;
+
+import android.opengl.GLES30;
+
+/**
+ * Class which keeps copies of the whole canvas on the GPU, for the checkpoints of the stroke
+ * history. Every slot is a texture with a framebuffer, which is allocated when it is first saved.
+ */
+public class CanvasCheckpoints {
+
+    private final int canvasFrameBuffer;
+    private final int width;
+    private final int height;
+
+    private final int[] frameBuffers;
+    private final int[] textures;
+
+    /**
+     * @param canvasFrameBuffer the framebuffer of the canvas which is copied
+     * @param width the width of the canvas (in pixels)
+     * @param height the height of the canvas (in pixels)
+     * @param numSlots the number of copies which can be kept
+     */
+    public CanvasCheckpoints(int canvasFrameBuffer, int width, int height, int numSlots) {
+        this.canvasFrameBuffer = canvasFrameBuffer;
+        this.width = width;
+        this.height = height;
+
+        frameBuffers = new int[numSlots];
+        textures = new int[numSlots];
+    }
+
+    /** Copies the whole canvas into a slot */
+    public void save(int slot) {
+
+        if (frameBuffers[slot] == 0) {
+            allocate(slot);
+        }
+
+        blit(canvasFrameBuffer, frameBuffers[slot]);
+    }
+
+    /** Copies a slot which was saved back into the whole canvas */
+    public void restore(int slot) {
+
+        if (frameBuffers[slot] == 0) {
+            throw new IllegalStateException("Checkpoint " + slot + " was never saved");
+        }
+
+        blit(frameBuffers[slot], canvasFrameBuffer);
+    }
+
+    private void blit(int from, int to) {
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, from);
+        GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, to);
+        GLES30.glBlitFramebuffer(0, 0, width, height, 0, 0, width, height,
+                GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
+    }
+
+    private void allocate(int slot) {
+        GLES30.glGenFramebuffers(1, frameBuffers, slot);
+        GLES30.glGenTextures(1, textures, slot);
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, textures[slot]);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA, width, height, 0,
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, frameBuffers[slot]);
+        GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                GLES30.GL_TEXTURE_2D, textures[slot], 0);
+
+        int status = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+        if (status != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Framebuffer error: " + status);
+        }
+    }
+
+    /** Deletes all slots */
+    public void destroy() {
+        for (int slot = 0; slot < frameBuffers.length; slot++) {
+            if (frameBuffers[slot] != 0) {
+                GLES30.glDeleteFramebuffers(1, frameBuffers, slot);
+                GLES30.glDeleteTextures(1, textures, slot);
+                frameBuffers[slot] = 0;
+                textures[slot] = 0;
+            }
+        }
+    }
+}
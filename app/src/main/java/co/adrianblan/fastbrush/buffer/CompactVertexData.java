@@ -0,0 +1,111 @@
+package co.adrianblan.fastbrush.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Class which stores vertex positions as normalized shorts, in two thirds of the size of floats.
+ *
+ * Every coordinate is stored relative to the center of the bounds of the vertex data, and scaled
+ * by half the extent of the bounds, so that the full range of a short is used. The vertex shader
+ * restores the positions with the origin and scale. Each vertex is padded to four shorts, so that
+ * the vertices stay aligned to four bytes.
+ */
+public class CompactVertexData {
+
+    public static final int SHORTS_PER_VERTEX = 4;
+    public static final int VERTEX_STRIDE = SHORTS_PER_VERTEX * 2;
+
+    private static final int COORDS_PER_VERTEX = 3;
+
+    // The largest value of a normalized short, which is read as 1
+    private static final float SHORT_SCALE = Short.MAX_VALUE;
+
+    // Keeps the scale of flat bounds above zero
+    private static final float MIN_EXTENT = 1e-6f;
+
+    private final ShortBuffer vertexBuffer;
+    private final float[] origin = new float[COORDS_PER_VERTEX];
+    private final float[] scale = new float[COORDS_PER_VERTEX];
+    private int length;
+
+    /** @param maxVertices the number of vertices which the data can hold */
+    public CompactVertexData(int maxVertices) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(maxVertices * VERTEX_STRIDE);
+        bb.order(ByteOrder.nativeOrder());
+        vertexBuffer = bb.asShortBuffer();
+    }
+
+    /** Encodes length floats of three coordinates per vertex from offset in a buffer */
+    public void encode(FloatBuffer in, int offset, int length) {
+
+        int numVertices = length / COORDS_PER_VERTEX;
+
+        if (numVertices * SHORTS_PER_VERTEX > vertexBuffer.capacity()) {
+            throw new IllegalArgumentException("Vertex data of " + numVertices
+                    + " vertices exceeds the capacity of "
+                    + vertexBuffer.capacity() / SHORTS_PER_VERTEX);
+        }
+
+        for (int k = 0; k < COORDS_PER_VERTEX; k++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+
+            for (int i = offset + k; i < offset + length; i += COORDS_PER_VERTEX) {
+                float value = in.get(i);
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+
+            if (numVertices == 0) {
+                min = max = 0;
+            }
+
+            origin[k] = (min + max) / 2;
+            scale[k] = Math.max((max - min) / 2, MIN_EXTENT);
+        }
+
+        float factorX = SHORT_SCALE / scale[0];
+        float factorY = SHORT_SCALE / scale[1];
+        float factorZ = SHORT_SCALE / scale[2];
+
+        for (int v = 0; v < numVertices; v++) {
+            int index = offset + v * COORDS_PER_VERTEX;
+            int outIndex = v * SHORTS_PER_VERTEX;
+
+            vertexBuffer.put(outIndex, (short) Math.round((in.get(index) - origin[0]) * factorX));
+            vertexBuffer.put(outIndex + 1, (short) Math.round((in.get(index + 1) - origin[1]) * factorY));
+            vertexBuffer.put(outIndex + 2, (short) Math.round((in.get(index + 2) - origin[2]) * factorZ));
+            vertexBuffer.put(outIndex + 3, (short) 0);
+        }
+
+        this.length = numVertices * SHORTS_PER_VERTEX;
+    }
+
+    /** Returns the position which a coordinate was encoded to, as the vertex shader reads it */
+    public float decode(int vertex, int coordinate) {
+        short value = vertexBuffer.get(vertex * SHORTS_PER_VERTEX + coordinate);
+        return origin[coordinate] + Math.max(value / SHORT_SCALE, -1f) * scale[coordinate];
+    }
+
+    public ShortBuffer getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    /** Returns the number of shorts of the encoded vertices, padding included */
+    public int getLength() {
+        return length;
+    }
+
+    /** Returns the center of the bounds, which the coordinates are relative to */
+    public float[] getOrigin() {
+        return origin;
+    }
+
+    /** Returns half the extent of the bounds, which a normalized short of one is scaled to */
+    public float[] getScale() {
+        return scale;
+    }
+}
@@ -0,0 +1,336 @@
+package co.adrianblan.fastbrush.buffer;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Class which keeps the pixels of offloaded undo steps compressed, in memory and in files.
+ *
+ * The pixels are compressed on a background thread. When the compressed steps take more than the
+ * memory budget, the least recently used ones are written to files in a private directory, and
+ * when the files take more than the disk budget, the least recently used steps are forgotten.
+ *
+ * The steps are only touched on the background thread, so taking a step waits for it to be
+ * compressed or spilled first.
+ */
+public class CompressedTileStore {
+
+    private static final String TAG = "CompressedTileStore";
+
+    private static final String FILE_PREFIX = "undo_";
+
+    /** The pixels of the tiles of a step, and the rectangles of the canvas they belong in */
+    public static class Tiles {
+        public final int[] rects;
+        public final int numTiles;
+        public final byte[] pixels;
+
+        public Tiles(int[] rects, int numTiles, byte[] pixels) {
+            this.rects = rects;
+            this.numTiles = numTiles;
+            this.pixels = pixels;
+        }
+    }
+
+    /** A compressed step, which is either in memory or in a file */
+    private static class StoredStep {
+        int[] rects;
+        int numTiles;
+        int length;
+        byte[] compressed;
+        File file;
+        int compressedLength;
+    }
+
+    private final File directory;
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final ExecutorService executor;
+
+    // The steps from the least recently used, only touched on the background thread
+    private final LinkedHashMap<Integer, StoredStep> storedSteps = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Written on the background thread, and read for the metrics
+    private volatile long memoryBytes;
+    private volatile long diskBytes;
+    private volatile long totalBytes;
+    private volatile long totalCompressedBytes;
+
+    /**
+     * @param directory the private directory which the steps are spilled to, whose earlier files
+     *                  are deleted
+     * @param memoryBudget how many compressed bytes are kept in memory
+     * @param diskBudget how many compressed bytes are kept in files
+     */
+    public CompressedTileStore(final File directory, long memoryBudget, long diskBudget) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.executor = Executors.newSingleThreadExecutor();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    Log.e(TAG, "Could not create " + directory);
+                }
+
+                deleteFiles();
+            }
+        });
+    }
+
+    /** Compresses the pixels of a step in the background, the pixels must not change afterwards */
+    public void put(final int stroke, final int[] rects, final int numTiles, final byte[] pixels) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StoredStep step = new StoredStep();
+                step.rects = rects;
+                step.numTiles = numTiles;
+                step.length = pixels.length;
+                step.compressed = compress(pixels);
+                step.compressedLength = step.compressed.length;
+
+                totalBytes += step.length;
+                totalCompressedBytes += step.compressedLength;
+
+                remove(storedSteps.put(stroke, step));
+                memoryBytes += step.compressedLength;
+                enforceBudgets();
+            }
+        });
+    }
+
+    /**
+     * Removes a step, and returns its pixels once every earlier change to the store is done, or
+     * null if it was forgotten.
+     */
+    public Future<Tiles> take(final int stroke) {
+        return executor.submit(new Callable<Tiles>() {
+            @Override
+            public Tiles call() throws IOException, DataFormatException {
+                StoredStep step = storedSteps.remove(stroke);
+
+                if (step == null) {
+                    return null;
+                }
+
+                byte[] compressed = step.compressed != null ? step.compressed : readFile(step);
+                remove(step);
+
+                return new Tiles(step.rects, step.numTiles, decompress(compressed, step.length));
+            }
+        });
+    }
+
+    /** Forgets a step */
+    public void discard(final int stroke) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                remove(storedSteps.remove(stroke));
+            }
+        });
+    }
+
+    /** Forgets all steps */
+    public void clear() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                storedSteps.clear();
+                deleteFiles();
+                memoryBytes = 0;
+                diskBytes = 0;
+            }
+        });
+    }
+
+    /** Forgets all steps, and stops the background thread once it is done */
+    public void destroy() {
+        clear();
+        executor.shutdown();
+    }
+
+    /** Spills the least recently used steps to files, and forgets them when the files are full */
+    private void enforceBudgets() {
+        Iterator<Map.Entry<Integer, StoredStep>> iterator = storedSteps.entrySet().iterator();
+
+        while (memoryBytes > memoryBudget && iterator.hasNext()) {
+            Map.Entry<Integer, StoredStep> entry = iterator.next();
+
+            if (entry.getValue().compressed != null) {
+                try {
+                    spill(entry.getKey(), entry.getValue());
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not spill step " + entry.getKey(), e);
+                    remove(entry.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+
+        iterator = storedSteps.entrySet().iterator();
+
+        while (diskBytes > diskBudget && iterator.hasNext()) {
+            StoredStep step = iterator.next().getValue();
+
+            if (step.file != null) {
+                remove(step);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void spill(int stroke, StoredStep step) throws IOException {
+        File file = new File(directory, FILE_PREFIX + stroke);
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(step.compressed);
+        } finally {
+            out.close();
+        }
+
+        step.file = file;
+        step.compressed = null;
+        memoryBytes -= step.compressedLength;
+        diskBytes += step.compressedLength;
+    }
+
+    private static byte[] readFile(StoredStep step) throws IOException {
+        byte[] compressed = new byte[step.compressedLength];
+        FileInputStream in = new FileInputStream(step.file);
+
+        try {
+            int read = 0;
+
+            while (read < compressed.length) {
+                int count = in.read(compressed, read, compressed.length - read);
+
+                if (count < 0) {
+                    throw new IOException("Step file " + step.file + " is truncated");
+                }
+
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        return compressed;
+    }
+
+    /** Releases the memory or file of a step which was removed, if there was one */
+    private void remove(StoredStep step) {
+
+        if (step == null) {
+            return;
+        }
+
+        if (step.compressed != null) {
+            memoryBytes -= step.compressedLength;
+            step.compressed = null;
+        }
+
+        if (step.file != null) {
+            diskBytes -= step.compressedLength;
+
+            if (!step.file.delete()) {
+                Log.w(TAG, "Could not delete " + step.file);
+            }
+
+            step.file = null;
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+            }
+        }
+    }
+
+    /** Compresses pixels, where the flat areas of a canvas compress well even at the fastest level */
+    static byte[] compress(byte[] pixels) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(pixels);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, pixels.length / 8));
+        byte[] buffer = new byte[16 * 1024];
+
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /** Decompresses pixels, which must have the given length */
+    static byte[] decompress(byte[] compressed, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+
+        byte[] pixels = new byte[length];
+        int offset = 0;
+
+        while (offset < length && !inflater.finished()) {
+            int count = inflater.inflate(pixels, offset, length - offset);
+
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+
+            offset += count;
+        }
+
+        inflater.end();
+
+        if (offset != length) {
+            throw new DataFormatException("Expected " + length + " bytes, got " + offset);
+        }
+
+        return pixels;
+    }
+
+    /** Returns the compressed size of all steps which were put, as a share of their raw size */
+    public float getCompressionRatio() {
+        return totalBytes == 0 ? 0 : (float) totalCompressedBytes / totalBytes;
+    }
+
+    /** Returns the number of compressed bytes which are kept in memory */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /** Returns the number of compressed bytes which are kept in files */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+}
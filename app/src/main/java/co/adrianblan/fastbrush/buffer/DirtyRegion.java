@@ -0,0 +1,161 @@
+package co.adrianblan.fastbrush.buffer;
+
+/**
+ * Class which collects the rectangles of the screen that changed since the previous frame, so that
+ * only they are drawn again.
+ *
+ * The rectangles are kept apart as long as there are few of them. Rectangles which overlap are
+ * merged, and when there are too many, the new one is merged with the rectangle whose bounds grow
+ * the least, so that every pixel is drawn at most once.
+ */
+public class DirtyRegion {
+
+    private final int width;
+    private final int height;
+
+    // The rectangles as left, bottom, right and top (in pixels, inclusive)
+    private final int[] rects;
+    private int numRects;
+
+    /**
+     * @param width the width of the screen (in pixels)
+     * @param height the height of the screen (in pixels)
+     * @param maxRects the number of rectangles which are kept apart at most
+     */
+    public DirtyRegion(int width, int height, int maxRects) {
+
+        if (maxRects < 1) {
+            throw new IllegalArgumentException("At least one rectangle is needed");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.rects = new int[maxRects * 4];
+    }
+
+    /** Adds a rectangle (in pixels, inclusive), where the parts outside the screen are ignored */
+    public void add(int left, int bottom, int right, int top) {
+        left = Math.max(left, 0);
+        bottom = Math.max(bottom, 0);
+        right = Math.min(right, width - 1);
+        top = Math.min(top, height - 1);
+
+        if (left > right || bottom > top) {
+            return;
+        }
+
+        // Merges the rectangles it touches, which can make it touch others
+        for (int i = 0; i < numRects; i++) {
+            if (touches(i, left, bottom, right, top)) {
+                left = Math.min(left, rects[i * 4]);
+                bottom = Math.min(bottom, rects[i * 4 + 1]);
+                right = Math.max(right, rects[i * 4 + 2]);
+                top = Math.max(top, rects[i * 4 + 3]);
+
+                remove(i);
+                i = -1;
+            }
+        }
+
+        if (numRects * 4 == rects.length) {
+            int closest = getClosest(left, bottom, right, top);
+
+            int closestLeft = rects[closest * 4];
+            int closestBottom = rects[closest * 4 + 1];
+            int closestRight = rects[closest * 4 + 2];
+            int closestTop = rects[closest * 4 + 3];
+
+            remove(closest);
+            add(Math.min(left, closestLeft), Math.min(bottom, closestBottom),
+                    Math.max(right, closestRight), Math.max(top, closestTop));
+            return;
+        }
+
+        rects[numRects * 4] = left;
+        rects[numRects * 4 + 1] = bottom;
+        rects[numRects * 4 + 2] = right;
+        rects[numRects * 4 + 3] = top;
+        numRects++;
+    }
+
+    /** Marks the whole screen as changed */
+    public void invalidate() {
+        numRects = 0;
+        add(0, 0, width - 1, height - 1);
+    }
+
+    /** Forgets all rectangles, once they are drawn */
+    public void clear() {
+        numRects = 0;
+    }
+
+    /** Returns whether a rectangle overlaps or borders on the rectangle of an index */
+    private boolean touches(int index, int left, int bottom, int right, int top) {
+        return left <= rects[index * 4 + 2] + 1 && right + 1 >= rects[index * 4]
+                && bottom <= rects[index * 4 + 3] + 1 && top + 1 >= rects[index * 4 + 1];
+    }
+
+    /** Returns the rectangle whose area grows the least when merged with a rectangle */
+    private int getClosest(int left, int bottom, int right, int top) {
+        int closest = 0;
+        long smallestGrowth = Long.MAX_VALUE;
+
+        for (int i = 0; i < numRects; i++) {
+            long merged = (long) (Math.max(right, rects[i * 4 + 2]) - Math.min(left, rects[i * 4]) + 1)
+                    * (Math.max(top, rects[i * 4 + 3]) - Math.min(bottom, rects[i * 4 + 1]) + 1);
+            long growth = merged - getArea(i);
+
+            if (growth < smallestGrowth) {
+                smallestGrowth = growth;
+                closest = i;
+            }
+        }
+
+        return closest;
+    }
+
+    private void remove(int index) {
+        numRects--;
+        System.arraycopy(rects, (index + 1) * 4, rects, index * 4, (numRects - index) * 4);
+    }
+
+    private long getArea(int index) {
+        return (long) getWidth(index) * getHeight(index);
+    }
+
+    public int getNumRects() {
+        return numRects;
+    }
+
+    /** Returns whether the whole screen changed */
+    public boolean isFull() {
+        return numRects == 1 && getArea(0) == (long) width * height;
+    }
+
+    /** Returns the number of pixels which changed */
+    public long getArea() {
+        long area = 0;
+
+        for (int i = 0; i < numRects; i++) {
+            area += getArea(i);
+        }
+
+        return area;
+    }
+
+    public int getX(int index) {
+        return rects[index * 4];
+    }
+
+    public int getY(int index) {
+        return rects[index * 4 + 1];
+    }
+
+    public int getWidth(int index) {
+        return rects[index * 4 + 2] - rects[index * 4] + 1;
+    }
+
+    public int getHeight(int index) {
+        return rects[index * 4 + 3] - rects[index * 4 + 1] + 1;
+    }
+}
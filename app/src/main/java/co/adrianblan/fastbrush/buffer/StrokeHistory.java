@@ -0,0 +1,224 @@
+package co.adrianblan.fastbrush.buffer;
+
+import java.util.ArrayList;
+
+import co.adrianblan.fastbrush.touch.Stroke;
+
+/**
+ * Class which keeps the undo and redo history of the canvas as the strokes which were drawn on it,
+ * with a copy of the whole canvas every few strokes.
+ *
+ * Undoing first asks the canvas to restore the tiles which the stroke drew over. If they were not
+ * kept, the canvas is restored from the latest checkpoint before the stroke, or cleared if there
+ * is none, and the strokes after the checkpoint are drawn again. Redoing draws the stroke again.
+ * The strokes are small, so every stroke can be undone, while the memory of the checkpoints is
+ * bounded by their number.
+ *
+ * A checkpoint is taken every checkpointInterval strokes. When there are too many, the one whose
+ * removal leaves the shortest gap is removed, so that the checkpoints thin out towards the start
+ * of the history and recent strokes are replayed from a nearby checkpoint.
+ */
+public class StrokeHistory {
+
+    /** The canvas which the history restores and draws strokes on */
+    public interface Canvas {
+
+        /**
+         * Restores the canvas to before a stroke from the tiles which the stroke drew over, and
+         * returns false if they were not kept.
+         */
+        boolean undoStroke(int stroke);
+
+        /** Draws a recorded stroke again, as the stroke of an index in the history */
+        void drawStroke(Stroke stroke, int index);
+
+        /** Copies the whole canvas into a checkpoint slot */
+        void saveCheckpoint(int slot);
+
+        /** Copies a checkpoint slot back into the whole canvas */
+        void restoreCheckpoint(int slot);
+
+        /** Clears the whole canvas */
+        void clear();
+    }
+
+    private final Canvas canvas;
+    private final int checkpointInterval;
+
+    // The strokes from the first, where the ones from numApplied were undone and can be redone
+    private final ArrayList<Stroke> strokes = new ArrayList<>();
+    private int numApplied;
+
+    // The number of strokes on the canvas when each checkpoint was taken, in increasing order
+    private final int[] checkpointStrokes;
+    private final int[] checkpointSlots;
+    private int numCheckpoints;
+
+    /**
+     * @param canvas the canvas which is restored and drawn on
+     * @param checkpointInterval the number of strokes between checkpoints
+     * @param maxCheckpoints the number of checkpoints which are kept at most
+     */
+    public StrokeHistory(Canvas canvas, int checkpointInterval, int maxCheckpoints) {
+
+        if (checkpointInterval < 1 || maxCheckpoints < 0) {
+            throw new IllegalArgumentException("Invalid checkpoint interval or count");
+        }
+
+        this.canvas = canvas;
+        this.checkpointInterval = checkpointInterval;
+        this.checkpointStrokes = new int[maxCheckpoints];
+        this.checkpointSlots = new int[maxCheckpoints];
+    }
+
+    /**
+     * Adds a stroke which was drawn on the canvas, where the strokes which were undone can no
+     * longer be redone. The stroke has the index which getNumApplied returned while it was drawn.
+     */
+    public void add(Stroke stroke) {
+
+        while (strokes.size() > numApplied) {
+            strokes.remove(strokes.size() - 1);
+        }
+
+        while (numCheckpoints > 0 && checkpointStrokes[numCheckpoints - 1] > numApplied) {
+            numCheckpoints--;
+        }
+
+        strokes.add(stroke);
+        numApplied++;
+        updateCheckpoints();
+    }
+
+    /** Restores the canvas to before the latest stroke, and returns false if there is none */
+    public boolean undo() {
+
+        if (numApplied == 0) {
+            return false;
+        }
+
+        numApplied--;
+
+        if (!canvas.undoStroke(numApplied)) {
+            replayTo(numApplied);
+        }
+
+        return true;
+    }
+
+    /** Draws the latest stroke which was undone again, and returns false if there is none */
+    public boolean redo() {
+
+        if (numApplied == strokes.size()) {
+            return false;
+        }
+
+        canvas.drawStroke(strokes.get(numApplied), numApplied);
+        numApplied++;
+        updateCheckpoints();
+        return true;
+    }
+
+    /** Forgets all strokes, for when the whole canvas is cleared */
+    public void clear() {
+        strokes.clear();
+        numApplied = 0;
+        numCheckpoints = 0;
+    }
+
+    /** Restores the canvas to after a number of strokes, from the latest checkpoint before it */
+    private void replayTo(int numStrokes) {
+        int checkpoint = numCheckpoints - 1;
+
+        while (checkpoint >= 0 && checkpointStrokes[checkpoint] > numStrokes) {
+            checkpoint--;
+        }
+
+        int first = 0;
+
+        if (checkpoint >= 0) {
+            canvas.restoreCheckpoint(checkpointSlots[checkpoint]);
+            first = checkpointStrokes[checkpoint];
+        } else {
+            canvas.clear();
+        }
+
+        for (int i = first; i < numStrokes; i++) {
+            canvas.drawStroke(strokes.get(i), i);
+        }
+    }
+
+    /** Takes a checkpoint if the canvas is at a multiple of the interval which has none */
+    private void updateCheckpoints() {
+
+        if (checkpointStrokes.length == 0 || numApplied % checkpointInterval != 0
+                || (numCheckpoints > 0 && checkpointStrokes[numCheckpoints - 1] == numApplied)) {
+            return;
+        }
+
+        int slot = numCheckpoints;
+
+        if (numCheckpoints == checkpointStrokes.length) {
+            slot = removeCheckpoint(getThinnestCheckpoint());
+        }
+
+        checkpointStrokes[numCheckpoints] = numApplied;
+        checkpointSlots[numCheckpoints] = slot;
+        numCheckpoints++;
+
+        canvas.saveCheckpoint(slot);
+    }
+
+    /**
+     * Returns the checkpoint whose removal leaves the shortest gap before the checkpoint which is
+     * about to be taken, or the oldest of them if several leave the same gap.
+     */
+    private int getThinnestCheckpoint() {
+        int thinnest = 0;
+        int shortestGap = Integer.MAX_VALUE;
+
+        for (int i = 0; i < numCheckpoints; i++) {
+            int previous = i > 0 ? checkpointStrokes[i - 1] : 0;
+            int next = i + 1 < numCheckpoints ? checkpointStrokes[i + 1] : numApplied;
+
+            if (next - previous < shortestGap) {
+                shortestGap = next - previous;
+                thinnest = i;
+            }
+        }
+
+        return thinnest;
+    }
+
+    /** Removes a checkpoint, and returns its slot */
+    private int removeCheckpoint(int checkpoint) {
+        int slot = checkpointSlots[checkpoint];
+
+        System.arraycopy(checkpointStrokes, checkpoint + 1, checkpointStrokes, checkpoint,
+                numCheckpoints - checkpoint - 1);
+        System.arraycopy(checkpointSlots, checkpoint + 1, checkpointSlots, checkpoint,
+                numCheckpoints - checkpoint - 1);
+        numCheckpoints--;
+
+        return slot;
+    }
+
+    /** Returns the number of strokes on the canvas, which is also the index of the next stroke */
+    public int getNumApplied() {
+        return numApplied;
+    }
+
+    /** Returns the number of strokes which are recorded, including the ones which were undone */
+    public int getNumStrokes() {
+        return strokes.size();
+    }
+
+    public int getNumCheckpoints() {
+        return numCheckpoints;
+    }
+
+    /** Returns the number of strokes on the canvas when a checkpoint was taken */
+    public int getCheckpointStrokes(int checkpoint) {
+        return checkpointStrokes[checkpoint];
+    }
+}
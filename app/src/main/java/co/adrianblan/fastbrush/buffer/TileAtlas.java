@@ -0,0 +1,131 @@
+package co.adrianblan.fastbrush.buffer;
+
+import android.opengl.GLES30;
+
+import java.util.Arrays;
+
+/**
+ * Class which stores the tiles of the undo history on the GPU, in pages of tiles.
+ *
+ * Every page is a texture with a framebuffer, and the tiles are copied between the canvas and the
+ * pages with framebuffer blits. The pages are only allocated once a slot in them is first used, so
+ * the memory grows with the history instead of being taken up front.
+ */
+public class TileAtlas implements TileUndoHistory.TileCopier {
+
+    // The number of tiles along each side of a page
+    private static final int TILES_PER_PAGE_SIDE = 8;
+
+    private final int canvasFrameBuffer;
+    private final int tileSize;
+    private final int pageSize;
+
+    private int[] pageFrameBuffers = new int[0];
+    private int[] pageTextures = new int[0];
+    private int numPages;
+
+    /**
+     * @param canvasFrameBuffer the framebuffer of the canvas which the tiles are copied from
+     * @param tileSize the width and height of a tile (in pixels)
+     */
+    public TileAtlas(int canvasFrameBuffer, int tileSize) {
+        this.canvasFrameBuffer = canvasFrameBuffer;
+        this.tileSize = tileSize;
+        this.pageSize = tileSize * TILES_PER_PAGE_SIDE;
+    }
+
+    @Override
+    public void saveTile(int slot, int x, int y, int width, int height) {
+        int page = getPage(slot);
+        int slotX = getSlotX(slot);
+        int slotY = getSlotY(slot);
+
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, canvasFrameBuffer);
+        GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, pageFrameBuffers[page]);
+        GLES30.glBlitFramebuffer(x, y, x + width, y + height,
+                slotX, slotY, slotX + width, slotY + height,
+                GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
+    }
+
+    @Override
+    public void restoreTile(int slot, int x, int y, int width, int height) {
+        int page = getPage(slot);
+        int slotX = getSlotX(slot);
+        int slotY = getSlotY(slot);
+
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, pageFrameBuffers[page]);
+        GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, canvasFrameBuffer);
+        GLES30.glBlitFramebuffer(slotX, slotY, slotX + width, slotY + height,
+                x, y, x + width, y + height,
+                GLES30.GL_COLOR_BUFFER_BIT, GLES30.GL_NEAREST);
+    }
+
+    /**
+     * Reads a rectangle of a slot from its corner into the pixel pack buffer which is bound, at an
+     * offset (in bytes), without waiting for the GPU.
+     */
+    public void readSlot(int slot, int width, int height, int offset) {
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, pageFrameBuffers[getPage(slot)]);
+        GLES30.glReadPixels(getSlotX(slot), getSlotY(slot), width, height,
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, offset);
+    }
+
+    /** Returns the page of a slot, which is allocated along with the pages before it if needed */
+    private int getPage(int slot) {
+        int page = slot / (TILES_PER_PAGE_SIDE * TILES_PER_PAGE_SIDE);
+
+        while (numPages <= page) {
+            allocatePage();
+        }
+
+        return page;
+    }
+
+    private int getSlotX(int slot) {
+        return (slot % TILES_PER_PAGE_SIDE) * tileSize;
+    }
+
+    private int getSlotY(int slot) {
+        return ((slot / TILES_PER_PAGE_SIDE) % TILES_PER_PAGE_SIDE) * tileSize;
+    }
+
+    private void allocatePage() {
+        pageFrameBuffers = Arrays.copyOf(pageFrameBuffers, numPages + 1);
+        pageTextures = Arrays.copyOf(pageTextures, numPages + 1);
+
+        GLES30.glGenFramebuffers(1, pageFrameBuffers, numPages);
+        GLES30.glGenTextures(1, pageTextures, numPages);
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, pageTextures[numPages]);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA, pageSize, pageSize, 0,
+                GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, null);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+
+        GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, pageFrameBuffers[numPages]);
+        GLES30.glFramebufferTexture2D(GLES30.GL_FRAMEBUFFER, GLES30.GL_COLOR_ATTACHMENT0,
+                GLES30.GL_TEXTURE_2D, pageTextures[numPages], 0);
+
+        int status = GLES30.glCheckFramebufferStatus(GLES30.GL_FRAMEBUFFER);
+        if (status != GLES30.GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Framebuffer error: " + status);
+        }
+
+        numPages++;
+    }
+
+    /** Returns the number of bytes of the pages which are allocated */
+    public long getAllocatedBytes() {
+        return (long) numPages * pageSize * pageSize * TileUndoHistory.BYTES_PER_PIXEL;
+    }
+
+    /** Deletes all pages */
+    public void destroy() {
+        GLES30.glDeleteFramebuffers(numPages, pageFrameBuffers, 0);
+        GLES30.glDeleteTextures(numPages, pageTextures, 0);
+        numPages = 0;
+        pageFrameBuffers = new int[0];
+        pageTextures = new int[0];
+    }
+}
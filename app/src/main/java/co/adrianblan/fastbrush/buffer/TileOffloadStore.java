@@ -0,0 +1,249 @@
+package co.adrianblan.fastbrush.buffer;
+
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+
+import co.adrianblan.fastbrush.utils.TimeProfilerHelper;
+
+/**
+ * Class which moves the tiles of evicted undo steps from the GPU into a compressed store.
+ *
+ * The tiles of a step are read into a pixel buffer object without waiting for the GPU, and a fence
+ * is placed after them. The frames after poll the fences, and the pixels of the readbacks which
+ * are done are handed to the store, which compresses them in the background. Restoring a step
+ * uploads its tiles back into the canvas texture.
+ */
+public class TileOffloadStore implements TileUndoHistory.TileOffloader {
+
+    private static final String TAG = "TileOffloadStore";
+
+    // How long a restore waits for a readback which is not done (in nanoseconds)
+    private static final long RESTORE_TIMEOUT = 100L * 1000 * 1000;
+
+    /** The tiles of a step which are being read into a pixel buffer object */
+    private static class Readback {
+        int stroke;
+        int[] rects;
+        int numTiles;
+        int length;
+        int pixelBuffer;
+        long sync;
+        long startTime;
+    }
+
+    private final TileAtlas tileAtlas;
+    private final int canvasTexture;
+    private final CompressedTileStore store;
+
+    private final ArrayList<Readback> readbacks = new ArrayList<>();
+    private final int[] pixelBuffers = new int[1];
+
+    private final TimeProfilerHelper readbackProfilerHelper = new TimeProfilerHelper();
+    private final TimeProfilerHelper restoreProfilerHelper = new TimeProfilerHelper();
+
+    /**
+     * @param tileAtlas the atlas which the tiles are read from
+     * @param canvasTexture the texture of the canvas which the tiles are restored into
+     * @param store the store which keeps the pixels which were read back
+     */
+    public TileOffloadStore(TileAtlas tileAtlas, int canvasTexture, CompressedTileStore store) {
+        this.tileAtlas = tileAtlas;
+        this.canvasTexture = canvasTexture;
+        this.store = store;
+    }
+
+    @Override
+    public void offload(int stroke, int[] rects, int[] slots, int numTiles) {
+        Readback readback = new Readback();
+        readback.stroke = stroke;
+        readback.rects = rects;
+        readback.numTiles = numTiles;
+        readback.startTime = System.nanoTime();
+
+        for (int i = 0; i < numTiles; i++) {
+            readback.length += rects[i * 4 + 2] * rects[i * 4 + 3] * TileUndoHistory.BYTES_PER_PIXEL;
+        }
+
+        GLES30.glGenBuffers(1, pixelBuffers, 0);
+        readback.pixelBuffer = pixelBuffers[0];
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readback.pixelBuffer);
+        GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, readback.length, null, GLES30.GL_STREAM_READ);
+
+        int offset = 0;
+
+        for (int i = 0; i < numTiles; i++) {
+            int width = rects[i * 4 + 2];
+            int height = rects[i * 4 + 3];
+
+            tileAtlas.readSlot(slots[i], width, height, offset);
+            offset += width * height * TileUndoHistory.BYTES_PER_PIXEL;
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        readback.sync = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+
+        readbacks.add(readback);
+    }
+
+    /** Hands the readbacks which the GPU is done with to the store, once per frame */
+    public void poll() {
+        for (int i = 0; i < readbacks.size(); i++) {
+            Readback readback = readbacks.get(i);
+
+            if (isDone(readback, 0)) {
+                store.put(readback.stroke, readback.rects, readback.numTiles, finish(readback));
+                readbacks.remove(i--);
+            }
+        }
+    }
+
+    @Override
+    public boolean restore(int stroke) {
+        long startTime = System.nanoTime();
+        CompressedTileStore.Tiles tiles = null;
+
+        Readback readback = findReadback(stroke);
+
+        if (readback != null) {
+            readbacks.remove(readback);
+
+            if (isDone(readback, RESTORE_TIMEOUT)) {
+                tiles = new CompressedTileStore.Tiles(readback.rects, readback.numTiles, finish(readback));
+            } else {
+                delete(readback);
+            }
+        } else {
+            try {
+                tiles = store.take(stroke).get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.e(TAG, "Could not restore step " + stroke, e);
+            }
+        }
+
+        if (tiles == null) {
+            return false;
+        }
+
+        upload(tiles);
+        restoreProfilerHelper.add((System.nanoTime() - startTime) / 1000000f);
+
+        Log.d(TAG, String.format("Restored step in %.1f ms, read back in %.1f ms, compressed to %.0f%%",
+                getAverageRestoreTime(), getAverageReadbackTime(), getCompressionRatio() * 100));
+        return true;
+    }
+
+    @Override
+    public void discard(int stroke) {
+        Readback readback = findReadback(stroke);
+
+        if (readback != null) {
+            readbacks.remove(readback);
+            delete(readback);
+        }
+
+        store.discard(stroke);
+    }
+
+    @Override
+    public void clear() {
+        for (Readback readback : readbacks) {
+            delete(readback);
+        }
+
+        readbacks.clear();
+        store.clear();
+    }
+
+    /** Copies the tiles into the canvas texture */
+    private void upload(CompressedTileStore.Tiles tiles) {
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, canvasTexture);
+
+        int offset = 0;
+
+        for (int i = 0; i < tiles.numTiles; i++) {
+            int x = tiles.rects[i * 4];
+            int y = tiles.rects[i * 4 + 1];
+            int width = tiles.rects[i * 4 + 2];
+            int height = tiles.rects[i * 4 + 3];
+            int length = width * height * TileUndoHistory.BYTES_PER_PIXEL;
+
+            GLES30.glTexSubImage2D(GLES30.GL_TEXTURE_2D, 0, x, y, width, height,
+                    GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, ByteBuffer.wrap(tiles.pixels, offset, length));
+            offset += length;
+        }
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+    }
+
+    private Readback findReadback(int stroke) {
+        for (Readback readback : readbacks) {
+            if (readback.stroke == stroke) {
+                return readback;
+            }
+        }
+
+        return null;
+    }
+
+    /** Returns whether the GPU is done with a readback, waiting at most a timeout (in nanoseconds) */
+    private static boolean isDone(Readback readback, long timeout) {
+        int status = GLES30.glClientWaitSync(readback.sync,
+                timeout > 0 ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0, timeout);
+
+        return status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED;
+    }
+
+    /** Copies the pixels of a readback which is done, and deletes it */
+    private byte[] finish(Readback readback) {
+        byte[] pixels = new byte[readback.length];
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, readback.pixelBuffer);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                readback.length, GLES30.GL_MAP_READ_BIT);
+
+        if (mapped != null) {
+            mapped.get(pixels);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        } else {
+            Log.e(TAG, "Could not map the pixels of step " + readback.stroke);
+        }
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        delete(readback);
+
+        readbackProfilerHelper.add((System.nanoTime() - readback.startTime) / 1000000f);
+        return pixels;
+    }
+
+    private void delete(Readback readback) {
+        pixelBuffers[0] = readback.pixelBuffer;
+        GLES30.glDeleteBuffers(1, pixelBuffers, 0);
+        GLES30.glDeleteSync(readback.sync);
+    }
+
+    /** Returns the average time from evicting a step until its pixels were read back (in ms) */
+    public float getAverageReadbackTime() {
+        return readbackProfilerHelper.getAverage();
+    }
+
+    /** Returns the average time it took to restore a step into the canvas (in ms) */
+    public float getAverageRestoreTime() {
+        return restoreProfilerHelper.getAverage();
+    }
+
+    /** Returns the compressed size of the steps, as a share of their raw size */
+    public float getCompressionRatio() {
+        return store.getCompressionRatio();
+    }
+
+    /** Deletes the readbacks, and forgets all steps */
+    public void destroy() {
+        clear();
+        store.destroy();
+    }
+}
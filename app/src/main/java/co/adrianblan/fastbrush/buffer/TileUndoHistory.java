@@ -0,0 +1,360 @@
+package co.adrianblan.fastbrush.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Class which keeps the undo history of the canvas as the tiles which every stroke changed.
+ *
+ * The canvas is divided into square tiles. Before a stroke first draws over a tile, the tile is
+ * copied into a free slot, so that a step only holds the tiles it touched instead of the whole
+ * canvas. Undoing a step copies its tiles back, which restores the canvas to how it was before
+ * the stroke.
+ *
+ * The number of slots follows from a memory budget. When a stroke needs a slot and none is free,
+ * the oldest steps are evicted, and handed to the offloader if there is one, which keeps their
+ * tiles off the GPU. Otherwise they are forgotten. A stroke which alone needs more slots than the
+ * budget can not be undone, and is not recorded.
+ */
+public class TileUndoHistory {
+
+    /** The object which copies the pixels of the tiles, between the canvas and the slots */
+    public interface TileCopier {
+
+        /** Copies a rectangle of the canvas (in pixels, from the bottom left) into a slot */
+        void saveTile(int slot, int x, int y, int width, int height);
+
+        /** Copies a slot back into a rectangle of the canvas */
+        void restoreTile(int slot, int x, int y, int width, int height);
+    }
+
+    /** The object which keeps the tiles of evicted steps off the GPU */
+    public interface TileOffloader {
+
+        /**
+         * Starts copying the slots of an evicted step, which are reused right after. The rectangles
+         * of the canvas which the tiles were saved from follow each other as x, y, width and height.
+         */
+        void offload(int stroke, int[] rects, int[] slots, int numTiles);
+
+        /** Copies the tiles of a step back into the canvas, and returns false if they were lost */
+        boolean restore(int stroke);
+
+        /** Forgets the tiles of a step */
+        void discard(int stroke);
+
+        /** Forgets the tiles of all steps */
+        void clear();
+    }
+
+    /** The tiles which one stroke changed, and the slots they were saved to */
+    private static class Step {
+        final int stroke;
+        int[] tiles = new int[16];
+        int[] slots = new int[16];
+        int size;
+
+        Step(int stroke) {
+            this.stroke = stroke;
+        }
+
+        void add(int tile, int slot) {
+            if (size == tiles.length) {
+                tiles = Arrays.copyOf(tiles, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+
+            tiles[size] = tile;
+            slots[size] = slot;
+            size++;
+        }
+    }
+
+    public static final int BYTES_PER_PIXEL = 4;
+
+    // The number of evicted steps which are kept track of, past which the oldest are forgotten
+    private static final int MAX_OFFLOADED_STEPS = 256;
+
+    private final TileCopier tileCopier;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int numTilesX;
+    private final int numTilesY;
+    private final int maxSlots;
+
+    // The steps from the oldest to the latest, where the latest is the current stroke
+    private final ArrayDeque<Step> steps = new ArrayDeque<>();
+
+    // Whether each tile was saved by the current stroke
+    private final boolean[] savedTiles;
+
+    // Slots which were used and freed again, before the ones which were never used
+    private int[] freeSlots = new int[64];
+    private int numFreeSlots;
+    private int numUsedSlots;
+
+    private Step currentStep;
+
+    // The strokes of the steps which were offloaded, from the oldest, which are all older than the steps
+    private TileOffloader tileOffloader;
+    private final ArrayDeque<Integer> offloadedStrokes = new ArrayDeque<>();
+
+    /**
+     * @param tileCopier the object which copies the tiles
+     * @param width the width of the canvas (in pixels)
+     * @param height the height of the canvas (in pixels)
+     * @param tileSize the width and height of a tile (in pixels)
+     * @param memoryBudget how many bytes the saved tiles may take
+     */
+    public TileUndoHistory(TileCopier tileCopier, int width, int height, int tileSize,
+                           long memoryBudget) {
+
+        if (width <= 0 || height <= 0 || tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid canvas or tile size");
+        }
+
+        this.tileCopier = tileCopier;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.numTilesX = (width + tileSize - 1) / tileSize;
+        this.numTilesY = (height + tileSize - 1) / tileSize;
+        this.maxSlots = (int) Math.min(Integer.MAX_VALUE,
+                memoryBudget / ((long) tileSize * tileSize * BYTES_PER_PIXEL));
+
+        savedTiles = new boolean[numTilesX * numTilesY];
+    }
+
+    /** Sets the object which keeps the tiles of evicted steps, or null to forget them */
+    public void setTileOffloader(TileOffloader tileOffloader) {
+        this.tileOffloader = tileOffloader;
+    }
+
+    /** Starts a new undo step for a stroke, which the following writes are recorded in */
+    public void beginStroke(int stroke) {
+        endStroke();
+
+        currentStep = new Step(stroke);
+        steps.addLast(currentStep);
+    }
+
+    /** Ends the current undo step, the following writes are not recorded until the next stroke */
+    public void endStroke() {
+        if (currentStep == null) {
+            return;
+        }
+
+        for (int i = 0; i < currentStep.size; i++) {
+            savedTiles[currentStep.tiles[i]] = false;
+        }
+
+        // Strokes which did not draw anything are not worth an undo step
+        if (currentStep.size == 0) {
+            steps.removeLast();
+        }
+
+        currentStep = null;
+    }
+
+    /**
+     * Saves every tile in a rectangle of the canvas (in pixels, from the bottom left) which the
+     * current stroke has not saved yet, before the stroke draws over them.
+     */
+    public void prepareWrite(int left, int bottom, int right, int top) {
+
+        if (currentStep == null) {
+            return;
+        }
+
+        int firstX = Math.max(0, floorDiv(left, tileSize));
+        int firstY = Math.max(0, floorDiv(bottom, tileSize));
+        int lastX = Math.min(numTilesX - 1, floorDiv(right, tileSize));
+        int lastY = Math.min(numTilesY - 1, floorDiv(top, tileSize));
+
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                int tile = tileY * numTilesX + tileX;
+
+                if (savedTiles[tile]) {
+                    continue;
+                }
+
+                int slot = allocateSlot();
+
+                // The stroke does not fit in the budget, so it can not be undone
+                if (slot < 0) {
+                    dropCurrentStep();
+                    return;
+                }
+
+                tileCopier.saveTile(slot, tileX * tileSize, tileY * tileSize,
+                        getTileWidth(tileX), getTileHeight(tileY));
+                savedTiles[tile] = true;
+                currentStep.add(tile, slot);
+            }
+        }
+    }
+
+    /** Restores the canvas to before the latest step, and returns false if there is none */
+    public boolean undo() {
+        endStroke();
+
+        if (!steps.isEmpty()) {
+            return undo(steps.peekLast().stroke);
+        }
+
+        return !offloadedStrokes.isEmpty() && undo(offloadedStrokes.peekLast());
+    }
+
+    /**
+     * Restores the canvas to before a stroke, and returns false if the latest step is not of that
+     * stroke, which is when its tiles were forgotten or it did not draw anything.
+     */
+    public boolean undo(int stroke) {
+        endStroke();
+
+        // Once the steps on the GPU are undone, the offloaded ones are next
+        if (steps.isEmpty()) {
+            if (offloadedStrokes.isEmpty() || offloadedStrokes.peekLast() != stroke) {
+                return false;
+            }
+
+            offloadedStrokes.removeLast();
+            return tileOffloader.restore(stroke);
+        }
+
+        if (steps.peekLast().stroke != stroke) {
+            return false;
+        }
+
+        Step step = steps.removeLast();
+
+        for (int i = 0; i < step.size; i++) {
+            int tileX = step.tiles[i] % numTilesX;
+            int tileY = step.tiles[i] / numTilesX;
+
+            tileCopier.restoreTile(step.slots[i], tileX * tileSize, tileY * tileSize,
+                    getTileWidth(tileX), getTileHeight(tileY));
+        }
+
+        freeSlots(step);
+        return true;
+    }
+
+    /** Forgets all steps, for when the whole canvas is cleared */
+    public void clear() {
+        endStroke();
+        steps.clear();
+        numFreeSlots = 0;
+        numUsedSlots = 0;
+
+        if (tileOffloader != null) {
+            tileOffloader.clear();
+        }
+
+        offloadedStrokes.clear();
+    }
+
+    /** Returns a free slot, where the oldest steps are forgotten if needed, or -1 if none is left */
+    private int allocateSlot() {
+
+        while (numFreeSlots == 0 && numUsedSlots == maxSlots) {
+
+            // Every slot is held by the current stroke
+            if (steps.peekFirst() == currentStep) {
+                return -1;
+            }
+
+            evict(steps.removeFirst());
+        }
+
+        if (numFreeSlots > 0) {
+            return freeSlots[--numFreeSlots];
+        }
+
+        return numUsedSlots++;
+    }
+
+    /** Frees the slots of a step, after handing its tiles to the offloader if there is one */
+    private void evict(Step step) {
+
+        if (tileOffloader != null) {
+            int[] rects = new int[step.size * 4];
+
+            for (int i = 0; i < step.size; i++) {
+                int tileX = step.tiles[i] % numTilesX;
+                int tileY = step.tiles[i] / numTilesX;
+
+                rects[i * 4] = tileX * tileSize;
+                rects[i * 4 + 1] = tileY * tileSize;
+                rects[i * 4 + 2] = getTileWidth(tileX);
+                rects[i * 4 + 3] = getTileHeight(tileY);
+            }
+
+            tileOffloader.offload(step.stroke, rects, step.slots, step.size);
+            offloadedStrokes.addLast(step.stroke);
+
+            if (offloadedStrokes.size() > MAX_OFFLOADED_STEPS) {
+                tileOffloader.discard(offloadedStrokes.removeFirst());
+            }
+        }
+
+        freeSlots(step);
+    }
+
+    private void freeSlots(Step step) {
+        if (numFreeSlots + step.size > freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, Math.max(freeSlots.length * 2, numFreeSlots + step.size));
+        }
+
+        for (int i = 0; i < step.size; i++) {
+            freeSlots[numFreeSlots++] = step.slots[i];
+        }
+    }
+
+    private void dropCurrentStep() {
+        for (int i = 0; i < currentStep.size; i++) {
+            savedTiles[currentStep.tiles[i]] = false;
+        }
+
+        freeSlots(currentStep);
+        steps.removeLast();
+        currentStep = null;
+    }
+
+    private int getTileWidth(int tileX) {
+        return Math.min(tileSize, width - tileX * tileSize);
+    }
+
+    private int getTileHeight(int tileY) {
+        return Math.min(tileSize, height - tileY * tileSize);
+    }
+
+    private static int floorDiv(int value, int divisor) {
+        return value >= 0 ? value / divisor : -((-value + divisor - 1) / divisor);
+    }
+
+    /** Returns the number of steps which can be undone */
+    public int getNumSteps() {
+        return steps.size() - (currentStep != null && currentStep.size == 0 ? 1 : 0);
+    }
+
+    /** Returns the number of evicted steps which the offloader keeps */
+    public int getNumOffloadedSteps() {
+        return offloadedStrokes.size();
+    }
+
+    /** Returns the number of slots which hold a saved tile */
+    public int getNumSavedTiles() {
+        return numUsedSlots - numFreeSlots;
+    }
+
+    public int getMaxSlots() {
+        return maxSlots;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+}
@@ -1,32 +1,335 @@
 package co.adrianblan.fastbrush.buffer;
 
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 
 import co.adrianblan.fastbrush.utils.GLhelper;
 
 /**
  * Class which manages vertex buffers
+ *
+ * The vertex data is computed into client side buffers, which are handed out in turn together
+ * with a buffer of indices. Before a draw, both are copied once into GL buffer objects, which are
+ * used as rings of regions. Every region is mapped unsynchronized and invalidated when it is
+ * written, and a fence is placed after it is drawn from, so that a region is never overwritten
+ * while the GPU still reads it. The indices are relative to the start of their vertex region.
+ *
+ * In compact mode, every buffer also has compact vertex data, which is uploaded instead of the
+ * floats at two thirds of the size. The number of uploaded bytes is counted, to measure the bandwidth.
  */
 public class VertexBufferManager {
+
+    private static final String TAG = "VertexBufferManager";
+
+    private static final int FLOAT_SIZE = 4;
+    private static final int INT_SIZE = 4;
+    private static final int SHORT_SIZE = 2;
+
+    // How long to wait for the GPU to release a region, before the wait is logged and repeated
+    private static final long FENCE_TIMEOUT_NANOS = 100000000L;
+
+    // A frame uploads every batch and the brush head, so the ring can wrap within one frame, and
+    // only the fences keep a region from being written while the GPU reads it
+    private static final int REGIONS_PER_BUFFER = 2;
+
     private ArrayList<FloatBuffer> floatBuffers;
     private int currentBufferIndex;
     private int bufferCount;
+    private int bufferSize;
+
+    private ArrayList<IntBuffer> indexBuffers;
+    private int indexBufferSize;
+
+    // Only allocated in compact mode
+    private ArrayList<CompactVertexData> compactVertexData;
+
+    private int attributeLocation;
+    private int coordsPerVertex;
+
+    // The GL buffer objects of the vertices and indices, and the vertex array which reads from them
+    private int[] vertexBufferObject = new int[1];
+    private int[] indexBufferObject = new int[1];
+    private int[] vertexArrayObject = new int[1];
+
+    // A fence for every region of the ring, or zero if the region has not been drawn from
+    private long[] regionFences;
+    private int regionCount;
+    private int currentRegion;
+
+    private long uploadedBytes;
 
-    public VertexBufferManager(int bufferCount, int bufferSize) {
+    /**
+     * @param bufferCount the number of client side buffers
+     * @param bufferSize the number of floats in every buffer and region
+     * @param indexBufferSize the number of indices in every index buffer and region
+     * @param attributeLocation the location of the vertex position in the shader
+     * @param coordsPerVertex the number of floats of each vertex
+     * @param compactVertices whether every buffer also has compact vertex data
+     */
+    public VertexBufferManager(int bufferCount, int bufferSize, int indexBufferSize,
+                               int attributeLocation, int coordsPerVertex, boolean compactVertices) {
         this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        this.indexBufferSize = indexBufferSize;
+        this.attributeLocation = attributeLocation;
+        this.coordsPerVertex = coordsPerVertex;
         floatBuffers = new ArrayList<>();
+        indexBuffers = new ArrayList<>();
 
         for(int i = 0; i < bufferCount; i++) {
             floatBuffers.add(GLhelper.initFloatBuffer(bufferSize));
+            indexBuffers.add(GLhelper.initIntBuffer(indexBufferSize));
         }
+
+        if (compactVertices) {
+            compactVertexData = new ArrayList<>();
+
+            for (int i = 0; i < bufferCount; i++) {
+                compactVertexData.add(new CompactVertexData(bufferSize / coordsPerVertex));
+            }
+        }
+
+        regionCount = bufferCount * REGIONS_PER_BUFFER;
+        regionFences = new long[regionCount];
+        currentRegion = regionCount - 1;
+
+        GLES30.glGenBuffers(1, vertexBufferObject, 0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferObject[0]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, regionCount * bufferSize * FLOAT_SIZE, null,
+                GLES30.GL_STREAM_DRAW);
+
+        // The vertex array keeps the attribute setup and the index buffer, so that a draw only has to bind it
+        GLES30.glGenVertexArrays(1, vertexArrayObject, 0);
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+
+        GLES30.glGenBuffers(1, indexBufferObject, 0);
+        GLES30.glBindBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER, indexBufferObject[0]);
+        GLES30.glBufferData(GLES30.GL_ELEMENT_ARRAY_BUFFER, regionCount * indexBufferSize * INT_SIZE,
+                null, GLES30.GL_STREAM_DRAW);
+
+        GLES30.glEnableVertexAttribArray(attributeLocation);
+        GLES30.glVertexAttribPointer(attributeLocation, coordsPerVertex, GLES30.GL_FLOAT, false,
+                coordsPerVertex * FLOAT_SIZE, 0);
+
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLhelper.checkGlError("VertexBufferManager");
     }
 
     public FloatBuffer getCurrentBuffer() {
         return floatBuffers.get(currentBufferIndex);
     }
 
+    public IntBuffer getCurrentIndexBuffer() {
+        return indexBuffers.get(currentBufferIndex);
+    }
+
+    /** Returns the compact vertex data of the current buffer, or null if not in compact mode */
+    public CompactVertexData getCurrentCompactVertexData() {
+        return compactVertexData != null ? compactVertexData.get(currentBufferIndex) : null;
+    }
+
     public void setNextBuffer() {
         currentBufferIndex = (currentBufferIndex + 1) % bufferCount;
     }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    /**
+     * Copies length floats from offset in a buffer, and the first indexCount indices of an index
+     * buffer, into the next region of the rings. The vertex array is pointed at the vertex region,
+     * and the byte offset of the indices in the index buffer object is returned, for
+     * glDrawElements. Must be called on the GL thread.
+     */
+    public int upload(FloatBuffer data, int offset, int length, IntBuffer indices, int indexCount) {
+
+        ByteBuffer mapped = mapNextRegion(length * FLOAT_SIZE, indexCount);
+
+        if (mapped != null) {
+            FloatBuffer source = data.duplicate();
+            source.limit(offset + length);
+            source.position(offset);
+            mapped.asFloatBuffer().put(source);
+        }
+
+        return finishUpload(mapped, GLES30.GL_FLOAT, coordsPerVertex, false,
+                coordsPerVertex * FLOAT_SIZE, indices, indexCount);
+    }
+
+    /**
+     * Copies compact vertex data, and the first indexCount indices of an index buffer, into the
+     * next region of the rings, like the above. The vertex shader has to restore the positions
+     * with the origin and scale of the data.
+     */
+    public int upload(CompactVertexData data, IntBuffer indices, int indexCount) {
+
+        int length = data.getLength();
+        ByteBuffer mapped = mapNextRegion(length * SHORT_SIZE, indexCount);
+
+        if (mapped != null) {
+            ShortBuffer source = data.getVertexBuffer().duplicate();
+            source.limit(length);
+            source.position(0);
+            mapped.asShortBuffer().put(source);
+        }
+
+        return finishUpload(mapped, GLES30.GL_SHORT, CompactVertexData.SHORTS_PER_VERTEX, true,
+                CompactVertexData.VERTEX_STRIDE, indices, indexCount);
+    }
+
+    /**
+     * Returns the number of bytes of vertices and indices which have been uploaded since the
+     * counter was last reset.
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public void resetUploadedBytes() {
+        uploadedBytes = 0;
+    }
+
+    /**
+     * Moves to the next region of the rings, waits until the GPU has released it, and maps the
+     * first vertexBytes bytes of its vertex region. Returns null if there is nothing to draw.
+     */
+    private ByteBuffer mapNextRegion(int vertexBytes, int indexCount) {
+
+        if (vertexBytes > bufferSize * FLOAT_SIZE || indexCount > indexBufferSize) {
+            throw new IllegalArgumentException("Vertex data of " + vertexBytes + " bytes and "
+                    + indexCount + " indices exceeds the region size of " + bufferSize
+                    + " floats and " + indexBufferSize + " indices");
+        }
+
+        currentRegion = (currentRegion + 1) % regionCount;
+        waitForRegion(currentRegion);
+
+        if (vertexBytes == 0 || indexCount == 0) {
+            return null;
+        }
+
+        // The index buffer binding belongs to the vertex array
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferObject[0]);
+
+        uploadedBytes += vertexBytes + indexCount * INT_SIZE;
+
+        // Unsynchronized, since the fence already guarantees that the region is not in use
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_ARRAY_BUFFER,
+                currentRegion * bufferSize * FLOAT_SIZE, vertexBytes,
+                GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_RANGE_BIT
+                        | GLES30.GL_MAP_UNSYNCHRONIZED_BIT);
+
+        return mapped.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Unmaps the vertex region, points the vertex attribute at it with the given format, copies
+     * the indices, and returns the byte offset of the indices in the index buffer object.
+     */
+    private int finishUpload(ByteBuffer mapped, int type, int size, boolean normalized,
+                             int stride, IntBuffer indices, int indexCount) {
+
+        int indexRegionOffset = currentRegion * indexBufferSize;
+
+        if (mapped == null) {
+            return indexRegionOffset * INT_SIZE;
+        }
+
+        GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+
+        // The indices start from zero in every region, so the attribute is moved instead
+        GLES30.glVertexAttribPointer(attributeLocation, size, type, normalized, stride,
+                currentRegion * bufferSize * FLOAT_SIZE);
+
+        ByteBuffer mappedIndices = (ByteBuffer) GLES30.glMapBufferRange(
+                GLES30.GL_ELEMENT_ARRAY_BUFFER, indexRegionOffset * INT_SIZE, indexCount * INT_SIZE,
+                GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_RANGE_BIT
+                        | GLES30.GL_MAP_UNSYNCHRONIZED_BIT);
+
+        IntBuffer indexSource = indices.duplicate();
+        indexSource.limit(indexCount);
+        indexSource.position(0);
+        mappedIndices.order(ByteOrder.nativeOrder()).asIntBuffer().put(indexSource);
+
+        GLES30.glUnmapBuffer(GLES30.GL_ELEMENT_ARRAY_BUFFER);
+
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+        return indexRegionOffset * INT_SIZE;
+    }
+
+    /** Binds the vertex array, which reads the vertex positions and indices from the buffer objects */
+    public void bind() {
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+    }
+
+    public void unbind() {
+        GLES30.glBindVertexArray(0);
+    }
+
+    /** Places a fence after the draws from the latest uploaded region */
+    public void fenceCurrentRegion() {
+        if (regionFences[currentRegion] != 0) {
+            GLES30.glDeleteSync(regionFences[currentRegion]);
+        }
+
+        regionFences[currentRegion] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /** Deletes the buffer objects, the vertex array and all fences */
+    public void destroy() {
+        for (int i = 0; i < regionCount; i++) {
+            if (regionFences[i] != 0) {
+                GLES30.glDeleteSync(regionFences[i]);
+                regionFences[i] = 0;
+            }
+        }
+
+        GLES30.glDeleteVertexArrays(1, vertexArrayObject, 0);
+        GLES30.glDeleteBuffers(1, vertexBufferObject, 0);
+        GLES30.glDeleteBuffers(1, indexBufferObject, 0);
+    }
+
+    /**
+     * Waits until the GPU has finished the draws from a region, however long it takes, since the
+     * region is mapped unsynchronized afterwards.
+     */
+    private void waitForRegion(int region) {
+        long fence = regionFences[region];
+
+        if (fence == 0) {
+            return;
+        }
+
+        int result = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                FENCE_TIMEOUT_NANOS);
+
+        if (result == GLES30.GL_TIMEOUT_EXPIRED) {
+            Log.w(TAG, "Region " + region + " was not released by the GPU in time");
+
+            while (result == GLES30.GL_TIMEOUT_EXPIRED) {
+                result = GLES30.glClientWaitSync(fence, 0, FENCE_TIMEOUT_NANOS);
+            }
+        }
+
+        // The fence can not be trusted, so everything which was sent to the GPU is finished instead
+        if (result == GLES30.GL_WAIT_FAILED) {
+            Log.w(TAG, "Waiting for region " + region + " failed");
+            GLES30.glFinish();
+        }
+
+        GLES30.glDeleteSync(fence);
+        regionFences[region] = 0;
+    }
 }
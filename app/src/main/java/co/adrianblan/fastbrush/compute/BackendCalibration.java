@@ -0,0 +1,133 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Class which times the compute backends on synthetic brush states, and remembers the fastest.
+ *
+ * The result depends on the device and on the brush, so it is stored per signature of both. A
+ * new brush configuration has a new signature, and is calibrated the first time it is used.
+ */
+public class BackendCalibration {
+
+    private static final String PREFERENCE_KEY_PREFIX = "computeBackend:";
+
+    // The backends which are timed, in the order they are tried. Transform feedback reads every
+    // batch back from the GPU, which a short timing does not show the cost of, so it is left out.
+    public static final ComputeBackendType[] CANDIDATES = {
+            ComputeBackendType.JAVA, ComputeBackendType.PARALLEL_JAVA,
+            ComputeBackendType.RENDERSCRIPT
+    };
+
+    // The first batch only warms up the backend, and the median of the rest is its time
+    private static final int WARMUP_BATCHES = 1;
+    private static final int TIMED_BATCHES = 5;
+
+    // The same states every time, so that the backends are compared on equal terms
+    private static final long SYNTHETIC_SEED = 7;
+
+    private final SharedPreferences sharedPreferences;
+
+    public BackendCalibration(SharedPreferences sharedPreferences) {
+        this.sharedPreferences = sharedPreferences;
+    }
+
+    /** Returns the signature of the device and of a brush configuration */
+    public static String getSignature(int numBristles, int segmentsPerBristle) {
+        return Build.MANUFACTURER + " " + Build.MODEL + " " + Build.VERSION.SDK_INT
+                + " " + numBristles + "x" + segmentsPerBristle;
+    }
+
+    /** Returns the fastest backend stored for a signature, or null if it is not calibrated */
+    public ComputeBackendType getFastest(String signature) {
+        String name = sharedPreferences.getString(PREFERENCE_KEY_PREFIX + signature, null);
+
+        if (name == null) {
+            return null;
+        }
+
+        try {
+            return ComputeBackendType.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            // Stored by a version with other backends
+            return null;
+        }
+    }
+
+    public void setFastest(String signature, ComputeBackendType backendType) {
+        sharedPreferences.edit()
+                .putString(PREFERENCE_KEY_PREFIX + signature, backendType.name())
+                .apply();
+    }
+
+    /**
+     * Creates a batch of brush states spread over the range the brush moves in, pressed down so
+     * that the imprints reach the paper.
+     */
+    public static BrushSnapshot[] createSyntheticSnapshots(int numSnapshots) {
+        Random random = new Random(SYNTHETIC_SEED);
+        BrushSnapshot[] snapshots = new BrushSnapshot[numSnapshots];
+
+        for (int i = 0; i < numSnapshots; i++) {
+            BrushSnapshot snapshot = new BrushSnapshot();
+            snapshot.positionX = random.nextFloat() * 2 - 1;
+            snapshot.positionY = random.nextFloat() * 2 - 1;
+            snapshot.positionZ = 0.6f + random.nextFloat() * 0.3f;
+            snapshot.horizontalAngle = (float) (random.nextFloat() * 2 * Math.PI);
+            snapshot.verticalAngle = random.nextFloat() * 30f;
+            snapshot.planarDistanceFromHandle = 0.3f + random.nextFloat() * 0.4f;
+            snapshot.upperControlPointLength = 0.3f + random.nextFloat() * 0.2f;
+            snapshot.lowerControlPointLength = 0.5f + random.nextFloat() * 0.3f;
+            snapshot.planarImprintLength = random.nextFloat() * 0.2f;
+            snapshot.bristleHorizontalMaxAngle = (float) Math.toRadians(random.nextFloat() * 15f);
+            snapshot.updateModelMatrix();
+            snapshots[i] = snapshot;
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Times a backend on a batch of snapshots, and returns the median time of a batch in
+     * milliseconds. Must be called on the thread which the backend computes on.
+     */
+    public static float time(BristleComputeBackend backend, BrushSnapshot[] snapshots,
+                             FloatBuffer out, int[] imprintOffsets, int[] bristleLengths) {
+
+        float[] times = new float[TIMED_BATCHES];
+
+        for (int i = -WARMUP_BATCHES; i < TIMED_BATCHES; i++) {
+            long startTime = System.nanoTime();
+            backend.computeVertexData(snapshots, snapshots.length, out, imprintOffsets,
+                    bristleLengths);
+
+            if (i >= 0) {
+                times[i] = (System.nanoTime() - startTime) / 1000000f;
+            }
+        }
+
+        Arrays.sort(times);
+        return times[TIMED_BATCHES / 2];
+    }
+
+    /**
+     * Returns the index of the fastest time, where backends which are not supported have a time
+     * of NaN, or -1 if none is supported.
+     */
+    public static int indexOfFastest(float[] times) {
+        int fastest = -1;
+
+        for (int i = 0; i < times.length; i++) {
+            if (!Float.isNaN(times[i]) && (fastest == -1 || times[i] < times[fastest])) {
+                fastest = i;
+            }
+        }
+
+        return fastest;
+    }
+}
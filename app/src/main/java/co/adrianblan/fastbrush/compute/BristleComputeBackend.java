@@ -0,0 +1,49 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Interface for the backends which compute the physics of the brush bristles.
+ */
+public interface BristleComputeBackend {
+
+    /**
+     * Computes the vertex positions of all bristles for a number of brush snapshots, and writes
+     * them to out in the layout of {@link BristleKernel#layoutImprints}, one imprint after another.
+     * The offset of every imprint is written to imprintOffsets, followed by the end of the last.
+     * The number of floats of the strip of every active bristle of every imprint is written to
+     * bristleLengths, in the order of the output, so that the strips can be indexed.
+     *
+     * The output is written from index zero regardless of the position of out, which is
+     * left unchanged.
+     */
+    void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer out,
+                           int[] imprintOffsets, int[] bristleLengths);
+
+    /**
+     * Sets how many bristles are computed per imprint, and how many segments each one has, as in
+     * {@link BristleKernel#setQuality}. Must not be called while a computation is running.
+     */
+    void setQuality(int numActiveBristles, int segmentsPerBristle);
+
+    /**
+     * Sets whether the imprints are clipped to the paper and compacted, as in
+     * {@link BristleKernel#setContactClipping}. Must not be called while a computation is running.
+     */
+    void setContactClipping(boolean contactClipping, float contactHeight);
+
+    /**
+     * Sets whether the imprints are written in world space, as in {@link BristleKernel#setWorldSpace}.
+     * Must not be called while a computation is running.
+     */
+    void setWorldSpace(boolean worldSpace);
+
+    /**
+     * Reads the bristles again after their store was rebuilt with the same number of bristles.
+     * Must not be called while a computation is running.
+     */
+    void updateBristles();
+
+    /** Releases all resources held by the backend */
+    void destroy();
+}
@@ -0,0 +1,158 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+/**
+ * CPU reference of the shaders which evaluate the bristle curves on the GPU, in BristleCurveRenderer
+ * and TransformFeedbackComputeBackend. Every step follows the shared curve function, one vertex at
+ * a time, so that the shaders can be verified against the compute kernels without a GPU.
+ */
+public class BristleCurveReference {
+
+    /**
+     * The GLSL function which both shaders evaluate the curves with. The top and bottom are
+     * already moved to the brush, shape holds the length and direction of the bristle, curve the
+     * planar distance from the handle, the control point lengths and the horizontal angle, and
+     * spread the horizontal max angle and the orthogonal direction of the brush. Progress runs
+     * from zero at the top to one at the full length of the bristle.
+     */
+    public static final String CURVE_FUNCTION =
+            "vec3 bristleCurve(vec3 top, vec3 bottom, vec3 shape, vec4 curve, vec3 spread," +
+            "                  float progress) {" +
+            "  float bottomZ = max(bottom.z, 0.0);" +
+            "  float angle = curve.w + dot(spread.yz, shape.yz) * spread.x;" +
+            "  vec2 direction = vec2(cos(angle), sin(angle));" +
+            "  vec3 second = top - (top - vec3(bottom.xy, bottomZ)) * curve.y;" +
+            "  vec2 third = bottom.xy + direction * (curve.x - curve.z);" +
+            "  vec2 fourth = bottom.xy + direction * curve.x;" +
+            "  float t = progress * shape.x;" +
+            "  float s = 1.0 - t;" +
+            "  vec4 factors = vec4(s * s * s, 3.0 * s * s * t, 3.0 * s * t * t, t * t * t);" +
+            "  vec3 point;" +
+            "  point.xy = factors.x * top.xy + factors.y * second.xy + factors.z * third + factors.w * fourth;" +
+            "  point.z = factors.x * top.z + factors.y * second.z + (factors.z + factors.w) * bottomZ;" +
+            "  return point;" +
+            "}";
+
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    private final BristleStore bristleStore;
+
+    public BristleCurveReference(BristleStore bristleStore) {
+        this.bristleStore = bristleStore;
+    }
+
+    /**
+     * Evaluates vertex vertexId of a bristle in the space of the brush, as the vertex shader does,
+     * and writes its position to out, followed by its world height.
+     */
+    public void evaluate(BrushSnapshot snapshot, int bristle, int vertexId, int segments,
+                         float[] out) {
+
+        // uSpread, the orthogonal angle is computed once per imprint
+        float orthogonalX = (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+        float orthogonalY = (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+
+        float topX = bristleStore.topX[bristle] + snapshot.positionX;
+        float topY = bristleStore.topY[bristle] + snapshot.positionY;
+        float topZ = bristleStore.topZ[bristle] + snapshot.positionZ;
+        float bottomX = bristleStore.bottomX[bristle] + snapshot.positionX;
+        float bottomY = bristleStore.bottomY[bristle] + snapshot.positionY;
+        float bottomZ = Math.max(bristleStore.bottomZ[bristle] + snapshot.positionZ, 0);
+
+        float angle = snapshot.horizontalAngle + (orthogonalX * bristleStore.directionX[bristle]
+                + orthogonalY * bristleStore.directionY[bristle]) * snapshot.bristleHorizontalMaxAngle;
+        float directionX = (float) Math.cos(angle);
+        float directionY = (float) Math.sin(angle);
+
+        float secondX = topX - (topX - bottomX) * snapshot.upperControlPointLength;
+        float secondY = topY - (topY - bottomY) * snapshot.upperControlPointLength;
+        float secondZ = topZ - (topZ - bottomZ) * snapshot.upperControlPointLength;
+
+        float thirdDistance = snapshot.planarDistanceFromHandle - snapshot.lowerControlPointLength;
+        float thirdX = bottomX + directionX * thirdDistance;
+        float thirdY = bottomY + directionY * thirdDistance;
+        float fourthX = bottomX + directionX * snapshot.planarDistanceFromHandle;
+        float fourthY = bottomY + directionY * snapshot.planarDistanceFromHandle;
+
+        float t = (float) vertexId / segments * bristleStore.length[bristle];
+        float s = 1 - t;
+        float firstFactor = s * s * s;
+        float secondFactor = 3 * s * s * t;
+        float thirdFactor = 3 * s * t * t;
+        float fourthFactor = t * t * t;
+
+        float x = firstFactor * topX + secondFactor * secondX + thirdFactor * thirdX + fourthFactor * fourthX;
+        float y = firstFactor * topY + secondFactor * secondY + thirdFactor * thirdY + fourthFactor * fourthY;
+        float z = firstFactor * topZ + secondFactor * secondZ + (thirdFactor + fourthFactor) * bottomZ;
+
+        float[] m = snapshot.modelMatrix;
+
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+        out[3] = m[2] * x + m[6] * y + m[10] * z + m[14];
+    }
+
+    /**
+     * Evaluates every vertex of every bristle into out, with the same layout as the uniform
+     * compute of BristleKernel.
+     */
+    public void compute(BrushSnapshot snapshot, int segments, FloatBuffer out) {
+        float[] vertex = new float[4];
+        int index = 0;
+
+        for (int bristle = 0; bristle < bristleStore.size(); bristle++) {
+            for (int v = 0; v <= segments; v++) {
+                evaluate(snapshot, bristle, v, segments, vertex);
+                out.put(index++, vertex[0]);
+                out.put(index++, vertex[1]);
+                out.put(index++, vertex[2]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the vertices of a transform feedback pass, as TransformFeedbackComputeBackend
+     * captures them. Every vertex is given by four ints in vertices: its imprint, its bristle, its
+     * index along the bristle and the number of segments of the bristle. The position of every
+     * vertex is written to positions, in world space if worldSpace is set, and its world height
+     * to heights.
+     */
+    public void capture(BrushSnapshot[] snapshots, IntBuffer vertices, int numVertices,
+                        boolean worldSpace, FloatBuffer positions, FloatBuffer heights) {
+        float[] vertex = new float[4];
+
+        for (int v = 0; v < numVertices; v++) {
+            int index = v * TransformFeedbackComputeBackend.INTS_PER_VERTEX;
+            BrushSnapshot snapshot = snapshots[vertices.get(index)];
+
+            evaluate(snapshot, vertices.get(index + 1), vertices.get(index + 2),
+                    vertices.get(index + 3), vertex);
+
+            float[] m = snapshot.modelMatrix;
+            float x = vertex[0];
+            float y = vertex[1];
+            float z = vertex[2];
+
+            if (worldSpace) {
+                x = m[0] * vertex[0] + m[4] * vertex[1] + m[8] * vertex[2] + m[12];
+                y = m[1] * vertex[0] + m[5] * vertex[1] + m[9] * vertex[2] + m[13];
+                z = vertex[3];
+            }
+
+            positions.put(v * 3, x);
+            positions.put(v * 3 + 1, y);
+            positions.put(v * 3 + 2, z);
+            heights.put(v, vertex[3]);
+        }
+    }
+
+    /** Returns whether the fragment shader draws a fragment at a world height */
+    public static boolean isDrawn(float height, float contactHeight) {
+        return !(height < 0 || height > contactHeight);
+    }
+}
@@ -0,0 +1,294 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Class which simulates every bristle as a short chain of particles, so that the bristles lag
+ * behind the handle, spring back and splay when the brush changes direction.
+ *
+ * The chain is anchored at the top of the bristle, and the rest of it is pulled towards the pose
+ * which the kernel evaluates from the brush parameters. It is integrated with Verlet steps, after
+ * which the distances between the particles and the paper below them are enforced as constraints.
+ * The time of every imprint is divided into a number of substeps, and fewer substeps only make the
+ * motion less exact, since the pull and the constraints move the particles by position.
+ *
+ * The state is stored as one array per coordinate, with the particles of a bristle after each
+ * other. Every bristle only touches its own particles, so ranges of bristles can be stepped on
+ * separate threads.
+ */
+public class BristleDynamics {
+
+    // The time which every imprint advances the simulation by (in seconds)
+    public static final float IMPRINT_TIME = 1f / 120f;
+
+    public static final int MIN_SUBSTEPS = 1;
+    public static final int MAX_SUBSTEPS = 8;
+
+    // How strongly the particles are pulled towards the pose, the square of the angular frequency
+    private static final float POSE_STIFFNESS = 2500f;
+
+    // The share of the velocity which is lost per second in the air
+    private static final float DAMPING_RATE = 12f;
+
+    // The share of the sliding velocity which is lost per substep on the paper
+    private static final float PAPER_FRICTION = 0.5f;
+
+    private static final int CONSTRAINT_ITERATIONS = 2;
+
+    // Handles which move further than this between two imprints start a new stroke from the pose
+    private static final float MAX_HANDLE_STEP = 0.25f;
+
+    private final BristleKernel kernel;
+    private final int particlesPerBristle;
+
+    // The particles, and where they were one substep earlier
+    final float[] x;
+    final float[] y;
+    final float[] z;
+    private final float[] previousX;
+    private final float[] previousY;
+    private final float[] previousZ;
+
+    // The pose of the last imprint, and of the current one, which the substeps move between
+    private final float[] poseX;
+    private final float[] poseY;
+    private final float[] poseZ;
+    private final float[] targetX;
+    private final float[] targetY;
+    private final float[] targetZ;
+
+    // Bristles which have not been stepped yet start from their pose
+    private final boolean[] settled;
+
+    private int substeps;
+    private float pull;
+    private float damping;
+
+    /**
+     * @param kernel the kernel which evaluates the pose of the bristles, at its full number of
+     *               segments, which is how many links every chain has
+     */
+    public BristleDynamics(BristleKernel kernel) {
+        this.kernel = kernel;
+        this.particlesPerBristle = kernel.getMaxSegmentsPerBristle() + 1;
+
+        int numParticles = kernel.getMaxNumBristles() * particlesPerBristle;
+        x = new float[numParticles];
+        y = new float[numParticles];
+        z = new float[numParticles];
+        previousX = new float[numParticles];
+        previousY = new float[numParticles];
+        previousZ = new float[numParticles];
+        poseX = new float[numParticles];
+        poseY = new float[numParticles];
+        poseZ = new float[numParticles];
+        targetX = new float[numParticles];
+        targetY = new float[numParticles];
+        targetZ = new float[numParticles];
+        settled = new boolean[kernel.getMaxNumBristles()];
+
+        setSubsteps(MAX_SUBSTEPS);
+    }
+
+    /** Sets the number of substeps of every imprint, must not be called while stepping */
+    public void setSubsteps(int substeps) {
+
+        if (substeps < MIN_SUBSTEPS || substeps > MAX_SUBSTEPS) {
+            throw new IllegalArgumentException("Invalid number of substeps " + substeps);
+        }
+
+        this.substeps = substeps;
+
+        float substepTime = IMPRINT_TIME / substeps;
+        pull = Math.min(1f, POSE_STIFFNESS * substepTime * substepTime);
+        damping = (float) Math.exp(-DAMPING_RATE * substepTime);
+    }
+
+    public int getSubsteps() {
+        return substeps;
+    }
+
+    /** Lets every bristle start from its pose at its next step */
+    public void reset() {
+        Arrays.fill(settled, false);
+    }
+
+    public int getParticlesPerBristle() {
+        return particlesPerBristle;
+    }
+
+    /** Advances a bristle of the store by the time of one imprint, towards its pose in a snapshot */
+    public void step(BrushSnapshot snapshot, int bristle) {
+
+        int first = bristle * particlesPerBristle;
+        int end = first + particlesPerBristle;
+
+        kernel.evaluateCurve(snapshot, bristle, particlesPerBristle - 1,
+                targetX, targetY, targetZ, first);
+
+        float handleStepX = targetX[first] - poseX[first];
+        float handleStepY = targetY[first] - poseY[first];
+        float handleStepZ = targetZ[first] - poseZ[first];
+        float handleStep = handleStepX * handleStepX + handleStepY * handleStepY
+                + handleStepZ * handleStepZ;
+
+        if (!settled[bristle] || handleStep > MAX_HANDLE_STEP * MAX_HANDLE_STEP) {
+            settle(first, end);
+            settled[bristle] = true;
+            return;
+        }
+
+        for (int s = 1; s <= substeps; s++) {
+            float alpha = (float) s / substeps;
+
+            // The anchor follows the handle
+            x[first] = poseX[first] + (targetX[first] - poseX[first]) * alpha;
+            y[first] = poseY[first] + (targetY[first] - poseY[first]) * alpha;
+            z[first] = poseZ[first] + (targetZ[first] - poseZ[first]) * alpha;
+
+            for (int p = first + 1; p < end; p++) {
+                float restX = poseX[p] + (targetX[p] - poseX[p]) * alpha;
+                float restY = poseY[p] + (targetY[p] - poseY[p]) * alpha;
+                float restZ = poseZ[p] + (targetZ[p] - poseZ[p]) * alpha;
+
+                float velocityX = (x[p] - previousX[p]) * damping;
+                float velocityY = (y[p] - previousY[p]) * damping;
+                float velocityZ = (z[p] - previousZ[p]) * damping;
+
+                previousX[p] = x[p];
+                previousY[p] = y[p];
+                previousZ[p] = z[p];
+
+                x[p] += velocityX + (restX - x[p]) * pull;
+                y[p] += velocityY + (restY - y[p]) * pull;
+                z[p] += velocityZ + (restZ - z[p]) * pull;
+            }
+
+            for (int k = 0; k < CONSTRAINT_ITERATIONS; k++) {
+                satisfyLengths(first, end, alpha);
+            }
+
+            satisfyPaper(first, end);
+        }
+
+        System.arraycopy(targetX, first, poseX, first, particlesPerBristle);
+        System.arraycopy(targetY, first, poseY, first, particlesPerBristle);
+        System.arraycopy(targetZ, first, poseZ, first, particlesPerBristle);
+    }
+
+    /** Places the particles of a bristle at rest in its pose */
+    private void settle(int first, int end) {
+        for (int p = first; p < end; p++) {
+            x[p] = previousX[p] = poseX[p] = targetX[p];
+            y[p] = previousY[p] = poseY[p] = targetY[p];
+            z[p] = previousZ[p] = poseZ[p] = targetZ[p];
+        }
+    }
+
+    /**
+     * Moves the particles so that every link has the length it has in the pose, where the anchor
+     * does not move.
+     */
+    private void satisfyLengths(int first, int end, float alpha) {
+        for (int p = first + 1; p < end; p++) {
+            float restLength = interpolatedDistance(p - 1, p, alpha);
+
+            float distanceX = x[p] - x[p - 1];
+            float distanceY = y[p] - y[p - 1];
+            float distanceZ = z[p] - z[p - 1];
+            float distance = (float) Math.sqrt(distanceX * distanceX + distanceY * distanceY
+                    + distanceZ * distanceZ);
+
+            if (distance == 0) {
+                continue;
+            }
+
+            float correction = (distance - restLength) / distance;
+
+            if (p - 1 == first) {
+                x[p] -= distanceX * correction;
+                y[p] -= distanceY * correction;
+                z[p] -= distanceZ * correction;
+            } else {
+                correction *= 0.5f;
+                x[p - 1] += distanceX * correction;
+                y[p - 1] += distanceY * correction;
+                z[p - 1] += distanceZ * correction;
+                x[p] -= distanceX * correction;
+                y[p] -= distanceY * correction;
+                z[p] -= distanceZ * correction;
+            }
+        }
+    }
+
+    /** Returns the distance between two particles of the pose, between the last and current one */
+    private float interpolatedDistance(int from, int to, float alpha) {
+        float poseDistanceX = poseX[to] - poseX[from];
+        float poseDistanceY = poseY[to] - poseY[from];
+        float poseDistanceZ = poseZ[to] - poseZ[from];
+        float targetDistanceX = targetX[to] - targetX[from];
+        float targetDistanceY = targetY[to] - targetY[from];
+        float targetDistanceZ = targetZ[to] - targetZ[from];
+
+        float poseDistance = (float) Math.sqrt(poseDistanceX * poseDistanceX
+                + poseDistanceY * poseDistanceY + poseDistanceZ * poseDistanceZ);
+        float targetDistance = (float) Math.sqrt(targetDistanceX * targetDistanceX
+                + targetDistanceY * targetDistanceY + targetDistanceZ * targetDistanceZ);
+
+        return poseDistance + (targetDistance - poseDistance) * alpha;
+    }
+
+    /** Keeps the particles above the paper, where they lose part of their sliding velocity */
+    private void satisfyPaper(int first, int end) {
+        for (int p = first + 1; p < end; p++) {
+            if (z[p] < 0) {
+                z[p] = 0;
+                previousZ[p] = 0;
+                previousX[p] += (x[p] - previousX[p]) * PAPER_FRICTION;
+                previousY[p] += (y[p] - previousY[p]) * PAPER_FRICTION;
+            }
+        }
+    }
+
+    /**
+     * Writes the chain of a bristle as numVertices points spread evenly along it, from
+     * firstVertex in positions, and their world heights from the model matrix of the snapshot
+     * to heights. The positions are in world space if worldSpace is set, else in the space of
+     * the brush.
+     */
+    public void writeVertices(BrushSnapshot snapshot, int bristle, int numVertices,
+                              boolean worldSpace, FloatBuffer positions, FloatBuffer heights,
+                              int firstVertex) {
+
+        int first = bristle * particlesPerBristle;
+        int links = particlesPerBristle - 1;
+        float[] m = snapshot.modelMatrix;
+
+        for (int v = 0; v < numVertices; v++) {
+            float parameter = numVertices == 1 ? 0 : (float) v * links / (numVertices - 1);
+            int link = Math.min((int) parameter, links - 1);
+            float fraction = parameter - link;
+
+            int p = first + link;
+            float pointX = x[p] + (x[p + 1] - x[p]) * fraction;
+            float pointY = y[p] + (y[p + 1] - y[p]) * fraction;
+            float pointZ = z[p] + (z[p + 1] - z[p]) * fraction;
+
+            float height = m[2] * pointX + m[6] * pointY + m[10] * pointZ + m[14];
+            int index = (firstVertex + v) * BristleKernel.FLOATS_PER_VERTEX;
+
+            if (worldSpace) {
+                positions.put(index, m[0] * pointX + m[4] * pointY + m[8] * pointZ + m[12]);
+                positions.put(index + 1, m[1] * pointX + m[5] * pointY + m[9] * pointZ + m[13]);
+                positions.put(index + 2, height);
+            } else {
+                positions.put(index, pointX);
+                positions.put(index + 1, pointY);
+                positions.put(index + 2, pointZ);
+            }
+
+            heights.put(firstVertex + v, height);
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+/**
+ * Java implementation of the bristle kernel in physics.rs.
+ *
+ * Every bristle is evaluated as a cubic bezier curve, and its points are written to the output as
+ * one line strip, with the same layout as the RenderScript kernel. The strips are drawn indexed,
+ * with a restart index between the bristles, so that no point has to be written twice. The output
+ * is written with absolute puts, so that several threads can write to separate ranges of the same
+ * buffer.
+ *
+ * Values which only depend on the bristle are precomputed in the BristleStore, and values which
+ * only depend on the imprint are computed once per call, so that the inner loop only has to
+ * evaluate the curve.
+ *
+ * With contact clipping, every segment is clipped to the slab above the paper which the imprint
+ * reaches after its model matrix, and only the part inside it is written. The imprints can then
+ * be compacted, so that nothing above the paper has to be drawn. Only the part of a bristle nearest
+ * to its tip is kept, so that every bristle stays a single strip. The laid out imprints can also
+ * be written in world space, with the model matrix of their snapshot applied.
+ */
+public class BristleKernel {
+
+    public static final int FLOATS_PER_VERTEX = 3;
+
+    // The fixed restart index of GL_UNSIGNED_INT, which ends the strip of a bristle
+    public static final int PRIMITIVE_RESTART_INDEX = 0xFFFFFFFF;
+
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    // Bristles whose tip is above this height never reach the depth the imprint is drawn to
+    public static final float CONTACT_HEIGHT = 0.05f;
+
+    // The largest distance a segment may deviate from the curve, roughly a pixel
+    public static final float FLATNESS_TOLERANCE = 0.002f;
+
+    private final BristleStore bristleStore;
+
+    private final int numBristles;
+    private final int maxSegmentsPerBristle;
+
+    // The subset of the bristles which is computed, spread evenly over the store, null when all are
+    private int numActiveBristles;
+    private int[] activeBristles;
+    private int segmentsPerBristle;
+
+    private boolean contactClipping;
+    private float contactHeight;
+    private boolean worldSpace;
+
+    /**
+     * @param bristleStore the bristles of the brush, which must not be rebuilt while in use
+     * @param segmentsPerBristle the number of line segments each bristle is divided into
+     */
+    public BristleKernel(BristleStore bristleStore, int segmentsPerBristle) {
+        this.bristleStore = bristleStore;
+        this.numBristles = bristleStore.size();
+        this.maxSegmentsPerBristle = segmentsPerBristle;
+
+        setQuality(numBristles, segmentsPerBristle);
+    }
+
+    /**
+     * Sets how many of the bristles are computed, spread evenly over the brush, and how many
+     * segments each one is divided into. Neither can be more than the kernel was created with.
+     */
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+
+        if (numActiveBristles < 1 || numActiveBristles > numBristles
+                || segmentsPerBristle < 1 || segmentsPerBristle > maxSegmentsPerBristle) {
+            throw new IllegalArgumentException("Invalid quality of " + numActiveBristles
+                    + " bristles with " + segmentsPerBristle + " segments");
+        }
+
+        if (numActiveBristles == numBristles) {
+            activeBristles = null;
+        } else if (numActiveBristles != this.numActiveBristles) {
+            activeBristles = new int[numActiveBristles];
+
+            // Every stride:th bristle, the same subset as the RenderScript kernel takes
+            float bristleStride = (float) numBristles / numActiveBristles;
+            for (int i = 0; i < numActiveBristles; i++) {
+                activeBristles[i] = (int) (i * bristleStride);
+            }
+        }
+
+        this.numActiveBristles = numActiveBristles;
+        this.segmentsPerBristle = segmentsPerBristle;
+    }
+
+    /** Returns the number of bristles which are computed for each imprint */
+    public int getNumBristles() {
+        return numActiveBristles;
+    }
+
+    /** Returns the index in the store of active bristle x */
+    public int getBristle(int x) {
+        return activeBristles == null ? x : activeBristles[x];
+    }
+
+    /** Returns the number of bristles in the store */
+    public int getMaxNumBristles() {
+        return numBristles;
+    }
+
+    public int getMaxSegmentsPerBristle() {
+        return maxSegmentsPerBristle;
+    }
+
+    public int getSegmentsPerBristle() {
+        return segmentsPerBristle;
+    }
+
+    /**
+     * Sets whether the laid out imprints are clipped to the paper, where the paper is the slab of
+     * world heights between zero and contactHeight.
+     */
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        this.contactClipping = contactClipping;
+        this.contactHeight = contactHeight;
+    }
+
+    public boolean isContactClipping() {
+        return contactClipping;
+    }
+
+    /**
+     * Sets whether the laid out imprints are transformed by the model matrix of their snapshot,
+     * so that the imprints of a batch can be drawn together with only the camera matrix.
+     */
+    public void setWorldSpace(boolean worldSpace) {
+        this.worldSpace = worldSpace;
+    }
+
+    public boolean isWorldSpace() {
+        return worldSpace;
+    }
+
+    /** Returns the number of floats each bristle writes to the output, at most */
+    public int getFloatsPerBristle() {
+        return FLOATS_PER_VERTEX * (segmentsPerBristle + 1);
+    }
+
+    /** Returns the number of floats a whole brush imprint writes to the output, at most */
+    public int getFloatsPerImprint() {
+        return numActiveBristles * getFloatsPerBristle();
+    }
+
+    /**
+     * Returns the number of segments a bristle needs for a brush snapshot. Bristles which do not
+     * touch the paper, or which are nearly straight, get a single segment, and bent ones get more
+     * the further their control points are from the straight line between their ends.
+     */
+    public int getSegmentCount(BrushSnapshot snapshot, int bristle) {
+
+        float top = bristleStore.topZ[bristle] + snapshot.positionZ;
+        float bottom = Math.max(bristleStore.bottomZ[bristle] + snapshot.positionZ, 0);
+
+        if (bottom > CONTACT_HEIGHT) {
+            return 1;
+        }
+
+        // The curve in the vertical plane of the bristle, which the horizontal angle only rotates
+        float chordX = snapshot.planarDistanceFromHandle;
+        float chordZ = bottom - top;
+        float chordLength = (float) Math.sqrt(chordX * chordX + chordZ * chordZ);
+
+        if (chordLength == 0) {
+            return 1;
+        }
+
+        // Distances of the two inner control points from the chord
+        float secondDistance = Math.abs(
+                chordX * (-(top - bottom) * snapshot.upperControlPointLength)) / chordLength;
+        float thirdDistance = Math.abs(
+                chordX * (bottom - top) - chordZ * (snapshot.planarDistanceFromHandle
+                        - snapshot.lowerControlPointLength)) / chordLength;
+
+        float deviation = Math.max(secondDistance, thirdDistance);
+
+        // The deviation of a segment falls with the square of the number of segments
+        int segments = (int) Math.ceil(Math.sqrt(deviation / FLATNESS_TOLERANCE));
+
+        return Math.max(1, Math.min(segmentsPerBristle, segments));
+    }
+
+    /**
+     * Lays out the imprints of a batch after each other, with the number of segments of every
+     * active bristle chosen by getSegmentCount. The output offset of bristle x of imprint i is
+     * written to bristleOffsets[i * getNumBristles() + x], followed by the end of the last
+     * imprint, and the offset of every imprint to imprintOffsets, followed by the end.
+     */
+    public void layoutImprints(BrushSnapshot[] snapshots, int numSnapshots,
+                               int[] bristleOffsets, int[] imprintOffsets) {
+
+        int offset = 0;
+        int index = 0;
+
+        for (int i = 0; i < numSnapshots; i++) {
+            imprintOffsets[i] = offset;
+
+            for (int x = 0; x < numActiveBristles; x++) {
+                int bristle = activeBristles == null ? x : activeBristles[x];
+
+                bristleOffsets[index++] = offset;
+                offset += FLOATS_PER_VERTEX * (getSegmentCount(snapshots[i], bristle) + 1);
+            }
+        }
+
+        bristleOffsets[index] = offset;
+        imprintOffsets[numSnapshots] = offset;
+    }
+
+    /**
+     * Computes the vertex positions of the active bristles in the range [start, end) for a brush
+     * snapshot, with the full number of segments per bristle, and the imprint starting at
+     * outOffset in the output. The whole bristles are written in the space of the brush, without
+     * contact clipping or the model matrix.
+     */
+    public void compute(BrushSnapshot snapshot, FloatBuffer out, int outOffset, int start, int end) {
+        compute(snapshot, out, outOffset, null, null, 0, start, end);
+    }
+
+    /**
+     * Computes the vertex positions of the active bristles in the range [start, end) for a brush
+     * snapshot, with the layout from layoutImprints. The offsets of the bristles of the imprint
+     * start at indexOffset in bristleOffsets.
+     */
+    public void compute(BrushSnapshot snapshot, FloatBuffer out, int[] bristleOffsets,
+                        int indexOffset, int start, int end) {
+        compute(snapshot, out, 0, bristleOffsets, null, indexOffset, start, end);
+    }
+
+    /**
+     * Computes the active bristles like the above, and writes the number of floats of every
+     * bristle to bristleLengths at the same index as its offset. With contact clipping, these
+     * are only the segments which touch the paper.
+     */
+    public void compute(BrushSnapshot snapshot, FloatBuffer out, int[] bristleOffsets,
+                        int[] bristleLengths, int indexOffset, int start, int end) {
+        compute(snapshot, out, 0, bristleOffsets, bristleLengths, indexOffset, start, end);
+    }
+
+    /**
+     * Evaluates the curve of a bristle of the store for a brush snapshot, at segments + 1 points
+     * spaced like the strips of compute, and writes them in the space of the brush to xs, ys and
+     * zs from offset. Used where the points are not written straight to an imprint.
+     */
+    public void evaluateCurve(BrushSnapshot snapshot, int bristle, int segments,
+                              float[] xs, float[] ys, float[] zs, int offset) {
+
+        float topX = bristleStore.topX[bristle] + snapshot.positionX;
+        float topY = bristleStore.topY[bristle] + snapshot.positionY;
+        float topZ = bristleStore.topZ[bristle] + snapshot.positionZ;
+
+        float bottomX = bristleStore.bottomX[bristle] + snapshot.positionX;
+        float bottomY = bristleStore.bottomY[bristle] + snapshot.positionY;
+        float bottom = Math.max(bristleStore.bottomZ[bristle] + snapshot.positionZ, 0);
+
+        float bristleShiftMagnitude =
+                (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET) * bristleStore.directionX[bristle]
+                + (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET) * bristleStore.directionY[bristle];
+
+        float bristleAngle = snapshot.horizontalAngle
+                + bristleShiftMagnitude * snapshot.bristleHorizontalMaxAngle;
+
+        float lowerControlPointDistance =
+                snapshot.planarDistanceFromHandle - snapshot.lowerControlPointLength;
+
+        float secondX = topX - (topX - bottomX) * snapshot.upperControlPointLength;
+        float secondY = topY - (topY - bottomY) * snapshot.upperControlPointLength;
+        float secondZ = topZ - (topZ - bottom) * snapshot.upperControlPointLength;
+
+        float thirdX = bottomX + (float) Math.cos(bristleAngle) * lowerControlPointDistance;
+        float thirdY = bottomY + (float) Math.sin(bristleAngle) * lowerControlPointDistance;
+
+        float fourthX = bottomX + (float) Math.cos(bristleAngle) * snapshot.planarDistanceFromHandle;
+        float fourthY = bottomY + (float) Math.sin(bristleAngle) * snapshot.planarDistanceFromHandle;
+
+        float segmentScale = bristleStore.length[bristle] / segments;
+
+        for (int i = 0; i <= segments; i++) {
+            float scale = i * segmentScale;
+            float inverseScale = 1 - scale;
+            float firstFactor = inverseScale * inverseScale * inverseScale;
+            float secondFactor = 3 * inverseScale * inverseScale * scale;
+            float thirdFactor = 3 * inverseScale * scale * scale;
+            float fourthFactor = scale * scale * scale;
+
+            xs[offset + i] = firstFactor * topX + secondFactor * secondX
+                    + thirdFactor * thirdX + fourthFactor * fourthX;
+            ys[offset + i] = firstFactor * topY + secondFactor * secondY
+                    + thirdFactor * thirdY + fourthFactor * fourthY;
+            zs[offset + i] = firstFactor * topZ + secondFactor * secondZ
+                    + (thirdFactor + fourthFactor) * bottom;
+        }
+    }
+
+    /**
+     * Moves the clipped bristles of the laid out imprints together, so that every imprint is one
+     * contiguous range, and writes the new offset of every imprint to imprintOffsets, followed
+     * by the end of the last.
+     */
+    public void compactImprints(FloatBuffer out, int numSnapshots, int[] bristleOffsets,
+                                int[] bristleLengths, int[] imprintOffsets) {
+
+        int writeIndex = 0;
+        int index = 0;
+
+        for (int i = 0; i < numSnapshots; i++) {
+            imprintOffsets[i] = writeIndex;
+
+            for (int x = 0; x < numActiveBristles; x++, index++) {
+                int readIndex = bristleOffsets[index];
+                int length = bristleLengths[index];
+
+                // The bristles only move towards the start, so they can be copied in order
+                if (readIndex != writeIndex) {
+                    for (int k = 0; k < length; k++) {
+                        out.put(writeIndex + k, out.get(readIndex + k));
+                    }
+                }
+
+                writeIndex += length;
+            }
+        }
+
+        imprintOffsets[numSnapshots] = writeIndex;
+    }
+
+    /**
+     * Writes the indices of numBristles strips to indices from indexOffset, where the number of
+     * floats of each strip is read from bristleLengths from lengthOffset, and the strips follow
+     * each other from firstVertex. Every strip is ended by the restart index, and empty strips
+     * are skipped. Returns the index offset after the last written index.
+     */
+    public static int writeStripIndices(IntBuffer indices, int indexOffset, int firstVertex,
+                                        int[] bristleLengths, int lengthOffset, int numBristles) {
+
+        int vertex = firstVertex;
+
+        for (int x = lengthOffset; x < lengthOffset + numBristles; x++) {
+            int vertexCount = bristleLengths[x] / FLOATS_PER_VERTEX;
+
+            if (vertexCount == 0) {
+                continue;
+            }
+
+            for (int v = 0; v < vertexCount; v++) {
+                indices.put(indexOffset++, vertex++);
+            }
+
+            indices.put(indexOffset++, PRIMITIVE_RESTART_INDEX);
+        }
+
+        return indexOffset;
+    }
+
+    private void compute(BrushSnapshot snapshot, FloatBuffer out, int outOffset,
+                         int[] bristleOffsets, int[] bristleLengths, int indexOffset,
+                         int start, int end) {
+
+        // A vector which points to the orthogonal angle to where the brush is pointing
+        float brushOrthogonalAngleX = (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+        float brushOrthogonalAngleY = (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+
+        float upperControlPointLength = snapshot.upperControlPointLength;
+        float lowerControlPointDistance =
+                snapshot.planarDistanceFromHandle - snapshot.lowerControlPointLength;
+        float planarDistanceFromHandle = snapshot.planarDistanceFromHandle;
+
+        int floatsPerBristle = getFloatsPerBristle();
+        int segments = segmentsPerBristle;
+        int[] bristles = activeBristles;
+
+        float[] topXs = bristleStore.topX;
+        float[] topYs = bristleStore.topY;
+        float[] topZs = bristleStore.topZ;
+        float[] bottomXs = bristleStore.bottomX;
+        float[] bottomYs = bristleStore.bottomY;
+        float[] bottomZs = bristleStore.bottomZ;
+        float[] lengths = bristleStore.length;
+        float[] directionXs = bristleStore.directionX;
+        float[] directionYs = bristleStore.directionY;
+
+        boolean clip = contactClipping && bristleLengths != null;
+        boolean worldSpace = this.worldSpace && bristleOffsets != null;
+
+        // The rows of the model matrix, the last of which gives the world height of a vertex
+        float[] modelMatrix = snapshot.modelMatrix;
+        float worldXX = modelMatrix[0];
+        float worldXY = modelMatrix[4];
+        float worldXZ = modelMatrix[8];
+        float worldXOffset = modelMatrix[12];
+        float worldYX = modelMatrix[1];
+        float worldYY = modelMatrix[5];
+        float worldYZ = modelMatrix[9];
+        float worldYOffset = modelMatrix[13];
+        float heightX = modelMatrix[2];
+        float heightY = modelMatrix[6];
+        float heightZ = modelMatrix[10];
+        float heightOffset = modelMatrix[14];
+
+        for (int x = start; x < end; x++) {
+
+            int bristle = bristles == null ? x : bristles[x];
+            int outIndex;
+
+            if (bristleOffsets == null) {
+                outIndex = outOffset + x * floatsPerBristle;
+            } else {
+                outIndex = bristleOffsets[indexOffset + x];
+                segments = (bristleOffsets[indexOffset + x + 1] - outIndex) / FLOATS_PER_VERTEX - 1;
+            }
+
+            float topX = topXs[bristle] + snapshot.positionX;
+            float topY = topYs[bristle] + snapshot.positionY;
+            float topZ = topZs[bristle] + snapshot.positionZ;
+
+            float bottomX = bottomXs[bristle] + snapshot.positionX;
+            float bottomY = bottomYs[bristle] + snapshot.positionY;
+
+            // Takes positive bottom positions
+            float bottom = Math.max(bottomZs[bristle] + snapshot.positionZ, 0);
+
+            float bristleShiftMagnitude = brushOrthogonalAngleX * directionXs[bristle]
+                    + brushOrthogonalAngleY * directionYs[bristle];
+
+            float bristleAngle = snapshot.horizontalAngle
+                    + bristleShiftMagnitude * snapshot.bristleHorizontalMaxAngle;
+
+            float sinBrushHorizontalValue = (float) Math.sin(bristleAngle);
+            float cosBrushHorizontalValue = (float) Math.cos(bristleAngle);
+
+            // The control points of the curve, the end point of z is the same as the third
+            float secondX = topX - (topX - bottomX) * upperControlPointLength;
+            float secondY = topY - (topY - bottomY) * upperControlPointLength;
+            float secondZ = topZ - (topZ - bottom) * upperControlPointLength;
+
+            float thirdX = bottomX + cosBrushHorizontalValue * lowerControlPointDistance;
+            float thirdY = bottomY + sinBrushHorizontalValue * lowerControlPointDistance;
+
+            float fourthX = bottomX + cosBrushHorizontalValue * planarDistanceFromHandle;
+            float fourthY = bottomY + sinBrushHorizontalValue * planarDistanceFromHandle;
+
+            float segmentScale = lengths[bristle] / segments;
+
+            float interpolatedX = topX;
+            float interpolatedY = topY;
+            float interpolatedZ = topZ;
+
+            int bristleStart = outIndex;
+
+            // Whether the last written point ends the strip, which a clipped segment interrupts
+            boolean stripOpen = false;
+
+            if (!clip && !worldSpace) {
+                putVertex(out, outIndex, topX, topY, topZ);
+                outIndex += 3;
+            }
+
+            for (int i = 1; i <= segments; i++) {
+
+                float previousX = interpolatedX;
+                float previousY = interpolatedY;
+                float previousZ = interpolatedZ;
+
+                float scale = i * segmentScale;
+                float inverseScale = 1 - scale;
+                float firstFactor = inverseScale * inverseScale * inverseScale;
+                float secondFactor = 3 * inverseScale * inverseScale * scale;
+                float thirdFactor = 3 * inverseScale * scale * scale;
+                float fourthFactor = scale * scale * scale;
+
+                // We do not perform any "rotation", we simply choose the extended bristles from their angle
+                interpolatedX = firstFactor * topX + secondFactor * secondX
+                        + thirdFactor * thirdX + fourthFactor * fourthX;
+
+                interpolatedY = firstFactor * topY + secondFactor * secondY
+                        + thirdFactor * thirdY + fourthFactor * fourthY;
+
+                interpolatedZ = firstFactor * topZ + secondFactor * secondZ
+                        + (thirdFactor + fourthFactor) * bottom;
+
+                if (!clip && !worldSpace) {
+                    putVertex(out, outIndex, interpolatedX, interpolatedY, interpolatedZ);
+                    outIndex += 3;
+                    continue;
+                }
+
+                float startX = previousX;
+                float startY = previousY;
+                float startZ = previousZ;
+                float endX = interpolatedX;
+                float endY = interpolatedY;
+                float endZ = interpolatedZ;
+                float exit = 1f;
+
+                if (clip) {
+
+                    // The height is affine, so the segment can be clipped along its parameter
+                    float previousHeight = heightX * previousX + heightY * previousY
+                            + heightZ * previousZ + heightOffset;
+                    float height = heightX * interpolatedX + heightY * interpolatedY
+                            + heightZ * interpolatedZ + heightOffset;
+
+                    float enter = 0f;
+                    float heightChange = height - previousHeight;
+
+                    if (heightChange != 0) {
+                        float paper = -previousHeight / heightChange;
+                        float contact = (contactHeight - previousHeight) / heightChange;
+                        enter = Math.max(enter, Math.min(paper, contact));
+                        exit = Math.min(exit, Math.max(paper, contact));
+                    } else if (previousHeight < 0 || previousHeight > contactHeight) {
+                        stripOpen = false;
+                        continue;
+                    }
+
+                    if (enter >= exit) {
+                        stripOpen = false;
+                        continue;
+                    }
+
+                    float changeX = interpolatedX - previousX;
+                    float changeY = interpolatedY - previousY;
+                    float changeZ = interpolatedZ - previousZ;
+
+                    startX = previousX + changeX * enter;
+                    startY = previousY + changeY * enter;
+                    startZ = previousZ + changeZ * enter;
+                    endX = previousX + changeX * exit;
+                    endY = previousY + changeY * exit;
+                    endZ = previousZ + changeZ * exit;
+                }
+
+                // A new strip replaces the earlier one, since the part nearest the tip is kept
+                if (!stripOpen) {
+                    outIndex = bristleStart;
+
+                    if (worldSpace) {
+                        putVertex(out, outIndex,
+                                worldXX * startX + worldXY * startY + worldXZ * startZ + worldXOffset,
+                                worldYX * startX + worldYY * startY + worldYZ * startZ + worldYOffset,
+                                heightX * startX + heightY * startY + heightZ * startZ + heightOffset);
+                    } else {
+                        putVertex(out, outIndex, startX, startY, startZ);
+                    }
+
+                    outIndex += 3;
+                }
+
+                if (worldSpace) {
+                    putVertex(out, outIndex,
+                            worldXX * endX + worldXY * endY + worldXZ * endZ + worldXOffset,
+                            worldYX * endX + worldYY * endY + worldYZ * endZ + worldYOffset,
+                            heightX * endX + heightY * endY + heightZ * endZ + heightOffset);
+                } else {
+                    putVertex(out, outIndex, endX, endY, endZ);
+                }
+
+                outIndex += 3;
+
+                // The strip continues if the segment did not leave the paper
+                stripOpen = exit == 1f;
+            }
+
+            if (bristleLengths != null) {
+                bristleLengths[indexOffset + x] = outIndex - bristleStart;
+            }
+        }
+    }
+
+    private static void putVertex(FloatBuffer out, int index, float x, float y, float z) {
+        out.put(index, x);
+        out.put(index + 1, y);
+        out.put(index + 2, z);
+    }
+}
@@ -0,0 +1,109 @@
+package co.adrianblan.fastbrush.compute;
+
+import co.adrianblan.fastbrush.database.BristleParameters;
+import co.adrianblan.fastbrush.globject.Brush;
+
+/**
+ * Snapshot of the brush state which the physics kernels are evaluated against.
+ */
+public class BrushSnapshot {
+
+    // The share of the vertical angle which the imprint is rotated by
+    private static final float VERTICAL_ROTATION_FACTOR = 0.30f;
+
+    // How far the imprint is raised, so that only the tips of the bristles reach the paper
+    private static final float TIP_HEIGHT = 0.03f;
+
+    // Position of the brush handle
+    public float positionX;
+    public float positionY;
+    public float positionZ;
+
+    // The angle of the brush rotation (in radians)
+    public float horizontalAngle;
+
+    // The vertical tilt of the brush (in degrees)
+    public float verticalAngle;
+
+    // Parameters of the bezier curves
+    public float planarDistanceFromHandle;
+    public float upperControlPointLength;
+    public float lowerControlPointLength;
+
+    // The length of the imprint on the plane
+    public float planarImprintLength;
+
+    // The maximum bristle spread angle (in radians)
+    public float bristleHorizontalMaxAngle;
+
+    // Places the imprint on the paper, column-major like android.opengl.Matrix
+    public final float[] modelMatrix = new float[16];
+
+    public BrushSnapshot() {
+        updateModelMatrix();
+    }
+
+    /** Takes the current state of the brush */
+    public void set(Brush brush) {
+        positionX = brush.getPosition().getX();
+        positionY = brush.getPosition().getY();
+        positionZ = brush.getPosition().getZ();
+
+        horizontalAngle = (float) Math.toRadians(brush.getHorizontalAngle());
+        verticalAngle = brush.getVerticalAngle();
+
+        BristleParameters bristleParameters = brush.getBristleParameters();
+        planarDistanceFromHandle = bristleParameters.planarDistanceFromHandle;
+        upperControlPointLength = bristleParameters.upperControlPointLength;
+        lowerControlPointLength = bristleParameters.lowerControlPointLength;
+        planarImprintLength = bristleParameters.planarImprintLength;
+        bristleHorizontalMaxAngle = (float) Math.toRadians(bristleParameters.bristleHorizontalAngle);
+
+        updateModelMatrix();
+    }
+
+    /**
+     * Computes the model matrix from the current state. The brush is first translated to its tip,
+     * then rotated vertically, and lastly moved to the center of the imprint.
+     */
+    public void updateModelMatrix() {
+
+        float cosHorizontalAngle = (float) Math.cos(horizontalAngle);
+        float sinHorizontalAngle = (float) Math.sin(horizontalAngle);
+
+        // The rotation axis lies in the plane, orthogonal to where the brush is pointing
+        float axisX = sinHorizontalAngle;
+        float axisY = -cosHorizontalAngle;
+
+        double rotationAngle = Math.toRadians(verticalAngle * VERTICAL_ROTATION_FACTOR);
+        float sin = (float) Math.sin(rotationAngle);
+        float cos = (float) Math.cos(rotationAngle);
+        float inverseCos = 1 - cos;
+
+        float[] m = modelMatrix;
+        m[0] = axisX * axisX * inverseCos + cos;
+        m[1] = axisX * axisY * inverseCos;
+        m[2] = -axisY * sin;
+        m[3] = 0f;
+        m[4] = axisX * axisY * inverseCos;
+        m[5] = axisY * axisY * inverseCos + cos;
+        m[6] = axisX * sin;
+        m[7] = 0f;
+        m[8] = axisY * sin;
+        m[9] = -axisX * sin;
+        m[10] = cos;
+        m[11] = 0f;
+
+        // The translation to the tip is rotated, the ones around it are not
+        float tipX = -positionX - cosHorizontalAngle * planarDistanceFromHandle;
+        float tipY = -positionY - sinHorizontalAngle * planarDistanceFromHandle;
+        float tipZ = TIP_HEIGHT;
+
+        m[12] = m[0] * tipX + m[4] * tipY + m[8] * tipZ
+                + positionX + cosHorizontalAngle * planarImprintLength;
+        m[13] = m[1] * tipX + m[5] * tipY + m[9] * tipZ
+                + positionY + sinHorizontalAngle * planarImprintLength;
+        m[14] = m[2] * tipX + m[6] * tipY + m[10] * tipZ;
+        m[15] = 1f;
+    }
+}
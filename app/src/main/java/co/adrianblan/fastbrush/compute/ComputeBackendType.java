@@ -0,0 +1,8 @@
+package co.adrianblan.fastbrush.compute;
+
+/**
+ * Enum for the available physics compute backends, where AUTOMATIC picks the fastest one.
+ */
+public enum ComputeBackendType {
+    RENDERSCRIPT, JAVA, PARALLEL_JAVA, TRANSFORM_FEEDBACK, AUTOMATIC;
+}
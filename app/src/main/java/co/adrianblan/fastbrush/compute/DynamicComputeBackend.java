@@ -0,0 +1,170 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Class which computes the bristles with the mass-spring dynamics of BristleDynamics, instead of
+ * from the pose alone.
+ *
+ * The imprints of a batch are stepped in order, since every imprint starts from the state the
+ * previous one left. The bristles are independent, so ParallelDynamicComputeBackend steps ranges
+ * of them through the whole batch on several threads. The chains are written like the vertices
+ * captured by the transform feedback backend, and clipped and compacted the same way.
+ *
+ * The solver has a time budget per batch, which is about a frame of imprints. The cost of a
+ * substep is measured on every batch, and the next batch takes as many substeps as fit in the
+ * budget, so that a heavy batch is solved less exactly instead of delaying the frame.
+ */
+public class DynamicComputeBackend implements BristleComputeBackend {
+
+    // The time which the solver may take per batch (in milliseconds)
+    public static final float DEFAULT_TIME_BUDGET = 6f;
+
+    private static final float COST_SMOOTHING_FACTOR = 0.3f;
+
+    private final BristleKernel kernel;
+    private final BristleDynamics dynamics;
+    private final float timeBudget;
+
+    private int[] bristleOffsets;
+    private FloatBuffer positions;
+    private FloatBuffer heights;
+
+    private boolean contactClipping;
+    private float contactHeight;
+    private boolean worldSpace;
+
+    // The smoothed time of one substep of one bristle (in milliseconds), zero until measured
+    private float substepCost;
+
+    /**
+     * @param kernel the kernel which lays out the imprints and evaluates the poses
+     * @param timeBudget the time the solver may take per batch (in milliseconds)
+     */
+    public DynamicComputeBackend(BristleKernel kernel, float timeBudget) {
+        this.kernel = kernel;
+        this.dynamics = new BristleDynamics(kernel);
+        this.timeBudget = timeBudget;
+        this.bristleOffsets = new int[0];
+        this.positions = FloatBuffer.allocate(0);
+        this.heights = FloatBuffer.allocate(0);
+    }
+
+    @Override
+    public void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer out,
+                                  int[] imprintOffsets, int[] bristleLengths) {
+
+        int numBristles = kernel.getNumBristles();
+
+        if (bristleOffsets.length < numSnapshots * numBristles + 1) {
+            bristleOffsets = new int[numSnapshots * numBristles + 1];
+        }
+
+        kernel.layoutImprints(snapshots, numSnapshots, bristleOffsets, imprintOffsets);
+
+        int numFloats = bristleOffsets[numSnapshots * numBristles];
+        if (positions.capacity() < numFloats) {
+            positions = FloatBuffer.allocate(numFloats);
+            heights = FloatBuffer.allocate(numFloats / BristleKernel.FLOATS_PER_VERTEX);
+        }
+
+        int steps = numSnapshots * numBristles;
+        dynamics.setSubsteps(chooseSubsteps(timeBudget, substepCost, steps));
+
+        long startTime = System.nanoTime();
+
+        solve(snapshots, numSnapshots, numBristles);
+
+        float time = (System.nanoTime() - startTime) / 1000000f;
+        float cost = time / (steps * dynamics.getSubsteps());
+        substepCost = substepCost == 0
+                ? cost : substepCost + (cost - substepCost) * COST_SMOOTHING_FACTOR;
+
+        TransformFeedbackComputeBackend.assemble(positions, heights, numSnapshots, numBristles,
+                bristleOffsets, contactClipping, contactHeight, out, imprintOffsets, bristleLengths);
+    }
+
+    /** Steps the first numBristles active bristles through the imprints */
+    protected void solve(BrushSnapshot[] snapshots, int numSnapshots, int numBristles) {
+        solve(snapshots, numSnapshots, 0, numBristles);
+    }
+
+    /**
+     * Steps the active bristles in the range [start, end) through the imprints, one imprint at a
+     * time, and writes every imprint once it is stepped.
+     */
+    void solve(BrushSnapshot[] snapshots, int numSnapshots, int start, int end) {
+        int numBristles = kernel.getNumBristles();
+
+        for (int i = 0; i < numSnapshots; i++) {
+            for (int x = start; x < end; x++) {
+                int bristle = kernel.getBristle(x);
+                int index = i * numBristles + x;
+                int firstVertex = bristleOffsets[index] / BristleKernel.FLOATS_PER_VERTEX;
+                int numVertices = bristleOffsets[index + 1] / BristleKernel.FLOATS_PER_VERTEX
+                        - firstVertex;
+
+                dynamics.step(snapshots[i], bristle);
+                dynamics.writeVertices(snapshots[i], bristle, numVertices, worldSpace,
+                        positions, heights, firstVertex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of substeps which fit in the time budget, for a number of bristle
+     * imprints with a measured cost per substep, or the most substeps before it is measured.
+     */
+    static int chooseSubsteps(float timeBudget, float substepCost, int steps) {
+
+        if (substepCost <= 0 || steps == 0) {
+            return BristleDynamics.MAX_SUBSTEPS;
+        }
+
+        int substeps = (int) (timeBudget / (substepCost * steps));
+        return Math.max(BristleDynamics.MIN_SUBSTEPS, Math.min(BristleDynamics.MAX_SUBSTEPS, substeps));
+    }
+
+    /** Lets every bristle start from its pose at the next imprint, must not be called while solving */
+    public void reset() {
+        dynamics.reset();
+    }
+
+    /** Returns the number of substeps of the latest batch */
+    public int getSubsteps() {
+        return dynamics.getSubsteps();
+    }
+
+    @Override
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+
+        // Bristles which were not stepped have fallen behind, so every bristle starts over
+        if (numActiveBristles != kernel.getNumBristles()) {
+            dynamics.reset();
+        }
+
+        kernel.setQuality(numActiveBristles, segmentsPerBristle);
+    }
+
+    @Override
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        kernel.setContactClipping(contactClipping, contactHeight);
+
+        this.contactClipping = contactClipping;
+        this.contactHeight = contactHeight;
+    }
+
+    @Override
+    public void setWorldSpace(boolean worldSpace) {
+        this.worldSpace = worldSpace;
+    }
+
+    // The state of the old bristles does not fit the new ones, so every bristle starts over
+    @Override
+    public void updateBristles() {
+        dynamics.reset();
+    }
+
+    @Override
+    public void destroy() {}
+}
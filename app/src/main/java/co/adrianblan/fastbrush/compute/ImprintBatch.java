@@ -0,0 +1,189 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import co.adrianblan.fastbrush.buffer.CompactVertexData;
+import co.adrianblan.fastbrush.globject.Brush;
+
+/**
+ * Class which contains all brush imprints of a frame, so that they can be computed in one dispatch.
+ */
+public class ImprintBatch {
+
+    private final BrushSnapshot[] snapshots;
+    private final int[] offsets;
+    private final int[] lengths;
+    private int size;
+
+    private FloatBuffer vertexBuffer;
+    private int vertexDataLength;
+    private IntBuffer indexBuffer;
+    private int indexCount;
+    private CompactVertexData compactVertexData;
+
+    // The world space bounds of all imprints, as the minimum x and y followed by the maximum
+    private final float[] bounds = new float[4];
+
+    // The quality which the batch is computed with
+    private int numBristles;
+    private int segmentsPerBristle;
+
+    public ImprintBatch(int capacity) {
+        snapshots = new BrushSnapshot[capacity];
+        offsets = new int[capacity];
+        lengths = new int[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            snapshots[i] = new BrushSnapshot();
+        }
+    }
+
+    /** Adds an imprint of the current brush state to the batch */
+    public void add(Brush brush) {
+        if (isFull()) {
+            throw new IllegalStateException("Imprint batch is full");
+        }
+
+        snapshots[size].set(brush);
+        size++;
+    }
+
+    /** Sets the vertex buffer which the imprints were computed into */
+    void setVertexBuffer(FloatBuffer vertexBuffer) {
+        this.vertexBuffer = vertexBuffer;
+    }
+
+    /** Sets the index buffer which the strips of the imprints are indexed in */
+    void setIndexBuffer(IntBuffer indexBuffer) {
+        this.indexBuffer = indexBuffer;
+    }
+
+    /** Sets the number of indices of all imprints, which are written from the start of the buffer */
+    void setIndexCount(int indexCount) {
+        this.indexCount = indexCount;
+    }
+
+    /** Sets the compact vertex data which the imprints are encoded into, or null to keep the floats */
+    void setCompactVertexData(CompactVertexData compactVertexData) {
+        this.compactVertexData = compactVertexData;
+    }
+
+    /** Sets the number of bristles and segments per bristle which the batch is computed with */
+    void setQuality(int numBristles, int segmentsPerBristle) {
+        this.numBristles = numBristles;
+        this.segmentsPerBristle = segmentsPerBristle;
+    }
+
+    /** Sets the number of floats of all imprints, which are laid out from the start of the buffer */
+    void setVertexDataLength(int vertexDataLength) {
+        this.vertexDataLength = vertexDataLength;
+    }
+
+    /** Measures the bounds of the vertex data, which must be in world space */
+    void updateBounds() {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+
+        for (int i = 0; i < vertexDataLength; i += BristleKernel.FLOATS_PER_VERTEX) {
+            float x = vertexBuffer.get(i);
+            float y = vertexBuffer.get(i + 1);
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        bounds[0] = minX;
+        bounds[1] = minY;
+        bounds[2] = maxX;
+        bounds[3] = maxY;
+    }
+
+    /** Sets where the vertex data of an imprint is located in the vertex buffer */
+    void setLocation(int imprint, int offset, int length) {
+        offsets[imprint] = offset;
+        lengths[imprint] = length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public boolean isFull() {
+        return size == snapshots.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return snapshots.length;
+    }
+
+    BrushSnapshot[] getSnapshots() {
+        return snapshots;
+    }
+
+    public BrushSnapshot getSnapshot(int imprint) {
+        return snapshots[imprint];
+    }
+
+    /** Returns the vertex buffer which contains the vertex data of all imprints */
+    public FloatBuffer getVertexBuffer() {
+        return vertexBuffer;
+    }
+
+    /** Returns the number of floats of all imprints, in world space from the start of the buffer */
+    public int getVertexDataLength() {
+        return vertexDataLength;
+    }
+
+    /** Returns the index buffer, with one strip per bristle which ends with the restart index */
+    public IntBuffer getIndexBuffer() {
+        return indexBuffer;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /** Returns the vertex data of all imprints encoded as shorts, or null if it is not compact */
+    public CompactVertexData getCompactVertexData() {
+        return compactVertexData;
+    }
+
+    public int getNumBristles() {
+        return numBristles;
+    }
+
+    public int getSegmentsPerBristle() {
+        return segmentsPerBristle;
+    }
+
+    /**
+     * Returns the world space bounds of all imprints, as the minimum x and y followed by the
+     * maximum x and y, where the minimum is above the maximum if there are no vertices.
+     */
+    public float[] getBounds() {
+        return bounds;
+    }
+
+    /** Returns the index of the first float of an imprint in the vertex buffer */
+    public int getOffset(int imprint) {
+        return offsets[imprint];
+    }
+
+    /** Returns the number of floats of an imprint in the vertex buffer */
+    public int getLength(int imprint) {
+        return lengths[imprint];
+    }
+}
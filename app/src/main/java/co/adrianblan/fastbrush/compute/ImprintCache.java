@@ -0,0 +1,255 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class which caches the vertex data of brush imprints, keyed by the quantized brush state.
+ *
+ * The shape of an imprint only depends on the height and angles of the brush, its position on
+ * the paper is only a translation. The vertex data is therefore stored relative to the brush
+ * position, and translated when it is copied out. The least recently used imprints are evicted
+ * when the cache grows past its memory cap.
+ *
+ * The number of segments of each bristle depends on how bent it is, so imprints have different
+ * lengths. Every entry is sized for the longest imprint, so that the arrays can be reused. The
+ * length of the strip of every bristle is kept with the vertex data, so that a copied imprint can
+ * be indexed like a computed one.
+ */
+public class ImprintCache {
+
+    public static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final float DEFAULT_VERTICAL_ANGLE_STEP = 0.5f;
+    public static final float DEFAULT_HEIGHT_STEP = 0.001f;
+    public static final float DEFAULT_HORIZONTAL_ANGLE_STEP = (float) Math.toRadians(0.25f);
+
+    // Number of bits each quantized value is given in the key
+    private static final int KEY_BITS = 21;
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private final int maxBytes;
+    private int floatsPerImprint;
+    private int maxEntries;
+
+    // Quantization steps, the angles in the same units as BrushSnapshot
+    private final float verticalAngleStep;
+    private final float heightStep;
+    private final float horizontalAngleStep;
+
+    private final LinkedHashMap<Long, Entry> entries;
+
+    // Entries which have been evicted, which are reused for new entries
+    private final ArrayList<Entry> freeEntries;
+
+    private long hitCount;
+    private long missCount;
+
+    public ImprintCache(int floatsPerImprint) {
+        this(floatsPerImprint, DEFAULT_MAX_BYTES, DEFAULT_VERTICAL_ANGLE_STEP, DEFAULT_HEIGHT_STEP,
+                DEFAULT_HORIZONTAL_ANGLE_STEP);
+    }
+
+    /**
+     * @param floatsPerImprint the maximum number of floats in the vertex data of one imprint
+     * @param maxBytes the maximum memory of all cached vertex data
+     * @param verticalAngleStep the quantization of the vertical angle (in degrees)
+     * @param heightStep the quantization of the brush height
+     * @param horizontalAngleStep the quantization of the horizontal angle (in radians)
+     */
+    public ImprintCache(int floatsPerImprint, int maxBytes, float verticalAngleStep,
+                        float heightStep, float horizontalAngleStep) {
+
+        if (verticalAngleStep <= 0 || heightStep <= 0 || horizontalAngleStep <= 0) {
+            throw new IllegalArgumentException("Quantization steps must be positive");
+        }
+
+        this.maxBytes = maxBytes;
+        this.floatsPerImprint = floatsPerImprint;
+        this.maxEntries = getMaxEntries(floatsPerImprint);
+        this.verticalAngleStep = verticalAngleStep;
+        this.heightStep = heightStep;
+        this.horizontalAngleStep = horizontalAngleStep;
+
+        freeEntries = new ArrayList<>();
+
+        // Access order makes the eldest entry the least recently used one
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                if (size() > maxEntries) {
+                    freeEntries.add(eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached vertex data of an imprint with the same quantized state as the snapshot,
+     * or null if there is none. The data stays valid until the next call to put.
+     */
+    public Entry get(BrushSnapshot snapshot) {
+        Entry entry = entries.get(getKey(snapshot));
+
+        if (entry != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Stores the vertex data of an imprint, which is length floats from inOffset in the buffer,
+     * with the lengths of its numBristles strips from lengthOffset in bristleLengths.
+     */
+    public void put(BrushSnapshot snapshot, FloatBuffer in, int inOffset, int length,
+                    int[] bristleLengths, int lengthOffset, int numBristles) {
+
+        if (maxEntries == 0) {
+            return;
+        }
+
+        if (length > floatsPerImprint) {
+            throw new IllegalArgumentException("Imprint of " + length
+                    + " floats exceeds the maximum of " + floatsPerImprint);
+        }
+
+        Entry entry = freeEntries.isEmpty()
+                ? new Entry(floatsPerImprint) : freeEntries.remove(freeEntries.size() - 1);
+
+        float[] vertexData = entry.vertexData;
+
+        for (int i = 0; i < length; i += BristleKernel.FLOATS_PER_VERTEX) {
+            vertexData[i] = in.get(inOffset + i) - snapshot.positionX;
+            vertexData[i + 1] = in.get(inOffset + i + 1) - snapshot.positionY;
+            vertexData[i + 2] = in.get(inOffset + i + 2);
+        }
+
+        entry.length = length;
+
+        if (entry.bristleLengths.length < numBristles) {
+            entry.bristleLengths = new int[numBristles];
+        }
+
+        System.arraycopy(bristleLengths, lengthOffset, entry.bristleLengths, 0, numBristles);
+        entry.numBristles = numBristles;
+
+        Entry previous = entries.put(getKey(snapshot), entry);
+
+        if (previous != null) {
+            freeEntries.add(previous);
+        }
+    }
+
+    /**
+     * Writes cached vertex data to the buffer at outOffset, translated to the snapshot position,
+     * and returns the number of floats written.
+     */
+    public int copyTo(Entry entry, BrushSnapshot snapshot, FloatBuffer out, int outOffset) {
+        float[] vertexData = entry.vertexData;
+
+        for (int i = 0; i < entry.length; i += BristleKernel.FLOATS_PER_VERTEX) {
+            out.put(outOffset + i, vertexData[i] + snapshot.positionX);
+            out.put(outOffset + i + 1, vertexData[i + 1] + snapshot.positionY);
+            out.put(outOffset + i + 2, vertexData[i + 2]);
+        }
+
+        return entry.length;
+    }
+
+    /** Removes all cached imprints, for when the shape of the imprints changes */
+    public void clear() {
+        freeEntries.addAll(entries.values());
+        entries.clear();
+    }
+
+    /** Removes all cached imprints, and sizes the cache for imprints of a different size */
+    public void setFloatsPerImprint(int floatsPerImprint) {
+        if (floatsPerImprint == this.floatsPerImprint) {
+            clear();
+            return;
+        }
+
+        entries.clear();
+        freeEntries.clear();
+
+        this.floatsPerImprint = floatsPerImprint;
+        this.maxEntries = getMaxEntries(floatsPerImprint);
+    }
+
+    public int getFloatsPerImprint() {
+        return floatsPerImprint;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /** Returns the share of lookups which were hits, or 0 if there have been none */
+    public float getHitRate() {
+        long lookups = hitCount + missCount;
+        return lookups > 0 ? (float) hitCount / lookups : 0f;
+    }
+
+    public void resetCounters() {
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    private int getMaxEntries(int floatsPerImprint) {
+        return floatsPerImprint > 0 ? maxBytes / (4 * floatsPerImprint) : 0;
+    }
+
+    /** Packs the quantized brush state into one key */
+    private long getKey(BrushSnapshot snapshot) {
+        long verticalAngle = Math.round(snapshot.verticalAngle / verticalAngleStep) & KEY_MASK;
+        long height = Math.round(snapshot.positionZ / heightStep) & KEY_MASK;
+        long horizontalAngle = Math.round(snapshot.horizontalAngle / horizontalAngleStep) & KEY_MASK;
+
+        return (verticalAngle << (2 * KEY_BITS)) | (height << KEY_BITS) | horizontalAngle;
+    }
+
+    /** The vertex data of one cached imprint, of which the first length floats are valid */
+    public static class Entry {
+        private final float[] vertexData;
+        private int length;
+        private int[] bristleLengths;
+        private int numBristles;
+
+        private Entry(int capacity) {
+            vertexData = new float[capacity];
+            bristleLengths = new int[0];
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /** Returns the number of floats of the strip of every bristle, of which numBristles are valid */
+        public int[] getBristleLengths() {
+            return bristleLengths;
+        }
+
+        public int getNumBristles() {
+            return numBristles;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Class which computes physics on the calling thread in Java.
+ */
+public class JavaComputeBackend implements BristleComputeBackend {
+
+    private final BristleKernel kernel;
+    private int[] bristleOffsets;
+
+    public JavaComputeBackend(BristleKernel kernel) {
+        this.kernel = kernel;
+        this.bristleOffsets = new int[0];
+    }
+
+    @Override
+    public void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer out,
+                                  int[] imprintOffsets, int[] bristleLengths) {
+
+        int numBristles = kernel.getNumBristles();
+
+        if (bristleOffsets.length < numSnapshots * numBristles + 1) {
+            bristleOffsets = new int[numSnapshots * numBristles + 1];
+        }
+
+        kernel.layoutImprints(snapshots, numSnapshots, bristleOffsets, imprintOffsets);
+
+        for (int i = 0; i < numSnapshots; i++) {
+            kernel.compute(snapshots[i], out, bristleOffsets, bristleLengths, i * numBristles,
+                    0, numBristles);
+        }
+
+        if (kernel.isContactClipping()) {
+            kernel.compactImprints(out, numSnapshots, bristleOffsets, bristleLengths, imprintOffsets);
+        }
+    }
+
+    @Override
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+        kernel.setQuality(numActiveBristles, segmentsPerBristle);
+    }
+
+    @Override
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        kernel.setContactClipping(contactClipping, contactHeight);
+    }
+
+    @Override
+    public void setWorldSpace(boolean worldSpace) {
+        kernel.setWorldSpace(worldSpace);
+    }
+
+    // The kernel reads the bristles straight from the store
+    @Override
+    public void updateBristles() {}
+
+    @Override
+    public void destroy() {}
+}
@@ -0,0 +1,79 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class which computes the bristles with the dynamics of DynamicComputeBackend, with the bristles
+ * split across several threads.
+ *
+ * Each task steps a range of bristles through the whole batch, so the imprints stay in order for
+ * every bristle.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ParallelDynamicComputeBackend extends DynamicComputeBackend {
+
+    // Ranges smaller than this are not worth the overhead of forking
+    private static final int MIN_BRISTLES_PER_TASK = 32;
+
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * @param kernel the kernel which lays out the imprints and evaluates the poses
+     * @param parallelism the number of threads the bristles are split across
+     * @param timeBudget the time the solver may take per batch (in milliseconds)
+     */
+    public ParallelDynamicComputeBackend(BristleKernel kernel, int parallelism, float timeBudget) {
+        super(kernel, timeBudget);
+        this.forkJoinPool = new ForkJoinPool(parallelism);
+    }
+
+    @Override
+    protected void solve(BrushSnapshot[] snapshots, int numSnapshots, int numBristles) {
+        forkJoinPool.invoke(new SolveTask(this, snapshots, numSnapshots, 0, numBristles));
+    }
+
+    @Override
+    public void destroy() {
+        forkJoinPool.shutdown();
+    }
+
+    /**
+     * Task which steps a range of bristles through all imprints, and splits it in half while it
+     * is large enough.
+     */
+    private static class SolveTask extends RecursiveAction {
+
+        private final DynamicComputeBackend backend;
+        private final BrushSnapshot[] snapshots;
+        private final int numSnapshots;
+        private final int start;
+        private final int end;
+
+        SolveTask(DynamicComputeBackend backend, BrushSnapshot[] snapshots, int numSnapshots,
+                  int start, int end) {
+            this.backend = backend;
+            this.snapshots = snapshots;
+            this.numSnapshots = numSnapshots;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - start <= MIN_BRISTLES_PER_TASK) {
+                backend.solve(snapshots, numSnapshots, start, end);
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+
+            invokeAll(new SolveTask(backend, snapshots, numSnapshots, start, middle),
+                    new SolveTask(backend, snapshots, numSnapshots, middle, end));
+        }
+    }
+}
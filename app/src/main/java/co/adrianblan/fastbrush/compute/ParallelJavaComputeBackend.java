@@ -0,0 +1,139 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Class which computes physics in Java, with the bristles split across all cores.
+ *
+ * The bristles of all imprints in a batch are treated as one range, so that short batches
+ * with many bristles and long batches with few bristles are split equally well.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ParallelJavaComputeBackend implements BristleComputeBackend {
+
+    // Ranges smaller than this are not worth the overhead of forking
+    private static final int MIN_BRISTLES_PER_TASK = 32;
+
+    private final BristleKernel kernel;
+    private final ForkJoinPool forkJoinPool;
+    private int[] bristleOffsets;
+
+    public ParallelJavaComputeBackend(BristleKernel kernel) {
+        this(kernel, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelJavaComputeBackend(BristleKernel kernel, int parallelism) {
+        this.kernel = kernel;
+        this.forkJoinPool = new ForkJoinPool(parallelism);
+        this.bristleOffsets = new int[0];
+    }
+
+    @Override
+    public void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer out,
+                                  int[] imprintOffsets, int[] bristleLengths) {
+
+        int numBristles = kernel.getNumBristles();
+
+        if (bristleOffsets.length < numSnapshots * numBristles + 1) {
+            bristleOffsets = new int[numSnapshots * numBristles + 1];
+        }
+
+        // The layout is cheap, so it is done up front to let every task know where to write
+        kernel.layoutImprints(snapshots, numSnapshots, bristleOffsets, imprintOffsets);
+
+        forkJoinPool.invoke(new ComputeTask(kernel, snapshots, out, bristleOffsets,
+                bristleLengths, 0, numSnapshots * numBristles));
+
+        // The clipped bristles are moved together once all tasks are done
+        if (kernel.isContactClipping()) {
+            kernel.compactImprints(out, numSnapshots, bristleOffsets, bristleLengths, imprintOffsets);
+        }
+    }
+
+    @Override
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+        kernel.setQuality(numActiveBristles, segmentsPerBristle);
+    }
+
+    @Override
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        kernel.setContactClipping(contactClipping, contactHeight);
+    }
+
+    @Override
+    public void setWorldSpace(boolean worldSpace) {
+        kernel.setWorldSpace(worldSpace);
+    }
+
+    // The kernel reads the bristles straight from the store
+    @Override
+    public void updateBristles() {}
+
+    @Override
+    public void destroy() {
+        forkJoinPool.shutdown();
+    }
+
+    /**
+     * Task which computes a range of bristles over all imprints, and splits it in half
+     * while it is large enough.
+     */
+    private static class ComputeTask extends RecursiveAction {
+
+        private final BristleKernel kernel;
+        private final BrushSnapshot[] snapshots;
+        private final FloatBuffer out;
+        private final int[] bristleOffsets;
+        private final int[] bristleLengths;
+        private final int start;
+        private final int end;
+
+        ComputeTask(BristleKernel kernel, BrushSnapshot[] snapshots, FloatBuffer out,
+                    int[] bristleOffsets, int[] bristleLengths, int start, int end) {
+            this.kernel = kernel;
+            this.snapshots = snapshots;
+            this.out = out;
+            this.bristleOffsets = bristleOffsets;
+            this.bristleLengths = bristleLengths;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (end - start <= MIN_BRISTLES_PER_TASK) {
+                computeRange();
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+
+            invokeAll(new ComputeTask(kernel, snapshots, out, bristleOffsets, bristleLengths,
+                            start, middle),
+                    new ComputeTask(kernel, snapshots, out, bristleOffsets, bristleLengths,
+                            middle, end));
+        }
+
+        /** Computes the range, one imprint at a time */
+        private void computeRange() {
+            int numBristles = kernel.getNumBristles();
+
+            for (int i = start; i < end; ) {
+                int imprint = i / numBristles;
+                int bristle = i - imprint * numBristles;
+                int bristleEnd = Math.min(numBristles, bristle + (end - i));
+
+                kernel.compute(snapshots[imprint], out, bristleOffsets, bristleLengths,
+                        imprint * numBristles, bristle, bristleEnd);
+
+                i += bristleEnd - bristle;
+            }
+        }
+    }
+}
@@ -1,115 +1,751 @@
 package co.adrianblan.fastbrush.compute;
 
 import android.content.Context;
-import android.support.v8.renderscript.Allocation;
-import android.support.v8.renderscript.Element;
-import android.support.v8.renderscript.RenderScript;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
 
-import co.adrianblan.fastbrush.ScriptC_physics;
-import co.adrianblan.fastbrush.database.BristleParameters;
-import co.adrianblan.fastbrush.globject.Bristle;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import co.adrianblan.fastbrush.buffer.VertexBufferManager;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
 import co.adrianblan.fastbrush.globject.Brush;
+import co.adrianblan.fastbrush.utils.GLhelper;
 
 
 /**
- * Class which computes physics with RenderScript
+ * Class which computes the physics of a brush, with one of the available compute backends.
+ *
+ * Batches are computed on a worker thread, so that the next batch can be computed while the
+ * previous one is drawn. Every batch in the pipeline has its own vertex buffer of the brush, and
+ * a batch is only handed back once its compute has finished.
+ *
+ * With the automatic backend type, the fastest backend for the device and the brush is taken from
+ * a BackendCalibration, which is run the first time a brush configuration is used. The candidates
+ * are timed one at a time on the worker thread while no imprints are drawn, on a copy of the
+ * bristles, and the uncalibrated backend type is used until they are all timed.
+ *
+ * With dynamic bristles, the bristles are simulated by a DynamicComputeBackend instead. Every
+ * imprint then depends on the ones before it, so no imprint is taken from the cache.
  */
 public class PhysicsCompute {
 
-    private RenderScript renderScript;
-    private ScriptC_physics script;
+    private static final String TAG = "PhysicsCompute";
+
+    public static final ComputeBackendType DEFAULT_BACKEND_TYPE = ComputeBackendType.AUTOMATIC;
+    public static final int MAX_IMPRINTS_PER_BATCH = 32;
+
+    // Computes the batches while the automatic backend type is being calibrated
+    public static final ComputeBackendType UNCALIBRATED_BACKEND_TYPE = ComputeBackendType.PARALLEL_JAVA;
+
+    // Smaller batches are not worth the upload and draw call they cost
+    public static final int MIN_IMPRINTS_PER_BATCH = 4;
+
+    private BristleComputeBackend backend;
+    private ComputeBackendType backendType;
+    private boolean dynamicBristles;
+    private ImprintBatch[] imprintBatches;
+    private int collectingBatchIndex;
+    private ImprintCache imprintCache;
+    private VertexBufferManager vertexBufferManager;
+
+    // The quality which new batches are submitted with
+    private int numBristles;
+    private int numActiveBristles;
+    private int segmentsPerBristle;
+
+    // The quality which the backend is currently set to, only used by the worker thread
+    private int computedNumBristles;
+    private int computedSegmentsPerBristle;
+    private int floatsPerImprint;
+
+    // The cached vertex data of each imprint in a batch, and the imprints which were not cached
+    private ImprintCache.Entry[] cachedVertexData;
+    private BrushSnapshot[] missedSnapshots;
+    private int[] missedImprints;
+
+    // Where the vertex data of each computed imprint starts, with the end of the last after them
+    private int[] imprintOffsets;
+
+    // The number of floats of the strip of every bristle of the computed imprints
+    private int[] bristleLengths;
 
-    private Allocation inBristleIndices;
-    private Allocation inAllocationTop;
-    private Allocation inAllocationBottom;
-    private Allocation outAllocation;
+    private BristleStore bristleStore;
 
-    private Brush brush;
+    // Computes the whole brush for the brush views, on the render thread
+    private BristleKernel previewKernel;
+    private boolean contactClipping;
+    private float contactHeight = BristleKernel.CONTACT_HEIGHT;
 
-    float [] out;
-    float [] inTop;
-    float [] inBottom;
+    // The calibration of the automatic backend type, which is pending while it has a signature
+    private Context calibrationContext;
+    private String calibrationSignature;
+    private PendingCalibration calibration;
+
+    // The preview always has the same layout, so its indices are only written when the quality changes
+    private int[] previewBristleLengths;
+    private int previewIndexCount;
+    private int previewNumBristles;
+    private int previewSegmentsPerBristle;
+
+    private ExecutorService computeExecutor;
+    private ArrayDeque<Future<ImprintBatch>> pendingBatches;
+    private int maxPendingBatches;
+
+    /** The candidates of a calibration, with the buffers they are timed into */
+    private static class PendingCalibration {
+        BristleStore bristleStore;
+        BristleComputeBackend[] backends;
+        float[] times;
+        int index;
+        BrushSnapshot[] snapshots;
+        FloatBuffer vertexBuffer;
+        int[] imprintOffsets;
+        int[] bristleLengths;
+
+        // The timing of the candidate at the index, while it runs
+        Future<Float> timing;
+    }
 
     public PhysicsCompute(Context context, Brush brush) {
+        this(context, brush, DEFAULT_BACKEND_TYPE);
+    }
 
-        this.brush = brush;
-        Bristle[] bristleArray = brush.getBristles();
+    public PhysicsCompute(Context context, Brush brush, ComputeBackendType backendType) {
+        this(context, brush, backendType, false);
+    }
 
-        renderScript = RenderScript.create(context);
-        script = new ScriptC_physics(renderScript);
+    /**
+     * Creates the physics of a brush, where the bristles are simulated with dynamicBristles
+     * instead of being computed by the backend type.
+     */
+    public PhysicsCompute(Context context, Brush brush, ComputeBackendType backendType,
+                          boolean dynamicBristles) {
 
-        script.set_BRISTLE_BASE_LENGTH(Bristle.BASE_LENGTH);
-        script.set_SEGMENTS_PER_BRISTLE(Brush.SEGMENTS_PER_BRISTLE);
-        script.set_BRUSH_RADIUS_UPPER(Bristle.radiusUpper);
-        script.set_script(script);
+        // The backends read the bristles straight from the store of the brush
+        bristleStore = brush.getBristleStore();
 
-        int numBristles = brush.getBristles().length;
+        numBristles = bristleStore.size();
         int numSegments = Brush.SEGMENTS_PER_BRISTLE;
 
-        int[] bristleIndices = new int[numBristles];
-        for ( int i = 0; i < numBristles; i++) {
-            bristleIndices[i] = i * 3;
+        // Starts out at full quality
+        numActiveBristles = computedNumBristles = numBristles;
+        segmentsPerBristle = computedSegmentsPerBristle = numSegments;
+
+        floatsPerImprint = 3 * (numSegments + 1) * numBristles;
+        imprintCache = new ImprintCache(floatsPerImprint);
+
+        cachedVertexData = new ImprintCache.Entry[MAX_IMPRINTS_PER_BATCH];
+        missedSnapshots = new BrushSnapshot[MAX_IMPRINTS_PER_BATCH];
+        missedImprints = new int[MAX_IMPRINTS_PER_BATCH];
+        imprintOffsets = new int[MAX_IMPRINTS_PER_BATCH + 1];
+        bristleLengths = new int[MAX_IMPRINTS_PER_BATCH * numBristles];
+
+        // The imprints are computed straight into the buffers which the brush draws from
+        vertexBufferManager = brush.getVertexBufferManager();
+
+        // There is one batch per vertex buffer, the one which is not pending is being collected
+        imprintBatches = new ImprintBatch[vertexBufferManager.getBufferCount()];
+        for (int i = 0; i < imprintBatches.length; i++) {
+            imprintBatches[i] = new ImprintBatch(MAX_IMPRINTS_PER_BATCH);
+        }
+
+        maxPendingBatches = imprintBatches.length - 1;
+        pendingBatches = new ArrayDeque<>();
+        computeExecutor = Executors.newSingleThreadExecutor();
+
+        this.dynamicBristles = dynamicBristles;
+
+        if (dynamicBristles) {
+            BristleKernel kernel = new BristleKernel(bristleStore, numSegments);
+
+            // ForkJoinPool is only available from Lollipop
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                this.backendType = ComputeBackendType.PARALLEL_JAVA;
+                backend = new ParallelDynamicComputeBackend(kernel,
+                        Runtime.getRuntime().availableProcessors(),
+                        DynamicComputeBackend.DEFAULT_TIME_BUDGET);
+            } else {
+                this.backendType = ComputeBackendType.JAVA;
+                backend = new DynamicComputeBackend(kernel, DynamicComputeBackend.DEFAULT_TIME_BUDGET);
+            }
+        } else {
+            if (backendType == ComputeBackendType.AUTOMATIC) {
+                backendType = getCalibratedBackendType(context, numSegments);
+            }
+
+            this.backendType = backendType;
+            backend = createBackend(context, backendType, numSegments);
+        }
+
+        // The imprints are placed on the paper when they are computed, so they can be drawn together
+        backend.setWorldSpace(true);
+
+        previewKernel = new BristleKernel(bristleStore, numSegments);
+        previewBristleLengths = new int[numBristles];
+    }
+
+    /** Creates a backend of the given type, falling back to Java where it is not supported */
+    private BristleComputeBackend createBackend(Context context, ComputeBackendType backendType,
+                                                int numSegments) {
+        BristleComputeBackend backend = createSupportedBackend(context, backendType, bristleStore,
+                numSegments);
+
+        if (backend == null) {
+            Log.w(TAG, backendType + " is not supported, falling back to Java");
+            backend = new JavaComputeBackend(new BristleKernel(bristleStore, numSegments));
+        }
+
+        return backend;
+    }
+
+    /**
+     * Creates a backend of the given type on the bristles of a store, or returns null where it is
+     * not supported. Must be called on the render thread, which the transform feedback backend
+     * shares its objects with.
+     */
+    private static BristleComputeBackend createSupportedBackend(Context context,
+                                                                ComputeBackendType backendType,
+                                                                BristleStore bristleStore,
+                                                                int numSegments) {
+        switch (backendType) {
+            case RENDERSCRIPT:
+                return new RenderScriptComputeBackend(context, bristleStore, numSegments,
+                        MAX_IMPRINTS_PER_BATCH);
+
+            case TRANSFORM_FEEDBACK:
+                try {
+                    return new TransformFeedbackComputeBackend(bristleStore, numSegments,
+                            MAX_IMPRINTS_PER_BATCH);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Transform feedback is not supported", e);
+                    return null;
+                }
+
+            case PARALLEL_JAVA:
+                // ForkJoinPool is only available from Lollipop
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    return new ParallelJavaComputeBackend(
+                            new BristleKernel(bristleStore, numSegments));
+                }
+
+                return null;
+
+            case JAVA:
+                return new JavaComputeBackend(
+                        new BristleKernel(bristleStore, numSegments));
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the fastest backend type for the brush, or the uncalibrated backend type if it is
+     * not known yet, in which case the calibration is pending.
+     */
+    private ComputeBackendType getCalibratedBackendType(Context context, int numSegments) {
+        BackendCalibration calibration = new BackendCalibration(
+                PreferenceManager.getDefaultSharedPreferences(context));
+        String signature = BackendCalibration.getSignature(numBristles, numSegments);
+
+        ComputeBackendType fastest = calibration.getFastest(signature);
+
+        if (fastest == null) {
+            calibrationContext = context;
+            calibrationSignature = signature;
+            return UNCALIBRATED_BACKEND_TYPE;
+        }
+
+        return fastest;
+    }
+
+    /**
+     * Times the next candidate of the pending calibration, and switches to the fastest backend once
+     * they are all timed, without waiting for them. Must be called on the render thread while no
+     * imprints are drawn, after the contact clipping is set, since the candidates are created and
+     * destroyed on it, and are timed on the worker thread in place of the batches.
+     */
+    public void updateCalibration() {
+
+        if (calibrationSignature == null) {
+            return;
+        }
+
+        if (calibration == null) {
+            startCalibration();
+        } else if (calibration.timing != null) {
+
+            if (!calibration.timing.isDone()) {
+                return;
+            }
+
+            calibration.times[calibration.index] = getTime(calibration);
+            calibration.timing = null;
+            calibration.index++;
+        }
+
+        while (calibration.index < calibration.backends.length
+                && calibration.backends[calibration.index] == null) {
+            calibration.index++;
+        }
+
+        if (calibration.index < calibration.backends.length) {
+            calibration.timing = computeExecutor.submit(createTimingTask(calibration));
+        } else {
+            finishCalibration();
+        }
+    }
+
+    /**
+     * Creates every supported backend on a copy of the bristles, which the render thread does not
+     * rebuild while they are timed, with the contact clipping of the renderer.
+     */
+    private void startCalibration() {
+        ComputeBackendType[] candidates = BackendCalibration.CANDIDATES;
+        int numSegments = Brush.SEGMENTS_PER_BRISTLE;
+
+        calibration = new PendingCalibration();
+        calibration.bristleStore = new BristleStore();
+        calibration.bristleStore.copyFrom(bristleStore);
+        calibration.backends = new BristleComputeBackend[candidates.length];
+        calibration.times = new float[candidates.length];
+
+        for (int i = 0; i < candidates.length; i++) {
+            calibration.times[i] = Float.NaN;
+            calibration.backends[i] = createSupportedBackend(calibrationContext, candidates[i],
+                    calibration.bristleStore, numSegments);
+
+            if (calibration.backends[i] != null) {
+                calibration.backends[i].setWorldSpace(true);
+                calibration.backends[i].setContactClipping(contactClipping, contactHeight);
+            }
+        }
+
+        calibration.snapshots = BackendCalibration.createSyntheticSnapshots(MAX_IMPRINTS_PER_BATCH);
+        calibration.vertexBuffer = GLhelper.initFloatBuffer(
+                3 * (numSegments + 1) * numBristles * MAX_IMPRINTS_PER_BATCH);
+        calibration.imprintOffsets = new int[MAX_IMPRINTS_PER_BATCH + 1];
+        calibration.bristleLengths = new int[MAX_IMPRINTS_PER_BATCH * numBristles];
+    }
+
+    /**
+     * Returns a task which times the candidate at the index of a calibration on the worker thread,
+     * so that it is not slowed down by batches which are computed at the same time.
+     */
+    private static Callable<Float> createTimingTask(final PendingCalibration calibration) {
+        final BristleComputeBackend backend = calibration.backends[calibration.index];
+
+        return new Callable<Float>() {
+            @Override
+            public Float call() {
+                return BackendCalibration.time(backend, calibration.snapshots,
+                        calibration.vertexBuffer, calibration.imprintOffsets,
+                        calibration.bristleLengths);
+            }
+        };
+    }
+
+    /** Returns the time of the candidate which was timed last, or NaN if it failed */
+    private static float getTime(PendingCalibration calibration) {
+        try {
+            return calibration.timing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, BackendCalibration.CANDIDATES[calibration.index] + " failed to compute",
+                    e.getCause());
+        }
+
+        return Float.NaN;
+    }
+
+    /**
+     * Stores the fastest backend type, and hands a backend of it on the bristles of the brush to
+     * the worker thread, in place of the uncalibrated one. The candidates are destroyed.
+     */
+    private void finishCalibration() {
+        ComputeBackendType[] candidates = BackendCalibration.CANDIDATES;
+        int fastest = BackendCalibration.indexOfFastest(calibration.times);
+
+        Log.i(TAG, "Calibrated " + Arrays.toString(candidates) + " in "
+                + Arrays.toString(calibration.times) + " ms");
+
+        new BackendCalibration(PreferenceManager.getDefaultSharedPreferences(calibrationContext))
+                .setFastest(calibrationSignature, fastest == -1
+                        ? ComputeBackendType.JAVA : candidates[fastest]);
+
+        destroyCalibrationBackends();
+
+        if (fastest != -1 && candidates[fastest] != backendType) {
+            BristleComputeBackend newBackend = createSupportedBackend(calibrationContext,
+                    candidates[fastest], bristleStore, Brush.SEGMENTS_PER_BRISTLE);
+
+            if (newBackend != null) {
+                newBackend.setWorldSpace(true);
+                switchBackend(candidates[fastest], newBackend);
+            }
+        }
+
+        calibrationContext = null;
+        calibrationSignature = null;
+        calibration = null;
+    }
+
+    private void destroyCalibrationBackends() {
+        for (BristleComputeBackend calibrationBackend : calibration.backends) {
+            if (calibrationBackend != null) {
+                calibrationBackend.destroy();
+            }
+        }
+    }
+
+    /** Computes the batches submitted from now on with another backend */
+    private void switchBackend(ComputeBackendType backendType, final BristleComputeBackend newBackend) {
+        final boolean contactClipping = this.contactClipping;
+        final float contactHeight = this.contactHeight;
+
+        this.backendType = backendType;
+
+        // Runs between the pending batches and the next one, with the settings of the latest batch
+        computeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BristleComputeBackend previousBackend = backend;
+
+                newBackend.setContactClipping(contactClipping, contactHeight);
+                newBackend.setQuality(computedNumBristles, computedSegmentsPerBristle);
+                newBackend.updateBristles();
+
+                // The cached imprints are of the previous backend
+                backend = newBackend;
+                imprintCache.clear();
+
+                previousBackend.destroy();
+            }
+        });
+    }
+
+    /** Returns the type of the backend which computes the batches */
+    public ComputeBackendType getBackendType() {
+        return backendType;
+    }
+
+    public boolean isDynamicBristles() {
+        return dynamicBristles;
+    }
+
+    /**
+     * Lets the dynamic bristles of the batches submitted from now on start from their pose, so
+     * that a stroke starts the same way whenever it is drawn.
+     */
+    public void resetDynamics() {
+
+        if (!dynamicBristles) {
+            return;
+        }
+
+        // Runs between the pending batches and the next one
+        computeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ((DynamicComputeBackend) backend).reset();
+            }
+        });
+    }
+
+    /** Returns the batch which imprints are added to before they are submitted */
+    public ImprintBatch getImprintBatch() {
+        return imprintBatches[collectingBatchIndex];
+    }
+
+    /**
+     * Starts computing the collected batch on the worker thread, into the next vertex buffer of
+     * the brush. The next call to getImprintBatch returns a free batch.
+     */
+    public void submitImprintBatch() {
+
+        if (isPipelineFull()) {
+            throw new IllegalStateException("Imprint pipeline is full");
         }
 
-        inBristleIndices = Allocation.createSized(renderScript, Element.I32(renderScript), numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
-        inBristleIndices.copyFrom(bristleIndices);
+        final ImprintBatch imprintBatch = imprintBatches[collectingBatchIndex];
+        collectingBatchIndex = (collectingBatchIndex + 1) % imprintBatches.length;
 
-        inTop = new float[3 * numBristles];
-        inBottom  = new float[3 * numBristles];
+        imprintBatch.setQuality(numActiveBristles, segmentsPerBristle);
 
-        for(int i = 0; i < bristleArray.length; i++) {
-            inTop[i * 3] = bristleArray[i].top.vector[0];
-            inTop[i * 3 + 1] = bristleArray[i].top.vector[1];
-            inTop[i * 3 + 2] = bristleArray[i].top.vector[2];
+        // The buffers are handed out in the same order as the batches, so no pending batch shares it
+        vertexBufferManager.setNextBuffer();
+        imprintBatch.setVertexBuffer(vertexBufferManager.getCurrentBuffer());
+        imprintBatch.setIndexBuffer(vertexBufferManager.getCurrentIndexBuffer());
+        imprintBatch.setCompactVertexData(vertexBufferManager.getCurrentCompactVertexData());
 
-            inBottom[i * 3] = bristleArray[i].bottom.vector[0];
-            inBottom[i * 3 + 1] = bristleArray[i].bottom.vector[1];
-            inBottom[i * 3 + 2] = bristleArray[i].bottom.vector[2];
+        pendingBatches.add(computeExecutor.submit(new Callable<ImprintBatch>() {
+            @Override
+            public ImprintBatch call() {
+                computeImprintBatch(imprintBatch);
+                return imprintBatch;
+            }
+        }));
+    }
+
+    /**
+     * Waits for the oldest submitted batch to finish computing, and returns it. The batch must be
+     * drawn before the next batch is submitted.
+     */
+    public ImprintBatch takeImprintBatch() {
+
+        if (pendingBatches.isEmpty()) {
+            throw new IllegalStateException("No imprint batch has been submitted");
         }
 
-        inAllocationTop = Allocation.createSized(renderScript, Element.F32(renderScript), 3 * numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
-        inAllocationBottom = Allocation.createSized(renderScript, Element.F32(renderScript), 3 * numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+        try {
+            return pendingBatches.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for imprint batch", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Imprint batch failed to compute", e.getCause());
+        }
+    }
 
-        inAllocationTop.copyFrom(inTop);
-        inAllocationBottom.copyFrom(inBottom);
+    public boolean hasPendingImprintBatches() {
+        return !pendingBatches.isEmpty();
+    }
 
-        outAllocation = Allocation.createSized(renderScript, Element.F32(renderScript), 3 * 2 * numSegments * numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
-        out = new float[3 * 2 * numSegments * numBristles];
+    /** Returns true if a batch has to be taken before the next one can be submitted */
+    public boolean isPipelineFull() {
+        return pendingBatches.size() >= maxPendingBatches;
+    }
 
-        script.bind_inBristlePositionTop(inAllocationTop);
-        script.bind_inBristlePositionBottom(inAllocationBottom);
-        script.bind_outBristlePosition(outAllocation);
+    /**
+     * Returns how many imprints go into every batch, when a number of imprints are drawn at once.
+     * They are split over as many batches as can be pending, so that the next batch is computed
+     * while the previous one is drawn.
+     */
+    public int getBatchSize(int numImprints) {
+        return getBatchSize(numImprints, maxPendingBatches);
     }
 
-    public float[] computeVertexData() {
+    static int getBatchSize(int numImprints, int maxPendingBatches) {
+        int batchSize = (numImprints + maxPendingBatches - 1) / maxPendingBatches;
+        return Math.max(MIN_IMPRINTS_PER_BATCH, Math.min(MAX_IMPRINTS_PER_BATCH, batchSize));
+    }
+
+    /**
+     * Sets the share of the bristles which are computed, and how many segments each bristle is
+     * divided into, for the batches submitted from now on.
+     */
+    public void setQuality(float bristleFraction, int segmentsPerBristle) {
+        this.numActiveBristles = Math.max(1, Math.min(numBristles, Math.round(numBristles * bristleFraction)));
+        this.segmentsPerBristle = Math.max(1, Math.min(Brush.SEGMENTS_PER_BRISTLE, segmentsPerBristle));
+    }
 
-        //Set all parameters for compute script
-        script.set_brushPosition(brush.getPosition().getFloat3());
+    public int getNumActiveBristles() {
+        return numActiveBristles;
+    }
 
-        BristleParameters bristleParameters = brush.getBristleParameters();
+    public int getSegmentsPerBristle() {
+        return segmentsPerBristle;
+    }
 
-        script.set_planarDistanceFromHandle(bristleParameters.planarDistanceFromHandle);
-        script.set_upperControlPointLength(bristleParameters.upperControlPointLength);
-        script.set_lowerControlPointLength(bristleParameters.lowerControlPointLength);
+    /**
+     * Makes the backend read the bristles again, after the store of the brush was rebuilt with
+     * the same number of bristles. Must not be called while a batch is pending, since the worker
+     * thread reads the store.
+     */
+    public void updateBristles() {
 
-        script.set_brushHorizontalAngle((float) Math.toRadians(brush.getHorizontalAngle()));
-        script.set_bristleHorizontalMaxAngle((float) Math.toRadians(bristleParameters.bristleHorizontalAngle));
+        if (!pendingBatches.isEmpty()) {
+            throw new IllegalStateException("The bristles can not change while a batch is pending");
+        }
 
-        // Computes all positions
-        script.invoke_compute(inBristleIndices);
+        // The cached imprints are of the old bristles
+        computeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                backend.updateBristles();
+                imprintCache.clear();
+            }
+        });
+    }
 
-        // Wait for script to complete before continuing
-        renderScript.finish();
+    /**
+     * Sets whether the imprints of the batches submitted from now on only contain the segments
+     * which touch the paper, which is the slab of world heights between zero and contactHeight.
+     */
+    public void setContactClipping(final boolean contactClipping, final float contactHeight) {
+        this.contactClipping = contactClipping;
+        this.contactHeight = contactHeight;
 
-        outAllocation.copyTo(out);
-        return out;
+        // Runs between the pending batches and the next one, the cached imprints are of the old kind
+        computeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                backend.setContactClipping(contactClipping, contactHeight);
+                imprintCache.clear();
+            }
+        });
     }
 
+    public boolean isContactClipping() {
+        return contactClipping;
+    }
+
+    /**
+     * Computes the whole brush for a snapshot into out, for the brush views which also show the
+     * bristles above the paper, and returns the number of floats written. Every bristle has the
+     * same number of segments, so the indices only have to be written to indices when the quality
+     * has changed since the last call with the same index buffer.
+     */
+    public int computePreview(BrushSnapshot snapshot, FloatBuffer out, IntBuffer indices) {
+        previewKernel.setQuality(numActiveBristles, segmentsPerBristle);
+        previewKernel.compute(snapshot, out, 0, 0, previewKernel.getNumBristles());
+
+        if (previewNumBristles != numActiveBristles
+                || previewSegmentsPerBristle != segmentsPerBristle) {
+            previewNumBristles = numActiveBristles;
+            previewSegmentsPerBristle = segmentsPerBristle;
+
+            for (int x = 0; x < numActiveBristles; x++) {
+                previewBristleLengths[x] = previewKernel.getFloatsPerBristle();
+            }
+
+            previewIndexCount = BristleKernel.writeStripIndices(indices, 0, 0,
+                    previewBristleLengths, 0, numActiveBristles);
+        }
+
+        return previewKernel.getFloatsPerImprint();
+    }
+
+    /** Returns the number of indices of the latest preview */
+    public int getPreviewIndexCount() {
+        return previewIndexCount;
+    }
+
+    /**
+     * Returns the cache of imprints, whose counters show how well it performs. The cache is used
+     * by the worker thread, so the counters are only exact while no batch is pending.
+     */
+    public ImprintCache getImprintCache() {
+        return imprintCache;
+    }
+
+    /**
+     * Computes all imprints in the batch into its vertex buffer, on the worker thread. Imprints
+     * which are in the cache are copied, and the rest are computed in one dispatch.
+     */
+    private void computeImprintBatch(ImprintBatch imprintBatch) {
+
+        FloatBuffer vertexBuffer = imprintBatch.getVertexBuffer();
+        IntBuffer indexBuffer = imprintBatch.getIndexBuffer();
+
+        // Cached imprints of another quality have the wrong shape
+        if (imprintBatch.getNumBristles() != computedNumBristles
+                || imprintBatch.getSegmentsPerBristle() != computedSegmentsPerBristle) {
+            computedNumBristles = imprintBatch.getNumBristles();
+            computedSegmentsPerBristle = imprintBatch.getSegmentsPerBristle();
+            floatsPerImprint = 3 * (computedSegmentsPerBristle + 1) * computedNumBristles;
+
+            backend.setQuality(computedNumBristles, computedSegmentsPerBristle);
+            imprintCache.setFloatsPerImprint(floatsPerImprint);
+        }
+
+        BrushSnapshot[] snapshots = imprintBatch.getSnapshots();
+        int numMissed = 0;
+
+        for (int i = 0; i < imprintBatch.size(); i++) {
+            cachedVertexData[i] = dynamicBristles ? null : imprintCache.get(snapshots[i]);
+
+            if (cachedVertexData[i] == null) {
+                missedSnapshots[numMissed] = snapshots[i];
+                missedImprints[numMissed] = i;
+                numMissed++;
+            }
+        }
+
+        imprintOffsets[0] = 0;
+        int indexCount = 0;
+
+        if (numMissed > 0) {
+            backend.computeVertexData(missedSnapshots, numMissed, vertexBuffer, imprintOffsets,
+                    bristleLengths);
+
+            // The computed imprints follow each other, so their strips are indexed in one go
+            indexCount = BristleKernel.writeStripIndices(indexBuffer, 0, 0, bristleLengths, 0,
+                    numMissed * computedNumBristles);
+        }
+
+        // Cached imprints are placed right after the computed ones, so that the whole batch can be
+        // drawn at once. They are copied before the cache can evict them.
+        int offset = imprintOffsets[numMissed];
+        for (int i = 0; i < imprintBatch.size(); i++) {
+            if (cachedVertexData[i] != null) {
+                ImprintCache.Entry entry = cachedVertexData[i];
+                indexCount = BristleKernel.writeStripIndices(indexBuffer, indexCount,
+                        offset / BristleKernel.FLOATS_PER_VERTEX, entry.getBristleLengths(), 0,
+                        entry.getNumBristles());
+
+                int length = imprintCache.copyTo(entry, snapshots[i], vertexBuffer, offset);
+                imprintBatch.setLocation(i, offset, length);
+                cachedVertexData[i] = null;
+                offset += length;
+            }
+        }
+
+        imprintBatch.setVertexDataLength(offset);
+        imprintBatch.setIndexCount(indexCount);
+        imprintBatch.updateBounds();
+
+        // The whole batch is encoded at once, so that it shares one origin and scale
+        if (imprintBatch.getCompactVertexData() != null) {
+            imprintBatch.getCompactVertexData().encode(vertexBuffer, 0, offset);
+        }
+
+        for (int i = 0; i < numMissed; i++) {
+            int length = imprintOffsets[i + 1] - imprintOffsets[i];
+
+            if (!dynamicBristles) {
+                imprintCache.put(missedSnapshots[i], vertexBuffer, imprintOffsets[i], length,
+                        bristleLengths, i * computedNumBristles, computedNumBristles);
+            }
+
+            imprintBatch.setLocation(missedImprints[i], imprintOffsets[i], length);
+        }
+    }
+
+    /**
+     * Destroys the backend once the pending batches are done, and stops the worker thread. A
+     * running timing of the calibration is waited for, so that its backends can be destroyed.
+     */
     public void destroy() {
-        inAllocationTop.destroy();
-        inAllocationBottom.destroy();
-        outAllocation.destroy();
-        script.destroy();
-        renderScript.destroy();
+
+        if (calibration != null) {
+            if (calibration.timing != null) {
+                getTime(calibration);
+            }
+
+            destroyCalibrationBackends();
+            calibration = null;
+        }
+
+        computeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                backend.destroy();
+            }
+        });
+
+        computeExecutor.shutdown();
+        pendingBatches.clear();
     }
 }
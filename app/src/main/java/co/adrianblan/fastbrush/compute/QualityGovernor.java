@@ -0,0 +1,108 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.util.Log;
+
+/**
+ * Class which adapts the quality of the brush physics to hold a target frame time.
+ *
+ * The quality is a single value between MIN_QUALITY and 1, which scales both the share of the
+ * bristles which are computed and the number of segments per bristle. The frame time is smoothed,
+ * and the quality is only changed once per cooldown period, outside of a band around the target,
+ * so that it degrades and recovers gradually instead of flickering.
+ */
+public class QualityGovernor {
+
+    private static final String TAG = "QualityGovernor";
+
+    public static final float DEFAULT_TARGET_FRAME_TIME = 16f;
+
+    public static final float MIN_QUALITY = 0.25f;
+    private static final int MIN_SEGMENTS_PER_BRISTLE = 2;
+
+    // Quality is lost faster than it is regained
+    private static final float DEGRADE_STEP = 0.1f;
+    private static final float RECOVER_STEP = 0.05f;
+
+    // Frame times within this band around the target keep the current quality
+    private static final float DEGRADE_THRESHOLD = 1.05f;
+    private static final float RECOVER_THRESHOLD = 0.75f;
+
+    private static final float SMOOTHING_FACTOR = 0.2f;
+    private static final int COOLDOWN_FRAMES = 8;
+
+    private final float targetFrameTime;
+    private final int maxSegmentsPerBristle;
+
+    private float quality = 1f;
+    private float averageFrameTime;
+    private int framesSinceChange;
+
+    /**
+     * @param targetFrameTime the frame time to hold (in milliseconds)
+     * @param maxSegmentsPerBristle the number of segments per bristle at full quality
+     */
+    public QualityGovernor(float targetFrameTime, int maxSegmentsPerBristle) {
+        this.targetFrameTime = targetFrameTime;
+        this.maxSegmentsPerBristle = maxSegmentsPerBristle;
+        this.averageFrameTime = targetFrameTime;
+    }
+
+    /**
+     * Takes the compute and draw time of a frame which drew imprints (in milliseconds), and
+     * returns true if the quality changed.
+     */
+    public boolean update(float frameTime) {
+
+        averageFrameTime += (frameTime - averageFrameTime) * SMOOTHING_FACTOR;
+        framesSinceChange++;
+
+        if (framesSinceChange < COOLDOWN_FRAMES) {
+            return false;
+        }
+
+        float newQuality = quality;
+
+        if (averageFrameTime > targetFrameTime * DEGRADE_THRESHOLD) {
+            newQuality = Math.max(MIN_QUALITY, quality - DEGRADE_STEP);
+        } else if (averageFrameTime < targetFrameTime * RECOVER_THRESHOLD) {
+            newQuality = Math.min(1f, quality + RECOVER_STEP);
+        }
+
+        if (newQuality == quality) {
+            return false;
+        }
+
+        int previousSegments = getSegmentsPerBristle();
+        float previousQuality = quality;
+
+        quality = newQuality;
+        framesSinceChange = 0;
+
+        Log.d(TAG, String.format("Frame time %.1f ms (target %.1f ms), quality %.2f -> %.2f, "
+                        + "bristles %.0f%%, segments %d -> %d",
+                averageFrameTime, targetFrameTime, previousQuality, quality,
+                getBristleFraction() * 100, previousSegments, getSegmentsPerBristle()));
+
+        return true;
+    }
+
+    /** Returns the share of the bristles which should be computed */
+    public float getBristleFraction() {
+        return quality;
+    }
+
+    /** Returns the number of segments each bristle should be divided into */
+    public int getSegmentsPerBristle() {
+        int segments = Math.round(maxSegmentsPerBristle * quality);
+        return Math.max(Math.min(MIN_SEGMENTS_PER_BRISTLE, maxSegmentsPerBristle),
+                Math.min(maxSegmentsPerBristle, segments));
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    public float getAverageFrameTime() {
+        return averageFrameTime;
+    }
+}
@@ -0,0 +1,177 @@
+package co.adrianblan.fastbrush.compute;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+/**
+ * Reference implementation of the bristle kernel, as a direct port of the original physics.rs.
+ *
+ * Every value is recomputed for each bristle, which makes it slow but easy to verify. It is kept
+ * to validate and benchmark the optimized kernels against.
+ */
+public class ReferenceBristleKernel {
+
+    private static final float BRISTLE_BASE_LENGTH = 1.0f;
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    private final float[] bristlePositionTop;
+    private final float[] bristlePositionBottom;
+
+    private final int numBristles;
+    private final int segmentsPerBristle;
+    private final float brushRadiusUpper;
+
+    /**
+     * @param bristleStore the bristles of the brush, which are copied into the original xyz layout
+     * @param segmentsPerBristle the number of line segments each bristle is divided into
+     * @param brushRadiusUpper the radius of the brush at the top of the bristles
+     */
+    public ReferenceBristleKernel(BristleStore bristleStore, int segmentsPerBristle,
+                                  float brushRadiusUpper) {
+        this.numBristles = bristleStore.size();
+        this.segmentsPerBristle = segmentsPerBristle;
+        this.brushRadiusUpper = brushRadiusUpper;
+
+        bristlePositionTop = new float[3 * numBristles];
+        bristlePositionBottom = new float[3 * numBristles];
+
+        for (int i = 0; i < numBristles; i++) {
+            bristlePositionTop[i * 3] = bristleStore.topX[i];
+            bristlePositionTop[i * 3 + 1] = bristleStore.topY[i];
+            bristlePositionTop[i * 3 + 2] = bristleStore.topZ[i];
+
+            bristlePositionBottom[i * 3] = bristleStore.bottomX[i];
+            bristlePositionBottom[i * 3 + 1] = bristleStore.bottomY[i];
+            bristlePositionBottom[i * 3 + 2] = bristleStore.bottomZ[i];
+        }
+    }
+
+    public int getNumBristles() {
+        return numBristles;
+    }
+
+    public int getSegmentsPerBristle() {
+        return segmentsPerBristle;
+    }
+
+    /** Returns the number of floats each bristle writes to the output */
+    public int getFloatsPerBristle() {
+        return 2 * BristleKernel.FLOATS_PER_VERTEX * segmentsPerBristle;
+    }
+
+    /** Returns the number of floats a whole brush imprint writes to the output */
+    public int getFloatsPerImprint() {
+        return numBristles * getFloatsPerBristle();
+    }
+
+    /**
+     * Computes the vertex positions of the bristles in the range [start, end) for a brush snapshot,
+     * with the imprint starting at outOffset in the output.
+     */
+    public void compute(BrushSnapshot snapshot, FloatBuffer out, int outOffset, int start, int end) {
+
+        // A vector which points to the orthogonal angle to where the brush is pointing
+        float brushOrthogonalAngleX = (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+        float brushOrthogonalAngleY = (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+
+        for (int x = start; x < end; x++) {
+
+            int outIndex = outOffset + x * getFloatsPerBristle();
+
+            float topX = bristlePositionTop[x * 3] + snapshot.positionX;
+            float topY = bristlePositionTop[x * 3 + 1] + snapshot.positionY;
+            float topZ = bristlePositionTop[x * 3 + 2] + snapshot.positionZ;
+
+            float bottomX = bristlePositionBottom[x * 3] + snapshot.positionX;
+            float bottomY = bristlePositionBottom[x * 3 + 1] + snapshot.positionY;
+            float bottomZ = bristlePositionBottom[x * 3 + 2] + snapshot.positionZ;
+
+            float distanceX = topX - bottomX;
+            float distanceY = topY - bottomY;
+            float distanceZ = topZ - bottomZ;
+            float bristleLength = (float) Math.sqrt(distanceX * distanceX
+                    + distanceY * distanceY + distanceZ * distanceZ);
+
+            // A vector which points to the bristle position
+            float bristleVectorX = bristlePositionTop[x * 3] / brushRadiusUpper;
+            float bristleVectorY = bristlePositionTop[x * 3 + 1] / brushRadiusUpper;
+            float bristleVectorLength = (float) Math.sqrt(bristleVectorX * bristleVectorX
+                    + bristleVectorY * bristleVectorY);
+
+            if (bristleVectorLength > 0) {
+                bristleVectorX /= bristleVectorLength;
+                bristleVectorY /= bristleVectorLength;
+            }
+
+            float bristleShiftMagnitude = brushOrthogonalAngleX * bristleVectorX
+                    + brushOrthogonalAngleY * bristleVectorY;
+
+            float bristleAngleShift = bristleShiftMagnitude * snapshot.bristleHorizontalMaxAngle;
+
+            float sinBrushHorizontalValue = (float) Math.sin(snapshot.horizontalAngle + bristleAngleShift);
+            float cosBrushHorizontalValue = (float) Math.cos(snapshot.horizontalAngle + bristleAngleShift);
+
+            // Takes positive bottom positions
+            float bottom = Math.max(bottomZ, 0);
+
+            float interpolatedX = topX;
+            float interpolatedY = topY;
+            float interpolatedZ = topZ;
+
+            for (int i = 1; i <= segmentsPerBristle; i++) {
+
+                putVertex(out, outIndex, interpolatedX, interpolatedY, interpolatedZ);
+                outIndex += 3;
+
+                float scale = ((float) i / segmentsPerBristle) * (bristleLength / BRISTLE_BASE_LENGTH);
+                float firstFactor = (1 - scale) * (1 - scale) * (1 - scale);
+                float secondFactor = 3 * (1 - scale) * (1 - scale) * scale;
+                float thirdFactor = 3 * (1 - scale) * scale * scale;
+                float fourthFactor = scale * scale * scale;
+
+                // We do not perform any "rotation", we simply choose the extended bristles from their angle
+                interpolatedX =
+                        firstFactor
+                            * topX
+                        + secondFactor
+                            * (topX - (topX - bottomX) * snapshot.upperControlPointLength)
+                        + thirdFactor
+                            * (bottomX + cosBrushHorizontalValue
+                                * (snapshot.planarDistanceFromHandle - snapshot.lowerControlPointLength))
+                        + fourthFactor
+                            * (bottomX + cosBrushHorizontalValue * snapshot.planarDistanceFromHandle);
+
+                interpolatedY =
+                        firstFactor
+                            * topY
+                        + secondFactor
+                            * (topY - (topY - bottomY) * snapshot.upperControlPointLength)
+                        + thirdFactor
+                            * (bottomY + sinBrushHorizontalValue
+                                * (snapshot.planarDistanceFromHandle - snapshot.lowerControlPointLength))
+                        + fourthFactor
+                            * (bottomY + sinBrushHorizontalValue * snapshot.planarDistanceFromHandle);
+
+                interpolatedZ =
+                        firstFactor
+                            * topZ
+                        + secondFactor
+                            * (topZ - (topZ - bottom) * snapshot.upperControlPointLength)
+                        + thirdFactor
+                            * bottom
+                        + fourthFactor
+                            * bottom;
+
+                putVertex(out, outIndex, interpolatedX, interpolatedY, interpolatedZ);
+                outIndex += 3;
+            }
+        }
+    }
+
+    private static void putVertex(FloatBuffer out, int index, float x, float y, float z) {
+        out.put(index, x);
+        out.put(index + 1, y);
+        out.put(index + 2, z);
+    }
+}
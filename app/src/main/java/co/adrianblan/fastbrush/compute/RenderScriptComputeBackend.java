@@ -0,0 +1,257 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.content.Context;
+import android.support.v8.renderscript.Allocation;
+import android.support.v8.renderscript.Element;
+import android.support.v8.renderscript.RenderScript;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.ScriptC_physics;
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+/**
+ * Class which computes physics with RenderScript
+ *
+ * The support library can not share an allocation with a Java buffer, so the output is copied
+ * once from the allocation into the vertex buffer through a staging array.
+ */
+public class RenderScriptComputeBackend implements BristleComputeBackend {
+
+    // Must match the imprint parameter layout in physics.rs
+    private static final int IMPRINT_PARAMETER_STRIDE = 22;
+
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    private RenderScript renderScript;
+    private ScriptC_physics script;
+
+    private Allocation inBristleIndices;
+    private Allocation inImprintParameters;
+    private Allocation inAllocationTopX;
+    private Allocation inAllocationTopY;
+    private Allocation inAllocationTopZ;
+    private Allocation inAllocationBottomX;
+    private Allocation inAllocationBottomY;
+    private Allocation inAllocationBottomZ;
+    private Allocation inAllocationLength;
+    private Allocation inAllocationDirectionX;
+    private Allocation inAllocationDirectionY;
+    private Allocation inBristleOffsets;
+    private Allocation outAllocation;
+    private Allocation outBristleLengths;
+
+    // Only used to lay out the imprints, which is done in Java before the launch
+    private BristleKernel layoutKernel;
+    private BristleStore bristleStore;
+
+    private int maxImprints;
+    private int numBristles;
+
+    private float[] imprintParameters;
+    private int[] bristleOffsets;
+    private float[] out;
+
+    public RenderScriptComputeBackend(Context context, BristleStore bristleStore, int numSegments,
+                                      int maxImprints) {
+
+        this.bristleStore = bristleStore;
+        this.numBristles = bristleStore.size();
+        this.maxImprints = maxImprints;
+
+        layoutKernel = new BristleKernel(bristleStore, numSegments);
+
+        // The allocations are sized for full quality
+        int maxFloatsPerImprint = layoutKernel.getFloatsPerImprint();
+
+        renderScript = RenderScript.create(context);
+        script = new ScriptC_physics(renderScript);
+
+        script.set_script(script);
+        setQuality(numBristles, numSegments);
+
+        // The indices only give the kernel its dimensions, one per bristle of every imprint
+        int[] bristleIndices = new int[maxImprints * numBristles];
+        for ( int i = 0; i < bristleIndices.length; i++) {
+            bristleIndices[i] = i * 3;
+        }
+
+        inBristleIndices = Allocation.createSized(renderScript, Element.I32(renderScript), maxImprints * numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+        inBristleIndices.copyFrom(bristleIndices);
+
+        imprintParameters = new float[IMPRINT_PARAMETER_STRIDE * maxImprints];
+        inImprintParameters = Allocation.createSized(renderScript, Element.F32(renderScript), IMPRINT_PARAMETER_STRIDE * maxImprints, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+
+        // Every value of the bristles is uploaded once as its own plane, they never change for the same bristles
+        inAllocationTopX = createBristlePlane(bristleStore.topX, numBristles);
+        inAllocationTopY = createBristlePlane(bristleStore.topY, numBristles);
+        inAllocationTopZ = createBristlePlane(bristleStore.topZ, numBristles);
+        inAllocationBottomX = createBristlePlane(bristleStore.bottomX, numBristles);
+        inAllocationBottomY = createBristlePlane(bristleStore.bottomY, numBristles);
+        inAllocationBottomZ = createBristlePlane(bristleStore.bottomZ, numBristles);
+        inAllocationLength = createBristlePlane(bristleStore.length, numBristles);
+        inAllocationDirectionX = createBristlePlane(bristleStore.directionX, numBristles);
+        inAllocationDirectionY = createBristlePlane(bristleStore.directionY, numBristles);
+
+        bristleOffsets = new int[maxImprints * numBristles + 1];
+        inBristleOffsets = Allocation.createSized(renderScript, Element.I32(renderScript), maxImprints * numBristles + 1, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+
+        outAllocation = Allocation.createSized(renderScript, Element.F32(renderScript), maxImprints * maxFloatsPerImprint, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+        out = new float[maxImprints * maxFloatsPerImprint];
+
+        outBristleLengths = Allocation.createSized(renderScript, Element.I32(renderScript), maxImprints * numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+
+        script.bind_inImprintParameters(inImprintParameters);
+        script.bind_inBristleTopX(inAllocationTopX);
+        script.bind_inBristleTopY(inAllocationTopY);
+        script.bind_inBristleTopZ(inAllocationTopZ);
+        script.bind_inBristleBottomX(inAllocationBottomX);
+        script.bind_inBristleBottomY(inAllocationBottomY);
+        script.bind_inBristleBottomZ(inAllocationBottomZ);
+        script.bind_inBristleLength(inAllocationLength);
+        script.bind_inBristleDirectionX(inAllocationDirectionX);
+        script.bind_inBristleDirectionY(inAllocationDirectionY);
+        script.bind_inBristleOffsets(inBristleOffsets);
+        script.bind_outBristlePosition(outAllocation);
+        script.bind_outBristleLengths(outBristleLengths);
+    }
+
+    /** Creates an allocation with the first numBristles values of a plane in the bristle store */
+    private Allocation createBristlePlane(float[] values, int numBristles) {
+        Allocation allocation = Allocation.createSized(renderScript, Element.F32(renderScript), numBristles, Allocation.USAGE_SCRIPT | Allocation.USAGE_SHARED);
+        allocation.copy1DRangeFrom(0, numBristles, values);
+        return allocation;
+    }
+
+    @Override
+    public void updateBristles() {
+        inAllocationTopX.copy1DRangeFrom(0, numBristles, bristleStore.topX);
+        inAllocationTopY.copy1DRangeFrom(0, numBristles, bristleStore.topY);
+        inAllocationTopZ.copy1DRangeFrom(0, numBristles, bristleStore.topZ);
+        inAllocationBottomX.copy1DRangeFrom(0, numBristles, bristleStore.bottomX);
+        inAllocationBottomY.copy1DRangeFrom(0, numBristles, bristleStore.bottomY);
+        inAllocationBottomZ.copy1DRangeFrom(0, numBristles, bristleStore.bottomZ);
+        inAllocationLength.copy1DRangeFrom(0, numBristles, bristleStore.length);
+        inAllocationDirectionX.copy1DRangeFrom(0, numBristles, bristleStore.directionX);
+        inAllocationDirectionY.copy1DRangeFrom(0, numBristles, bristleStore.directionY);
+    }
+
+    @Override
+    public void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer vertexBuffer,
+                                  int[] imprintOffsets, int[] bristleLengths) {
+
+        if (numSnapshots > maxImprints) {
+            throw new IllegalArgumentException("Batch of " + numSnapshots
+                    + " imprints exceeds the maximum of " + maxImprints);
+        }
+
+        //Set all parameters for compute script
+        for (int i = 0; i < numSnapshots; i++) {
+            BrushSnapshot snapshot = snapshots[i];
+            int index = i * IMPRINT_PARAMETER_STRIDE;
+
+            imprintParameters[index] = snapshot.positionX;
+            imprintParameters[index + 1] = snapshot.positionY;
+            imprintParameters[index + 2] = snapshot.positionZ;
+            imprintParameters[index + 3] = snapshot.planarDistanceFromHandle;
+            imprintParameters[index + 4] = snapshot.upperControlPointLength;
+            imprintParameters[index + 5] = snapshot.lowerControlPointLength;
+            imprintParameters[index + 6] = snapshot.horizontalAngle;
+            imprintParameters[index + 7] = snapshot.bristleHorizontalMaxAngle;
+
+            // The orthogonal angle is the same for all bristles, so it is computed once per imprint
+            imprintParameters[index + 8] = (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+            imprintParameters[index + 9] = (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+
+            // The rows of the model matrix, for the contact clipping and the world space output
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 4; column++) {
+                    imprintParameters[index + 10 + row * 4 + column] = snapshot.modelMatrix[column * 4 + row];
+                }
+            }
+        }
+
+        inImprintParameters.copy1DRangeFrom(0, numSnapshots * IMPRINT_PARAMETER_STRIDE, imprintParameters);
+
+        // Every bristle gets its own number of segments, so the kernel is told where to write each one
+        layoutKernel.layoutImprints(snapshots, numSnapshots, bristleOffsets, imprintOffsets);
+        inBristleOffsets.copy1DRangeFrom(0, numSnapshots * layoutKernel.getNumBristles() + 1, bristleOffsets);
+
+        int numFloats = imprintOffsets[numSnapshots];
+
+        // Computes all positions of all imprints in one launch
+        script.invoke_compute(inBristleIndices, numSnapshots);
+
+        // Wait for script to complete before continuing
+        renderScript.finish();
+
+        outAllocation.copy1DRangeTo(0, numFloats, out);
+
+        int numBristleValues = numSnapshots * layoutKernel.getNumBristles();
+        outBristleLengths.copy1DRangeTo(0, numBristleValues, bristleLengths);
+
+        FloatBuffer output = vertexBuffer.duplicate();
+        output.position(0);
+
+        if (!layoutKernel.isContactClipping()) {
+            output.put(out, 0, numFloats);
+            return;
+        }
+
+        // The clipped bristles are moved together while they are copied to the vertex buffer
+
+        int index = 0;
+        for (int i = 0; i < numSnapshots; i++) {
+            imprintOffsets[i] = output.position();
+
+            for (int x = 0; x < layoutKernel.getNumBristles(); x++, index++) {
+                output.put(out, bristleOffsets[index], bristleLengths[index]);
+            }
+        }
+
+        imprintOffsets[numSnapshots] = output.position();
+    }
+
+    @Override
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+
+        // The segment count only limits the layout, the kernel reads it from the offsets
+        layoutKernel.setQuality(numActiveBristles, segmentsPerBristle);
+
+        script.set_NUM_BRISTLES(numActiveBristles);
+        script.set_BRISTLE_STRIDE((float) numBristles / numActiveBristles);
+    }
+
+    @Override
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        layoutKernel.setContactClipping(contactClipping, contactHeight);
+
+        script.set_CONTACT_CLIPPING(contactClipping ? 1 : 0);
+        script.set_CONTACT_HEIGHT(contactHeight);
+    }
+
+    @Override
+    public void setWorldSpace(boolean worldSpace) {
+        script.set_WORLD_SPACE(worldSpace ? 1 : 0);
+    }
+
+    @Override
+    public void destroy() {
+        inBristleIndices.destroy();
+        inImprintParameters.destroy();
+        inAllocationTopX.destroy();
+        inAllocationTopY.destroy();
+        inAllocationTopZ.destroy();
+        inAllocationBottomX.destroy();
+        inAllocationBottomY.destroy();
+        inAllocationBottomZ.destroy();
+        inAllocationLength.destroy();
+        inAllocationDirectionX.destroy();
+        inAllocationDirectionY.destroy();
+        inBristleOffsets.destroy();
+        outAllocation.destroy();
+        outBristleLengths.destroy();
+        script.destroy();
+        renderScript.destroy();
+    }
+}
@@ -0,0 +1,595 @@
+package co.adrianblan.fastbrush.compute;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+import co.adrianblan.fastbrush.utils.GLhelper;
+
+/**
+ * Class which computes physics with GLES 3.0 transform feedback, in place of RenderScript.
+ *
+ * Every vertex of the laid out imprints is one point of a draw with the rasterizer discarded, and
+ * the vertex shader evaluates the shared curve function of BristleCurveReference for it. The
+ * positions and world heights are captured into two GL buffers, which are mapped once the draw
+ * is done and read into the vertex buffer, where the strips are clipped to the paper.
+ *
+ * Mapping the buffers waits for the GPU and copies every batch back to the CPU, which is the same
+ * kind of sync that makes RenderScript slow, since the imprints are still drawn from the vertex
+ * buffer. The backend can be chosen in the settings, but is not calibrated as the automatic one.
+ *
+ * The compute runs on the worker thread of PhysicsCompute, so the backend makes its own context,
+ * which shares the objects of the context it is created on. The program, the bristles and the
+ * buffers are created on the render thread, so that a device without support falls back before
+ * the first batch, and only the vertex array and the transform feedback object, which can not be
+ * shared, are created on the worker thread.
+ */
+public class TransformFeedbackComputeBackend implements BristleComputeBackend {
+
+    // The imprint, the bristle, the index along the bristle and the segments of every vertex
+    public static final int INTS_PER_VERTEX = 4;
+
+    // The vectors of the imprint parameters, the same values as in physics.rs padded to vectors
+    private static final int VECTORS_PER_IMPRINT = 6;
+    private static final int FLOATS_PER_IMPRINT = VECTORS_PER_IMPRINT * 4;
+
+    // The bristles are stored as three float texels each, in rows of a texture
+    private static final int TEXELS_PER_BRISTLE = 3;
+    private static final int BRISTLES_PER_ROW = 256;
+
+    private static final int FLOAT_SIZE = 4;
+    private static final int INT_SIZE = 4;
+
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    private static final String FRAGMENT_SHADER_CODE =
+            "#version 300 es\n" +
+            "precision mediump float;" +
+            "out vec4 fragColor;" +
+            "void main() {" +
+            "  fragColor = vec4(0.0);" +
+            "}";
+
+    private static final String[] FEEDBACK_VARYINGS = {"vPosition", "vHeight"};
+
+    private EGLDisplay eglDisplay;
+    private EGLContext eglContext;
+    private EGLSurface eglSurface;
+
+    private int mProgram;
+    private int mImprintsHandle;
+    private int mWorldSpaceHandle;
+    private int mBristlesHandle;
+    private int mVertexHandle;
+
+    private int[] bristleTexture = new int[1];
+    private int[] vertexBufferObject = new int[1];
+    private int[] feedbackBufferObjects = new int[2];
+
+    // Created on the worker thread, since container objects are not shared between contexts
+    private int[] vertexArrayObject;
+    private int[] transformFeedbackObject;
+
+    // Only used to lay out the imprints, which is done in Java before the draw
+    private BristleKernel layoutKernel;
+    private BristleStore bristleStore;
+
+    private int maxImprints;
+    private int maxVertices;
+
+    private float[] imprintParameters;
+    private int[] bristleOffsets;
+    private IntBuffer vertices;
+
+    private boolean worldSpace;
+    private boolean contactClipping;
+    private float contactHeight;
+
+    /**
+     * Creates the backend, which must be done on the render thread with its context current.
+     *
+     * @throws IllegalStateException if a shared context or the program can not be created
+     */
+    public TransformFeedbackComputeBackend(BristleStore bristleStore, int numSegments,
+                                           int maxImprints) {
+
+        int numBristles = bristleStore.size();
+        this.bristleStore = bristleStore;
+        this.maxImprints = maxImprints;
+
+        layoutKernel = new BristleKernel(bristleStore, numSegments);
+        maxVertices = maxImprints * layoutKernel.getFloatsPerImprint()
+                / BristleKernel.FLOATS_PER_VERTEX;
+
+        imprintParameters = new float[FLOATS_PER_IMPRINT * maxImprints];
+        bristleOffsets = new int[maxImprints * numBristles + 1];
+        vertices = GLhelper.initIntBuffer(maxVertices * INTS_PER_VERTEX);
+
+        createSharedContext();
+
+        mProgram = GLES30.glCreateProgram();
+        GLhelper.loadShaders(mProgram, createVertexShaderCode(maxImprints), FRAGMENT_SHADER_CODE,
+                FEEDBACK_VARYINGS);
+
+        int[] linkStatus = new int[1];
+        GLES30.glGetProgramiv(mProgram, GLES30.GL_LINK_STATUS, linkStatus, 0);
+
+        if (linkStatus[0] == 0) {
+            String log = GLES30.glGetProgramInfoLog(mProgram);
+            GLES30.glDeleteProgram(mProgram);
+            EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            throw new IllegalStateException("Transform feedback program failed to link: " + log);
+        }
+
+        mImprintsHandle = GLES30.glGetUniformLocation(mProgram, "uImprints");
+        mWorldSpaceHandle = GLES30.glGetUniformLocation(mProgram, "uWorldSpace");
+        mBristlesHandle = GLES30.glGetUniformLocation(mProgram, "uBristles");
+        mVertexHandle = GLES30.glGetAttribLocation(mProgram, "aVertex");
+
+        uploadBristles(bristleStore, numBristles);
+
+        GLES30.glGenBuffers(1, vertexBufferObject, 0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferObject[0]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, maxVertices * INTS_PER_VERTEX * INT_SIZE,
+                null, GLES30.GL_STREAM_DRAW);
+
+        // The positions and the heights are captured into a buffer each
+        GLES30.glGenBuffers(2, feedbackBufferObjects, 0);
+        GLES30.glBindBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, feedbackBufferObjects[0]);
+        GLES30.glBufferData(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER,
+                maxVertices * BristleKernel.FLOATS_PER_VERTEX * FLOAT_SIZE, null,
+                GLES30.GL_STREAM_READ);
+        GLES30.glBindBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, feedbackBufferObjects[1]);
+        GLES30.glBufferData(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, maxVertices * FLOAT_SIZE, null,
+                GLES30.GL_STREAM_READ);
+
+        GLES30.glBindBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLhelper.checkGlError("TransformFeedbackComputeBackend");
+
+        // The objects have to be complete before the shared context uses them
+        GLES30.glFinish();
+    }
+
+    private static String createVertexShaderCode(int maxImprints) {
+        return "#version 300 es\n" +
+                "uniform highp sampler2D uBristles;" +
+                "uniform vec4 uImprints[" + maxImprints * VECTORS_PER_IMPRINT + "];" +
+                "uniform bool uWorldSpace;" +
+                // imprint, bristle, index along the bristle, segments of the bristle
+                "in ivec4 aVertex;" +
+                "out vec3 vPosition;" +
+                "out float vHeight;" +
+                BristleCurveReference.CURVE_FUNCTION +
+                "void main() {" +
+                "  ivec2 texel = ivec2(" + TEXELS_PER_BRISTLE + " * (aVertex.y % " + BRISTLES_PER_ROW + ")," +
+                "                      aVertex.y / " + BRISTLES_PER_ROW + ");" +
+                "  vec4 top = texelFetch(uBristles, texel, 0);" +
+                "  vec4 bottom = texelFetch(uBristles, texel + ivec2(1, 0), 0);" +
+                "  vec4 direction = texelFetch(uBristles, texel + ivec2(2, 0), 0);" +
+                "  int imprint = aVertex.x * " + VECTORS_PER_IMPRINT + ";" +
+                "  vec4 position = uImprints[imprint];" +
+                "  vec4 shape = uImprints[imprint + 1];" +
+                "  vec4 spread = uImprints[imprint + 2];" +
+                "  vec3 point = bristleCurve(top.xyz + position.xyz, bottom.xyz + position.xyz," +
+                "      vec3(top.w, bottom.w, direction.x), vec4(position.w, shape.xyz)," +
+                "      vec3(shape.w, spread.xy), float(aVertex.z) / float(aVertex.w));" +
+                "  vec4 homogeneous = vec4(point, 1.0);" +
+                "  vHeight = dot(uImprints[imprint + 5], homogeneous);" +
+                "  vPosition = uWorldSpace ? vec3(dot(uImprints[imprint + 3], homogeneous)," +
+                "      dot(uImprints[imprint + 4], homogeneous), vHeight) : point;" +
+                "  gl_Position = vec4(0.0);" +
+                "}";
+    }
+
+    /** Creates a context which shares the objects of the current one, with a surface of its own */
+    private void createSharedContext() {
+        eglDisplay = EGL14.eglGetCurrentDisplay();
+        EGLContext renderContext = EGL14.eglGetCurrentContext();
+
+        if (renderContext == null || renderContext.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new IllegalStateException("No current context to share");
+        }
+
+        // The same config as the render context, so that the two are compatible
+        int[] configId = new int[1];
+        EGL14.eglQueryContext(eglDisplay, renderContext, EGL14.EGL_CONFIG_ID, configId, 0);
+
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        int[] configAttributes = {EGL14.EGL_CONFIG_ID, configId[0], EGL14.EGL_NONE};
+
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttributes, 0, configs, 0, 1, numConfigs, 0)
+                || numConfigs[0] == 0) {
+            throw new IllegalStateException("No config for shared context: " + EGL14.eglGetError());
+        }
+
+        int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 3, EGL14.EGL_NONE};
+        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], renderContext,
+                contextAttributes, 0);
+
+        if (eglContext == null || eglContext.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new IllegalStateException("Failed to create shared context: " + EGL14.eglGetError());
+        }
+
+        // Nothing is drawn, the surface only lets the context be made current
+        int[] surfaceAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        eglSurface = EGL14.eglCreatePbufferSurface(eglDisplay, configs[0], surfaceAttributes, 0);
+
+        if (eglSurface == null || eglSurface.equals(EGL14.EGL_NO_SURFACE)) {
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            throw new IllegalStateException("Failed to create pbuffer surface: " + EGL14.eglGetError());
+        }
+    }
+
+    /** Uploads the values of the bristles which never change to a float texture */
+    private void uploadBristles(BristleStore bristleStore, int numBristles) {
+        int width = TEXELS_PER_BRISTLE * Math.min(numBristles, BRISTLES_PER_ROW);
+        int height = (numBristles + BRISTLES_PER_ROW - 1) / BRISTLES_PER_ROW;
+
+        FloatBuffer bristles = GLhelper.initFloatBuffer(width * height * 4);
+        for (int i = 0; i < numBristles; i++) {
+            bristles.position((i / BRISTLES_PER_ROW * width + i % BRISTLES_PER_ROW * TEXELS_PER_BRISTLE) * 4);
+            bristles.put(bristleStore.topX[i]).put(bristleStore.topY[i]).put(bristleStore.topZ[i]);
+            bristles.put(bristleStore.length[i]);
+            bristles.put(bristleStore.bottomX[i]).put(bristleStore.bottomY[i]).put(bristleStore.bottomZ[i]);
+            bristles.put(bristleStore.directionX[i]);
+            bristles.put(bristleStore.directionY[i]).put(0).put(0).put(0);
+        }
+        bristles.position(0);
+
+        GLES30.glGenTextures(1, bristleTexture, 0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, bristleTexture[0]);
+
+        // Float textures can not be filtered, and are only read with texelFetch
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexParameteri(GLES30.GL_TEXTURE_2D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+        GLES30.glTexImage2D(GLES30.GL_TEXTURE_2D, 0, GLES30.GL_RGBA32F, width, height, 0,
+                GLES30.GL_RGBA, GLES30.GL_FLOAT, bristles);
+
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, 0);
+    }
+
+    /** Makes the shared context current on the calling thread */
+    private void makeCurrent() {
+        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            throw new IllegalStateException("Failed to make shared context current: "
+                    + EGL14.eglGetError());
+        }
+    }
+
+    /** Releases the shared context from the calling thread */
+    private void releaseContext() {
+        EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT);
+    }
+
+    /** Creates the objects which only the shared context can use, on the worker thread */
+    private void createContainerObjects() {
+        vertexArrayObject = new int[1];
+        GLES30.glGenVertexArrays(1, vertexArrayObject, 0);
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferObject[0]);
+        GLES30.glEnableVertexAttribArray(mVertexHandle);
+        GLES30.glVertexAttribIPointer(mVertexHandle, INTS_PER_VERTEX, GLES30.GL_INT,
+                INTS_PER_VERTEX * INT_SIZE, 0);
+
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+
+        transformFeedbackObject = new int[1];
+        GLES30.glGenTransformFeedbacks(1, transformFeedbackObject, 0);
+        GLES30.glBindTransformFeedback(GLES30.GL_TRANSFORM_FEEDBACK, transformFeedbackObject[0]);
+        GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0, feedbackBufferObjects[0]);
+        GLES30.glBindBufferBase(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 1, feedbackBufferObjects[1]);
+        GLES30.glBindTransformFeedback(GLES30.GL_TRANSFORM_FEEDBACK, 0);
+    }
+
+    @Override
+    public void computeVertexData(BrushSnapshot[] snapshots, int numSnapshots, FloatBuffer vertexBuffer,
+                                  int[] imprintOffsets, int[] bristleLengths) {
+
+        if (numSnapshots > maxImprints) {
+            throw new IllegalArgumentException("Batch of " + numSnapshots
+                    + " imprints exceeds the maximum of " + maxImprints);
+        }
+
+        makeCurrent();
+
+        if (vertexArrayObject == null) {
+            createContainerObjects();
+        }
+
+        layoutKernel.layoutImprints(snapshots, numSnapshots, bristleOffsets, imprintOffsets);
+        int numVertices = writeVertices(layoutKernel, numSnapshots, bristleOffsets, vertices);
+
+        for (int i = 0; i < numSnapshots; i++) {
+            BrushSnapshot snapshot = snapshots[i];
+            int index = i * FLOATS_PER_IMPRINT;
+
+            imprintParameters[index] = snapshot.positionX;
+            imprintParameters[index + 1] = snapshot.positionY;
+            imprintParameters[index + 2] = snapshot.positionZ;
+            imprintParameters[index + 3] = snapshot.planarDistanceFromHandle;
+            imprintParameters[index + 4] = snapshot.upperControlPointLength;
+            imprintParameters[index + 5] = snapshot.lowerControlPointLength;
+            imprintParameters[index + 6] = snapshot.horizontalAngle;
+            imprintParameters[index + 7] = snapshot.bristleHorizontalMaxAngle;
+
+            // The orthogonal angle is the same for all bristles, so it is computed once per imprint
+            imprintParameters[index + 8] = (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+            imprintParameters[index + 9] = (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET);
+
+            // The rows of the model matrix, for the world space output and the world height
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 4; column++) {
+                    imprintParameters[index + 12 + row * 4 + column] = snapshot.modelMatrix[column * 4 + row];
+                }
+            }
+        }
+
+        GLES30.glUseProgram(mProgram);
+        GLES30.glUniform4fv(mImprintsHandle, numSnapshots * VECTORS_PER_IMPRINT, imprintParameters, 0);
+        GLES30.glUniform1i(mWorldSpaceHandle, worldSpace ? 1 : 0);
+        GLES30.glUniform1i(mBristlesHandle, 0);
+
+        GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+        GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, bristleTexture[0]);
+
+        vertices.position(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, vertexBufferObject[0]);
+        GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0, numVertices * INTS_PER_VERTEX * INT_SIZE,
+                vertices);
+
+        // Every vertex of every imprint is one point, and nothing is rasterized
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+        GLES30.glBindTransformFeedback(GLES30.GL_TRANSFORM_FEEDBACK, transformFeedbackObject[0]);
+        GLES30.glEnable(GLES30.GL_RASTERIZER_DISCARD);
+
+        GLES30.glBeginTransformFeedback(GLES30.GL_POINTS);
+        GLES30.glDrawArrays(GLES30.GL_POINTS, 0, numVertices);
+        GLES30.glEndTransformFeedback();
+
+        GLES30.glDisable(GLES30.GL_RASTERIZER_DISCARD);
+        GLES30.glBindTransformFeedback(GLES30.GL_TRANSFORM_FEEDBACK, 0);
+        GLES30.glBindVertexArray(0);
+
+        // Mapping waits for the draw, which is the only sync of the compute
+        GLES30.glBindBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, feedbackBufferObjects[0]);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, feedbackBufferObjects[1]);
+
+        FloatBuffer positions = mapFloats(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER,
+                numVertices * BristleKernel.FLOATS_PER_VERTEX);
+        FloatBuffer heights = mapFloats(GLES30.GL_ARRAY_BUFFER, numVertices);
+
+        assemble(positions, heights, numSnapshots, layoutKernel.getNumBristles(), bristleOffsets,
+                contactClipping, contactHeight, vertexBuffer, imprintOffsets, bristleLengths);
+
+        GLES30.glUnmapBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER);
+        GLES30.glUnmapBuffer(GLES30.GL_ARRAY_BUFFER);
+        GLES30.glBindBuffer(GLES30.GL_TRANSFORM_FEEDBACK_BUFFER, 0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLhelper.checkGlError("computeVertexData");
+    }
+
+    private static FloatBuffer mapFloats(int target, int numFloats) {
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(target, 0, numFloats * FLOAT_SIZE,
+                GLES30.GL_MAP_READ_BIT);
+
+        if (mapped == null) {
+            throw new IllegalStateException("Failed to map transform feedback buffer");
+        }
+
+        return mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Writes the attributes of every vertex of the laid out imprints to vertices, which are the
+     * imprint, the bristle in the store, the index along the bristle and the number of segments
+     * of the bristle. Returns the number of vertices.
+     */
+    static int writeVertices(BristleKernel layoutKernel, int numSnapshots, int[] bristleOffsets,
+                             IntBuffer vertices) {
+        int index = 0;
+        int outIndex = 0;
+
+        for (int i = 0; i < numSnapshots; i++) {
+            for (int x = 0; x < layoutKernel.getNumBristles(); x++, index++) {
+                int bristle = layoutKernel.getBristle(x);
+                int segments = (bristleOffsets[index + 1] - bristleOffsets[index])
+                        / BristleKernel.FLOATS_PER_VERTEX - 1;
+
+                for (int v = 0; v <= segments; v++) {
+                    vertices.put(outIndex++, i);
+                    vertices.put(outIndex++, bristle);
+                    vertices.put(outIndex++, v);
+                    vertices.put(outIndex++, segments);
+                }
+            }
+        }
+
+        return outIndex / INTS_PER_VERTEX;
+    }
+
+    /**
+     * Reads the captured vertices of the laid out imprints into out, from index zero, and writes
+     * the offsets of the imprints and the lengths of the strips. With contact clipping, only the
+     * parts of the strips between the paper and the contact height are written, with the same
+     * rules as the contact clipping of BristleKernel, and the imprints are compacted.
+     */
+    static void assemble(FloatBuffer positions, FloatBuffer heights, int numSnapshots,
+                         int numBristles, int[] bristleOffsets, boolean contactClipping,
+                         float contactHeight, FloatBuffer out, int[] imprintOffsets, int[] bristleLengths) {
+
+        int numStrips = numSnapshots * numBristles;
+
+        if (!contactClipping) {
+            FloatBuffer output = out.duplicate();
+            output.position(0);
+
+            positions.position(0);
+            positions.limit(bristleOffsets[numStrips]);
+            output.put(positions);
+
+            for (int index = 0; index < numStrips; index++) {
+                bristleLengths[index] = bristleOffsets[index + 1] - bristleOffsets[index];
+            }
+
+            return;
+        }
+
+        int outIndex = 0;
+        int index = 0;
+
+        for (int i = 0; i < numSnapshots; i++) {
+            imprintOffsets[i] = outIndex;
+
+            for (int x = 0; x < numBristles; x++, index++) {
+                int length = clipStrip(positions, heights,
+                        bristleOffsets[index] / BristleKernel.FLOATS_PER_VERTEX,
+                        (bristleOffsets[index + 1] - bristleOffsets[index]) / BristleKernel.FLOATS_PER_VERTEX,
+                        contactHeight, out, outIndex);
+
+                bristleLengths[index] = length;
+                outIndex += length;
+            }
+        }
+
+        imprintOffsets[numSnapshots] = outIndex;
+    }
+
+    /**
+     * Clips the strip of numVertices captured vertices from firstVertex to the slab of world
+     * heights between zero and contactHeight, and writes the part nearest the tip to out from
+     * outIndex. The heights are affine along the segments, so the positions are clipped along
+     * the same parameter. Returns the number of floats written.
+     */
+    private static int clipStrip(FloatBuffer positions, FloatBuffer heights, int firstVertex,
+                                 int numVertices, float contactHeight, FloatBuffer out,
+                                 int outIndex) {
+
+        int bristleStart = outIndex;
+        boolean stripOpen = false;
+
+        for (int v = firstVertex + 1; v < firstVertex + numVertices; v++) {
+            float previousHeight = heights.get(v - 1);
+            float height = heights.get(v);
+
+            float enter = 0f;
+            float exit = 1f;
+            float heightChange = height - previousHeight;
+
+            if (heightChange != 0) {
+                float paper = -previousHeight / heightChange;
+                float contact = (contactHeight - previousHeight) / heightChange;
+                enter = Math.max(enter, Math.min(paper, contact));
+                exit = Math.min(exit, Math.max(paper, contact));
+            } else if (previousHeight < 0 || previousHeight > contactHeight) {
+                stripOpen = false;
+                continue;
+            }
+
+            if (enter >= exit) {
+                stripOpen = false;
+                continue;
+            }
+
+            // A new strip replaces the earlier one, since the part nearest the tip is kept
+            if (!stripOpen) {
+                outIndex = bristleStart;
+                putInterpolated(positions, v - 1, enter, out, outIndex);
+                outIndex += 3;
+            }
+
+            putInterpolated(positions, v - 1, exit, out, outIndex);
+            outIndex += 3;
+
+            // The strip continues if the segment did not leave the paper
+            stripOpen = exit == 1f;
+        }
+
+        return outIndex - bristleStart;
+    }
+
+    /** Writes the point at a parameter along the segment from a captured vertex to the next */
+    private static void putInterpolated(FloatBuffer positions, int vertex, float parameter,
+                                        FloatBuffer out, int outIndex) {
+        int index = vertex * BristleKernel.FLOATS_PER_VERTEX;
+
+        for (int k = 0; k < BristleKernel.FLOATS_PER_VERTEX; k++) {
+            float start = positions.get(index + k);
+            float end = positions.get(index + BristleKernel.FLOATS_PER_VERTEX + k);
+            out.put(outIndex + k, start + (end - start) * parameter);
+        }
+    }
+
+    @Override
+    public void setQuality(int numActiveBristles, int segmentsPerBristle) {
+        layoutKernel.setQuality(numActiveBristles, segmentsPerBristle);
+    }
+
+    @Override
+    public void setContactClipping(boolean contactClipping, float contactHeight) {
+        layoutKernel.setContactClipping(contactClipping, contactHeight);
+
+        this.contactClipping = contactClipping;
+        this.contactHeight = contactHeight;
+    }
+
+    @Override
+    public void setWorldSpace(boolean worldSpace) {
+        this.worldSpace = worldSpace;
+    }
+
+    @Override
+    public void updateBristles() {
+        makeCurrent();
+
+        GLES30.glDeleteTextures(1, bristleTexture, 0);
+        uploadBristles(bristleStore, bristleStore.size());
+    }
+
+    @Override
+    public void destroy() {
+
+        // The context of the calling thread is made current again, which may be the render context
+        EGLDisplay previousDisplay = EGL14.eglGetCurrentDisplay();
+        EGLContext previousContext = EGL14.eglGetCurrentContext();
+        EGLSurface previousDrawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
+        EGLSurface previousReadSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
+
+        makeCurrent();
+
+        if (vertexArrayObject != null) {
+            GLES30.glDeleteTransformFeedbacks(1, transformFeedbackObject, 0);
+            GLES30.glDeleteVertexArrays(1, vertexArrayObject, 0);
+        }
+
+        GLES30.glDeleteBuffers(1, vertexBufferObject, 0);
+        GLES30.glDeleteBuffers(2, feedbackBufferObjects, 0);
+        GLES30.glDeleteTextures(1, bristleTexture, 0);
+        GLES30.glDeleteProgram(mProgram);
+
+        if (previousContext == null || previousContext.equals(EGL14.EGL_NO_CONTEXT)
+                || previousContext.equals(eglContext)) {
+            releaseContext();
+        } else {
+            EGL14.eglMakeCurrent(previousDisplay, previousDrawSurface, previousReadSurface,
+                    previousContext);
+        }
+
+        EGL14.eglDestroySurface(eglDisplay, eglSurface);
+        EGL14.eglDestroyContext(eglDisplay, eglContext);
+    }
+}
@@ -1,12 +1,22 @@
 package co.adrianblan.fastbrush.database;
 
+import co.adrianblan.fastbrush.globject.BrushArchetype;
+
 /**
  * A database which details all parameters of the brush snapshots.
  */
 public class BrushParamaterDatabaseHandler {
     BrushParameterDatabase brushParameterDatabase;
 
+    private BrushArchetype archetype;
+
     public BrushParamaterDatabaseHandler() {
+        this(BrushArchetype.ROUND);
+    }
+
+    /** Creates the database of an archetype, from the values measured on the round brush */
+    public BrushParamaterDatabaseHandler(BrushArchetype archetype) {
+        this.archetype = archetype;
         brushParameterDatabase = new BrushParameterDatabase(20);
         init();
     }
@@ -17,48 +27,48 @@ public class BrushParamaterDatabaseHandler {
     private void init() {
 
         // Neutral
-        brushParameterDatabase.put(new BrushKey(0, 1), new BristleParameters(0f, 0f, 1f, 0f, 0f));
+        put(new BrushKey(0, 1), new BristleParameters(0f, 0f, 1f, 0f, 0f));
 
         // Neutral pressure 1
-        brushParameterDatabase.put(new BrushKey(0, 0.96f), new BristleParameters(0.12f, 0.06f, 0.98f, 0.1f, 0f));
+        put(new BrushKey(0, 0.96f), new BristleParameters(0.12f, 0.06f, 0.98f, 0.1f, 0f));
 
         // Neutral pressure 2
-        brushParameterDatabase.put(new BrushKey(0, 0.83f), new BristleParameters(0.32f, 0.10f, 0.60f, 0.42f, 0f));
+        put(new BrushKey(0, 0.83f), new BristleParameters(0.32f, 0.10f, 0.60f, 0.42f, 0f));
 
         // Neutral pressure 3
-        brushParameterDatabase.put(new BrushKey(0, 0.56f), new BristleParameters(0.62f, 0.20f, 0.41f, 0.71f, 10));
+        put(new BrushKey(0, 0.56f), new BristleParameters(0.62f, 0.20f, 0.41f, 0.71f, 10));
 
         // Neutral pressure 4
-        brushParameterDatabase.put(new BrushKey(0, 0.42f), new BristleParameters(0.78f, 0.26f, 0.38f, 0.68f, 15));
+        put(new BrushKey(0, 0.42f), new BristleParameters(0.78f, 0.26f, 0.38f, 0.68f, 15));
 
         // Neutral pressure 5
-        brushParameterDatabase.put(new BrushKey(0, 0.29f), new BristleParameters(0.93f, 0.45f, 0.30f, 0.54f, 22));
+        put(new BrushKey(0, 0.29f), new BristleParameters(0.93f, 0.45f, 0.30f, 0.54f, 22));
 
 
         // Front neutral
-        brushParameterDatabase.put(new BrushKey(45f, 1f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
+        put(new BrushKey(45f, 1f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
 
         // Front pressure 1
-        brushParameterDatabase.put(new BrushKey(45f, 0.97f), new BristleParameters(0.03f, 0f, 1f, 0f, 0f));
+        put(new BrushKey(45f, 0.97f), new BristleParameters(0.03f, 0f, 1f, 0f, 0f));
 
         // Front pressure 2
-        brushParameterDatabase.put(new BrushKey(45f, 0.85f), new BristleParameters(0.012f, 0.01f, 0.94f, 0f, 0f));
+        put(new BrushKey(45f, 0.85f), new BristleParameters(0.012f, 0.01f, 0.94f, 0f, 0f));
 
         // Front pressure 3
-        brushParameterDatabase.put(new BrushKey(45f, 0.68f), new BristleParameters(0.26f, 0.01f, 0.80f, 0f, 0f));
+        put(new BrushKey(45f, 0.68f), new BristleParameters(0.26f, 0.01f, 0.80f, 0f, 0f));
 
         // Front pressure 4
-        brushParameterDatabase.put(new BrushKey(45f, 0.54f), new BristleParameters(0.38f, 0.01f, 0.64f, 0f, 5));
+        put(new BrushKey(45f, 0.54f), new BristleParameters(0.38f, 0.01f, 0.64f, 0f, 5));
 
         // Front pressure 5
-        brushParameterDatabase.put(new BrushKey(45f, 0.24f), new BristleParameters(0.52f, 0.01f, 0.26f, 0f, 15));
+        put(new BrushKey(45f, 0.24f), new BristleParameters(0.52f, 0.01f, 0.26f, 0f, 15));
 
 
         // Front pressure extreme 1
-        brushParameterDatabase.put(new BrushKey(90f, 1f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
+        put(new BrushKey(90f, 1f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
 
         // Front pressure extreme 2
-        brushParameterDatabase.put(new BrushKey(90f, 0f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
+        put(new BrushKey(90f, 0f), new BristleParameters(0f, 0f, 1f, 0f, 0f));
 
         /**
         // Back neutral
@@ -78,6 +88,14 @@ public class BrushParamaterDatabaseHandler {
          */
     }
 
+    /** Adds the values measured on the round brush, scaled by how the archetype bends and splays */
+    private void put(BrushKey brushKey, BristleParameters bristleParameters) {
+        bristleParameters.planarDistanceFromHandle *= archetype.bendScale;
+        bristleParameters.planarImprintLength *= archetype.bendScale;
+        bristleParameters.bristleHorizontalAngle *= archetype.spreadScale;
+        brushParameterDatabase.put(brushKey, bristleParameters);
+    }
+
     /**
      * Takes a BrushKey (which may or may not exist in the HashMap), and returns an interpolated
      * BristleParameter value based on the nearest values in the HashMap.
@@ -7,13 +7,19 @@ import android.support.v4.app.DialogFragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.CheckedTextView;
 import android.widget.SeekBar;
+import android.widget.Spinner;
 import android.widget.TextView;
 
+import java.util.Arrays;
+
 import butterknife.Bind;
 import butterknife.ButterKnife;
 import co.adrianblan.fastbrush.R;
+import co.adrianblan.fastbrush.compute.ComputeBackendType;
+import co.adrianblan.fastbrush.globject.BrushArchetype;
 import co.adrianblan.fastbrush.settings.SettingsData;
 import co.adrianblan.fastbrush.settings.SettingsManager;
 
@@ -22,6 +28,15 @@ import co.adrianblan.fastbrush.settings.SettingsManager;
  */
 public class BrushDialogFragment extends DialogFragment {
 
+    // The backends in the order of the compute_backends array
+    private static final ComputeBackendType[] COMPUTE_BACKENDS = {
+            ComputeBackendType.AUTOMATIC, ComputeBackendType.JAVA, ComputeBackendType.PARALLEL_JAVA,
+            ComputeBackendType.RENDERSCRIPT, ComputeBackendType.TRANSFORM_FEEDBACK
+    };
+
+    @Bind(R.id.spinnerBrushArchetype)
+    Spinner spinnerBrushArchetype;
+
     @Bind(R.id.seekBarBrushSize)
     SeekBar seekBarBrushSize;
 
@@ -46,6 +61,12 @@ public class BrushDialogFragment extends DialogFragment {
     @Bind(R.id.bristleThicknessSubtitle)
     TextView bristleThickessSubtitle;
 
+    @Bind(R.id.spinnerComputeBackend)
+    Spinner spinnerComputeBackend;
+
+    @Bind(R.id.dynamicBristles)
+    CheckedTextView dynamicBristles;
+
     @Bind(R.id.showBrushView)
     CheckedTextView showBrushView;
 
@@ -90,15 +111,28 @@ public class BrushDialogFragment extends DialogFragment {
                         ContextCompat.getColor(getActivity(), R.color.colorAccent));
 
                 // Set default values, has no effect until dialog is shown
+                spinnerBrushArchetype.setSelection(settingsData.getBrushArchetype().ordinal());
                 seekBarBrushSize.setProgress((int) (settingsData.getSize() * 100));
                 seekBarBrushSizePressureFactor.setProgress((int) (settingsData.getPressureFactor() * 100));
                 seekBarBristleAmount.setProgress(settingsData.getNumBristles());
                 seekBarBristleThickness.setProgress((int) (settingsData.getBristleThickness() * 100));
                 showBrushView.setChecked(settingsData.isShowBrushView());
+                dynamicBristles.setChecked(settingsData.isDynamicBristles());
+                spinnerComputeBackend.setSelection(Math.max(0,
+                        Arrays.asList(COMPUTE_BACKENDS).indexOf(settingsData.getComputeBackend())));
             }
         });
 
         // Set listeners for all elements
+        spinnerBrushArchetype.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                settingsData.setBrushArchetype(BrushArchetype.values()[position]);
+            }
+
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
+        });
+
         seekBarBrushSize.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
@@ -156,6 +190,23 @@ public class BrushDialogFragment extends DialogFragment {
             @Override public void onStopTrackingTouch(SeekBar seekBar) {}
         });
 
+        spinnerComputeBackend.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                settingsData.setComputeBackend(COMPUTE_BACKENDS[position]);
+            }
+
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
+        });
+
+        dynamicBristles.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                dynamicBristles.toggle();
+                settingsData.setDynamicBristles(dynamicBristles.isChecked());
+            }
+        });
+
         showBrushView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
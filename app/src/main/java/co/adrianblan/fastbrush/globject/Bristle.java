@@ -1,10 +1,10 @@
 package co.adrianblan.fastbrush.globject;
 
-import co.adrianblan.fastbrush.settings.SettingsData;
-import co.adrianblan.fastbrush.vector.Vector3;
-
 /**
  * Writing primitive for the brush.
+ *
+ * The bristles themselves are stored in a BristleStore, this class holds the dimensions they
+ * share.
  */
 public class Bristle {
 
@@ -17,32 +17,26 @@ public class Bristle {
     public static float radiusUpper = BRUSH_RADIUS_UPPER;
     public static float radiusLower = BRUSH_RADIUS_LOWER;
 
-    public float length;
-    public Vector3 top;
-    public Vector3 bottom;
-    public Vector3 extendedBottom;
-
-    public Bristle(SettingsData settingsData) {
-
-        radiusUpper = BRUSH_RADIUS_UPPER * (settingsData.getSize() + MIN_SIZE_SCALE);
-        radiusLower = BRUSH_RADIUS_LOWER * (settingsData.getSize() + MIN_SIZE_SCALE);
+    private Bristle() {}
 
-        // We take the square root in order to guarantee uniform distribution in the circle
-        float radiusAngle = (float) (Math.sqrt(Math.random()) * 2f * Math.PI);
-        float radiusLength = (float) Math.random();
-
-        float horizontal = (float) Math.cos(radiusAngle) * radiusLength;
-        float vertical = (float) Math.sin(radiusAngle) * radiusLength;
+    /** Scales the brush radius by the size setting */
+    public static void setSize(float size) {
+        radiusUpper = getRadiusUpper(size);
+        radiusLower = getRadiusLower(size);
+    }
 
-        top = new Vector3(radiusUpper * horizontal, radiusUpper * vertical, 0f);
+    /** Returns the radius of the bristle tops for a size setting */
+    public static float getRadiusUpper(float size) {
+        return BRUSH_RADIUS_UPPER * (size + MIN_SIZE_SCALE);
+    }
 
-        length = BASE_LENGTH - BASE_TIP_LENGTH + BASE_TIP_LENGTH * (float) Math.cos(radiusLength * 0.5f * Math.PI);
-        bottom = new Vector3(radiusLower * horizontal, radiusLower * vertical, -length);
-        extendedBottom = new Vector3(bottom);
-        extendedBottom.setZ(-BASE_LENGTH);
+    /** Returns the radius of the bristle bottoms for a size setting */
+    public static float getRadiusLower(float size) {
+        return BRUSH_RADIUS_LOWER * (size + MIN_SIZE_SCALE);
     }
 
-    public float getLength() {
-        return length;
+    /** Returns the length of a bristle which is radiusLength from the center, relative to the radius */
+    public static float getLength(float radiusLength) {
+        return BASE_LENGTH - BASE_TIP_LENGTH + BASE_TIP_LENGTH * (float) Math.cos(radiusLength * 0.5f * Math.PI);
     }
 }
@@ -0,0 +1,199 @@
+package co.adrianblan.fastbrush.globject;
+
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.compute.BristleCurveReference;
+import co.adrianblan.fastbrush.compute.BrushSnapshot;
+import co.adrianblan.fastbrush.utils.GLhelper;
+
+/**
+ * Class which draws brush imprints by evaluating the bristle curves in the vertex shader.
+ *
+ * The bristles are uploaded once to a static buffer, and every bristle is one instance which is
+ * drawn as a line strip, with the point along the curve taken from gl_VertexID. An imprint then
+ * only needs its brush state as uniforms. The segments which do not touch the paper are discarded
+ * in the fragment shader, in place of the contact clipping of the compute kernels.
+ *
+ * The curve itself is the shared function of BristleCurveReference, which evaluates it on the CPU.
+ */
+public class BristleCurveRenderer {
+
+    private static final String VERTEX_SHADER_CODE =
+            "#version 300 es\n" +
+            "uniform mat4 uMVPMatrix;" +
+            "uniform vec4 uHeightRow;" +
+            "uniform vec3 uPosition;" +
+            // planarDistanceFromHandle, upperControlPointLength, lowerControlPointLength, horizontalAngle
+            "uniform vec4 uCurve;" +
+            // bristleHorizontalMaxAngle, and the orthogonal angle of the brush
+            "uniform vec3 uSpread;" +
+            "uniform float uSegments;" +
+            "in vec3 aTop;" +
+            "in vec3 aBottom;" +
+            // length, directionX, directionY
+            "in vec3 aShape;" +
+            "out highp float vHeight;" +
+            BristleCurveReference.CURVE_FUNCTION +
+            "void main() {" +
+            "  vec3 point = bristleCurve(aTop + uPosition, aBottom + uPosition, aShape, uCurve," +
+            "                            uSpread, float(gl_VertexID) / uSegments);" +
+            "  vHeight = dot(uHeightRow.xyz, point) + uHeightRow.w;" +
+            "  gl_Position = uMVPMatrix * vec4(point, 1.0);" +
+            "}";
+
+    private static final String FRAGMENT_SHADER_CODE =
+            "#version 300 es\n" +
+            "precision mediump float;" +
+            "uniform vec4 vColor;" +
+            "uniform highp float uContactHeight;" +
+            "in highp float vHeight;" +
+            "out vec4 fragColor;" +
+            "void main() {" +
+            "  if (vHeight < 0.0 || vHeight > uContactHeight) discard;" +
+            "  fragColor = vColor;" +
+            "}";
+
+    // The interleaved values of every bristle in the static buffer
+    private static final int FLOATS_PER_BRISTLE = 9;
+    private static final int FLOAT_SIZE = 4;
+
+    private static final float ORTHOGONAL_OFFSET = (float) (Math.PI / 4);
+
+    private int mProgram;
+    private int mMVPMatrixHandle;
+    private int mColorHandle;
+    private int mHeightRowHandle;
+    private int mPositionHandle;
+    private int mCurveHandle;
+    private int mSpreadHandle;
+    private int mSegmentsHandle;
+    private int mContactHeightHandle;
+
+    private int[] bristleBufferObject = new int[1];
+    private int[] vertexArrayObject = new int[1];
+
+    private final BristleStore bristleStore;
+    private final int numBristles;
+    private int segmentsPerBristle;
+
+    private final float[] imprintMVPMatrix = new float[16];
+
+    /**
+     * Uploads the bristles of a store, which are uploaded again with updateBristles when the
+     * store is rebuilt. Must be called on the GL thread.
+     */
+    public BristleCurveRenderer(BristleStore bristleStore, int segmentsPerBristle) {
+        this.bristleStore = bristleStore;
+        this.numBristles = bristleStore.size();
+        this.segmentsPerBristle = segmentsPerBristle;
+
+        mProgram = GLES30.glCreateProgram();
+        GLhelper.loadShaders(mProgram, VERTEX_SHADER_CODE, FRAGMENT_SHADER_CODE);
+
+        mMVPMatrixHandle = GLES30.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mColorHandle = GLES30.glGetUniformLocation(mProgram, "vColor");
+        mHeightRowHandle = GLES30.glGetUniformLocation(mProgram, "uHeightRow");
+        mPositionHandle = GLES30.glGetUniformLocation(mProgram, "uPosition");
+        mCurveHandle = GLES30.glGetUniformLocation(mProgram, "uCurve");
+        mSpreadHandle = GLES30.glGetUniformLocation(mProgram, "uSpread");
+        mSegmentsHandle = GLES30.glGetUniformLocation(mProgram, "uSegments");
+        mContactHeightHandle = GLES30.glGetUniformLocation(mProgram, "uContactHeight");
+
+        int topHandle = GLES30.glGetAttribLocation(mProgram, "aTop");
+        int bottomHandle = GLES30.glGetAttribLocation(mProgram, "aBottom");
+        int shapeHandle = GLES30.glGetAttribLocation(mProgram, "aShape");
+        GLhelper.checkGlError("glGetUniformLocation");
+
+        GLES30.glGenBuffers(1, bristleBufferObject, 0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, bristleBufferObject[0]);
+        GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, numBristles * FLOATS_PER_BRISTLE * FLOAT_SIZE,
+                getBristles(), GLES30.GL_STATIC_DRAW);
+
+        // Every instance reads the values of one bristle
+        GLES30.glGenVertexArrays(1, vertexArrayObject, 0);
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+        setBristleAttribute(topHandle, 0);
+        setBristleAttribute(bottomHandle, 3);
+        setBristleAttribute(shapeHandle, 6);
+
+        GLES30.glBindVertexArray(0);
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+        GLhelper.checkGlError("BristleCurveRenderer");
+    }
+
+    /** Uploads the bristles again, after the store was rebuilt with the same number of bristles */
+    public void updateBristles() {
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, bristleBufferObject[0]);
+        GLES30.glBufferSubData(GLES30.GL_ARRAY_BUFFER, 0, numBristles * FLOATS_PER_BRISTLE * FLOAT_SIZE,
+                getBristles());
+        GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+    }
+
+    /** Returns the values of every bristle which the shader reads, one bristle after another */
+    private FloatBuffer getBristles() {
+        FloatBuffer bristles = GLhelper.initFloatBuffer(numBristles * FLOATS_PER_BRISTLE);
+        for (int i = 0; i < numBristles; i++) {
+            bristles.put(bristleStore.topX[i]).put(bristleStore.topY[i]).put(bristleStore.topZ[i]);
+            bristles.put(bristleStore.bottomX[i]).put(bristleStore.bottomY[i]).put(bristleStore.bottomZ[i]);
+            bristles.put(bristleStore.length[i]).put(bristleStore.directionX[i]).put(bristleStore.directionY[i]);
+        }
+        bristles.position(0);
+
+        return bristles;
+    }
+
+    private void setBristleAttribute(int handle, int offset) {
+        GLES30.glEnableVertexAttribArray(handle);
+        GLES30.glVertexAttribPointer(handle, 3, GLES30.GL_FLOAT, false,
+                FLOATS_PER_BRISTLE * FLOAT_SIZE, offset * FLOAT_SIZE);
+        GLES30.glVertexAttribDivisor(handle, 1);
+    }
+
+    /** Sets how many segments every bristle is drawn with */
+    public void setSegmentsPerBristle(int segmentsPerBristle) {
+        this.segmentsPerBristle = segmentsPerBristle;
+    }
+
+    /**
+     * Draws the imprint of a snapshot on the paper with the camera matrix, where only the parts of
+     * the bristles between the paper and contactHeight are drawn.
+     */
+    public void draw(BrushSnapshot snapshot, float[] mvpMatrix, float[] color, float contactHeight) {
+
+        Matrix.multiplyMM(imprintMVPMatrix, 0, mvpMatrix, 0, snapshot.modelMatrix, 0);
+        float[] modelMatrix = snapshot.modelMatrix;
+
+        GLES30.glUseProgram(mProgram);
+        GLES30.glBindVertexArray(vertexArrayObject[0]);
+
+        GLES30.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, imprintMVPMatrix, 0);
+        GLES30.glUniform4fv(mColorHandle, 1, color, 0);
+        GLES30.glUniform4f(mHeightRowHandle, modelMatrix[2], modelMatrix[6], modelMatrix[10],
+                modelMatrix[14]);
+        GLES30.glUniform3f(mPositionHandle, snapshot.positionX, snapshot.positionY,
+                snapshot.positionZ);
+        GLES30.glUniform4f(mCurveHandle, snapshot.planarDistanceFromHandle,
+                snapshot.upperControlPointLength, snapshot.lowerControlPointLength,
+                snapshot.horizontalAngle);
+        GLES30.glUniform3f(mSpreadHandle, snapshot.bristleHorizontalMaxAngle,
+                (float) Math.cos(snapshot.horizontalAngle + ORTHOGONAL_OFFSET),
+                (float) Math.sin(snapshot.horizontalAngle + ORTHOGONAL_OFFSET));
+        GLES30.glUniform1f(mSegmentsHandle, segmentsPerBristle);
+        GLES30.glUniform1f(mContactHeightHandle, contactHeight);
+
+        // One strip of a point more than the segments per bristle
+        GLES30.glDrawArraysInstanced(GLES30.GL_LINE_STRIP, 0, segmentsPerBristle + 1, numBristles);
+
+        GLES30.glBindVertexArray(0);
+    }
+
+    /** Releases the GL resources of the renderer */
+    public void destroy() {
+        GLES30.glDeleteVertexArrays(1, vertexArrayObject, 0);
+        GLES30.glDeleteBuffers(1, bristleBufferObject, 0);
+        GLES30.glDeleteProgram(mProgram);
+    }
+}
@@ -0,0 +1,266 @@
+package co.adrianblan.fastbrush.globject;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import co.adrianblan.fastbrush.settings.SettingsData;
+
+/**
+ * Class which stores all bristles of a brush as one array per value.
+ *
+ * The bristles are sorted along a Z-order curve over their position, so that bristles which are
+ * close in the brush are also close in memory. The arrays are reused when the store is rebuilt
+ * with at most as many bristles as before, only the first size() entries are valid.
+ *
+ * Brushes are built from the shared templates of BristleTemplateLibrary, which spread the
+ * bristles evenly with a low-discrepancy sequence, so that the same settings always give the
+ * same brush.
+ */
+public class BristleStore {
+
+    // Number of bits each coordinate is quantized to when sorting, the order must fit in 31 bits
+    private static final int SORT_BITS = 15;
+
+    // The bases of the two dimensions of the Halton sequence
+    private static final int HALTON_BASE_ANGLE = 2;
+    private static final int HALTON_BASE_RADIUS = 3;
+
+    // Positions of the bristle tops, relative to the brush handle
+    public float[] topX;
+    public float[] topY;
+    public float[] topZ;
+
+    // Positions of the bristle bottoms, relative to the brush handle
+    public float[] bottomX;
+    public float[] bottomY;
+    public float[] bottomZ;
+
+    // Distance between the top and the bottom, relative to the base length
+    public float[] length;
+
+    // Normalized vector which points from the center of the brush to the bristle
+    public float[] directionX;
+    public float[] directionY;
+
+    private int size;
+
+    // The largest distance of a top or a bottom from the axis of the handle
+    private float radius;
+
+    private long[] sortKeys;
+    private float[] sortScratch;
+
+    public BristleStore() {
+        allocate(0);
+    }
+
+    /** Replaces the bristles with the shared template of the settings */
+    public void rebuild(SettingsData settingsData) {
+        rebuild(settingsData, settingsData.getBrushArchetype());
+    }
+
+    /** Replaces the bristles with the shared template of an archetype, in the size of the settings */
+    public void rebuild(SettingsData settingsData, BrushArchetype archetype) {
+        Bristle.setSize(settingsData.getSize());
+        copyFrom(BristleTemplateLibrary.get(archetype, settingsData.getNumBristles(),
+                settingsData.getSize()));
+    }
+
+    /**
+     * Replaces the bristles with numBristles bristles spread evenly over a circle, at the points
+     * of a Halton sequence which is shifted by the seed. The same arguments always give the same
+     * bristles, and any number of them covers the circle about as evenly.
+     */
+    public void rebuildEven(int numBristles, float radiusUpper, float radiusLower, long seed) {
+        rebuildEven(numBristles, radiusUpper, radiusLower, BrushArchetype.ROUND, seed);
+    }
+
+    /**
+     * Replaces the bristles with numBristles bristles spread evenly over the cross section of an
+     * archetype, which is the circle scaled into an ellipse at the top and at the bottom.
+     */
+    public void rebuildEven(int numBristles, float radiusUpper, float radiusLower,
+                            BrushArchetype archetype, long seed) {
+
+        if (numBristles > topX.length) {
+            allocate(numBristles);
+        }
+
+        size = numBristles;
+
+        // A random shift of the whole sequence keeps it even, but lets the seed vary it
+        Random random = new Random(seed);
+        float angleShift = random.nextFloat();
+        float radiusShift = random.nextFloat();
+
+        for (int i = 0; i < numBristles; i++) {
+            float angleSample = fraction(halton(i + 1, HALTON_BASE_ANGLE) + angleShift);
+            float radiusSample = fraction(halton(i + 1, HALTON_BASE_RADIUS) + radiusShift);
+
+            // The square root of the radius spreads the bristles evenly over the area
+            float radiusAngle = (float) (angleSample * 2f * Math.PI);
+            float radiusLength = (float) Math.sqrt(radiusSample);
+
+            placeBristle(i, radiusAngle, radiusLength, radiusUpper, radiusLower, archetype);
+        }
+
+        // The tops of every archetype are within the circle of the radius
+        sortSpatially(radiusUpper);
+        computeInvariants();
+    }
+
+    /** Replaces the bristles with a copy of the bristles of another store */
+    public void copyFrom(BristleStore other) {
+
+        if (other.size > topX.length) {
+            allocate(other.size);
+        }
+
+        size = other.size;
+
+        System.arraycopy(other.topX, 0, topX, 0, size);
+        System.arraycopy(other.topY, 0, topY, 0, size);
+        System.arraycopy(other.topZ, 0, topZ, 0, size);
+        System.arraycopy(other.bottomX, 0, bottomX, 0, size);
+        System.arraycopy(other.bottomY, 0, bottomY, 0, size);
+        System.arraycopy(other.bottomZ, 0, bottomZ, 0, size);
+        System.arraycopy(other.length, 0, length, 0, size);
+        System.arraycopy(other.directionX, 0, directionX, 0, size);
+        System.arraycopy(other.directionY, 0, directionY, 0, size);
+        radius = other.radius;
+    }
+
+    /**
+     * Places bristle i at an angle and a distance from the center, relative to the radius, in the
+     * cross section of an archetype.
+     */
+    private void placeBristle(int i, float radiusAngle, float radiusLength,
+                              float radiusUpper, float radiusLower, BrushArchetype archetype) {
+
+        float horizontal = (float) Math.cos(radiusAngle) * radiusLength;
+        float vertical = (float) Math.sin(radiusAngle) * radiusLength;
+
+        topX[i] = radiusUpper * archetype.topScaleX * horizontal;
+        topY[i] = radiusUpper * archetype.topScaleY * vertical;
+        topZ[i] = 0f;
+
+        bottomX[i] = radiusLower * archetype.bottomScaleX * horizontal;
+        bottomY[i] = radiusLower * archetype.bottomScaleY * vertical;
+        bottomZ[i] = -Bristle.getLength(radiusLength);
+    }
+
+    /** Returns element index of the Halton sequence of a base, the radical inverse of the index */
+    private static float halton(int index, int base) {
+        float result = 0f;
+        float factor = 1f / base;
+
+        while (index > 0) {
+            result += factor * (index % base);
+            index /= base;
+            factor /= base;
+        }
+
+        return result;
+    }
+
+    private static float fraction(float value) {
+        return value - (float) Math.floor(value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the largest distance of a top or a bottom from the axis of the handle, which is
+     * how wide the cross section of the archetype is spread.
+     */
+    public float getRadius() {
+        return radius;
+    }
+
+    private void allocate(int capacity) {
+        topX = new float[capacity];
+        topY = new float[capacity];
+        topZ = new float[capacity];
+        bottomX = new float[capacity];
+        bottomY = new float[capacity];
+        bottomZ = new float[capacity];
+        length = new float[capacity];
+        directionX = new float[capacity];
+        directionY = new float[capacity];
+
+        sortKeys = new long[capacity];
+        sortScratch = new float[capacity];
+    }
+
+    /** Sorts the bristles by the Z-order of their top position */
+    private void sortSpatially(float radius) {
+
+        float quantization = ((1 << SORT_BITS) - 1) / (2 * radius + Float.MIN_VALUE);
+
+        for (int i = 0; i < size; i++) {
+            int quantizedX = (int) ((topX[i] + radius) * quantization);
+            int quantizedY = (int) ((topY[i] + radius) * quantization);
+
+            // The order is stored in the upper bits, and the index in the lower bits
+            long order = interleaveBits(quantizedX) | (interleaveBits(quantizedY) << 1);
+            sortKeys[i] = (order << 32) | i;
+        }
+
+        Arrays.sort(sortKeys, 0, size);
+
+        reorder(topX);
+        reorder(topY);
+        reorder(topZ);
+        reorder(bottomX);
+        reorder(bottomY);
+        reorder(bottomZ);
+    }
+
+    /** Moves the values of the array into the order given by the sorted keys */
+    private void reorder(float[] values) {
+        for (int i = 0; i < size; i++) {
+            sortScratch[i] = values[(int) sortKeys[i]];
+        }
+
+        System.arraycopy(sortScratch, 0, values, 0, size);
+    }
+
+    /** Spreads the lower SORT_BITS bits of value out to every other bit */
+    private static long interleaveBits(int value) {
+        long result = 0;
+
+        for (int i = 0; i < SORT_BITS; i++) {
+            result |= (long) ((value >> i) & 1) << (2 * i);
+        }
+
+        return result;
+    }
+
+    /** Precomputes the values which the kernels need for every bristle */
+    private void computeInvariants() {
+        radius = 0f;
+
+        for (int i = 0; i < size; i++) {
+            radius = Math.max(radius, (float) Math.sqrt(topX[i] * topX[i] + topY[i] * topY[i]));
+            radius = Math.max(radius, (float) Math.sqrt(bottomX[i] * bottomX[i] + bottomY[i] * bottomY[i]));
+
+            float distanceX = topX[i] - bottomX[i];
+            float distanceY = topY[i] - bottomY[i];
+            float distanceZ = topZ[i] - bottomZ[i];
+            length[i] = (float) Math.sqrt(distanceX * distanceX
+                    + distanceY * distanceY + distanceZ * distanceZ) / Bristle.BASE_LENGTH;
+
+            float directionLength = (float) Math.sqrt(topX[i] * topX[i] + topY[i] * topY[i]);
+
+            if (directionLength > 0) {
+                directionX[i] = topX[i] / directionLength;
+                directionY[i] = topY[i] / directionLength;
+            } else {
+                directionX[i] = 0f;
+                directionY[i] = 0f;
+            }
+        }
+    }
+}
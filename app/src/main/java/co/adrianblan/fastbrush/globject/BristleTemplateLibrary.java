@@ -0,0 +1,68 @@
+package co.adrianblan.fastbrush.globject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class which keeps the bristle layouts of the recently used brush settings, so that brushes with
+ * the same archetype, count and size share one template instead of generating their own.
+ *
+ * Every template is spread evenly with BristleStore.rebuildEven from the same seed, so a brush is
+ * the same on every run, and the images it draws can be compared between runs. The templates must
+ * not be changed, brushes copy them into their own store.
+ */
+public class BristleTemplateLibrary {
+
+    // The seed of every template, changing it changes how all brushes look
+    public static final long TEMPLATE_SEED = 1;
+
+    // The number of templates kept, the oldest one is dropped when another is needed
+    private static final int MAX_TEMPLATES = 8;
+
+    private static final Map<Long, BristleStore> templates =
+            new LinkedHashMap<Long, BristleStore>(MAX_TEMPLATES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, BristleStore> eldest) {
+                    return size() > MAX_TEMPLATES;
+                }
+            };
+
+    private BristleTemplateLibrary() {}
+
+    /** Returns the round template of numBristles bristles for a size setting */
+    public static BristleStore get(int numBristles, float size) {
+        return get(BrushArchetype.ROUND, numBristles, size);
+    }
+
+    /**
+     * Returns the template of an archetype with numBristles bristles for a size setting, which
+     * must not be changed.
+     */
+    public static synchronized BristleStore get(BrushArchetype archetype, int numBristles,
+                                                float size) {
+        Long key = getKey(archetype, numBristles, size);
+        BristleStore template = templates.get(key);
+
+        if (template == null) {
+            float radiusUpper = Bristle.getRadiusUpper(size);
+            float radiusLower = Bristle.getRadiusLower(size);
+
+            template = new BristleStore();
+            template.rebuildEven(numBristles, radiusUpper, radiusLower, archetype, TEMPLATE_SEED);
+            templates.put(key, template);
+        }
+
+        return template;
+    }
+
+    /** Returns the key of a template, with the archetype above the count and the count above the size */
+    static long getKey(BrushArchetype archetype, int numBristles, float size) {
+        return ((long) archetype.ordinal() << 56) | ((long) numBristles << 32)
+                | (Float.floatToIntBits(size) & 0xFFFFFFFFL);
+    }
+
+    /** Drops all templates, which are generated again when they are next needed */
+    public static synchronized void clear() {
+        templates.clear();
+    }
+}
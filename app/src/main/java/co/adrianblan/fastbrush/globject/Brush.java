@@ -3,8 +3,11 @@ package co.adrianblan.fastbrush.globject;
 import android.opengl.GLES30;
 
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
+import co.adrianblan.fastbrush.buffer.CompactVertexData;
 import co.adrianblan.fastbrush.buffer.VertexBufferManager;
+import co.adrianblan.fastbrush.compute.PhysicsCompute;
 import co.adrianblan.fastbrush.database.BristleParameters;
 import co.adrianblan.fastbrush.database.BrushKey;
 import co.adrianblan.fastbrush.database.BrushParamaterDatabaseHandler;
@@ -23,6 +26,20 @@ public class Brush {
     public static final int SEGMENTS_PER_BRISTLE = 4;
     private static final float MAX_TILT_VERTICAL = 30f;
 
+    // Restores the positions of compact vertex data, which is the identity for floats
+    private static final String VERTEX_SHADER_CODE =
+            "uniform mat4 uMVPMatrix;" +
+            "uniform vec3 uOrigin;" +
+            "uniform vec3 uScale;" +
+            "attribute vec4 vPosition;" +
+            "void main() {" +
+            "  gl_Position = uMVPMatrix * vec4(uOrigin + vPosition.xyz * uScale, 1.0);" +
+            "}";
+
+    private static final float[] FLOAT_ORIGIN = {0f, 0f, 0f};
+    private static final float[] FLOAT_SCALE = {1f, 1f, 1f};
+
+    private BrushArchetype archetype;
     private int numBristles;
     private float sizePressureFactor;
 
@@ -30,14 +47,31 @@ public class Brush {
     private int mPositionHandle;
     private int mColorHandle;
     private int mMVPMatrixHandle;
+    private int mOriginHandle;
+    private int mScaleHandle;
 
     private VertexBufferManager vertexBufferManager;
+    private FloatBuffer vertexBuffer;
+    private int vertexDataOffset;
+    private int vertexDataLength;
+    private IntBuffer indexBuffer;
+    private int indexCount;
+
+    // The vertex data which is drawn instead of the floats, or null
+    private CompactVertexData compactVertexData;
+
+    // Where the indices were last uploaded in the buffer object, or -1 if they have changed since
+    private int uploadedOffset = -1;
+
+    // The whole brush for the brush views, when the imprints only contain the tips
+    private FloatBuffer previewVertexBuffer;
+    private IntBuffer previewIndexBuffer;
 
     private BrushParamaterDatabaseHandler brushParamaterDatabaseHandler;
     private BrushKey brushKey;
     private BristleParameters bristleParameters;
 
-    private Bristle[] bristles;
+    private BristleStore bristleStore;
     private Vector3 position;
     private Vector3 jitter;
 
@@ -48,7 +82,25 @@ public class Brush {
     private float dip;
 
     public Brush(SettingsData settingsData) {
+        this(settingsData, new BristleStore(), false);
+    }
+
+    /**
+     * Creates a brush whose bristles are rebuilt into an existing store, so that its arrays can
+     * be reused. With compactVertices, the imprints can be drawn from compact vertex data.
+     */
+    public Brush(SettingsData settingsData, BristleStore bristleStore, boolean compactVertices) {
+        this(settingsData, settingsData.getBrushArchetype(), bristleStore, compactVertices);
+    }
+
+    /**
+     * Creates a brush of an archetype, which may differ from the archetype of the settings so that
+     * other archetypes can be built ahead of being chosen.
+     */
+    public Brush(SettingsData settingsData, BrushArchetype archetype, BristleStore bristleStore,
+                 boolean compactVertices) {
 
+        this.archetype = archetype;
         numBristles = settingsData.getNumBristles();
         //numBristles = 2;
 
@@ -57,24 +109,39 @@ public class Brush {
         position = new Vector3();
         resetPosition();
 
-        brushParamaterDatabaseHandler = new BrushParamaterDatabaseHandler();
+        brushParamaterDatabaseHandler = new BrushParamaterDatabaseHandler(archetype);
         brushKey = new BrushKey();
         bristleParameters = new BristleParameters();
 
-        bristles = new Bristle[numBristles];
         jitter = new Vector3();
 
         // Adds the bristles
-        for(int i = 0; i < numBristles; i++){
-            bristles[i] = new Bristle(settingsData);
-        }
-
-        // Manages multiple vertex buffers for us
-        vertexBufferManager = new VertexBufferManager(3, GLobject.DEFAULT_COORDS_PER_VERTEX * 2 * numBristles * SEGMENTS_PER_BRISTLE);
+        this.bristleStore = bristleStore;
+        bristleStore.rebuild(settingsData, archetype);
 
         mProgram = GLES30.glCreateProgram();
-        GLhelper.loadShaders(mProgram, GLobject.DEFAULT_VERTEX_SHADER_CODE,
-                GLobject.DEFAULT_FRAGMENT_SHADER_CODE);
+        GLhelper.loadShaders(mProgram, VERTEX_SHADER_CODE, GLobject.DEFAULT_FRAGMENT_SHADER_CODE);
+
+        // The locations never change for the program, so they are only looked up once
+        mPositionHandle = GLES30.glGetAttribLocation(mProgram, "vPosition");
+        mColorHandle = GLES30.glGetUniformLocation(mProgram, "vColor");
+        mMVPMatrixHandle = GLES30.glGetUniformLocation(mProgram, "uMVPMatrix");
+        mOriginHandle = GLES30.glGetUniformLocation(mProgram, "uOrigin");
+        mScaleHandle = GLES30.glGetUniformLocation(mProgram, "uScale");
+        GLhelper.checkGlError("glGetUniformLocation");
+
+        // Every bristle is a line strip of one point more than its segments, ended by a restart index
+        vertexDataLength = GLobject.DEFAULT_COORDS_PER_VERTEX * (SEGMENTS_PER_BRISTLE + 1) * numBristles;
+        int indicesPerImprint = (SEGMENTS_PER_BRISTLE + 2) * numBristles;
+
+        // Manages multiple vertex buffers for us, each one large enough for a whole batch of imprints
+        vertexBufferManager = new VertexBufferManager(3, vertexDataLength * PhysicsCompute.MAX_IMPRINTS_PER_BATCH,
+                indicesPerImprint * PhysicsCompute.MAX_IMPRINTS_PER_BATCH,
+                mPositionHandle, GLobject.DEFAULT_COORDS_PER_VERTEX, compactVertices);
+        vertexBuffer = vertexBufferManager.getCurrentBuffer();
+        indexBuffer = vertexBufferManager.getCurrentIndexBuffer();
+        previewVertexBuffer = GLhelper.initFloatBuffer(vertexDataLength);
+        previewIndexBuffer = GLhelper.initIntBuffer(indicesPerImprint);
     }
 
     /**
@@ -124,16 +191,30 @@ public class Brush {
     }
 
     /**
-     * Takes a float array and puts the vertex positions inside our vertex buffer.
+     * Sets which vertex buffer, and which range of floats in it, is drawn by the brush, and the
+     * first indexCount indices of the line strips, relative to offset.
      */
-    public void putVertexData(float[] bristlePositions) {
-
-        vertexBufferManager.setNextBuffer();
-        FloatBuffer vertexBuffer = vertexBufferManager.getCurrentBuffer();
+    public void setVertexData(FloatBuffer vertexBuffer, int offset, int length,
+                              IntBuffer indexBuffer, int indexCount) {
+        this.vertexBuffer = vertexBuffer;
+        vertexDataOffset = offset;
+        vertexDataLength = length;
+        this.indexBuffer = indexBuffer;
+        this.indexCount = indexCount;
+        compactVertexData = null;
+        uploadedOffset = -1;
+    }
 
-        vertexBuffer.position(0);
-        vertexBuffer.put(bristlePositions);
-        vertexBuffer.position(0);
+    /**
+     * Sets compact vertex data to be drawn by the brush, with the first indexCount indices of
+     * the line strips.
+     */
+    public void setVertexData(CompactVertexData compactVertexData, IntBuffer indexBuffer,
+                              int indexCount) {
+        this.compactVertexData = compactVertexData;
+        this.indexBuffer = indexBuffer;
+        this.indexCount = indexCount;
+        uploadedOffset = -1;
     }
 
     /**
@@ -141,40 +222,60 @@ public class Brush {
      */
     public void draw(float[] mvpMatrix, float[] color) {
 
+        // The vertex data is only copied to the GPU once, even if it is drawn several times
+        if (uploadedOffset < 0) {
+            if (compactVertexData != null) {
+                uploadedOffset = vertexBufferManager.upload(compactVertexData, indexBuffer, indexCount);
+            } else {
+                uploadedOffset = vertexBufferManager.upload(vertexBuffer, vertexDataOffset,
+                        vertexDataLength, indexBuffer, indexCount);
+            }
+        }
+
         // Add program to OpenGL environment
         GLES30.glUseProgram(mProgram);
-
-        // Get handle to vertex shader's vPosition member
-        mPositionHandle = GLES30.glGetAttribLocation(mProgram, "vPosition");
-        GLhelper.checkGlError("glGetAttribLocation");
-
-        // Enable a handle to the vertices
-        GLES30.glEnableVertexAttribArray(mPositionHandle);
-
-        // Prepare the triangle coordinate data
-        GLES30.glVertexAttribPointer(
-                mPositionHandle, GLobject.DEFAULT_COORDS_PER_VERTEX,
-                GLES30.GL_FLOAT, false,
-                GLobject.DEFAULT_VERTEX_STRIDE, vertexBufferManager.getCurrentBuffer());
-
-        // get handle to fragment shader's vColor member
-        mColorHandle = GLES30.glGetUniformLocation(mProgram, "vColor");
+        vertexBufferManager.bind();
 
         // Set color for drawing the triangle
         GLES30.glUniform4fv(mColorHandle, 1, color, 0);
 
-        // Get handle to shape's transformation matrix
-        mMVPMatrixHandle = GLES30.glGetUniformLocation(mProgram, "uMVPMatrix");
-        GLhelper.checkGlError("glGetUniformLocation");
-
         // Apply the projection and view transformation
         GLES30.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
-        GLhelper.checkGlError("glUniformMatrix4fv");
 
-        GLES30.glDrawArrays(GLES30.GL_LINES, 0, 2 * numBristles * SEGMENTS_PER_BRISTLE);
+        if (compactVertexData != null) {
+            GLES30.glUniform3fv(mOriginHandle, 1, compactVertexData.getOrigin(), 0);
+            GLES30.glUniform3fv(mScaleHandle, 1, compactVertexData.getScale(), 0);
+        } else {
+            GLES30.glUniform3fv(mOriginHandle, 1, FLOAT_ORIGIN, 0);
+            GLES30.glUniform3fv(mScaleHandle, 1, FLOAT_SCALE, 0);
+        }
+
+        // Every bristle is one strip, which the restart index separates from the next
+        GLES30.glDrawElements(GLES30.GL_LINE_STRIP, indexCount, GLES30.GL_UNSIGNED_INT, uploadedOffset);
+
+        vertexBufferManager.unbind();
+        vertexBufferManager.fenceCurrentRegion();
+    }
+
+    /** Releases the GL resources of the brush */
+    public void destroy() {
+        vertexBufferManager.destroy();
+        GLES30.glDeleteProgram(mProgram);
+    }
+
+    /**
+     * Switches the brush to another archetype of the same settings, by rebuilding its bristles
+     * from the template of the archetype. The physics and the curves which read the bristles have
+     * to update them afterwards.
+     */
+    public void setArchetype(SettingsData settingsData, BrushArchetype archetype) {
+        this.archetype = archetype;
+        brushParamaterDatabaseHandler = new BrushParamaterDatabaseHandler(archetype);
+        bristleStore.rebuild(settingsData, archetype);
+    }
 
-        // Disable vertex array
-        GLES30.glDisableVertexAttribArray(mPositionHandle);
+    public BrushArchetype getArchetype() {
+        return archetype;
     }
 
     public Vector3 getPosition() {
@@ -190,8 +291,20 @@ public class Brush {
         dip = 0;
     }
 
-    public Bristle[] getBristles() {
-        return bristles;
+    public VertexBufferManager getVertexBufferManager() {
+        return vertexBufferManager;
+    }
+
+    public FloatBuffer getPreviewVertexBuffer() {
+        return previewVertexBuffer;
+    }
+
+    public IntBuffer getPreviewIndexBuffer() {
+        return previewIndexBuffer;
+    }
+
+    public BristleStore getBristleStore() {
+        return bristleStore;
     }
 
     public float getVerticalAngle() {
@@ -0,0 +1,46 @@
+package co.adrianblan.fastbrush.globject;
+
+/**
+ * The shapes a brush can have, which differ in how the bristles are laid out and in how they bend.
+ *
+ * The layout scales the circle of bristles into an ellipse at the top and at the bottom of the
+ * bristles, the bending scales the parameters which are measured for the round brush.
+ */
+public enum BrushArchetype {
+
+    // A round brush, which the bristle parameters were measured on
+    ROUND(1f, 1f, 1f, 1f, 1f, 1f),
+
+    // A wide and thin brush, whose bristles splay less to the sides
+    FLAT(1f, 0.3f, 1.1f, 0.3f, 1f, 0.5f),
+
+    // A thin brush which widens towards the tips, and splays widely when pressed
+    FAN(0.6f, 0.15f, 1.5f, 0.15f, 0.9f, 2f),
+
+    // A narrow brush for lines, which bends less and keeps its tip together
+    LINER(0.35f, 0.35f, 0.3f, 0.3f, 0.7f, 0.5f);
+
+    // Scales of the circle of bristle tops, across and along the brush
+    public final float topScaleX;
+    public final float topScaleY;
+
+    // Scales of the circle of bristle bottoms, across and along the brush
+    public final float bottomScaleX;
+    public final float bottomScaleY;
+
+    // Scales how far the bristles bend away from the handle when pressed
+    public final float bendScale;
+
+    // Scales how far the bristles splay to the sides when pressed
+    public final float spreadScale;
+
+    BrushArchetype(float topScaleX, float topScaleY, float bottomScaleX, float bottomScaleY,
+                   float bendScale, float spreadScale) {
+        this.topScaleX = topScaleX;
+        this.topScaleY = topScaleY;
+        this.bottomScaleX = bottomScaleX;
+        this.bottomScaleY = bottomScaleY;
+        this.bendScale = bendScale;
+        this.spreadScale = spreadScale;
+    }
+}
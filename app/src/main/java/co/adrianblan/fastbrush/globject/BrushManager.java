@@ -0,0 +1,160 @@
+package co.adrianblan.fastbrush.globject;
+
+import android.content.Context;
+
+import java.util.EnumSet;
+
+import co.adrianblan.fastbrush.compute.PhysicsCompute;
+import co.adrianblan.fastbrush.settings.SettingsData;
+
+/**
+ * Class which keeps the brush ready for every archetype, so that switching between them does not
+ * rebuild the brush, its physics or its shaders.
+ *
+ * All archetypes share one brush, with its vertex buffers, and one physics, with its worker
+ * thread and compute backend, which read the bristles from one store. Selecting another archetype
+ * copies its bristle template into the store, and uploads the bristles again. The templates of
+ * the other archetypes are built ahead, one at a time while the user is not drawing. The brush is
+ * rebuilt when a setting which shapes it changes.
+ */
+public class BrushManager {
+
+    private final Context context;
+    private final boolean compactVertices;
+    private final boolean gpuBristleCurves;
+    private final boolean contactClipping;
+    private final float contactHeight;
+
+    // The store outlives the brushes, so that its arrays are reused when they are rebuilt
+    private final BristleStore bristleStore = new BristleStore();
+
+    private Brush brush;
+    private PhysicsCompute physicsCompute;
+    private BristleCurveRenderer bristleCurveRenderer;
+
+    // The archetypes whose templates are built for the settings of the brush
+    private final EnumSet<BrushArchetype> warmArchetypes = EnumSet.noneOf(BrushArchetype.class);
+
+    // The settings which the brush was built from
+    private SettingsData brushSettings;
+    private BrushArchetype selected;
+
+    public BrushManager(Context context, boolean compactVertices, boolean gpuBristleCurves,
+                        boolean contactClipping, float contactHeight) {
+        this.context = context;
+        this.compactVertices = compactVertices;
+        this.gpuBristleCurves = gpuBristleCurves;
+        this.contactClipping = contactClipping;
+        this.contactHeight = contactHeight;
+    }
+
+    /**
+     * Selects the archetype of the settings, and builds the brush if the settings shape it
+     * differently. Returns true if the brush changed, in which case its quality has to be set
+     * again. Must not be called while a batch of the physics is pending.
+     */
+    public boolean select(SettingsData settingsData) {
+
+        if (brushSettings == null || !hasSameShape(brushSettings, settingsData)) {
+            destroy();
+            brushSettings = settingsData.clone();
+            selected = settingsData.getBrushArchetype();
+
+            build();
+            return true;
+        }
+
+        if (selected != settingsData.getBrushArchetype()) {
+            selected = settingsData.getBrushArchetype();
+
+            brush.setArchetype(brushSettings, selected);
+            physicsCompute.updateBristles();
+
+            if (bristleCurveRenderer != null) {
+                bristleCurveRenderer.updateBristles();
+            }
+
+            warmArchetypes.add(selected);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Builds the bristle template of one archetype which is not warm yet, and returns true if
+     * there was one.
+     */
+    public boolean warmNext() {
+
+        if (brushSettings == null) {
+            return false;
+        }
+
+        for (BrushArchetype archetype : BrushArchetype.values()) {
+            if (!warmArchetypes.contains(archetype)) {
+                BristleTemplateLibrary.get(archetype, brushSettings.getNumBristles(),
+                        brushSettings.getSize());
+                warmArchetypes.add(archetype);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /** Returns true if two settings give the same brushes, where only the archetype may differ */
+    static boolean hasSameShape(SettingsData first, SettingsData second) {
+        return first.getNumBristles() == second.getNumBristles()
+                && first.getSize() == second.getSize()
+                && first.getPressureFactor() == second.getPressureFactor()
+                && first.getComputeBackend() == second.getComputeBackend()
+                && first.isDynamicBristles() == second.isDynamicBristles();
+    }
+
+    private void build() {
+        brush = new Brush(brushSettings, selected, bristleStore, compactVertices);
+
+        physicsCompute = new PhysicsCompute(context, brush, brushSettings.getComputeBackend(),
+                brushSettings.isDynamicBristles());
+        physicsCompute.setContactClipping(contactClipping, contactHeight);
+
+        if (gpuBristleCurves) {
+            bristleCurveRenderer = new BristleCurveRenderer(bristleStore,
+                    Brush.SEGMENTS_PER_BRISTLE);
+        }
+
+        warmArchetypes.add(selected);
+    }
+
+    /** Releases the brush, which is built again when it is next needed */
+    public void destroy() {
+
+        if (brush != null) {
+            brush.destroy();
+            physicsCompute.destroy();
+
+            if (bristleCurveRenderer != null) {
+                bristleCurveRenderer.destroy();
+            }
+        }
+
+        brush = null;
+        physicsCompute = null;
+        bristleCurveRenderer = null;
+        warmArchetypes.clear();
+    }
+
+    public Brush getBrush() {
+        return brush;
+    }
+
+    public PhysicsCompute getPhysicsCompute() {
+        return physicsCompute;
+    }
+
+    /** Returns the curve renderer of the brush, or null if the curves are computed */
+    public BristleCurveRenderer getBristleCurveRenderer() {
+        return bristleCurveRenderer;
+    }
+}
@@ -2,6 +2,8 @@ package co.adrianblan.fastbrush.settings;
 
 import java.util.Set;
 
+import co.adrianblan.fastbrush.compute.ComputeBackendType;
+import co.adrianblan.fastbrush.globject.BrushArchetype;
 import co.adrianblan.fastbrush.utils.ColorWrapper;
 
 /**
@@ -9,6 +11,7 @@ import co.adrianblan.fastbrush.utils.ColorWrapper;
  */
 public class SettingsData {
 
+    private BrushArchetype brushArchetype;
     private float size;
     private int numBristles;
     private float pressureFactor;
@@ -20,7 +23,14 @@ public class SettingsData {
 
     private boolean showBrushView;
 
+    // The backend which computes the bristles, automatic unless overridden
+    private ComputeBackendType computeBackend;
+
+    // Simulates the bristles with inertia, instead of computing them from the pose alone
+    private boolean dynamicBristles;
+
     public SettingsData(){
+        brushArchetype = BrushArchetype.ROUND;
         size = 0.5f;
         numBristles = 300;
         pressureFactor = 1.0f;
@@ -31,11 +41,15 @@ public class SettingsData {
         colorWrapper = new ColorWrapper(0, 0, 0, 150);
 
         showBrushView = true;
+
+        computeBackend = ComputeBackendType.AUTOMATIC;
+        dynamicBristles = false;
     }
 
     public SettingsData clone() {
         SettingsData sd = new SettingsData();
 
+        sd.setBrushArchetype(brushArchetype);
         sd.setSize(size);
         sd.setNumBristles(numBristles);
         sd.setPressureFactor(pressureFactor);
@@ -47,9 +61,20 @@ public class SettingsData {
 
         sd.setShowBrushView(showBrushView);
 
+        sd.setComputeBackend(computeBackend);
+        sd.setDynamicBristles(dynamicBristles);
+
         return sd;
     }
 
+    public BrushArchetype getBrushArchetype() {
+        return brushArchetype;
+    }
+
+    public void setBrushArchetype(BrushArchetype brushArchetype) {
+        this.brushArchetype = brushArchetype;
+    }
+
     public float getSize() {
         return size;
     }
@@ -113,4 +138,20 @@ public class SettingsData {
     public void setShowBrushView(boolean showBrushView) {
         this.showBrushView = showBrushView;
     }
+
+    public ComputeBackendType getComputeBackend() {
+        return computeBackend;
+    }
+
+    public void setComputeBackend(ComputeBackendType computeBackend) {
+        this.computeBackend = computeBackend;
+    }
+
+    public boolean isDynamicBristles() {
+        return dynamicBristles;
+    }
+
+    public void setDynamicBristles(boolean dynamicBristles) {
+        this.dynamicBristles = dynamicBristles;
+    }
 }
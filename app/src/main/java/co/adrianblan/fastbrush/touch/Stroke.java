@@ -0,0 +1,86 @@
+package co.adrianblan.fastbrush.touch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.adrianblan.fastbrush.settings.SettingsData;
+
+/**
+ * Class which records the touch data of one stroke as it was drawn, along with the settings and
+ * the quality it was drawn with, so that it can be drawn again the same way.
+ */
+public class Stroke {
+
+    private final SettingsData settingsData;
+    private final ArrayList<TouchData> touchDataList = new ArrayList<>();
+
+    // The qualities of the stroke, from the index of the touch data which each one applies from
+    private int[] qualityStarts = new int[4];
+    private float[] bristleFractions = new float[4];
+    private int[] segmentsPerBristle = new int[4];
+    private int numQualities;
+
+    /**
+     * @param settingsData the settings which the stroke is drawn with, which must not change
+     *                     afterwards, but may be shared with other strokes
+     */
+    public Stroke(SettingsData settingsData) {
+        this.settingsData = settingsData;
+    }
+
+    /** Adds the touch data which is drawn next, after the interpolation */
+    public void add(List<TouchData> touchData) {
+        touchDataList.addAll(touchData);
+    }
+
+    /** Sets the quality which the touch data added from now on is drawn with */
+    public void setQuality(float bristleFraction, int segments) {
+
+        // A quality which no touch data was drawn with is replaced
+        if (numQualities > 0 && qualityStarts[numQualities - 1] == touchDataList.size()) {
+            numQualities--;
+        }
+
+        if (numQualities == qualityStarts.length) {
+            qualityStarts = Arrays.copyOf(qualityStarts, numQualities * 2);
+            bristleFractions = Arrays.copyOf(bristleFractions, numQualities * 2);
+            segmentsPerBristle = Arrays.copyOf(segmentsPerBristle, numQualities * 2);
+        }
+
+        qualityStarts[numQualities] = touchDataList.size();
+        bristleFractions[numQualities] = bristleFraction;
+        segmentsPerBristle[numQualities] = segments;
+        numQualities++;
+    }
+
+    public SettingsData getSettingsData() {
+        return settingsData;
+    }
+
+    public ArrayList<TouchData> getTouchDataList() {
+        return touchDataList;
+    }
+
+    public int getNumQualities() {
+        return numQualities;
+    }
+
+    /** Returns the index of the first touch data which a quality applies to */
+    public int getQualityStart(int quality) {
+        return qualityStarts[quality];
+    }
+
+    /** Returns the index after the last touch data which a quality applies to */
+    public int getQualityEnd(int quality) {
+        return quality + 1 < numQualities ? qualityStarts[quality + 1] : touchDataList.size();
+    }
+
+    public float getBristleFraction(int quality) {
+        return bristleFractions[quality];
+    }
+
+    public int getSegmentsPerBristle(int quality) {
+        return segmentsPerBristle[quality];
+    }
+}
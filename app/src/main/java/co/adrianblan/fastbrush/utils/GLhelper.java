@@ -6,6 +6,7 @@ import android.util.Log;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 /** Class which provides helper functions for OpenGL objects */
@@ -30,6 +31,14 @@ public abstract class GLhelper {
         return buffer;
     }
 
+    /** Initializes an int buffer with the given size */
+    public static IntBuffer initIntBuffer(int size) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(size * 4);
+        bb.order(ByteOrder.nativeOrder());
+
+        return bb.asIntBuffer();
+    }
+
     /** Initializes a buffer with the size of content, and places content inside */
     public static ShortBuffer initShortBuffer(short[] content) {
         ByteBuffer bb = ByteBuffer.allocateDirect(content.length * 2);
@@ -50,6 +59,15 @@ public abstract class GLhelper {
      * @param fragmentShaderCode the fragment shader code in a String
      */
     public static void loadShaders(int program, String vertexShaderCode, String fragmentShaderCode) {
+        loadShaders(program, vertexShaderCode, fragmentShaderCode, null);
+    }
+
+    /**
+     * Attaches and links the shaders to a program like the above, where the outputs of the vertex
+     * shader in feedbackVaryings are captured by transform feedback, each into its own buffer.
+     */
+    public static void loadShaders(int program, String vertexShaderCode, String fragmentShaderCode,
+                                   String[] feedbackVaryings) {
         // prepare shaders and OpenGL program
         int vertexShaderId = loadShader(
                 GLES30.GL_VERTEX_SHADER, vertexShaderCode);
@@ -58,6 +76,13 @@ public abstract class GLhelper {
 
         GLES30.glAttachShader(program, vertexShaderId);   // add the vertex shader to program
         GLES30.glAttachShader(program, fragmentShaderId); // add the fragment shader to program
+
+        // The captured outputs have to be known before the program is linked
+        if (feedbackVaryings != null) {
+            GLES30.glTransformFeedbackVaryings(program, feedbackVaryings,
+                    GLES30.GL_SEPARATE_ATTRIBS);
+        }
+
         GLES30.glLinkProgram(program);                  // create OpenGL program executables
     }
 
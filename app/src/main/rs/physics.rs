@@ -3,65 +3,118 @@
 #pragma rs_fp_relaxed
 
 // Script globals
-float BRISTLE_BASE_LENGTH;
-float SEGMENTS_PER_BRISTLE;
-float BRUSH_RADIUS_UPPER;
 
-float3 brushPosition;
+// The number of bristles computed per imprint, every BRISTLE_STRIDE:th bristle of the brush
+int NUM_BRISTLES;
+float BRISTLE_STRIDE;
 
-float planarDistanceFromHandle;
-float upperControlPointLength;
-float lowerControlPointLength;
+// Whether the segments are clipped to the world heights between zero and CONTACT_HEIGHT
+int CONTACT_CLIPPING;
+float CONTACT_HEIGHT;
 
-// The angle of the brush rotation, and the maximum bristle spread angle (in radians)
-float brushHorizontalAngle;
-float bristleHorizontalMaxAngle;
+// Whether the vertices are transformed by the model matrix of their imprint
+int WORLD_SPACE;
+
+// Layout of the parameters of each imprint in inImprintParameters
+static const int IMPRINT_POSITION_X = 0;
+static const int IMPRINT_POSITION_Y = 1;
+static const int IMPRINT_POSITION_Z = 2;
+static const int IMPRINT_PLANAR_DISTANCE_FROM_HANDLE = 3;
+static const int IMPRINT_UPPER_CONTROL_POINT_LENGTH = 4;
+static const int IMPRINT_LOWER_CONTROL_POINT_LENGTH = 5;
+static const int IMPRINT_HORIZONTAL_ANGLE = 6;
+static const int IMPRINT_BRISTLE_HORIZONTAL_MAX_ANGLE = 7;
+static const int IMPRINT_ORTHOGONAL_ANGLE_X = 8;
+static const int IMPRINT_ORTHOGONAL_ANGLE_Y = 9;
+static const int IMPRINT_MODEL_ROW_X = 10;
+static const int IMPRINT_MODEL_ROW_Y = 14;
+static const int IMPRINT_MODEL_ROW_Z = 18;
+static const int IMPRINT_PARAMETER_STRIDE = 22;
+
+float* inImprintParameters;
+
+// The bristles, with one array per value
+float* inBristleTopX;
+float* inBristleTopY;
+float* inBristleTopZ;
+float* inBristleBottomX;
+float* inBristleBottomY;
+float* inBristleBottomZ;
+float* inBristleLength;
+float* inBristleDirectionX;
+float* inBristleDirectionY;
+
+// Where the vertices of each bristle start in outBristlePosition, with the end of the last bristle after them
+int* inBristleOffsets;
 
-float* inBristlePositionTop;
-float* inBristlePositionBottom;
 float* outBristlePosition;
 
+// The number of floats written for each bristle, which is less than its offsets allow when clipped
+int* outBristleLengths;
+
 rs_script script;
 
 void init() {}
 
+// Every x is one bristle of one imprint, all bristles of an imprint are laid out after each other
 void root(uchar4 *in, uint32_t x) {
 
-    int outIndex = x * 2 * 3 * SEGMENTS_PER_BRISTLE;
+    int imprint = x / NUM_BRISTLES;
+    const float* imprintParameters = inImprintParameters + imprint * IMPRINT_PARAMETER_STRIDE;
+
+    float3 brushPosition;
+    brushPosition.x = imprintParameters[IMPRINT_POSITION_X];
+    brushPosition.y = imprintParameters[IMPRINT_POSITION_Y];
+    brushPosition.z = imprintParameters[IMPRINT_POSITION_Z];
+
+    float planarDistanceFromHandle = imprintParameters[IMPRINT_PLANAR_DISTANCE_FROM_HANDLE];
+    float upperControlPointLength = imprintParameters[IMPRINT_UPPER_CONTROL_POINT_LENGTH];
+    float lowerControlPointLength = imprintParameters[IMPRINT_LOWER_CONTROL_POINT_LENGTH];
+
+    // The angle of the brush rotation, and the maximum bristle spread angle (in radians)
+    float brushHorizontalAngle = imprintParameters[IMPRINT_HORIZONTAL_ANGLE];
+    float bristleHorizontalMaxAngle = imprintParameters[IMPRINT_BRISTLE_HORIZONTAL_MAX_ANGLE];
+
+    // A vector which points to the orthogonal angle to where the brush is pointing, computed once per imprint
+    float2 brushOrthogonalAngleVector;
+    brushOrthogonalAngleVector.x = imprintParameters[IMPRINT_ORTHOGONAL_ANGLE_X];
+    brushOrthogonalAngleVector.y = imprintParameters[IMPRINT_ORTHOGONAL_ANGLE_Y];
+
+    // The rows of the model matrix, the last of which gives the world height of a vertex
+    // The parameters are not aligned for vector loads, so the rows are read one value at a time
+    const float* rowX = imprintParameters + IMPRINT_MODEL_ROW_X;
+    const float* rowY = imprintParameters + IMPRINT_MODEL_ROW_Y;
+    const float* rowZ = imprintParameters + IMPRINT_MODEL_ROW_Z;
+
+    float4 modelRowX = {rowX[0], rowX[1], rowX[2], rowX[3]};
+    float4 modelRowY = {rowY[0], rowY[1], rowY[2], rowY[3]};
+    float4 heightRow = {rowZ[0], rowZ[1], rowZ[2], rowZ[3]};
+
+    // Every bristle is one strip with its own number of segments, of three floats per point
+    int lengthIndex = x;
+    int outIndex = inBristleOffsets[x];
+    int bristleStart = outIndex;
+    int segments = (inBristleOffsets[x + 1] - outIndex) / 3 - 1;
+
+    // The bristle data is shared between all imprints
+    x = (int) ((x - imprint * NUM_BRISTLES) * BRISTLE_STRIDE);
 
     float3 bristlePositionTop;
-    bristlePositionTop.x = inBristlePositionTop[x * 3];
-    bristlePositionTop.y = inBristlePositionTop[x * 3 + 1];
-    bristlePositionTop.z = inBristlePositionTop[x * 3 + 2];
+    bristlePositionTop.x = inBristleTopX[x];
+    bristlePositionTop.y = inBristleTopY[x];
+    bristlePositionTop.z = inBristleTopZ[x];
     bristlePositionTop += brushPosition;
 
     float3 bristlePositionBottom;
-    bristlePositionBottom.x = inBristlePositionBottom[x * 3];
-    bristlePositionBottom.y = inBristlePositionBottom[x * 3 + 1];
-    bristlePositionBottom.z = inBristlePositionBottom[x * 3 + 2];
+    bristlePositionBottom.x = inBristleBottomX[x];
+    bristlePositionBottom.y = inBristleBottomY[x];
+    bristlePositionBottom.z = inBristleBottomZ[x];
     bristlePositionBottom += brushPosition;
 
-    float bristleLength = fast_distance(bristlePositionTop, bristlePositionBottom);
-
-    float bristleHorizontalRatio =
-        inBristlePositionTop[x * 3] / BRUSH_RADIUS_UPPER;
-    float bristleVerticalRatio =
-        inBristlePositionTop[x * 3 + 1] / BRUSH_RADIUS_UPPER;
-
-    // A vector which points to the bristle position
+    // The normalized vector which points to the bristle position, precomputed per bristle
     float2 bristleVector;
-    bristleVector.x = bristleHorizontalRatio;
-    bristleVector.y = bristleVerticalRatio;
-    bristleVector = normalize(bristleVector);
-
-    // Degree the brush vector is offset by
-    float orthogonalOffset = M_PI_4;
-
-    // A vector which points to the orthogonal angle to where the brush is pointing
-    float2 brushOrthogonalAngleVector;
-    brushOrthogonalAngleVector.x = cos(brushHorizontalAngle + orthogonalOffset);
-    brushOrthogonalAngleVector.y = sin(brushHorizontalAngle + orthogonalOffset);
-    brushOrthogonalAngleVector = normalize(brushOrthogonalAngleVector);
+    bristleVector.x = inBristleDirectionX[x];
+    bristleVector.y = inBristleDirectionY[x];
 
     float bristleShiftMagnitude = dot(brushOrthogonalAngleVector, bristleVector);
 
@@ -73,70 +126,131 @@ void root(uchar4 *in, uint32_t x) {
     // Takes positive bottom positions
     float bottom = fmax(bristlePositionBottom.z, 0);
 
+    // The control points of the curve, the end point of z is the same as the third
+    float3 secondControlPoint;
+    secondControlPoint.x = bristlePositionTop.x
+        - (bristlePositionTop.x - bristlePositionBottom.x) * upperControlPointLength;
+    secondControlPoint.y = bristlePositionTop.y
+        - (bristlePositionTop.y - bristlePositionBottom.y) * upperControlPointLength;
+    secondControlPoint.z = bristlePositionTop.z
+        - (bristlePositionTop.z - bottom) * upperControlPointLength;
+
+    // A vector which points in the direction the bristle is extended
+    float2 bristleAngleVector;
+    bristleAngleVector.x = cosBrushHorizontalValue;
+    bristleAngleVector.y = sinBrushHorizontalValue;
+
+    float2 thirdControlPoint = bristlePositionBottom.xy
+        + bristleAngleVector * (planarDistanceFromHandle - lowerControlPointLength);
+    float2 fourthControlPoint = bristlePositionBottom.xy + bristleAngleVector * planarDistanceFromHandle;
+
+    float segmentScale = inBristleLength[x] / segments;
+
     float3 interpolatedPosition = bristlePositionTop;
     float scale;
+    float inverseScale;
     float firstFactor;
     float secondFactor;
     float thirdFactor;
     float fourthFactor;
 
-    for(int i = 1; i <= SEGMENTS_PER_BRISTLE; i++) {
+    // Whether the last written point ends the strip, which a clipped segment interrupts
+    bool stripOpen = false;
 
-        outBristlePosition[outIndex] = interpolatedPosition.x;
-        outBristlePosition[outIndex + 1] = interpolatedPosition.y;
-        outBristlePosition[outIndex + 2] = interpolatedPosition.z;
-        outIndex += 3;
+    for(int i = 1; i <= segments; i++) {
+
+        float3 previousPosition = interpolatedPosition;
 
-        scale = ((float) i / SEGMENTS_PER_BRISTLE) * (bristleLength / BRISTLE_BASE_LENGTH);
-        firstFactor = (1 - scale) * (1 - scale) * (1 - scale);
-        secondFactor = 3 * (1 - scale) * (1 - scale) * scale;
-        thirdFactor = 3 * (1 - scale) * scale * scale;
+        scale = i * segmentScale;
+        inverseScale = 1 - scale;
+        firstFactor = inverseScale * inverseScale * inverseScale;
+        secondFactor = 3 * inverseScale * inverseScale * scale;
+        thirdFactor = 3 * inverseScale * scale * scale;
         fourthFactor = scale * scale * scale;
 
         // We do not perform any "rotation", we simply choose the extended bristles from their angle
-        interpolatedPosition.x =
-            firstFactor
-                * bristlePositionTop.x
-            + secondFactor
-                * (bristlePositionTop.x - (bristlePositionTop.x - bristlePositionBottom.x)
-                * upperControlPointLength)
-            + thirdFactor
-                * (bristlePositionBottom.x
-                    + cosBrushHorizontalValue * (planarDistanceFromHandle - lowerControlPointLength))
-            + fourthFactor
-                * (bristlePositionBottom.x + cosBrushHorizontalValue * planarDistanceFromHandle);
-
-        interpolatedPosition.y =
-            firstFactor
-                * bristlePositionTop.y
-            + secondFactor
-                * (bristlePositionTop.y - (bristlePositionTop.y - bristlePositionBottom.y)
-                * upperControlPointLength)
-            + thirdFactor
-                * (bristlePositionBottom.y
-                    + sinBrushHorizontalValue * (planarDistanceFromHandle - lowerControlPointLength))
-            + fourthFactor
-                * (bristlePositionBottom.y + sinBrushHorizontalValue * planarDistanceFromHandle);
+        interpolatedPosition.xy =
+            firstFactor * bristlePositionTop.xy
+            + secondFactor * secondControlPoint.xy
+            + thirdFactor * thirdControlPoint
+            + fourthFactor * fourthControlPoint;
 
         interpolatedPosition.z =
-            firstFactor
-                * bristlePositionTop.z
-            + secondFactor
-                * (bristlePositionTop.z - (bristlePositionTop.z - bottom)
-                * upperControlPointLength)
-            + thirdFactor
-                * bottom
-            + fourthFactor
-                * bottom;
-
-        outBristlePosition[outIndex] = interpolatedPosition.x;
-        outBristlePosition[outIndex + 1] = interpolatedPosition.y;
-        outBristlePosition[outIndex + 2] = interpolatedPosition.z;
+            firstFactor * bristlePositionTop.z
+            + secondFactor * secondControlPoint.z
+            + (thirdFactor + fourthFactor) * bottom;
+
+        float3 start = previousPosition;
+        float3 end = interpolatedPosition;
+        float exit = 1;
+
+        if (CONTACT_CLIPPING) {
+
+            // The height is affine, so the segment can be clipped along its parameter
+            float previousHeight = dot(heightRow.xyz, previousPosition) + heightRow.w;
+            float height = dot(heightRow.xyz, interpolatedPosition) + heightRow.w;
+
+            float enter = 0;
+            float heightChange = height - previousHeight;
+
+            if (heightChange != 0) {
+                float paper = -previousHeight / heightChange;
+                float contact = (CONTACT_HEIGHT - previousHeight) / heightChange;
+                enter = fmax(enter, fmin(paper, contact));
+                exit = fmin(exit, fmax(paper, contact));
+            } else if (previousHeight < 0 || previousHeight > CONTACT_HEIGHT) {
+                stripOpen = false;
+                continue;
+            }
+
+            if (enter >= exit) {
+                stripOpen = false;
+                continue;
+            }
+
+            float3 change = interpolatedPosition - previousPosition;
+            start = previousPosition + change * enter;
+            end = previousPosition + change * exit;
+        }
+
+        if (WORLD_SPACE) {
+            float3 worldStart = {dot(modelRowX.xyz, start) + modelRowX.w,
+                dot(modelRowY.xyz, start) + modelRowY.w, dot(heightRow.xyz, start) + heightRow.w};
+            float3 worldEnd = {dot(modelRowX.xyz, end) + modelRowX.w,
+                dot(modelRowY.xyz, end) + modelRowY.w, dot(heightRow.xyz, end) + heightRow.w};
+
+            start = worldStart;
+            end = worldEnd;
+        }
+
+        // A new strip replaces the earlier one, since the part nearest the tip is kept
+        if (!stripOpen) {
+            outIndex = bristleStart;
+            outBristlePosition[outIndex] = start.x;
+            outBristlePosition[outIndex + 1] = start.y;
+            outBristlePosition[outIndex + 2] = start.z;
+            outIndex += 3;
+        }
+
+        outBristlePosition[outIndex] = end.x;
+        outBristlePosition[outIndex + 1] = end.y;
+        outBristlePosition[outIndex + 2] = end.z;
         outIndex += 3;
+
+        // The strip continues if the segment did not leave the paper
+        stripOpen = exit == 1;
     }
+
+    outBristleLengths[lengthIndex] = outIndex - bristleStart;
 }
 
-void compute (rs_allocation in) {
+// Computes the bristles of the first numImprints imprints in one launch
+void compute (rs_allocation in, int numImprints) {
     rs_allocation outIgnored;
-    rsForEach(script, in, outIgnored);
+
+    rs_script_call_t sc = {0};
+    sc.xStart = 0;
+    sc.xEnd = numImprints * NUM_BRISTLES;
+
+    rsForEach(script, in, outIgnored, NULL, 0, &sc);
 }
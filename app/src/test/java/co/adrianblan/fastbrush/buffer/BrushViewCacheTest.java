@@ -0,0 +1,71 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for when the brush view cache draws the views again, which needs no GPU.
+ */
+public class BrushViewCacheTest {
+
+    private static final float THRESHOLD = 0.01f;
+    private static final long INTERVAL = 1000;
+
+    private BrushViewCache cache;
+    private float[] pose;
+
+    @Before
+    public void setUp() {
+        cache = new BrushViewCache(200, 100, 0, 0, 49, 29, THRESHOLD, INTERVAL);
+        pose = new float[16];
+        pose[0] = pose[5] = pose[10] = pose[15] = 1f;
+    }
+
+    @Test
+    public void firstFrame_needsUpdate() {
+        assertTrue(cache.needsUpdate(pose, 0));
+        assertFalse(cache.needsUpdate(pose, INTERVAL * 10));
+        assertEquals(1, cache.getNumUpdates());
+    }
+
+    @Test
+    public void smallMoves_keepCache() {
+        cache.needsUpdate(pose, 0);
+
+        pose[12] += THRESHOLD / 2;
+        assertFalse(cache.needsUpdate(pose, INTERVAL));
+
+        // The change is measured from the pose the views were drawn with, so small moves add up
+        pose[12] += THRESHOLD;
+        assertTrue(cache.needsUpdate(pose, INTERVAL));
+    }
+
+    @Test
+    public void updates_areRateCapped() {
+        cache.needsUpdate(pose, 0);
+
+        // Every frame moves the brush, but only one frame per interval draws the views
+        int numUpdates = 0;
+
+        for (long time = 1; time <= INTERVAL * 5 + 1; time += INTERVAL / 10) {
+            pose[12] += THRESHOLD * 2;
+
+            if (cache.needsUpdate(pose, time)) {
+                numUpdates++;
+            }
+        }
+
+        assertEquals(5, numUpdates);
+    }
+
+    @Test
+    public void invalidate_needsUpdate() {
+        cache.needsUpdate(pose, 0);
+        assertFalse(cache.needsUpdate(pose, INTERVAL));
+
+        cache.invalidate();
+        assertTrue(cache.needsUpdate(pose, INTERVAL + 1));
+    }
+}
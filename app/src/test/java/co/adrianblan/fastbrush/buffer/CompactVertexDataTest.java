@@ -0,0 +1,86 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.compute.BristleComputeBackend;
+import co.adrianblan.fastbrush.compute.BristleKernel;
+import co.adrianblan.fastbrush.compute.BrushSnapshot;
+import co.adrianblan.fastbrush.compute.JavaComputeBackend;
+import co.adrianblan.fastbrush.compute.TestBrushes;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compact vertex data, against the float vertex data it is encoded from.
+ */
+public class CompactVertexDataTest {
+
+    private static final int NUM_BRISTLES = 300;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+    private static final int NUM_IMPRINTS = 8;
+
+    // The paper spans two units over the height of the screen, of a large display
+    private static final float PIXELS_PER_UNIT = 2560 / 2f;
+
+    @Test
+    public void compactImprints_matchFloatImprints() {
+        BristleKernel kernel = new BristleKernel(TestBrushes.createBristleStore(NUM_BRISTLES, 3),
+                SEGMENTS_PER_BRISTLE);
+        BristleComputeBackend backend = new JavaComputeBackend(kernel);
+        backend.setWorldSpace(true);
+        backend.setContactClipping(true, 0.04f);
+
+        // A stroke across the whole paper, so that the bounds are as large as they get
+        BrushSnapshot[] snapshots = new BrushSnapshot[NUM_IMPRINTS];
+        for (int i = 0; i < NUM_IMPRINTS; i++) {
+            snapshots[i] = TestBrushes.createSnapshot(-1.7f + 3.4f * i / (NUM_IMPRINTS - 1),
+                    -0.9f + 1.8f * i / (NUM_IMPRINTS - 1), 0.75f, 0.4f * i, 3f * i);
+        }
+
+        FloatBuffer floats = FloatBuffer.allocate(NUM_IMPRINTS * kernel.getFloatsPerImprint());
+        int[] imprintOffsets = new int[NUM_IMPRINTS + 1];
+        backend.computeVertexData(snapshots, NUM_IMPRINTS, floats, imprintOffsets,
+                new int[NUM_IMPRINTS * NUM_BRISTLES]);
+
+        int length = imprintOffsets[NUM_IMPRINTS];
+        assertTrue(length > 0);
+
+        CompactVertexData compactVertexData = new CompactVertexData(length / 3);
+        compactVertexData.encode(floats, 0, length);
+
+        // The visual difference to the floats, in pixels on the paper
+        float maxError = 0;
+        for (int v = 0; v < length / 3; v++) {
+            for (int k = 0; k < 2; k++) {
+                float error = Math.abs(compactVertexData.decode(v, k) - floats.get(v * 3 + k));
+                maxError = Math.max(maxError, error * PIXELS_PER_UNIT);
+            }
+
+            // The heights stay on the paper
+            float height = compactVertexData.decode(v, 2);
+            assertTrue(height >= -0.0001f && height <= 0.0401f);
+        }
+
+        assertTrue("Compact vertices differ by " + maxError + " pixels", maxError < 0.1f);
+
+        // Four shorts instead of three floats, two thirds of the bytes
+        assertEquals(length / 3 * CompactVertexData.SHORTS_PER_VERTEX, compactVertexData.getLength());
+        assertEquals(2 * 4 * length, 3 * 2 * compactVertexData.getLength());
+    }
+
+    @Test
+    public void flatBounds_areRestored() {
+        FloatBuffer floats = FloatBuffer.wrap(new float[] {0.5f, -0.25f, 0f, 0.5f, -0.25f, 0f});
+
+        CompactVertexData compactVertexData = new CompactVertexData(2);
+        compactVertexData.encode(floats, 0, 6);
+
+        for (int v = 0; v < 2; v++) {
+            assertEquals(0.5f, compactVertexData.decode(v, 0), 0f);
+            assertEquals(-0.25f, compactVertexData.decode(v, 1), 0f);
+            assertEquals(0f, compactVertexData.decode(v, 2), 0f);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compressed tile store, which spills to a temporary directory.
+ */
+public class CompressedTileStoreTest {
+
+    private static final int STEP_BYTES = 64 * 64 * TileUndoHistory.BYTES_PER_PIXEL;
+
+    private File directory;
+    private CompressedTileStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("tiles", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.destroy();
+        }
+
+        // Waits for the files to be deleted by the store
+        store = new CompressedTileStore(directory, 0, 0);
+        store.take(0).get();
+        store.destroy();
+
+        File[] files = directory.listFiles();
+        assertEquals(0, files == null ? 0 : files.length);
+        directory.delete();
+    }
+
+    @Test
+    public void compress_roundTrips() throws Exception {
+        byte[] pixels = pixels(1);
+        byte[] compressed = CompressedTileStore.compress(pixels);
+
+        assertArrayEquals(pixels, CompressedTileStore.decompress(compressed, pixels.length));
+    }
+
+    @Test
+    public void flatPixels_compressWell() throws Exception {
+        store = new CompressedTileStore(directory, Long.MAX_VALUE, Long.MAX_VALUE);
+        store.put(0, new int[] {0, 0, 64, 64}, 1, new byte[STEP_BYTES]);
+
+        CompressedTileStore.Tiles tiles = store.take(0).get();
+        assertArrayEquals(new byte[STEP_BYTES], tiles.pixels);
+        assertTrue(store.getCompressionRatio() < 0.1f);
+    }
+
+    @Test
+    public void take_restoresSpilledSteps() throws Exception {
+        // Nothing fits in memory, so every step is spilled to a file
+        store = new CompressedTileStore(directory, 0, Long.MAX_VALUE);
+
+        for (int i = 0; i < 3; i++) {
+            store.put(i, new int[] {i, 0, 64, 64}, 1, pixels(i));
+        }
+
+        for (int i = 2; i >= 0; i--) {
+            CompressedTileStore.Tiles tiles = store.take(i).get();
+            assertEquals(i, tiles.rects[0]);
+            assertArrayEquals(pixels(i), tiles.pixels);
+        }
+
+        assertEquals(0, store.getMemoryBytes());
+        assertEquals(0, store.getDiskBytes());
+    }
+
+    @Test
+    public void diskBudget_forgetsLeastRecentlyUsed() throws Exception {
+        store = new CompressedTileStore(directory, 0, 1);
+
+        store.put(0, new int[] {0, 0, 64, 64}, 1, pixels(0));
+        store.put(1, new int[] {0, 0, 64, 64}, 1, pixels(1));
+
+        // Every step is over the budget of the files, so none of them is kept
+        assertNull(store.take(0).get());
+        assertNull(store.take(1).get());
+        assertEquals(0, store.getDiskBytes());
+    }
+
+    @Test
+    public void clear_forgetsAllSteps() throws Exception {
+        store = new CompressedTileStore(directory, 1, Long.MAX_VALUE);
+
+        store.put(0, new int[] {0, 0, 64, 64}, 1, pixels(0));
+        store.put(1, new int[] {0, 0, 64, 64}, 1, pixels(1));
+        store.clear();
+
+        assertNull(store.take(1).get());
+        assertEquals(0, store.getMemoryBytes());
+        assertEquals(0, store.getDiskBytes());
+    }
+
+    /** Returns the pixels of a step, which are noisy so that they do not compress away */
+    private static byte[] pixels(int seed) {
+        byte[] pixels = new byte[STEP_BYTES];
+        new Random(seed).nextBytes(pixels);
+        return pixels;
+    }
+}
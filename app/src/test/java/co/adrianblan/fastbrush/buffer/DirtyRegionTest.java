@@ -0,0 +1,71 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the dirty region, on a small screen.
+ */
+public class DirtyRegionTest {
+
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 100;
+
+    @Test
+    public void rects_areClampedToScreen() {
+        DirtyRegion region = new DirtyRegion(WIDTH, HEIGHT, 4);
+
+        region.add(-10, -10, 9, 9);
+        region.add(300, 0, 400, 10);
+
+        assertEquals(1, region.getNumRects());
+        assertEquals(0, region.getX(0));
+        assertEquals(0, region.getY(0));
+        assertEquals(10, region.getWidth(0));
+        assertEquals(10, region.getHeight(0));
+        assertEquals(100, region.getArea());
+    }
+
+    @Test
+    public void touchingRects_areMerged() {
+        DirtyRegion region = new DirtyRegion(WIDTH, HEIGHT, 4);
+
+        region.add(0, 0, 9, 9);
+        region.add(50, 0, 59, 9);
+        assertEquals(2, region.getNumRects());
+
+        // Bridges the two rectangles, so all three become one
+        region.add(10, 0, 49, 9);
+        assertEquals(1, region.getNumRects());
+        assertEquals(600, region.getArea());
+    }
+
+    @Test
+    public void tooManyRects_mergeWithClosest() {
+        DirtyRegion region = new DirtyRegion(WIDTH, HEIGHT, 2);
+
+        region.add(0, 0, 9, 9);
+        region.add(150, 80, 159, 89);
+        region.add(20, 0, 29, 9);
+
+        // The new rectangle is merged with the one next to it, not the far one
+        assertEquals(2, region.getNumRects());
+        assertEquals(300 + 100, region.getArea());
+    }
+
+    @Test
+    public void invalidate_coversScreen() {
+        DirtyRegion region = new DirtyRegion(WIDTH, HEIGHT, 4);
+
+        region.add(0, 0, 9, 9);
+        assertFalse(region.isFull());
+
+        region.invalidate();
+        assertTrue(region.isFull());
+        assertEquals(WIDTH * HEIGHT, region.getArea());
+
+        region.clear();
+        assertEquals(0, region.getNumRects());
+    }
+}
@@ -0,0 +1,228 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.adrianblan.fastbrush.touch.Stroke;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the stroke history, against a canvas which records the strokes drawn on it.
+ */
+public class StrokeHistoryTest {
+
+    /** A canvas whose content is the indices of the strokes on it, in the order they were drawn */
+    private static class RecordingCanvas implements StrokeHistory.Canvas {
+
+        final List<Integer> content = new ArrayList<>();
+        final Map<Integer, List<Integer>> checkpoints = new HashMap<>();
+        final List<Stroke> strokes = new ArrayList<>();
+
+        // Strokes from this index keep their tiles, so they are undone without a replay
+        int firstKeptStroke = Integer.MAX_VALUE;
+        int numReplayed;
+
+        /** Draws a new stroke, and adds it to the history in place of the undone ones */
+        void draw(StrokeHistory history) {
+            while (strokes.size() > history.getNumApplied()) {
+                strokes.remove(strokes.size() - 1);
+            }
+
+            Stroke stroke = new Stroke(null);
+            strokes.add(stroke);
+            content.add(history.getNumApplied());
+            history.add(stroke);
+        }
+
+        @Override
+        public boolean undoStroke(int stroke) {
+
+            if (stroke < firstKeptStroke) {
+                return false;
+            }
+
+            assertEquals(stroke, (int) content.remove(content.size() - 1));
+            return true;
+        }
+
+        @Override
+        public void drawStroke(Stroke stroke, int index) {
+            assertSame(strokes.get(index), stroke);
+            content.add(index);
+            numReplayed++;
+        }
+
+        @Override
+        public void saveCheckpoint(int slot) {
+            checkpoints.put(slot, new ArrayList<>(content));
+        }
+
+        @Override
+        public void restoreCheckpoint(int slot) {
+            content.clear();
+            content.addAll(checkpoints.get(slot));
+        }
+
+        @Override
+        public void clear() {
+            content.clear();
+        }
+    }
+
+    private RecordingCanvas canvas;
+
+    @Before
+    public void setUp() {
+        canvas = new RecordingCanvas();
+    }
+
+    @Test
+    public void undo_replaysFromCheckpoint() {
+        StrokeHistory history = new StrokeHistory(canvas, 4, 2);
+
+        for (int i = 0; i < 10; i++) {
+            canvas.draw(history);
+        }
+
+        assertTrue(history.undo());
+        assertEquals(range(9), canvas.content);
+
+        // Only the stroke after the checkpoint at eight strokes is drawn again
+        assertEquals(1, canvas.numReplayed);
+    }
+
+    @Test
+    public void keptTiles_avoidReplay() {
+        StrokeHistory history = new StrokeHistory(canvas, 4, 2);
+        canvas.firstKeptStroke = 5;
+
+        for (int i = 0; i < 10; i++) {
+            canvas.draw(history);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(history.undo());
+        }
+
+        assertEquals(range(5), canvas.content);
+        assertEquals(0, canvas.numReplayed);
+
+        assertTrue(history.undo());
+        assertEquals(range(4), canvas.content);
+        assertEquals(0, canvas.numReplayed);
+    }
+
+    @Test
+    public void everyStroke_canBeUndone() {
+        StrokeHistory history = new StrokeHistory(canvas, 3, 2);
+
+        for (int i = 0; i < 20; i++) {
+            canvas.draw(history);
+        }
+
+        for (int i = 19; i >= 0; i--) {
+            assertTrue(history.undo());
+            assertEquals(range(i), canvas.content);
+        }
+
+        assertFalse(history.undo());
+    }
+
+    @Test
+    public void redo_drawsStrokesAgain() {
+        StrokeHistory history = new StrokeHistory(canvas, 4, 2);
+
+        for (int i = 0; i < 6; i++) {
+            canvas.draw(history);
+        }
+
+        history.undo();
+        history.undo();
+        history.undo();
+        assertEquals(range(3), canvas.content);
+
+        assertTrue(history.redo());
+        assertTrue(history.redo());
+        assertTrue(history.redo());
+        assertFalse(history.redo());
+        assertEquals(range(6), canvas.content);
+
+        // The checkpoint at four strokes is still valid after the redo
+        assertTrue(history.undo());
+        assertEquals(range(5), canvas.content);
+    }
+
+    @Test
+    public void newStroke_discardsRedo() {
+        StrokeHistory history = new StrokeHistory(canvas, 2, 2);
+
+        for (int i = 0; i < 5; i++) {
+            canvas.draw(history);
+        }
+
+        history.undo();
+        history.undo();
+        history.undo();
+        canvas.draw(history);
+
+        assertEquals(3, history.getNumStrokes());
+        assertFalse(history.redo());
+
+        // The checkpoint at four strokes was of the discarded strokes, and is taken again
+        assertEquals(1, history.getNumCheckpoints());
+        canvas.draw(history);
+        assertEquals(2, history.getNumCheckpoints());
+        assertEquals(4, history.getCheckpointStrokes(1));
+
+        canvas.numReplayed = 0;
+        history.undo();
+        assertEquals(range(3), canvas.content);
+        assertEquals(1, canvas.numReplayed);
+    }
+
+    @Test
+    public void checkpoints_thinOutTowardsStart() {
+        StrokeHistory history = new StrokeHistory(canvas, 1, 3);
+
+        for (int i = 0; i < 40; i++) {
+            canvas.draw(history);
+        }
+
+        assertEquals(3, history.getNumCheckpoints());
+        assertEquals(40, history.getCheckpointStrokes(2));
+        assertTrue(history.getCheckpointStrokes(0) < history.getCheckpointStrokes(1));
+        assertTrue(history.getCheckpointStrokes(1) < history.getCheckpointStrokes(2));
+    }
+
+    @Test
+    public void clear_forgetsAllStrokes() {
+        StrokeHistory history = new StrokeHistory(canvas, 2, 2);
+
+        for (int i = 0; i < 5; i++) {
+            canvas.draw(history);
+        }
+
+        history.clear();
+        assertEquals(0, history.getNumStrokes());
+        assertFalse(history.undo());
+        assertFalse(history.redo());
+    }
+
+    /** Returns the indices of the first strokes */
+    private static List<Integer> range(int numStrokes) {
+        Integer[] indices = new Integer[numStrokes];
+
+        for (int i = 0; i < numStrokes; i++) {
+            indices[i] = i;
+        }
+
+        return Arrays.asList(indices);
+    }
+}
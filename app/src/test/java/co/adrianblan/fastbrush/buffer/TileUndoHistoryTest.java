@@ -0,0 +1,265 @@
+package co.adrianblan.fastbrush.buffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the tile undo history, against a canvas of pixels in memory.
+ */
+public class TileUndoHistoryTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 16;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * TileUndoHistory.BYTES_PER_PIXEL;
+
+    /** Copies tiles between an array of pixels and a map of slots */
+    private static class MemoryTileCopier implements TileUndoHistory.TileCopier {
+
+        final int[] canvas = new int[WIDTH * HEIGHT];
+        final Map<Integer, int[]> slots = new HashMap<>();
+        int numSaves;
+
+        @Override
+        public void saveTile(int slot, int x, int y, int width, int height) {
+            int[] pixels = new int[width * height];
+
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(canvas, (y + row) * WIDTH + x, pixels, row * width, width);
+            }
+
+            slots.put(slot, pixels);
+            numSaves++;
+        }
+
+        @Override
+        public void restoreTile(int slot, int x, int y, int width, int height) {
+            int[] pixels = slots.get(slot);
+
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(pixels, row * width, canvas, (y + row) * WIDTH + x, width);
+            }
+        }
+
+        /** Fills a rectangle of the canvas, after the history has prepared it */
+        void fill(TileUndoHistory history, int left, int bottom, int right, int top, int color) {
+            history.prepareWrite(left, bottom, right, top);
+
+            for (int y = Math.max(0, bottom); y <= Math.min(HEIGHT - 1, top); y++) {
+                for (int x = Math.max(0, left); x <= Math.min(WIDTH - 1, right); x++) {
+                    canvas[y * WIDTH + x] = color;
+                }
+            }
+        }
+    }
+
+    /** Keeps the pixels of evicted steps in a map, as the canvas had them when they were saved */
+    private static class MemoryTileOffloader implements TileUndoHistory.TileOffloader {
+
+        final MemoryTileCopier copier;
+        final Map<Integer, int[][]> steps = new HashMap<>();
+        final Map<Integer, int[]> stepRects = new HashMap<>();
+
+        MemoryTileOffloader(MemoryTileCopier copier) {
+            this.copier = copier;
+        }
+
+        @Override
+        public void offload(int stroke, int[] rects, int[] slots, int numTiles) {
+            int[][] tiles = new int[numTiles][];
+
+            for (int i = 0; i < numTiles; i++) {
+                tiles[i] = copier.slots.get(slots[i]).clone();
+            }
+
+            steps.put(stroke, tiles);
+            stepRects.put(stroke, rects);
+        }
+
+        @Override
+        public boolean restore(int stroke) {
+            int[][] tiles = steps.remove(stroke);
+            int[] rects = stepRects.remove(stroke);
+
+            if (tiles == null) {
+                return false;
+            }
+
+            for (int i = 0; i < tiles.length; i++) {
+                for (int row = 0; row < rects[i * 4 + 3]; row++) {
+                    System.arraycopy(tiles[i], row * rects[i * 4 + 2], copier.canvas,
+                            (rects[i * 4 + 1] + row) * WIDTH + rects[i * 4], rects[i * 4 + 2]);
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void discard(int stroke) {
+            steps.remove(stroke);
+            stepRects.remove(stroke);
+        }
+
+        @Override
+        public void clear() {
+            steps.clear();
+            stepRects.clear();
+        }
+    }
+
+    private MemoryTileCopier copier;
+
+    @Before
+    public void setUp() {
+        copier = new MemoryTileCopier();
+    }
+
+    @Test
+    public void undo_restoresCanvas() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, Long.MAX_VALUE / 2);
+
+        history.beginStroke(0);
+        copier.fill(history, 10, 10, 40, 30, 1);
+        int[] afterFirst = copier.canvas.clone();
+
+        // A stroke over the edge of the canvas, which has partial tiles
+        history.beginStroke(1);
+        copier.fill(history, 20, 20, 140, 90, 2);
+        copier.fill(history, -5, -5, 3, 3, 3);
+
+        assertEquals(2, history.getNumSteps());
+        assertTrue(history.undo());
+        assertArrayEquals(afterFirst, copier.canvas);
+
+        assertTrue(history.undo());
+        assertArrayEquals(new int[WIDTH * HEIGHT], copier.canvas);
+        assertFalse(history.undo());
+        assertEquals(0, history.getNumSavedTiles());
+    }
+
+    @Test
+    public void tiles_areSavedOncePerStroke() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, Long.MAX_VALUE / 2);
+
+        history.beginStroke(0);
+        copier.fill(history, 0, 0, 20, 10, 1);
+        copier.fill(history, 5, 5, 25, 20, 1);
+
+        // Four tiles, where only the first write to each one saves it
+        assertEquals(4, copier.numSaves);
+
+        history.beginStroke(1);
+        copier.fill(history, 0, 0, 5, 5, 2);
+        assertEquals(5, copier.numSaves);
+        assertEquals(5, history.getNumSavedTiles());
+    }
+
+    @Test
+    public void emptyStroke_isNotAStep() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, Long.MAX_VALUE / 2);
+
+        history.beginStroke(0);
+        copier.fill(history, 0, 0, 5, 5, 1);
+        history.beginStroke(1);
+        history.beginStroke(2);
+
+        assertEquals(1, history.getNumSteps());
+    }
+
+    @Test
+    public void budget_forgetsOldestSteps() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, 4 * TILE_BYTES);
+        assertEquals(4, history.getMaxSlots());
+
+        for (int i = 0; i < 3; i++) {
+            history.beginStroke(i);
+            copier.fill(history, 40 * i, 0, 40 * i + 20, 10, i + 1);
+        }
+
+        // Each stroke takes two tiles, so only the latest two steps fit
+        assertEquals(2, history.getNumSteps());
+        assertTrue(history.getNumSavedTiles() <= 4);
+
+        assertTrue(history.undo());
+        assertTrue(history.undo());
+        assertFalse(history.undo());
+
+        // The first stroke could not be undone
+        assertEquals(1, copier.canvas[0]);
+        assertEquals(0, copier.canvas[40]);
+    }
+
+    @Test
+    public void evictedSteps_areRestoredByOffloader() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, 4 * TILE_BYTES);
+        MemoryTileOffloader offloader = new MemoryTileOffloader(copier);
+        history.setTileOffloader(offloader);
+
+        for (int i = 0; i < 3; i++) {
+            history.beginStroke(i);
+            copier.fill(history, 40 * i, 0, 40 * i + 20, 10, i + 1);
+        }
+
+        assertEquals(2, history.getNumSteps());
+        assertEquals(1, history.getNumOffloadedSteps());
+
+        assertTrue(history.undo());
+        assertTrue(history.undo());
+
+        // The first stroke is undone from the offloaded tiles once the others are
+        assertTrue(history.undo(0));
+        assertArrayEquals(new int[WIDTH * HEIGHT], copier.canvas);
+        assertEquals(0, history.getNumOffloadedSteps());
+        assertFalse(history.undo());
+
+        history.clear();
+        assertTrue(offloader.steps.isEmpty());
+    }
+
+    @Test
+    public void strokeOverBudget_isNotRecorded() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, 4 * TILE_BYTES);
+
+        history.beginStroke(0);
+        copier.fill(history, 0, 0, 5, 5, 1);
+
+        history.beginStroke(1);
+        copier.fill(history, 0, 0, WIDTH, HEIGHT, 2);
+
+        assertEquals(0, history.getNumSteps());
+        assertEquals(0, history.getNumSavedTiles());
+        assertFalse(history.undo());
+    }
+
+    @Test
+    public void undoOfOtherStroke_isRefused() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, Long.MAX_VALUE / 2);
+
+        history.beginStroke(4);
+        copier.fill(history, 0, 0, 5, 5, 1);
+
+        assertFalse(history.undo(3));
+        assertEquals(1, copier.canvas[0]);
+        assertTrue(history.undo(4));
+        assertEquals(0, copier.canvas[0]);
+    }
+
+    @Test
+    public void clear_forgetsAllSteps() {
+        TileUndoHistory history = new TileUndoHistory(copier, WIDTH, HEIGHT, TILE_SIZE, Long.MAX_VALUE / 2);
+
+        history.beginStroke(0);
+        copier.fill(history, 0, 0, 50, 50, 1);
+        history.clear();
+
+        assertEquals(0, history.getNumSteps());
+        assertEquals(0, history.getNumSavedTiles());
+        assertFalse(history.undo());
+    }
+}
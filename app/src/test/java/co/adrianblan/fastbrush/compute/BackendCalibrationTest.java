@@ -0,0 +1,60 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the timing and selection of the backend calibration.
+ */
+public class BackendCalibrationTest {
+
+    private static final int NUM_BRISTLES = 300;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+    private static final int NUM_SNAPSHOTS = 8;
+
+    @Test
+    public void syntheticSnapshots_areRepeatable() {
+        BrushSnapshot[] first = BackendCalibration.createSyntheticSnapshots(NUM_SNAPSHOTS);
+        BrushSnapshot[] second = BackendCalibration.createSyntheticSnapshots(NUM_SNAPSHOTS);
+
+        for (int i = 0; i < NUM_SNAPSHOTS; i++) {
+            assertEquals(first[i].positionZ, second[i].positionZ, 0f);
+            assertEquals(first[i].horizontalAngle, second[i].horizontalAngle, 0f);
+            assertArrayEquals(first[i].modelMatrix, second[i].modelMatrix, 0f);
+        }
+    }
+
+    @Test
+    public void syntheticSnapshots_touchPaper() {
+        BristleKernel kernel = new BristleKernel(TestBrushes.createBristleStore(NUM_BRISTLES, 3),
+                SEGMENTS_PER_BRISTLE);
+        BrushSnapshot[] snapshots = BackendCalibration.createSyntheticSnapshots(NUM_SNAPSHOTS);
+
+        JavaComputeBackend backend = new JavaComputeBackend(kernel);
+        backend.setWorldSpace(true);
+        backend.setContactClipping(true, BristleKernel.CONTACT_HEIGHT);
+
+        FloatBuffer out = FloatBuffer.allocate(NUM_SNAPSHOTS * kernel.getFloatsPerImprint());
+        int[] imprintOffsets = new int[NUM_SNAPSHOTS + 1];
+        int[] bristleLengths = new int[NUM_SNAPSHOTS * NUM_BRISTLES];
+
+        float time = BackendCalibration.time(backend, snapshots, out, imprintOffsets,
+                bristleLengths);
+        assertTrue(time > 0);
+
+        // Every imprint leaves something on the paper, so the clipping is timed as well
+        for (int i = 0; i < NUM_SNAPSHOTS; i++) {
+            assertTrue(imprintOffsets[i + 1] > imprintOffsets[i]);
+        }
+    }
+
+    @Test
+    public void fastest_skipsUnsupportedBackends() {
+        assertEquals(2, BackendCalibration.indexOfFastest(new float[] {3f, Float.NaN, 1.5f, 2f}));
+        assertEquals(1, BackendCalibration.indexOfFastest(new float[] {Float.NaN, 4f}));
+        assertEquals(-1, BackendCalibration.indexOfFastest(new float[] {Float.NaN, Float.NaN}));
+    }
+}
@@ -0,0 +1,73 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the CPU reference of the vertex shader, against the compute kernel.
+ */
+public class BristleCurveReferenceTest {
+
+    private static final int NUM_BRISTLES = 200;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+
+    // The shader evaluates the curve in another order than the kernel
+    private static final float TOLERANCE = 0.00001f;
+
+    private BristleStore bristleStore;
+    private BristleCurveReference reference;
+    private BrushSnapshot snapshot;
+
+    @Before
+    public void setUp() {
+        bristleStore = TestBrushes.createBristleStore(NUM_BRISTLES, 11);
+        reference = new BristleCurveReference(bristleStore);
+
+        snapshot = TestBrushes.createSnapshot(-0.4f, 0.25f, 0.2f, 2.3f, 9f);
+    }
+
+    @Test
+    public void shader_matchesKernel() {
+        BristleKernel kernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+
+        for (int segments = 1; segments <= SEGMENTS_PER_BRISTLE; segments++) {
+            kernel.setQuality(NUM_BRISTLES, segments);
+
+            float[] expected = new float[kernel.getFloatsPerImprint()];
+            float[] actual = new float[kernel.getFloatsPerImprint()];
+
+            kernel.compute(snapshot, FloatBuffer.wrap(expected), 0, 0, NUM_BRISTLES);
+            reference.compute(snapshot, segments, FloatBuffer.wrap(actual));
+
+            assertArrayEquals(expected, actual, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void shader_drawsOnlyWhatTouchesPaper() {
+        float contactHeight = 0.04f;
+        float[] vertex = new float[4];
+        int drawn = 0;
+
+        for (int bristle = 0; bristle < NUM_BRISTLES; bristle++) {
+
+            // The top of every bristle is far above the paper
+            reference.evaluate(snapshot, bristle, 0, SEGMENTS_PER_BRISTLE, vertex);
+            assertFalse(BristleCurveReference.isDrawn(vertex[3], contactHeight));
+
+            reference.evaluate(snapshot, bristle, SEGMENTS_PER_BRISTLE, SEGMENTS_PER_BRISTLE, vertex);
+            if (BristleCurveReference.isDrawn(vertex[3], contactHeight)) {
+                drawn++;
+            }
+        }
+
+        // The brush is pressed down, so most tips touch the paper
+        assertTrue(drawn > NUM_BRISTLES / 2);
+    }
+}
@@ -0,0 +1,145 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the mass-spring bristle dynamics and the backend which solves them.
+ */
+public class BristleDynamicsTest {
+
+    private static final int NUM_BRISTLES = 200;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+    private static final int NUM_SNAPSHOTS = 16;
+
+    private BristleStore bristleStore;
+    private BristleKernel kernel;
+
+    @Before
+    public void setUp() {
+        bristleStore = TestBrushes.createBristleStore(NUM_BRISTLES, 11);
+        kernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+    }
+
+    @Test
+    public void restingBrush_staysInPose() {
+        BristleDynamics dynamics = new BristleDynamics(kernel);
+        BrushSnapshot snapshot = createSnapshot(0f, 0.7f);
+
+        for (int i = 0; i < 10; i++) {
+            dynamics.step(snapshot, 0);
+        }
+
+        assertChainInPose(dynamics, snapshot, 0, 0.00001f);
+    }
+
+    @Test
+    public void movingBrush_lagsAndSettles() {
+        BristleDynamics dynamics = new BristleDynamics(kernel);
+        BrushSnapshot start = createSnapshot(0f, 0.9f);
+        BrushSnapshot moved = createSnapshot(0.1f, 0.9f);
+
+        dynamics.step(start, 0);
+        dynamics.step(moved, 0);
+
+        // The tip has not caught up with the handle after one imprint
+        int tip = dynamics.getParticlesPerBristle() - 1;
+        float[] poseX = new float[tip + 1];
+        kernel.evaluateCurve(moved, 0, tip, poseX, new float[tip + 1], new float[tip + 1], 0);
+        assertTrue(dynamics.x[tip] < poseX[tip] - 0.001f);
+
+        for (int i = 0; i < 200; i++) {
+            dynamics.step(moved, 0);
+        }
+
+        assertChainInPose(dynamics, moved, 0, 0.001f);
+    }
+
+    @Test
+    public void pressedBrush_staysAbovePaper() {
+        BristleDynamics dynamics = new BristleDynamics(kernel);
+        dynamics.setSubsteps(BristleDynamics.MIN_SUBSTEPS);
+
+        for (int i = 0; i < 20; i++) {
+            BrushSnapshot snapshot = createSnapshot(0.01f * i, 0.6f - 0.005f * i);
+
+            for (int bristle = 0; bristle < NUM_BRISTLES; bristle++) {
+                dynamics.step(snapshot, bristle);
+            }
+        }
+
+        for (int p = 0; p < NUM_BRISTLES * dynamics.getParticlesPerBristle(); p++) {
+            assertTrue(dynamics.z[p] >= 0);
+        }
+    }
+
+    @Test
+    public void substeps_fitBudget() {
+        assertEquals(BristleDynamics.MAX_SUBSTEPS, DynamicComputeBackend.chooseSubsteps(6f, 0f, 100));
+        assertEquals(3, DynamicComputeBackend.chooseSubsteps(6f, 0.002f, 1000));
+        assertEquals(BristleDynamics.MIN_SUBSTEPS, DynamicComputeBackend.chooseSubsteps(6f, 0.01f, 10000));
+        assertEquals(BristleDynamics.MAX_SUBSTEPS, DynamicComputeBackend.chooseSubsteps(6f, 0.0001f, 10));
+    }
+
+    @Test
+    public void parallelSolver_matchesSequential() {
+        float[] sequential = computeBatches(1);
+        float[] parallel = computeBatches(4);
+
+        assertArrayEquals(sequential, parallel, 0f);
+    }
+
+    /** Computes a few batches of a moving brush, with a budget which always allows every substep */
+    private float[] computeBatches(int parallelism) {
+        BristleKernel backendKernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+        DynamicComputeBackend backend = parallelism > 1
+                ? new ParallelDynamicComputeBackend(backendKernel, parallelism, Float.MAX_VALUE)
+                : new DynamicComputeBackend(backendKernel, Float.MAX_VALUE);
+        backend.setWorldSpace(true);
+        backend.setContactClipping(true, BristleKernel.CONTACT_HEIGHT);
+
+        float[] out = new float[NUM_SNAPSHOTS * NUM_BRISTLES * 3 * (SEGMENTS_PER_BRISTLE + 1)];
+        int[] imprintOffsets = new int[NUM_SNAPSHOTS + 1];
+        int[] bristleLengths = new int[NUM_SNAPSHOTS * NUM_BRISTLES];
+
+        BrushSnapshot[] snapshots = new BrushSnapshot[NUM_SNAPSHOTS];
+        for (int batch = 0; batch < 3; batch++) {
+            for (int i = 0; i < NUM_SNAPSHOTS; i++) {
+                snapshots[i] = createSnapshot(0.005f * (batch * NUM_SNAPSHOTS + i), 0.65f);
+            }
+
+            backend.computeVertexData(snapshots, NUM_SNAPSHOTS, FloatBuffer.wrap(out),
+                    imprintOffsets, bristleLengths);
+        }
+
+        backend.destroy();
+        assertTrue(imprintOffsets[NUM_SNAPSHOTS] > 0);
+        return out;
+    }
+
+    private void assertChainInPose(BristleDynamics dynamics, BrushSnapshot snapshot, int bristle,
+                                   float tolerance) {
+        int particles = dynamics.getParticlesPerBristle();
+        float[] poseX = new float[particles];
+        float[] poseY = new float[particles];
+        float[] poseZ = new float[particles];
+        kernel.evaluateCurve(snapshot, bristle, particles - 1, poseX, poseY, poseZ, 0);
+
+        int first = bristle * particles;
+        for (int p = 0; p < particles; p++) {
+            assertEquals(poseX[p], dynamics.x[first + p], tolerance);
+            assertEquals(poseY[p], dynamics.y[first + p], tolerance);
+            assertEquals(poseZ[p], dynamics.z[first + p], tolerance);
+        }
+    }
+
+    private static BrushSnapshot createSnapshot(float positionX, float positionZ) {
+        return TestBrushes.createSnapshot(positionX, 0f, positionZ, 0f, 10f);
+    }
+}
@@ -0,0 +1,84 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Microbenchmark which compares the per-imprint cost of the reference and optimized kernels.
+ *
+ * The timings are only printed, since they depend too much on the machine to be asserted. What is
+ * asserted is that both kernels compute the same imprints, so that the timings are comparable.
+ */
+public class BristleKernelBenchmark {
+
+    private static final int NUM_BRISTLES = 1000;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+
+    private static final int WARMUP_IMPRINTS = 2000;
+    private static final int MEASURED_IMPRINTS = 5000;
+
+    @Test
+    public void compareImprintCost() {
+        BristleStore bristleStore = TestBrushes.createBristleStore(NUM_BRISTLES, 7);
+
+        final ReferenceBristleKernel referenceKernel =
+                new ReferenceBristleKernel(bristleStore, SEGMENTS_PER_BRISTLE,
+                        TestBrushes.RADIUS_UPPER);
+        final BristleKernel kernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+
+        final BrushSnapshot snapshot = TestBrushes.createSnapshot(0f, 0f, 0.8f, 0f, 0f);
+
+        // The reference writes every segment as a line of its own, which needs the most room
+        final FloatBuffer out = FloatBuffer.allocate(NUM_BRISTLES * referenceKernel.getFloatsPerBristle());
+
+        Runnable reference = new Runnable() {
+            @Override
+            public void run() {
+                referenceKernel.compute(snapshot, out, 0, 0, NUM_BRISTLES);
+            }
+        };
+
+        Runnable optimized = new Runnable() {
+            @Override
+            public void run() {
+                kernel.compute(snapshot, out, 0, 0, NUM_BRISTLES);
+            }
+        };
+
+        float referenceCost = measureImprintCost(reference, snapshot);
+        float optimizedCost = measureImprintCost(optimized, snapshot);
+
+        System.out.println(String.format("Imprint of %d bristles, reference: %.1f us, optimized: %.1f us",
+                NUM_BRISTLES, referenceCost, optimizedCost));
+
+        // The last measured imprint, which both kernels computed
+        float[] actual = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(actual), 0, 0, NUM_BRISTLES);
+
+        assertArrayEquals(BristleKernelTest.computeReferenceStrips(referenceKernel, kernel, snapshot),
+                actual, 0.00001f);
+    }
+
+    /** Returns the average time of one imprint in microseconds */
+    private static float measureImprintCost(Runnable imprint, BrushSnapshot snapshot) {
+
+        for (int i = 0; i < WARMUP_IMPRINTS; i++) {
+            snapshot.horizontalAngle = i * 0.01f;
+            imprint.run();
+        }
+
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < MEASURED_IMPRINTS; i++) {
+            snapshot.horizontalAngle = i * 0.01f;
+            imprint.run();
+        }
+
+        return (System.nanoTime() - startTime) / (1000f * MEASURED_IMPRINTS);
+    }
+}
@@ -0,0 +1,473 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Java implementation of the bristle kernel.
+ */
+public class BristleKernelTest {
+
+    // The RenderScript kernel runs with rs_fp_relaxed and fast_distance
+    private static final float RS_TOLERANCE = 0.001f;
+
+    private static final int NUM_BRISTLES = 300;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+
+    private BristleStore bristleStore;
+
+    private BristleKernel kernel;
+    private BrushSnapshot snapshot;
+    private int[] bristleLengths;
+
+    @Before
+    public void setUp() {
+        bristleStore = TestBrushes.createBristleStore(NUM_BRISTLES, 42);
+
+        kernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+        bristleLengths = new int[2 * NUM_BRISTLES];
+
+        snapshot = TestBrushes.createSnapshot(0.3f, -0.2f, 0.7f, 1.1f, 0f);
+    }
+
+    @Test
+    public void evaluatedCurve_matchesStrip() {
+        float[] out = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(out), 0, 0, NUM_BRISTLES);
+
+        float[] xs = new float[SEGMENTS_PER_BRISTLE + 1];
+        float[] ys = new float[SEGMENTS_PER_BRISTLE + 1];
+        float[] zs = new float[SEGMENTS_PER_BRISTLE + 1];
+
+        for (int bristle = 0; bristle < NUM_BRISTLES; bristle += 7) {
+            kernel.evaluateCurve(snapshot, bristle, SEGMENTS_PER_BRISTLE, xs, ys, zs, 0);
+
+            for (int v = 0; v <= SEGMENTS_PER_BRISTLE; v++) {
+                int index = (bristle * (SEGMENTS_PER_BRISTLE + 1) + v) * 3;
+                assertEquals(out[index], xs[v], 0.00001f);
+                assertEquals(out[index + 1], ys[v], 0.00001f);
+                assertEquals(out[index + 2], zs[v], 0.00001f);
+            }
+        }
+    }
+
+    @Test
+    public void neutralBristles_areStraight() {
+        snapshot.planarDistanceFromHandle = 0f;
+        snapshot.upperControlPointLength = 1f;
+        snapshot.lowerControlPointLength = 0f;
+        snapshot.bristleHorizontalMaxAngle = 0f;
+        snapshot.positionZ = 1f;
+
+        float[] out = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(out), 0, 0, NUM_BRISTLES);
+
+        // Every vertex of a neutral bristle lies on the line between its top and bottom
+        for (int i = 0; i < NUM_BRISTLES; i++) {
+            int index = i * kernel.getFloatsPerBristle();
+
+            float topX = bristleStore.topX[i] + snapshot.positionX;
+            float topZ = bristleStore.topZ[i] + snapshot.positionZ;
+            float bottomX = bristleStore.bottomX[i] + snapshot.positionX;
+            float bottomZ = bristleStore.bottomZ[i] + snapshot.positionZ;
+
+            for (int v = 0; v <= SEGMENTS_PER_BRISTLE; v++) {
+                float x = out[index + v * 3];
+                float z = out[index + v * 3 + 2];
+
+                assertEquals((x - topX) * (bottomZ - topZ), (z - topZ) * (bottomX - topX), RS_TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void kernel_matchesReferenceKernel() {
+        ReferenceBristleKernel referenceKernel =
+                new ReferenceBristleKernel(bristleStore, SEGMENTS_PER_BRISTLE,
+                        TestBrushes.RADIUS_UPPER);
+
+        float[] actual = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(actual), 0, 0, NUM_BRISTLES);
+
+        // The precomputed values are only reordered, so they only differ by rounding
+        assertArrayEquals(computeReferenceStrips(referenceKernel, kernel, snapshot), actual, 0.00001f);
+    }
+
+    /**
+     * Computes an imprint with the reference kernel, and returns it in the strip layout of the
+     * kernel, which has the same bristles and segments.
+     */
+    static float[] computeReferenceStrips(ReferenceBristleKernel referenceKernel, BristleKernel kernel,
+                                          BrushSnapshot snapshot) {
+        int numBristles = kernel.getNumBristles();
+        int segmentsPerBristle = kernel.getSegmentsPerBristle();
+
+        float[] lines = new float[numBristles * referenceKernel.getFloatsPerBristle()];
+        float[] strips = new float[kernel.getFloatsPerImprint()];
+
+        referenceKernel.compute(snapshot, FloatBuffer.wrap(lines), 0, 0, numBristles);
+
+        // The reference writes both ends of every segment, the strip has the start and every end
+        for (int i = 0; i < numBristles; i++) {
+            int line = i * referenceKernel.getFloatsPerBristle();
+            int strip = i * kernel.getFloatsPerBristle();
+
+            System.arraycopy(lines, line, strips, strip, 3);
+            for (int s = 0; s < segmentsPerBristle; s++) {
+                System.arraycopy(lines, line + s * 6 + 3, strips, strip + (s + 1) * 3, 3);
+            }
+        }
+
+        return strips;
+    }
+
+    @Test
+    public void reducedQuality_matchesSubsetOfBristles() {
+        float[] full = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(full), 0, 0, NUM_BRISTLES);
+
+        // Every third bristle, with the same number of segments
+        kernel.setQuality(NUM_BRISTLES / 3, SEGMENTS_PER_BRISTLE);
+        float[] reduced = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(reduced), 0, 0, kernel.getNumBristles());
+
+        int floatsPerBristle = kernel.getFloatsPerBristle();
+        for (int i = 0; i < kernel.getNumBristles(); i++) {
+            for (int j = 0; j < floatsPerBristle; j++) {
+                assertEquals(full[3 * i * floatsPerBristle + j], reduced[i * floatsPerBristle + j], 0f);
+            }
+        }
+
+        // Fewer segments still span the whole bristle
+        kernel.setQuality(NUM_BRISTLES, 2);
+        float[] coarse = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(coarse), 0, 0, NUM_BRISTLES);
+
+        for (int i = 0; i < NUM_BRISTLES; i++) {
+            int fullEnd = (i + 1) * 3 * (SEGMENTS_PER_BRISTLE + 1) - 3;
+            int coarseEnd = (i + 1) * 3 * (2 + 1) - 3;
+
+            for (int k = 0; k < 3; k++) {
+                assertEquals(full[fullEnd + k], coarse[coarseEnd + k], 0.00001f);
+            }
+        }
+    }
+
+    @Test
+    public void stripIndices_endEveryBristleWithRestart() {
+        int[] bristleLengths = {9, 0, 6, 15};
+        IntBuffer indices = IntBuffer.allocate(16);
+
+        int indexCount = BristleKernel.writeStripIndices(indices, 1, 10, bristleLengths, 0, 4);
+
+        // The empty strip is skipped, and the vertices of the others follow each other
+        int restart = BristleKernel.PRIMITIVE_RESTART_INDEX;
+        int[] expected = {0, 10, 11, 12, restart, 13, 14, restart, 15, 16, 17, 18, 19, restart};
+
+        assertEquals(expected.length, indexCount);
+        for (int i = 1; i < expected.length; i++) {
+            assertEquals(expected[i], indices.get(i));
+        }
+    }
+
+    @Test
+    public void splitRanges_matchFullRange() {
+        float[] full = new float[kernel.getFloatsPerImprint()];
+        float[] split = new float[kernel.getFloatsPerImprint()];
+
+        kernel.compute(snapshot, FloatBuffer.wrap(full), 0, 0, NUM_BRISTLES);
+        kernel.compute(snapshot, FloatBuffer.wrap(split), 0, 0, 17);
+        kernel.compute(snapshot, FloatBuffer.wrap(split), 0, 17, 150);
+        kernel.compute(snapshot, FloatBuffer.wrap(split), 0, 150, NUM_BRISTLES);
+
+        assertArrayEquals(full, split, 0f);
+    }
+
+    @Test
+    public void parallelBackend_matchesJavaBackend() {
+        BrushSnapshot[] snapshots = new BrushSnapshot[3];
+
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = new BrushSnapshot();
+            snapshots[i].positionX = 0.1f * i;
+            snapshots[i].positionZ = 0.9f - 0.1f * i;
+            snapshots[i].horizontalAngle = 0.5f * i;
+            snapshots[i].planarDistanceFromHandle = 0.2f * i;
+            snapshots[i].upperControlPointLength = 1f - 0.2f * i;
+            snapshots[i].lowerControlPointLength = 0.3f * i;
+            snapshots[i].bristleHorizontalMaxAngle = 0.1f * i;
+        }
+
+        float[] expected = new float[snapshots.length * kernel.getFloatsPerImprint()];
+        float[] actual = new float[snapshots.length * kernel.getFloatsPerImprint()];
+        int[] expectedOffsets = new int[snapshots.length + 1];
+        int[] actualOffsets = new int[snapshots.length + 1];
+        int[] expectedLengths = new int[snapshots.length * NUM_BRISTLES];
+        int[] actualLengths = new int[snapshots.length * NUM_BRISTLES];
+
+        BristleComputeBackend javaBackend = new JavaComputeBackend(kernel);
+        BristleComputeBackend parallelBackend = new ParallelJavaComputeBackend(kernel, 4);
+
+        javaBackend.computeVertexData(snapshots, snapshots.length, FloatBuffer.wrap(expected), expectedOffsets,
+                expectedLengths);
+        parallelBackend.computeVertexData(snapshots, snapshots.length, FloatBuffer.wrap(actual), actualOffsets,
+                actualLengths);
+
+        javaBackend.destroy();
+        parallelBackend.destroy();
+
+        assertArrayEquals(expectedOffsets, actualOffsets);
+        assertArrayEquals(expectedLengths, actualLengths);
+        assertArrayEquals(expected, actual, 0f);
+    }
+
+    @Test
+    public void batchedImprints_matchSingleImprints() {
+        BrushSnapshot[] snapshots = {snapshot, new BrushSnapshot()};
+        snapshots[1].positionZ = 1f;
+        snapshots[1].upperControlPointLength = 1f;
+
+        float[] batched = new float[2 * kernel.getFloatsPerImprint()];
+        int[] imprintOffsets = new int[3];
+        new JavaComputeBackend(kernel).computeVertexData(snapshots, 2, FloatBuffer.wrap(batched), imprintOffsets,
+                bristleLengths);
+
+        int[] bristleOffsets = new int[NUM_BRISTLES + 1];
+        int[] singleOffsets = new int[2];
+
+        for (int i = 0; i < snapshots.length; i++) {
+            float[] single = new float[kernel.getFloatsPerImprint()];
+            kernel.layoutImprints(new BrushSnapshot[] {snapshots[i]}, 1, bristleOffsets, singleOffsets);
+            kernel.compute(snapshots[i], FloatBuffer.wrap(single), bristleOffsets, 0, 0, NUM_BRISTLES);
+
+            assertEquals(imprintOffsets[i + 1] - imprintOffsets[i], singleOffsets[1]);
+
+            for (int j = 0; j < singleOffsets[1]; j++) {
+                assertEquals(single[j], batched[imprintOffsets[i] + j], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void raisedBrush_hasOneSegmentPerBristle() {
+        snapshot.positionZ = 2f;
+
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            assertEquals(1, kernel.getSegmentCount(snapshot, x));
+        }
+    }
+
+    @Test
+    public void straightBristles_haveOneSegment() {
+        snapshot.positionZ = 0.9f;
+        snapshot.planarDistanceFromHandle = 0f;
+        snapshot.upperControlPointLength = 0.5f;
+        snapshot.lowerControlPointLength = 0f;
+
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            assertEquals(1, kernel.getSegmentCount(snapshot, x));
+        }
+    }
+
+    @Test
+    public void bentBristles_haveMoreSegments() {
+        snapshot.positionZ = 0.6f;
+        snapshot.planarDistanceFromHandle = 0.4f;
+        snapshot.upperControlPointLength = 0.6f;
+        snapshot.lowerControlPointLength = 0.3f;
+
+        int maxSegments = 1;
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            maxSegments = Math.max(maxSegments, kernel.getSegmentCount(snapshot, x));
+        }
+
+        assertEquals(SEGMENTS_PER_BRISTLE, maxSegments);
+    }
+
+    @Test
+    public void adaptiveBristles_endAtSameTip() {
+        int[] bristleOffsets = new int[NUM_BRISTLES + 1];
+        int[] imprintOffsets = new int[2];
+        kernel.layoutImprints(new BrushSnapshot[] {snapshot}, 1, bristleOffsets, imprintOffsets);
+
+        float[] uniform = new float[kernel.getFloatsPerImprint()];
+        float[] adaptive = new float[kernel.getFloatsPerImprint()];
+        kernel.compute(snapshot, FloatBuffer.wrap(uniform), 0, 0, NUM_BRISTLES);
+        kernel.compute(snapshot, FloatBuffer.wrap(adaptive), bristleOffsets, 0, 0, NUM_BRISTLES);
+
+        assertEquals(imprintOffsets[1], bristleOffsets[NUM_BRISTLES]);
+
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            int uniformStart = x * kernel.getFloatsPerBristle();
+            int uniformEnd = uniformStart + kernel.getFloatsPerBristle() - 3;
+            int adaptiveStart = bristleOffsets[x];
+            int adaptiveEnd = bristleOffsets[x + 1] - 3;
+
+            assertTrue(bristleOffsets[x + 1] > adaptiveStart);
+
+            for (int k = 0; k < 3; k++) {
+                assertEquals(uniform[uniformStart + k], adaptive[adaptiveStart + k], 0.00001f);
+                assertEquals(uniform[uniformEnd + k], adaptive[adaptiveEnd + k], 0.00001f);
+            }
+        }
+    }
+
+    @Test
+    public void contactClipping_keepsOnlySegmentsOnPaper() {
+        float contactHeight = 0.04f;
+        snapshot.verticalAngle = 12f;
+        snapshot.planarImprintLength = 0.1f;
+        snapshot.updateModelMatrix();
+
+        BrushSnapshot[] snapshots = {snapshot};
+        float[] full = new float[kernel.getFloatsPerImprint()];
+        float[] clipped = new float[kernel.getFloatsPerImprint()];
+        int[] fullOffsets = new int[2];
+        int[] clippedOffsets = new int[2];
+
+        BristleComputeBackend backend = new JavaComputeBackend(kernel);
+        backend.computeVertexData(snapshots, 1, FloatBuffer.wrap(full), fullOffsets, bristleLengths);
+        backend.setContactClipping(true, contactHeight);
+        backend.computeVertexData(snapshots, 1, FloatBuffer.wrap(clipped), clippedOffsets, bristleLengths);
+
+        assertTrue(clippedOffsets[1] > 0);
+        assertTrue(clippedOffsets[1] < fullOffsets[1]);
+        assertEquals(0, clippedOffsets[1] % 3);
+
+        // Every bristle is either one strip of at least one segment, or left out
+        int total = 0;
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            assertTrue(bristleLengths[x] == 0 || bristleLengths[x] >= 6);
+            total += bristleLengths[x];
+        }
+
+        assertEquals(clippedOffsets[1], total);
+
+        float[] m = snapshot.modelMatrix;
+        for (int i = 0; i < clippedOffsets[1]; i += 3) {
+            float height = m[2] * clipped[i] + m[6] * clipped[i + 1] + m[10] * clipped[i + 2] + m[14];
+            assertTrue(height >= -0.00001f && height <= contactHeight + 0.00001f);
+        }
+    }
+
+    @Test
+    public void contactClipping_parallelBackendMatchesJavaBackend() {
+        BrushSnapshot[] snapshots = new BrushSnapshot[3];
+
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = new BrushSnapshot();
+            snapshots[i].positionX = 0.1f * i;
+            snapshots[i].positionZ = 0.75f - 0.05f * i;
+            snapshots[i].horizontalAngle = 0.5f * i;
+            snapshots[i].verticalAngle = 10f * i;
+            snapshots[i].planarDistanceFromHandle = 0.2f * i;
+            snapshots[i].upperControlPointLength = 1f - 0.2f * i;
+            snapshots[i].lowerControlPointLength = 0.1f * i;
+            snapshots[i].updateModelMatrix();
+        }
+
+        float[] expected = new float[snapshots.length * kernel.getFloatsPerImprint()];
+        float[] actual = new float[snapshots.length * kernel.getFloatsPerImprint()];
+        int[] expectedOffsets = new int[snapshots.length + 1];
+        int[] actualOffsets = new int[snapshots.length + 1];
+        int[] expectedLengths = new int[snapshots.length * NUM_BRISTLES];
+        int[] actualLengths = new int[snapshots.length * NUM_BRISTLES];
+
+        BristleComputeBackend javaBackend = new JavaComputeBackend(kernel);
+        BristleComputeBackend parallelBackend = new ParallelJavaComputeBackend(
+                new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE), 4);
+        javaBackend.setContactClipping(true, 0.04f);
+        parallelBackend.setContactClipping(true, 0.04f);
+
+        javaBackend.computeVertexData(snapshots, snapshots.length, FloatBuffer.wrap(expected), expectedOffsets,
+                expectedLengths);
+        parallelBackend.computeVertexData(snapshots, snapshots.length, FloatBuffer.wrap(actual), actualOffsets,
+                actualLengths);
+
+        javaBackend.destroy();
+        parallelBackend.destroy();
+
+        assertArrayEquals(expectedOffsets, actualOffsets);
+        assertArrayEquals(expectedLengths, actualLengths);
+        assertArrayEquals(expected, actual, 0f);
+    }
+
+    @Test
+    public void worldSpace_appliesModelMatrix() {
+        snapshot.verticalAngle = 12f;
+        snapshot.planarImprintLength = 0.1f;
+        snapshot.updateModelMatrix();
+
+        BrushSnapshot[] snapshots = {snapshot};
+        float[] local = new float[kernel.getFloatsPerImprint()];
+        float[] world = new float[kernel.getFloatsPerImprint()];
+        int[] imprintOffsets = new int[2];
+
+        BristleComputeBackend backend = new JavaComputeBackend(kernel);
+        backend.computeVertexData(snapshots, 1, FloatBuffer.wrap(local), imprintOffsets, bristleLengths);
+        backend.setWorldSpace(true);
+        backend.computeVertexData(snapshots, 1, FloatBuffer.wrap(world), imprintOffsets, bristleLengths);
+
+        float[] m = snapshot.modelMatrix;
+        for (int i = 0; i < imprintOffsets[1]; i += 3) {
+            for (int row = 0; row < 3; row++) {
+                float expected = m[row] * local[i] + m[4 + row] * local[i + 1]
+                        + m[8 + row] * local[i + 2] + m[12 + row];
+                assertEquals(expected, world[i + row], 0.00001f);
+            }
+        }
+    }
+
+    @Test
+    public void unclippedImprint_meetsPreviewOnPaper() {
+        snapshot.verticalAngle = 12f;
+        snapshot.updateModelMatrix();
+
+        // The brush head and views draw the model space preview with the model matrix of the
+        // imprint, which is placed on the paper as it is computed, with contact clipping off too
+        float[] preview = new float[kernel.getFloatsPerImprint()];
+        new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE)
+                .compute(snapshot, FloatBuffer.wrap(preview), 0, 0, NUM_BRISTLES);
+
+        float[] world = new float[kernel.getFloatsPerImprint()];
+        int[] imprintOffsets = new int[2];
+
+        BristleComputeBackend backend = new JavaComputeBackend(kernel);
+        backend.setWorldSpace(true);
+        backend.setContactClipping(false, 0f);
+        backend.computeVertexData(new BrushSnapshot[] {snapshot}, 1, FloatBuffer.wrap(world),
+                imprintOffsets, bristleLengths);
+
+        float[] m = snapshot.modelMatrix;
+        int worldStart = 0;
+
+        // The bristles may have fewer segments in the imprint, but start and end at the same points
+        for (int x = 0; x < NUM_BRISTLES; x++) {
+            int previewStart = x * kernel.getFloatsPerBristle();
+            int previewEnd = previewStart + kernel.getFloatsPerBristle() - 3;
+            int worldEnd = worldStart + bristleLengths[x] - 3;
+
+            for (int row = 0; row < 3; row++) {
+                assertEquals(transform(m, preview, previewStart, row), world[worldStart + row], 0.00001f);
+                assertEquals(transform(m, preview, previewEnd, row), world[worldEnd + row], 0.00001f);
+            }
+
+            worldStart += bristleLengths[x];
+        }
+
+        assertEquals(imprintOffsets[1], worldStart);
+    }
+
+    /** Returns a coordinate of the vertex at an offset, transformed by a model matrix */
+    private static float transform(float[] m, float[] vertices, int offset, int row) {
+        return m[row] * vertices[offset] + m[4 + row] * vertices[offset + 1]
+                + m[8 + row] * vertices[offset + 2] + m[12 + row];
+    }
+}
@@ -0,0 +1,89 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the model matrix of a brush snapshot.
+ */
+public class BrushSnapshotTest {
+
+    @Test
+    public void modelMatrix_matchesTransformationChain() {
+        BrushSnapshot snapshot = new BrushSnapshot();
+        snapshot.positionX = 0.3f;
+        snapshot.positionY = -0.2f;
+        snapshot.horizontalAngle = 1.1f;
+        snapshot.verticalAngle = 20f;
+        snapshot.planarDistanceFromHandle = 0.62f;
+        snapshot.planarImprintLength = 0.1f;
+        snapshot.updateModelMatrix();
+
+        float horizontalAngle = (float) Math.toDegrees(snapshot.horizontalAngle);
+        float cos = (float) Math.cos(snapshot.horizontalAngle);
+        float sin = (float) Math.sin(snapshot.horizontalAngle);
+
+        // The same chain of matrices as the imprints were placed with in the renderer
+        float[] expected = translation(-snapshot.positionX, -snapshot.positionY, 0);
+        expected = multiply(translation(-cos * snapshot.planarDistanceFromHandle,
+                -sin * snapshot.planarDistanceFromHandle, 0.03f), expected);
+        expected = multiply(rotation(snapshot.verticalAngle * 0.30f,
+                (float) Math.cos(Math.toRadians(horizontalAngle - 90)),
+                (float) Math.sin(Math.toRadians(horizontalAngle - 90))), expected);
+        expected = multiply(translation(cos * snapshot.planarImprintLength,
+                sin * snapshot.planarImprintLength, 0), expected);
+        expected = multiply(translation(snapshot.positionX, snapshot.positionY, 0), expected);
+
+        assertArrayEquals(expected, snapshot.modelMatrix, 0.00001f);
+    }
+
+    private static float[] translation(float x, float y, float z) {
+        float[] m = identity();
+        m[12] = x;
+        m[13] = y;
+        m[14] = z;
+        return m;
+    }
+
+    /** Rotation around an axis in the plane, in degrees */
+    private static float[] rotation(float angle, float x, float y) {
+        float s = (float) Math.sin(Math.toRadians(angle));
+        float c = (float) Math.cos(Math.toRadians(angle));
+        float[] m = identity();
+
+        m[0] = x * x * (1 - c) + c;
+        m[1] = x * y * (1 - c);
+        m[2] = -y * s;
+        m[4] = x * y * (1 - c);
+        m[5] = y * y * (1 - c) + c;
+        m[6] = x * s;
+        m[8] = y * s;
+        m[9] = -x * s;
+        m[10] = c;
+        return m;
+    }
+
+    private static float[] identity() {
+        float[] m = new float[16];
+        m[0] = m[5] = m[10] = m[15] = 1f;
+        return m;
+    }
+
+    /** Column-major product lhs * rhs */
+    private static float[] multiply(float[] lhs, float[] rhs) {
+        float[] result = new float[16];
+
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + row] * rhs[column * 4 + k];
+                }
+                result[column * 4 + row] = sum;
+            }
+        }
+
+        return result;
+    }
+}
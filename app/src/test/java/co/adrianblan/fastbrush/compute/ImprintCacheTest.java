@@ -0,0 +1,129 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the cache of imprint vertex data.
+ */
+public class ImprintCacheTest {
+
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+
+    private BristleKernel kernel;
+    private BrushSnapshot snapshot;
+    private int[] bristleLengths;
+
+    @Before
+    public void setUp() {
+        kernel = new BristleKernel(TestBrushes.createBristleStore(100, 5), SEGMENTS_PER_BRISTLE);
+        snapshot = TestBrushes.createSnapshot(0.3f, -0.2f, 0.7f, 1.1f, 12f);
+
+        bristleLengths = new int[kernel.getNumBristles()];
+    }
+
+    @Test
+    public void cachedImprint_matchesTranslatedImprint() {
+        ImprintCache imprintCache = new ImprintCache(kernel.getFloatsPerImprint());
+
+        FloatBuffer computed = FloatBuffer.allocate(kernel.getFloatsPerImprint());
+        kernel.compute(snapshot, computed, 0, 0, kernel.getNumBristles());
+
+        assertNull(imprintCache.get(snapshot));
+        imprintCache.put(snapshot, computed, 0, kernel.getFloatsPerImprint(), bristleLengths, 0,
+                kernel.getNumBristles());
+
+        // The same brush state somewhere else on the paper
+        snapshot.positionX = -0.5f;
+        snapshot.positionY = 0.4f;
+
+        kernel.compute(snapshot, computed, 0, 0, kernel.getNumBristles());
+
+        ImprintCache.Entry cachedVertexData = imprintCache.get(snapshot);
+        assertNotNull(cachedVertexData);
+
+        FloatBuffer cached = FloatBuffer.allocate(kernel.getFloatsPerImprint());
+        assertEquals(kernel.getFloatsPerImprint(), imprintCache.copyTo(cachedVertexData, snapshot, cached, 0));
+
+        assertArrayEquals(computed.array(), cached.array(), 0.00001f);
+        assertEquals(1, imprintCache.getHitCount());
+        assertEquals(1, imprintCache.getMissCount());
+    }
+
+    @Test
+    public void quantizedStates_shareEntry() {
+        ImprintCache imprintCache = new ImprintCache(kernel.getFloatsPerImprint(),
+                ImprintCache.DEFAULT_MAX_BYTES, 1f, 0.01f, 0.1f);
+
+        imprintCache.put(snapshot, FloatBuffer.allocate(kernel.getFloatsPerImprint()), 0,
+                kernel.getFloatsPerImprint(), bristleLengths, 0, kernel.getNumBristles());
+
+        snapshot.verticalAngle += 0.1f;
+        snapshot.positionZ += 0.001f;
+        snapshot.horizontalAngle += 0.01f;
+        assertNotNull(imprintCache.get(snapshot));
+
+        snapshot.positionZ += 0.02f;
+        assertNull(imprintCache.get(snapshot));
+    }
+
+    @Test
+    public void adaptiveImprint_keepsItsLength() {
+        ImprintCache imprintCache = new ImprintCache(kernel.getFloatsPerImprint());
+
+        int[] bristleOffsets = new int[kernel.getNumBristles() + 1];
+        int[] imprintOffsets = new int[2];
+        BrushSnapshot[] snapshots = {snapshot};
+        kernel.layoutImprints(snapshots, 1, bristleOffsets, imprintOffsets);
+
+        int length = imprintOffsets[1];
+        FloatBuffer computed = FloatBuffer.allocate(kernel.getFloatsPerImprint());
+        kernel.compute(snapshot, computed, bristleOffsets, bristleLengths, 0, 0,
+                kernel.getNumBristles());
+        imprintCache.put(snapshot, computed, 0, length, bristleLengths, 0, kernel.getNumBristles());
+
+        ImprintCache.Entry entry = imprintCache.get(snapshot);
+        FloatBuffer cached = FloatBuffer.allocate(kernel.getFloatsPerImprint());
+        assertEquals(length, imprintCache.copyTo(entry, snapshot, cached, 0));
+
+        for (int i = 0; i < length; i++) {
+            assertEquals(computed.get(i), cached.get(i), 0.00001f);
+        }
+
+        // The strips of the copy can be indexed like the computed ones
+        assertEquals(kernel.getNumBristles(), entry.getNumBristles());
+        for (int x = 0; x < kernel.getNumBristles(); x++) {
+            assertEquals(bristleLengths[x], entry.getBristleLengths()[x]);
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvicted() {
+        int floatsPerImprint = kernel.getFloatsPerImprint();
+
+        // Room for exactly two imprints
+        ImprintCache imprintCache = new ImprintCache(floatsPerImprint, 2 * 4 * floatsPerImprint,
+                1f, 0.01f, 0.1f);
+        FloatBuffer vertexData = FloatBuffer.allocate(floatsPerImprint);
+
+        BrushSnapshot first = TestBrushes.createSnapshot(0f, 0f, 0f, 0f, 0f);
+        BrushSnapshot second = TestBrushes.createSnapshot(0f, 0f, 0.5f, 0f, 0f);
+        BrushSnapshot third = TestBrushes.createSnapshot(0f, 0f, 0.8f, 0f, 0f);
+
+        imprintCache.put(first, vertexData, 0, floatsPerImprint, bristleLengths, 0, 0);
+        imprintCache.put(second, vertexData, 0, floatsPerImprint, bristleLengths, 0, 0);
+
+        // Using the first imprint makes the second one the least recently used
+        assertNotNull(imprintCache.get(first));
+        imprintCache.put(third, vertexData, 0, floatsPerImprint, bristleLengths, 0, 0);
+
+        assertEquals(2, imprintCache.size());
+        assertNotNull(imprintCache.get(first));
+        assertNull(imprintCache.get(second));
+        assertNotNull(imprintCache.get(third));
+    }
+}
@@ -0,0 +1,61 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the adaptation of the physics quality to the frame time.
+ */
+public class QualityGovernorTest {
+
+    private static final float TARGET_FRAME_TIME = 16f;
+    private static final int MAX_SEGMENTS = 4;
+
+    @Test
+    public void slowFrames_degradeGradually() {
+        QualityGovernor qualityGovernor = new QualityGovernor(TARGET_FRAME_TIME, MAX_SEGMENTS);
+
+        float previousQuality = qualityGovernor.getQuality();
+        for (int i = 0; i < 40; i++) {
+            qualityGovernor.update(40f);
+
+            // Never more than one step at a time
+            assertTrue(previousQuality - qualityGovernor.getQuality() <= 0.1f + 0.0001f);
+            previousQuality = qualityGovernor.getQuality();
+        }
+
+        assertTrue(qualityGovernor.getQuality() < 1f);
+        assertTrue(qualityGovernor.getQuality() >= QualityGovernor.MIN_QUALITY);
+        assertTrue(qualityGovernor.getSegmentsPerBristle() < MAX_SEGMENTS);
+    }
+
+    @Test
+    public void fastFrames_recoverFullQuality() {
+        QualityGovernor qualityGovernor = new QualityGovernor(TARGET_FRAME_TIME, MAX_SEGMENTS);
+
+        for (int i = 0; i < 200; i++) {
+            qualityGovernor.update(40f);
+        }
+
+        assertEquals(QualityGovernor.MIN_QUALITY, qualityGovernor.getQuality(), 0.0001f);
+
+        for (int i = 0; i < 400; i++) {
+            qualityGovernor.update(5f);
+        }
+
+        assertEquals(1f, qualityGovernor.getQuality(), 0.0001f);
+        assertEquals(MAX_SEGMENTS, qualityGovernor.getSegmentsPerBristle());
+    }
+
+    @Test
+    public void framesNearTarget_keepQuality() {
+        QualityGovernor qualityGovernor = new QualityGovernor(TARGET_FRAME_TIME, MAX_SEGMENTS);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(qualityGovernor.update(TARGET_FRAME_TIME * 0.9f));
+        }
+
+        assertEquals(1f, qualityGovernor.getQuality(), 0f);
+    }
+}
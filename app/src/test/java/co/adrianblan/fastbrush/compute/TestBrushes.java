@@ -0,0 +1,42 @@
+package co.adrianblan.fastbrush.compute;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+/**
+ * Class which builds the bristles and the brush states which the tests compute, so that they
+ * share one fixture.
+ */
+public class TestBrushes {
+
+    public static final float RADIUS_UPPER = 0.15f;
+    public static final float RADIUS_LOWER = 0.16f;
+
+    private TestBrushes() {}
+
+    /** Returns numBristles bristles spread evenly over the radii of the tests, from a seed */
+    public static BristleStore createBristleStore(int numBristles, long seed) {
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(numBristles, RADIUS_UPPER, RADIUS_LOWER, seed);
+        return bristleStore;
+    }
+
+    /**
+     * Returns the state of a bent brush at a position and angles, whose tips touch the paper when
+     * it is low enough, with its model matrix updated.
+     */
+    public static BrushSnapshot createSnapshot(float positionX, float positionY, float positionZ,
+                                               float horizontalAngle, float verticalAngle) {
+        BrushSnapshot snapshot = new BrushSnapshot();
+        snapshot.positionX = positionX;
+        snapshot.positionY = positionY;
+        snapshot.positionZ = positionZ;
+        snapshot.horizontalAngle = horizontalAngle;
+        snapshot.verticalAngle = verticalAngle;
+        snapshot.planarDistanceFromHandle = 0.5f;
+        snapshot.upperControlPointLength = 0.4f;
+        snapshot.lowerControlPointLength = 0.6f;
+        snapshot.bristleHorizontalMaxAngle = 0.15f;
+        snapshot.updateModelMatrix();
+        return snapshot;
+    }
+}
@@ -0,0 +1,138 @@
+package co.adrianblan.fastbrush.compute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import co.adrianblan.fastbrush.globject.BristleStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the transform feedback backend, where the captured vertices come from the CPU
+ * reference of its vertex shader, against the Java backend.
+ */
+public class TransformFeedbackComputeBackendTest {
+
+    private static final int NUM_BRISTLES = 200;
+    private static final int SEGMENTS_PER_BRISTLE = 4;
+    private static final int NUM_SNAPSHOTS = 3;
+    private static final float CONTACT_HEIGHT = 0.04f;
+
+    // The shader evaluates the curve in another order, and clips in world space
+    private static final float TOLERANCE = 0.0001f;
+
+    private BristleStore bristleStore;
+    private BristleCurveReference reference;
+    private BrushSnapshot[] snapshots;
+
+    @Before
+    public void setUp() {
+        bristleStore = TestBrushes.createBristleStore(NUM_BRISTLES, 23);
+        reference = new BristleCurveReference(bristleStore);
+
+        snapshots = new BrushSnapshot[NUM_SNAPSHOTS];
+        for (int i = 0; i < NUM_SNAPSHOTS; i++) {
+            BrushSnapshot snapshot = TestBrushes.createSnapshot(-0.4f + 0.3f * i, 0.25f - 0.1f * i,
+                    0.7f + 0.02f * i, 0.8f * i, 6f + 3f * i);
+            snapshots[i] = snapshot;
+        }
+    }
+
+    @Test
+    public void transformFeedback_matchesJavaBackend() {
+        assertMatchesJavaBackend(NUM_BRISTLES, SEGMENTS_PER_BRISTLE, false);
+    }
+
+    @Test
+    public void transformFeedback_matchesJavaBackendWithContactClipping() {
+        assertMatchesJavaBackend(NUM_BRISTLES, SEGMENTS_PER_BRISTLE, true);
+    }
+
+    @Test
+    public void transformFeedback_matchesJavaBackendAtReducedQuality() {
+        assertMatchesJavaBackend(NUM_BRISTLES / 3, 2, true);
+    }
+
+    @Test
+    public void vertices_coverLayout() {
+        BristleKernel layoutKernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+        layoutKernel.setQuality(NUM_BRISTLES / 2, SEGMENTS_PER_BRISTLE);
+
+        int[] bristleOffsets = new int[NUM_SNAPSHOTS * NUM_BRISTLES + 1];
+        int[] imprintOffsets = new int[NUM_SNAPSHOTS + 1];
+        layoutKernel.layoutImprints(snapshots, NUM_SNAPSHOTS, bristleOffsets, imprintOffsets);
+
+        IntBuffer vertices = IntBuffer.allocate(NUM_SNAPSHOTS * NUM_BRISTLES
+                * (SEGMENTS_PER_BRISTLE + 1) * TransformFeedbackComputeBackend.INTS_PER_VERTEX);
+        int numVertices = TransformFeedbackComputeBackend.writeVertices(layoutKernel,
+                NUM_SNAPSHOTS, bristleOffsets, vertices);
+
+        assertEquals(imprintOffsets[NUM_SNAPSHOTS] / BristleKernel.FLOATS_PER_VERTEX, numVertices);
+
+        // Every strip runs from the top to the tip of a bristle of the active subset
+        assertEquals(0, vertices.get(2));
+        assertEquals(layoutKernel.getBristle(1), vertices.get(
+                (vertices.get(3) + 1) * TransformFeedbackComputeBackend.INTS_PER_VERTEX + 1));
+
+        int last = (numVertices - 1) * TransformFeedbackComputeBackend.INTS_PER_VERTEX;
+        assertEquals(NUM_SNAPSHOTS - 1, vertices.get(last));
+        assertEquals(vertices.get(last + 3), vertices.get(last + 2));
+    }
+
+    private void assertMatchesJavaBackend(int numActiveBristles, int segmentsPerBristle,
+                                          boolean contactClipping) {
+
+        int maxFloats = NUM_SNAPSHOTS * NUM_BRISTLES * 3 * (SEGMENTS_PER_BRISTLE + 1);
+        int numStrips = NUM_SNAPSHOTS * numActiveBristles;
+
+        JavaComputeBackend javaBackend = new JavaComputeBackend(
+                new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE));
+        javaBackend.setQuality(numActiveBristles, segmentsPerBristle);
+        javaBackend.setContactClipping(contactClipping, CONTACT_HEIGHT);
+        javaBackend.setWorldSpace(true);
+
+        float[] expected = new float[maxFloats];
+        int[] expectedImprintOffsets = new int[NUM_SNAPSHOTS + 1];
+        int[] expectedLengths = new int[numStrips];
+        javaBackend.computeVertexData(snapshots, NUM_SNAPSHOTS, FloatBuffer.wrap(expected),
+                expectedImprintOffsets, expectedLengths);
+
+        // The same steps as the backend, with the reference in place of the draw
+        BristleKernel layoutKernel = new BristleKernel(bristleStore, SEGMENTS_PER_BRISTLE);
+        layoutKernel.setQuality(numActiveBristles, segmentsPerBristle);
+
+        int[] bristleOffsets = new int[numStrips + 1];
+        int[] imprintOffsets = new int[NUM_SNAPSHOTS + 1];
+        layoutKernel.layoutImprints(snapshots, NUM_SNAPSHOTS, bristleOffsets, imprintOffsets);
+
+        IntBuffer vertices = IntBuffer.allocate(maxFloats / 3 * TransformFeedbackComputeBackend.INTS_PER_VERTEX);
+        int numVertices = TransformFeedbackComputeBackend.writeVertices(layoutKernel,
+                NUM_SNAPSHOTS, bristleOffsets, vertices);
+
+        FloatBuffer positions = FloatBuffer.allocate(numVertices * 3);
+        FloatBuffer heights = FloatBuffer.allocate(numVertices);
+        reference.capture(snapshots, vertices, numVertices, true, positions, heights);
+
+        float[] actual = new float[maxFloats];
+        int[] lengths = new int[numStrips];
+        TransformFeedbackComputeBackend.assemble(positions, heights, NUM_SNAPSHOTS,
+                numActiveBristles, bristleOffsets, contactClipping, CONTACT_HEIGHT,
+                FloatBuffer.wrap(actual), imprintOffsets, lengths);
+
+        assertArrayEquals(expectedImprintOffsets, imprintOffsets);
+        assertArrayEquals(expectedLengths, lengths);
+
+        // The Java backend compacts in place, so only the compacted range is compared
+        int end = imprintOffsets[NUM_SNAPSHOTS];
+        assertArrayEquals(Arrays.copyOf(expected, end), Arrays.copyOf(actual, end), TOLERANCE);
+
+        if (contactClipping) {
+            assertTrue(imprintOffsets[NUM_SNAPSHOTS] > 0);
+            assertTrue(imprintOffsets[NUM_SNAPSHOTS] < bristleOffsets[numStrips]);
+        }
+    }
+}
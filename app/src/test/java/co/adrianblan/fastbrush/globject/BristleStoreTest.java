@@ -0,0 +1,76 @@
+package co.adrianblan.fastbrush.globject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the packed storage of the bristles.
+ */
+public class BristleStoreTest {
+
+    private static final float RADIUS_UPPER = 0.25f;
+    private static final float RADIUS_LOWER = 0.27f;
+
+    @Test
+    public void rebuild_keepsBristlesIntact() {
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(500, RADIUS_UPPER, RADIUS_LOWER, 1);
+
+        // The bottom of a bristle is a scaled copy of its top, also after sorting
+        for (int i = 0; i < bristleStore.size(); i++) {
+            assertEquals(bristleStore.topX[i] * RADIUS_LOWER / RADIUS_UPPER, bristleStore.bottomX[i], 0.00001f);
+            assertEquals(bristleStore.topY[i] * RADIUS_LOWER / RADIUS_UPPER, bristleStore.bottomY[i], 0.00001f);
+            assertTrue(bristleStore.length[i] >= -bristleStore.bottomZ[i]);
+        }
+    }
+
+    @Test
+    public void rebuild_reusesArrays() {
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(500, RADIUS_UPPER, RADIUS_LOWER, 1);
+
+        float[] topX = bristleStore.topX;
+        bristleStore.rebuildEven(300, RADIUS_UPPER, RADIUS_LOWER, 2);
+
+        assertSame(topX, bristleStore.topX);
+        assertEquals(300, bristleStore.size());
+    }
+
+    @Test
+    public void neighbouringBristles_areClose() {
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(1000, RADIUS_UPPER, RADIUS_LOWER, 3);
+
+        float sortedDistance = 0;
+        for (int i = 1; i < bristleStore.size(); i++) {
+            float distanceX = bristleStore.topX[i] - bristleStore.topX[i - 1];
+            float distanceY = bristleStore.topY[i] - bristleStore.topY[i - 1];
+            sortedDistance += Math.sqrt(distanceX * distanceX + distanceY * distanceY);
+        }
+
+        // Unsorted, consecutive bristles are on average about a radius apart
+        assertTrue(sortedDistance / bristleStore.size() < 0.2f * RADIUS_UPPER);
+    }
+
+    @Test
+    public void radius_coversCrossSectionOfArchetype() {
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(1000, RADIUS_UPPER, RADIUS_LOWER, BrushArchetype.FAN, 4);
+
+        // The fan is wider at the tips than the lower radius of a round brush
+        float radius = bristleStore.getRadius();
+        assertTrue(radius > RADIUS_LOWER);
+        assertTrue(radius <= RADIUS_LOWER * BrushArchetype.FAN.bottomScaleX);
+
+        for (int i = 0; i < bristleStore.size(); i++) {
+            float bottomX = bristleStore.bottomX[i];
+            float bottomY = bristleStore.bottomY[i];
+            assertTrue(Math.sqrt(bottomX * bottomX + bottomY * bottomY) <= radius);
+        }
+
+        BristleStore copy = new BristleStore();
+        copy.copyFrom(bristleStore);
+        assertEquals(radius, copy.getRadius(), 0f);
+    }
+}
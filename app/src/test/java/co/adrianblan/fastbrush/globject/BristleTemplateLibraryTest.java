@@ -0,0 +1,167 @@
+package co.adrianblan.fastbrush.globject;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the shared bristle templates and their even layout.
+ */
+public class BristleTemplateLibraryTest {
+
+    private static final float RADIUS_UPPER = 0.25f;
+    private static final float RADIUS_LOWER = 0.27f;
+
+    // The circle is divided into rings and sectors of equal area, which are counted separately
+    private static final int NUM_RINGS = 4;
+    private static final int NUM_SECTORS = 8;
+
+    @Test
+    public void sameSettings_shareTemplate() {
+        BristleStore template = BristleTemplateLibrary.get(300, 0.5f);
+
+        assertSame(template, BristleTemplateLibrary.get(300, 0.5f));
+        assertNotSame(template, BristleTemplateLibrary.get(300, 0.6f));
+        assertNotSame(template, BristleTemplateLibrary.get(200, 0.5f));
+        assertEquals(300, template.size());
+    }
+
+    @Test
+    public void archetypes_haveOwnTemplates() {
+        BristleStore round = BristleTemplateLibrary.get(BrushArchetype.ROUND, 300, 0.5f);
+
+        assertSame(round, BristleTemplateLibrary.get(300, 0.5f));
+
+        for (BrushArchetype archetype : BrushArchetype.values()) {
+            if (archetype != BrushArchetype.ROUND) {
+                assertNotSame(round, BristleTemplateLibrary.get(archetype, 300, 0.5f));
+                assertTrue(BristleTemplateLibrary.getKey(archetype, 300, 0.5f)
+                        != BristleTemplateLibrary.getKey(BrushArchetype.ROUND, 300, 0.5f));
+            }
+        }
+    }
+
+    @Test
+    public void archetypeLayouts_matchCrossSections() {
+        BristleStore flat = new BristleStore();
+        flat.rebuildEven(400, RADIUS_UPPER, RADIUS_LOWER, BrushArchetype.FLAT, 5);
+
+        BristleStore fan = new BristleStore();
+        fan.rebuildEven(400, RADIUS_UPPER, RADIUS_LOWER, BrushArchetype.FAN, 5);
+
+        // A flat brush is much wider than it is deep
+        assertTrue(getExtent(flat.topX, flat.size()) > 2.5f * getExtent(flat.topY, flat.size()));
+
+        // A fan brush widens towards the tips
+        assertTrue(getExtent(fan.bottomX, fan.size()) > 2f * getExtent(fan.topX, fan.size()));
+
+        // The tops of every archetype stay within the radius, which the spatial sort relies on
+        for (int i = 0; i < fan.size(); i++) {
+            assertTrue(Math.abs(fan.topX[i]) <= RADIUS_UPPER);
+            assertTrue(Math.abs(flat.topX[i]) <= RADIUS_UPPER);
+        }
+    }
+
+    @Test
+    public void roundLayout_isDefault() {
+        BristleStore first = new BristleStore();
+        first.rebuildEven(200, RADIUS_UPPER, RADIUS_LOWER, 3);
+
+        BristleStore second = new BristleStore();
+        second.rebuildEven(200, RADIUS_UPPER, RADIUS_LOWER, BrushArchetype.ROUND, 3);
+
+        assertArrayEquals(first.topX, second.topX, 0f);
+        assertArrayEquals(first.bottomY, second.bottomY, 0f);
+    }
+
+    @Test
+    public void evenLayout_isRepeatable() {
+        BristleStore first = new BristleStore();
+        first.rebuildEven(400, RADIUS_UPPER, RADIUS_LOWER, 5);
+
+        BristleStore second = new BristleStore();
+        second.rebuildEven(400, RADIUS_UPPER, RADIUS_LOWER, 5);
+
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.topX[i], second.topX[i], 0f);
+            assertEquals(first.topY[i], second.topY[i], 0f);
+            assertEquals(first.bottomZ[i], second.bottomZ[i], 0f);
+        }
+    }
+
+    @Test
+    public void copy_matchesTemplate() {
+        BristleStore template = BristleTemplateLibrary.get(250, 0.4f);
+
+        BristleStore bristleStore = new BristleStore();
+        bristleStore.rebuildEven(500, RADIUS_UPPER, RADIUS_LOWER, 1);
+        bristleStore.copyFrom(template);
+
+        assertEquals(template.size(), bristleStore.size());
+        for (int i = 0; i < template.size(); i++) {
+            assertEquals(template.topX[i], bristleStore.topX[i], 0f);
+            assertEquals(template.length[i], bristleStore.length[i], 0f);
+            assertEquals(template.directionY[i], bristleStore.directionY[i], 0f);
+        }
+    }
+
+    @Test
+    public void evenLayout_coversCircleEvenly() {
+        int numBristles = 320;
+
+        BristleStore even = new BristleStore();
+        even.rebuildEven(numBristles, RADIUS_UPPER, RADIUS_LOWER, 5);
+
+        // Uniform random bristles with the same area density, for comparison
+        BristleStore random = new BristleStore();
+        random.rebuildEven(numBristles, RADIUS_UPPER, RADIUS_LOWER, 5);
+        Random generator = new Random(9);
+        for (int i = 0; i < numBristles; i++) {
+            float angle = (float) (generator.nextFloat() * 2 * Math.PI);
+            float radius = (float) Math.sqrt(generator.nextFloat()) * RADIUS_UPPER;
+            random.topX[i] = (float) Math.cos(angle) * radius;
+            random.topY[i] = (float) Math.sin(angle) * radius;
+        }
+
+        float evenDeviation = getLargestCellDeviation(even, numBristles);
+        float randomDeviation = getLargestCellDeviation(random, numBristles);
+
+        assertTrue(evenDeviation < 0.4f);
+        assertTrue(evenDeviation < randomDeviation);
+    }
+
+    /** Returns the largest deviation of a cell from its expected count, relative to that count */
+    private static float getLargestCellDeviation(BristleStore bristleStore, int numBristles) {
+        int[] counts = new int[NUM_RINGS * NUM_SECTORS];
+
+        for (int i = 0; i < numBristles; i++) {
+            double radius = Math.hypot(bristleStore.topX[i], bristleStore.topY[i]) / RADIUS_UPPER;
+            double angle = Math.atan2(bristleStore.topY[i], bristleStore.topX[i]) + Math.PI;
+
+            int ring = Math.min(NUM_RINGS - 1, (int) (radius * radius * NUM_RINGS));
+            int sector = Math.min(NUM_SECTORS - 1, (int) (angle / (2 * Math.PI) * NUM_SECTORS));
+            counts[ring * NUM_SECTORS + sector]++;
+        }
+
+        float expected = (float) numBristles / counts.length;
+        float deviation = 0;
+        for (int count : counts) {
+            deviation = Math.max(deviation, Math.abs(count - expected) / expected);
+        }
+
+        return deviation;
+    }
+
+    /** Returns the largest distance of the values from zero */
+    private static float getExtent(float[] values, int size) {
+        float extent = 0;
+
+        for (int i = 0; i < size; i++) {
+            extent = Math.max(extent, Math.abs(values[i]));
+        }
+
+        return extent;
+    }
+}